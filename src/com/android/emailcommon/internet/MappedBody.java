@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import com.android.emailcommon.mail.Body;
+import com.android.emailcommon.mail.MessagingException;
+
+import org.apache.commons.io.IOUtils;
+
+import android.util.Base64;
+import android.util.Base64DataException;
+import android.util.Base64OutputStream;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A Body that is a slice of a message parsed by {@link MimeMessage#MimeMessage(
+ * java.nio.ByteBuffer)}. Nothing is copied or decoded until the body is read, and unlike
+ * {@link BinaryTempFileBody} it can be read any number of times.
+ */
+public class MappedBody implements Body {
+    private final MappedMessageSource mSource;
+    private final long mOffset;
+    private final long mLength;
+    private final String mContentTransferEncoding;
+    private long mDecodedSize = -1;
+
+    MappedBody(MappedMessageSource source, long offset, long length,
+            String contentTransferEncoding) {
+        mSource = source;
+        mOffset = offset;
+        mLength = length;
+        mContentTransferEncoding = contentTransferEncoding;
+    }
+
+    @Override
+    public InputStream getInputStream() throws MessagingException {
+        try {
+            return new MappedBodyInputStream(this,
+                    MimeUtility.getInputStreamForContentTransferEncoding(
+                            mSource.open(mOffset, mLength), mContentTransferEncoding));
+        } catch (IOException ioe) {
+            throw new MessagingException("Unable to open body", ioe);
+        }
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException, MessagingException {
+        InputStream in = getInputStream();
+        Base64OutputStream base64Out = new Base64OutputStream(
+            out, Base64.CRLF | Base64.NO_CLOSE);
+        try {
+            IOUtils.copy(in, base64Out);
+        } finally {
+            in.close();
+        }
+        base64Out.close();
+    }
+
+    /**
+     * @return the size of the body once its transfer encoding is removed, or -1 if that is not
+     *         known yet. Bodies with an encoding are not decoded to find it: it is recorded when
+     *         one of their streams is read to the end, e.g. when the body is written out.
+     */
+    public synchronized long getDecodedSize() {
+        if (mDecodedSize < 0) {
+            final String encoding =
+                    MimeUtility.getHeaderParameter(mContentTransferEncoding, null);
+            if (!"base64".equalsIgnoreCase(encoding)
+                    && !"quoted-printable".equalsIgnoreCase(encoding)) {
+                mDecodedSize = mLength;
+            }
+        }
+        return mDecodedSize;
+    }
+
+    private synchronized void setDecodedSize(long size) {
+        mDecodedSize = size;
+    }
+
+    /**
+     * Ends the body at bad base64 data instead of failing, as
+     * {@link MimeUtility#decodeBody(InputStream, String)} does, and records the decoded size
+     * of the body once it is read to the end.
+     */
+    private static class MappedBodyInputStream extends FilterInputStream {
+        private final MappedBody mBody;
+        private boolean mBadData = false;
+        private long mCount = 0;
+
+        MappedBodyInputStream(MappedBody body, InputStream in) {
+            super(in);
+            mBody = body;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mBadData) {
+                return -1;
+            }
+            try {
+                final int b = super.read();
+                if (b >= 0) {
+                    mCount++;
+                } else {
+                    mBody.setDecodedSize(mCount);
+                }
+                return b;
+            } catch (Base64DataException bde) {
+                return endAtBadData();
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mBadData) {
+                return -1;
+            }
+            try {
+                final int count = super.read(b, off, len);
+                if (count >= 0) {
+                    mCount += count;
+                } else {
+                    mBody.setDecodedSize(mCount);
+                }
+                return count;
+            } catch (Base64DataException bde) {
+                return endAtBadData();
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private int endAtBadData() {
+            mBadData = true;
+            mBody.setDecodedSize(mCount);
+            return -1;
+        }
+    }
+}
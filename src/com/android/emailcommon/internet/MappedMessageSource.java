@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import org.apache.james.mime4j.EOLConvertingInputStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A message held in a (usually memory-mapped) buffer, which is parsed once to find where each
+ * body is and then read back one body at a time.
+ * <p>
+ * The parser sees the message after its line endings have been converted to CRLF, so body
+ * offsets are offsets in that converted stream. While parsing, the converting stream records
+ * where each block it reads starts in both the buffer and its output; a body is read back by
+ * resuming the conversion at the last block that starts before it.
+ */
+class MappedMessageSource implements EOLConvertingInputStream.Checkpoints {
+    private final ByteBuffer mBuffer;
+
+    // Checkpoints, in increasing order of offset
+    private long[] mOutputOffsets = new long[64];
+    private long[] mSourceOffsets = new long[64];
+    private boolean[] mPreviousCR = new boolean[64];
+    private int mCheckpointCount;
+
+    MappedMessageSource(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * @return a stream over the whole message with its line endings converted, which records
+     *         the checkpoints used by {@link #open}. Should be read once, by the parser.
+     */
+    InputStream newParseStream() {
+        return new EOLConvertingInputStream(new ByteBufferInputStream(mBuffer.duplicate()), this);
+    }
+
+    @Override
+    public void add(long outputOffset, long sourceOffset, boolean previousCR) {
+        if (mCheckpointCount == mOutputOffsets.length) {
+            final int size = mCheckpointCount * 2;
+            mOutputOffsets = Arrays.copyOf(mOutputOffsets, size);
+            mSourceOffsets = Arrays.copyOf(mSourceOffsets, size);
+            mPreviousCR = Arrays.copyOf(mPreviousCR, size);
+        }
+        mOutputOffsets[mCheckpointCount] = outputOffset;
+        mSourceOffsets[mCheckpointCount] = sourceOffset;
+        mPreviousCR[mCheckpointCount] = previousCR;
+        mCheckpointCount++;
+    }
+
+    /**
+     * Opens <code>length</code> bytes of the converted stream, starting at <code>offset</code>.
+     * Safe to call from any thread once parsing is done.
+     */
+    InputStream open(long offset, long length) throws IOException {
+        // The last checkpoint at or before the offset
+        int index = Arrays.binarySearch(mOutputOffsets, 0, mCheckpointCount, offset);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        final long outputOffset = index >= 0 ? mOutputOffsets[index] : 0;
+        final ByteBuffer buffer = mBuffer.duplicate();
+        buffer.position(index >= 0 ? (int) mSourceOffsets[index] : 0);
+        final InputStream in = new EOLConvertingInputStream(new ByteBufferInputStream(buffer),
+                index >= 0 && mPreviousCR[index]);
+
+        long toSkip = offset - outputOffset;
+        while (toSkip > 0) {
+            final long skipped = in.skip(toSkip);
+            if (skipped <= 0) {
+                throw new EOFException("Body starts past the end of the message");
+            }
+            toSkip -= skipped;
+        }
+        return new BoundedInputStream(in, length);
+    }
+
+    /**
+     * Reads from the current position to the limit of a buffer.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+
+    /**
+     * Ends after a given number of bytes of another stream.
+     */
+    private static class BoundedInputStream extends InputStream {
+        private final InputStream mIn;
+        private long mRemaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            mIn = in;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            final int b = mIn.read();
+            if (b >= 0) {
+                mRemaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            final int count = mIn.read(b, off, (int) Math.min(len, mRemaining));
+            if (count > 0) {
+                mRemaining -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
@@ -75,6 +75,13 @@ public class MimeBodyPart extends BodyPart {
         return mHeader.getHeader(name);
     }
 
+    /**
+     * @see MimeHeader#getFirstHeaderDecoded
+     */
+    public String getFirstHeaderDecoded(String name) throws MessagingException {
+        return mHeader.getFirstHeaderDecoded(name);
+    }
+
     @Override
     public void removeHeader(String name) throws MessagingException {
         mHeader.removeHeader(name);
@@ -23,7 +23,15 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.TreeMap;
 
+/**
+ * The fields of a header in the order they were added, which is the order they are written in.
+ * Fields are also indexed by name, ignoring case, so looking up a header does not scan all of
+ * them; messages from mailing lists often have well over a hundred. The unfolded and decoded
+ * values of a field are kept once they have been asked for.
+ */
 public class MimeHeader {
     /**
      * Application specific header that contains Store specific information about an attachment.
@@ -48,22 +56,50 @@ public class MimeHeader {
         HEADER_ANDROID_ATTACHMENT_STORE_DATA
     };
 
-    protected final ArrayList<Field> mFields = new ArrayList<Field>();
+    /** Subclasses that change this directly have {@link #mIndex} rebuilt on the next lookup */
+    protected final ArrayList<Field> mFields = new FieldList();
+    /** The first field with each name, as of {@link #mIndexedModCount} */
+    private final TreeMap<String, Field> mIndex =
+            new TreeMap<String, Field>(String.CASE_INSENSITIVE_ORDER);
+    private int mIndexedModCount;
 
     public void clear() {
         mFields.clear();
+        mIndex.clear();
+        indexed();
     }
 
     public String getFirstHeader(String name) throws MessagingException {
-        String[] header = getHeader(name);
-        if (header == null) {
-            return null;
-        }
-        return header[0];
+        final Field field = getField(name);
+        return field != null ? field.value : null;
+    }
+
+    /**
+     * @return the first value of the header with line breaks removed, as
+     *         {@link MimeUtility#unfold} does, or null if there is none.
+     */
+    public String getFirstHeaderUnfolded(String name) throws MessagingException {
+        final Field field = getField(name);
+        return field != null ? field.getUnfoldedValue() : null;
+    }
+
+    /**
+     * @return the first value of the header unfolded and with its encoded words decoded, as
+     *         {@link MimeUtility#unfoldAndDecode} does, or null if there is none.
+     */
+    public String getFirstHeaderDecoded(String name) throws MessagingException {
+        final Field field = getField(name);
+        return field != null ? field.getDecodedValue() : null;
     }
 
     public void addHeader(String name, String value) throws MessagingException {
-        mFields.add(new Field(name, value));
+        final Field field = new Field(name, value);
+        final boolean wasIndexed = isIndexed();
+        mFields.add(field);
+        if (wasIndexed) {
+            index(field);
+            indexed();
+        }
     }
 
     public void setHeader(String name, String value) throws MessagingException {
@@ -75,26 +111,79 @@ public class MimeHeader {
     }
 
     public String[] getHeader(String name) throws MessagingException {
-        ArrayList<String> values = new ArrayList<String>();
-        for (Field field : mFields) {
-            if (field.name.equalsIgnoreCase(name)) {
-                values.add(field.value);
-            }
-        }
-        if (values.size() == 0) {
+        final Field first = getField(name);
+        if (first == null) {
             return null;
         }
-        return values.toArray(new String[] {});
+        int count = 0;
+        for (Field field = first; field != null; field = field.next) {
+            count++;
+        }
+        final String[] values = new String[count];
+        int i = 0;
+        for (Field field = first; field != null; field = field.next) {
+            values[i++] = field.value;
+        }
+        return values;
     }
 
     public void removeHeader(String name) throws MessagingException {
-        ArrayList<Field> removeFields = new ArrayList<Field>();
-        for (Field field : mFields) {
-            if (field.name.equalsIgnoreCase(name)) {
-                removeFields.add(field);
+        if (getField(name) == null) {
+            return;
+        }
+        mIndex.remove(name);
+        for (Iterator<Field> i = mFields.iterator(); i.hasNext(); ) {
+            if (name.equalsIgnoreCase(i.next().name)) {
+                i.remove();
             }
         }
-        mFields.removeAll(removeFields);
+        indexed();
+    }
+
+    /**
+     * @return the first field with the name, ignoring case, or null if there is none or the
+     *         name is null.
+     */
+    private Field getField(String name) {
+        if (name == null) {
+            return null;
+        }
+        if (!isIndexed()) {
+            mIndex.clear();
+            for (Field field : mFields) {
+                field.next = null;
+                field.last = null;
+                index(field);
+            }
+            indexed();
+        }
+        return mIndex.get(name);
+    }
+
+    /** Links a field that was just added to the end of mFields into the index */
+    private void index(Field field) {
+        if (field.name == null) {
+            return;
+        }
+        final Field first = mIndex.get(field.name);
+        if (first == null) {
+            field.last = field;
+            mIndex.put(field.name, field);
+        } else {
+            first.last.next = field;
+            first.last = field;
+        }
+    }
+
+    private boolean isIndexed() {
+        final FieldList fields = (FieldList) mFields;
+        return fields.getModCount() == mIndexedModCount && !fields.mReplaced;
+    }
+
+    private void indexed() {
+        final FieldList fields = (FieldList) mFields;
+        mIndexedModCount = fields.getModCount();
+        fields.mReplaced = false;
     }
 
     /**
@@ -120,21 +209,60 @@ public class MimeHeader {
         BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out), 1024);
         for (Field field : mFields) {
             if (!arrayContains(WRITE_OMIT_FIELDS, field.name)) {
-                writer.write(field.name + ": " + field.value + "\r\n");
+                writer.write(field.name);
+                writer.write(": ");
+                writer.write(field.value);
+                writer.write("\r\n");
             }
         }
         writer.flush();
     }
 
+    /** Lets the index tell whether the list was changed behind its back */
+    private static class FieldList extends ArrayList<Field> {
+        /** Whether a field was replaced, which unlike adding or removing one is not counted */
+        boolean mReplaced;
+
+        @Override
+        public Field set(int index, Field field) {
+            mReplaced = true;
+            return super.set(index, field);
+        }
+
+        int getModCount() {
+            return modCount;
+        }
+    }
+
     private static class Field {
         final String name;
         final String value;
+        /** The next field with the same name */
+        Field next;
+        /** The last field with the same name, kept on the first */
+        Field last;
+        private String unfoldedValue;
+        private String decodedValue;
 
         public Field(String name, String value) {
             this.name = name;
             this.value = value;
         }
-        
+
+        String getUnfoldedValue() {
+            if (unfoldedValue == null) {
+                unfoldedValue = MimeUtility.unfold(value);
+            }
+            return unfoldedValue;
+        }
+
+        String getDecodedValue() {
+            if (decodedValue == null) {
+                decodedValue = MimeUtility.decode(getUnfoldedValue());
+            }
+            return decodedValue;
+        }
+
         @Override
         public String toString() {
             return name + "=" + value;
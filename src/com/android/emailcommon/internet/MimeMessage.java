@@ -31,6 +31,7 @@ import org.apache.james.mime4j.EOLConvertingInputStream;
 import org.apache.james.mime4j.MimeStreamParser;
 import org.apache.james.mime4j.field.DateTimeField;
 import org.apache.james.mime4j.field.Field;
+import org.apache.james.mime4j.field.datetime.SimpleDateTimeParser;
 
 import android.text.TextUtils;
 
@@ -39,6 +40,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -121,7 +123,30 @@ public class MimeMessage extends Message {
         parse(in);
     }
 
+    /**
+     * Parse a whole message held in a buffer, such as a memory-mapped .eml file. Bodies are
+     * not copied out of the buffer: each one is a {@link MappedBody} that reads its slice of
+     * the buffer when asked, so the buffer must stay valid for as long as the message is used.
+     *
+     * @param buffer the message, from its position to its limit
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public MimeMessage(ByteBuffer buffer) throws IOException, MessagingException {
+        final MappedMessageSource source = new MappedMessageSource(buffer);
+        final MimeStreamParser parser = init(source);
+        parser.parse(source.newParseStream());
+        mComplete = !parser.getPrematureEof();
+    }
+
     private MimeStreamParser init() {
+        return init(null);
+    }
+
+    /**
+     * @param source the buffer being parsed, or null to copy each body to a temp file
+     */
+    private MimeStreamParser init(MappedMessageSource source) {
         // Before parsing the input stream, clear all local fields that may be superceded by
         // the new incoming message.
         getMimeHeaders().clear();
@@ -135,7 +160,7 @@ public class MimeMessage extends Message {
         mBody = null;
 
         final MimeStreamParser parser = new MimeStreamParser();
-        parser.setContentHandler(new MimeMessageBuilder());
+        parser.setContentHandler(new MimeMessageBuilder(parser, source));
         return parser;
     }
 
@@ -172,9 +197,7 @@ public class MimeMessage extends Message {
     public Date getSentDate() throws MessagingException {
         if (mSentDate == null) {
             try {
-                DateTimeField field = (DateTimeField)Field.parse("Date: "
-                        + MimeUtility.unfoldAndDecode(getFirstHeader("Date")));
-                mSentDate = field.getDate();
+                mSentDate = parseDate(getFirstHeaderDecoded("Date"));
                 // TODO: We should make it more clear what exceptions can be thrown here,
                 // and whether they reflect a normal or error condition.
             } catch (Exception e) {
@@ -184,9 +207,7 @@ public class MimeMessage extends Message {
         if (mSentDate == null) {
             // If we still don't have a date, fall back to "Delivery-date"
             try {
-                DateTimeField field = (DateTimeField)Field.parse("Date: "
-                        + MimeUtility.unfoldAndDecode(getFirstHeader("Delivery-date")));
-                mSentDate = field.getDate();
+                mSentDate = parseDate(getFirstHeaderDecoded("Delivery-date"));
                 // TODO: We should make it more clear what exceptions can be thrown here,
                 // and whether they reflect a normal or error condition.
             } catch (Exception e) {
@@ -196,6 +217,18 @@ public class MimeMessage extends Message {
         return mSentDate;
     }
 
+    /**
+     * Parses the decoded value of a date header the way {@link DateTimeField} does, without
+     * building a field for the dates most messages have.
+     */
+    private static Date parseDate(String value) {
+        final long time = SimpleDateTimeParser.parse(value);
+        if (time != SimpleDateTimeParser.UNPARSED) {
+            return new Date(time);
+        }
+        return ((DateTimeField)Field.parse("Date: " + value)).getDate();
+    }
+
     @Override
     public void setSentDate(Date sentDate) throws MessagingException {
         setHeader("Date", DATE_FORMAT.format(sentDate));
@@ -250,17 +283,17 @@ public class MimeMessage extends Message {
     public Address[] getRecipients(RecipientType type) throws MessagingException {
         if (type == RecipientType.TO) {
             if (mTo == null) {
-                mTo = Address.parse(MimeUtility.unfold(getFirstHeader("To")));
+                mTo = Address.parse(getFirstHeaderUnfolded("To"));
             }
             return mTo;
         } else if (type == RecipientType.CC) {
             if (mCc == null) {
-                mCc = Address.parse(MimeUtility.unfold(getFirstHeader("CC")));
+                mCc = Address.parse(getFirstHeaderUnfolded("CC"));
             }
             return mCc;
         } else if (type == RecipientType.BCC) {
             if (mBcc == null) {
-                mBcc = Address.parse(MimeUtility.unfold(getFirstHeader("BCC")));
+                mBcc = Address.parse(getFirstHeaderUnfolded("BCC"));
             }
             return mBcc;
         } else {
@@ -307,7 +340,7 @@ public class MimeMessage extends Message {
      */
     @Override
     public String getSubject() throws MessagingException {
-        return MimeUtility.unfoldAndDecode(getFirstHeader("Subject"));
+        return getFirstHeaderDecoded("Subject");
     }
 
     @Override
@@ -319,9 +352,9 @@ public class MimeMessage extends Message {
     @Override
     public Address[] getFrom() throws MessagingException {
         if (mFrom == null) {
-            String list = MimeUtility.unfold(getFirstHeader("From"));
+            String list = getFirstHeaderUnfolded("From");
             if (list == null || list.length() == 0) {
-                list = MimeUtility.unfold(getFirstHeader("Sender"));
+                list = getFirstHeaderUnfolded("Sender");
             }
             mFrom = Address.parse(list);
         }
@@ -344,7 +377,7 @@ public class MimeMessage extends Message {
     @Override
     public Address[] getReplyTo() throws MessagingException {
         if (mReplyTo == null) {
-            mReplyTo = Address.parse(MimeUtility.unfold(getFirstHeader("Reply-to")));
+            mReplyTo = Address.parse(getFirstHeaderUnfolded("Reply-to"));
         }
         return mReplyTo;
     }
@@ -417,6 +450,17 @@ public class MimeMessage extends Message {
         return getMimeHeaders().getFirstHeader(name);
     }
 
+    private String getFirstHeaderUnfolded(String name) throws MessagingException {
+        return getMimeHeaders().getFirstHeaderUnfolded(name);
+    }
+
+    /**
+     * @see MimeHeader#getFirstHeaderDecoded
+     */
+    public String getFirstHeaderDecoded(String name) throws MessagingException {
+        return getMimeHeaders().getFirstHeaderDecoded(name);
+    }
+
     @Override
     public void addHeader(String name, String value) throws MessagingException {
         getMimeHeaders().addHeader(name, value);
@@ -538,8 +582,12 @@ public class MimeMessage extends Message {
 
     class MimeMessageBuilder implements ContentHandler {
         private final Stack<Object> stack = new Stack<Object>();
+        private final MimeStreamParser mParser;
+        private final MappedMessageSource mSource;
 
-        public MimeMessageBuilder() {
+        public MimeMessageBuilder(MimeStreamParser parser, MappedMessageSource source) {
+            mParser = parser;
+            mSource = source;
         }
 
         private void expect(Class<?> c) {
@@ -609,7 +657,20 @@ public class MimeMessage extends Message {
         @Override
         public void body(BodyDescriptor bd, InputStream in) throws IOException {
             expect(Part.class);
-            final Body body = MimeUtility.decodeBody(in, bd.getTransferEncoding());
+            final long offset = mSource != null ? mParser.getBodyOffset() : -1;
+            final Body body;
+            if (offset >= 0) {
+                // Only the length is needed; the body is read back from the source later
+                final byte[] buffer = new byte[8192];
+                long length = 0;
+                int count;
+                while ((count = in.read(buffer)) >= 0) {
+                    length += count;
+                }
+                body = new MappedBody(mSource, offset, length, bd.getTransferEncoding());
+            } else {
+                body = MimeUtility.decodeBody(in, bd.getTransferEncoding());
+            }
             try {
                 ((Part)stack.peek()).setBody(body);
             } catch (MessagingException me) {
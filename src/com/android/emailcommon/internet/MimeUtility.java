@@ -20,7 +20,6 @@ import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Base64DataException;
 import android.util.Base64InputStream;
-import android.util.Log;
 
 import com.android.emailcommon.mail.Body;
 import com.android.emailcommon.mail.BodyPart;
@@ -33,9 +32,7 @@ import org.apache.commons.io.IOUtils;
 import org.apache.james.mime4j.codec.EncoderUtil;
 import org.apache.james.mime4j.decoder.DecoderUtil;
 import org.apache.james.mime4j.decoder.QuotedPrintableInputStream;
-import org.apache.james.mime4j.util.CharsetUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -44,8 +41,6 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class MimeUtility {
-    private static final String LOG_TAG = "Email";
-
     public static final String MIME_TYPE_RFC822 = "message/rfc822";
     private final static Pattern PATTERN_CR_OR_LF = Pattern.compile("\r|\n");
 
@@ -57,6 +52,9 @@ public class MimeUtility {
         if (s == null) {
             return null;
         }
+        if (s.indexOf('\r') < 0 && s.indexOf('\n') < 0) {
+            return s;
+        }
         Matcher patternMatcher = PATTERN_CR_OR_LF.matcher(s);
         if (patternMatcher.find()) {
             patternMatcher.reset();
@@ -76,6 +74,23 @@ public class MimeUtility {
         return decode(unfold(s));
     }
 
+    /**
+     * @return the first value of the header of the part, unfolded and with its encoded words
+     *         decoded, or null if there is none. The value kept by the part's
+     *         {@link MimeHeader} is used when the part has one.
+     */
+    public static String getFirstHeaderDecoded(Part part, String name)
+            throws MessagingException {
+        if (part instanceof MimeBodyPart) {
+            return ((MimeBodyPart) part).getFirstHeaderDecoded(name);
+        }
+        if (part instanceof MimeMessage) {
+            return ((MimeMessage) part).getFirstHeaderDecoded(name);
+        }
+        final String[] values = part.getHeader(name);
+        return values != null && values.length > 0 ? unfoldAndDecode(values[0]) : null;
+    }
+
     // TODO implement proper foldAndEncode
     // NOTE: When this really works, we *must* remove all calls to foldAndEncode2() to prevent
     // duplication of encoding.
@@ -221,63 +236,11 @@ public class MimeUtility {
      * @param part The part containing a body
      * @return a String containing the converted text in the body, or null if there was no text
      * or an error during conversion.
+     * @see PartTextDecoder for appending the text to a builder, or clipping it
      */
     public static String getTextFromPart(Part part) {
-        try {
-            if (part != null && part.getBody() != null) {
-                InputStream in = part.getBody().getInputStream();
-                String mimeType = part.getMimeType();
-                if (mimeType != null && MimeUtility.mimeTypeMatches(mimeType, "text/*")) {
-                    /*
-                     * Now we read the part into a buffer for further processing. Because
-                     * the stream is now wrapped we'll remove any transfer encoding at this point.
-                     */
-                    ByteArrayOutputStream out = new ByteArrayOutputStream();
-                    IOUtils.copy(in, out);
-                    in.close();
-                    in = null;      // we want all of our memory back, and close might not release
-
-                    /*
-                     * We've got a text part, so let's see if it needs to be processed further.
-                     */
-                    String charset = getHeaderParameter(part.getContentType(), "charset");
-                    if (charset != null) {
-                        /*
-                         * See if there is conversion from the MIME charset to the Java one.
-                         */
-                        charset = CharsetUtil.toJavaCharset(charset);
-                    }
-                    /*
-                     * No encoding, so use us-ascii, which is the standard.
-                     */
-                    if (charset == null) {
-                        charset = "ASCII";
-                    }
-                    /*
-                     * Convert and return as new String
-                     */
-                    String result = out.toString(charset);
-                    out.close();
-                    return result;
-                }
-            }
-
-        }
-        catch (OutOfMemoryError oom) {
-            /*
-             * If we are not able to process the body there's nothing we can do about it. Return
-             * null and let the upper layers handle the missing content.
-             */
-            Log.e(LOG_TAG, "Unable to getTextFromPart " + oom.toString());
-        }
-        catch (Exception e) {
-            /*
-             * If we are not able to process the body there's nothing we can do about it. Return
-             * null and let the upper layers handle the missing content.
-             */
-            Log.e(LOG_TAG, "Unable to getTextFromPart " + e.toString());
-        }
-        return null;
+        final StringBuilder sb = new StringBuilder();
+        return new PartTextDecoder().appendText(part, sb) ? sb.toString() : null;
     }
 
     /**
@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import android.util.Log;
+
+import com.android.emailcommon.mail.Part;
+
+import org.apache.james.mime4j.util.CharsetUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.UnsupportedCharsetException;
+
+/**
+ * Decodes the text of a text/* part straight from its body stream into a StringBuilder,
+ * without first collecting the raw bytes or building an intermediate String.
+ * <p>
+ * Optionally stops once the destination holds a given number of characters, like
+ * {@link com.android.mail.lib.html.parser.HtmlParser#setClipLength}; the rest of the body is
+ * then not read at all. An instance reuses its buffers across parts but is not thread-safe.
+ */
+public class PartTextDecoder {
+    private static final String LOG_TAG = "Email";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final ByteBuffer mBytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharBuffer mChars = CharBuffer.allocate(BUFFER_SIZE);
+
+    private int mClipLength = Integer.MAX_VALUE;
+    private boolean mClipped;
+
+    /**
+     * Sets the maximum length, in characters, that {@link #appendText} lets the destination
+     * grow to.
+     *
+     * @param clipLength must be greater than zero.
+     * (It starts as Integer.MAX_VALUE)
+     */
+    public void setClipLength(int clipLength) {
+        if (clipLength <= 0) {
+            throw new IllegalArgumentException("clipLength '" + clipLength + "' <= 0");
+        }
+        mClipLength = clipLength;
+    }
+
+    /**
+     * @return whether the last call to {@link #appendText} left out text because the
+     *         destination reached the clip length.
+     */
+    public boolean isClipped() {
+        return mClipped;
+    }
+
+    /**
+     * Appends the text of a part, converted from its charset, to <code>sb</code>.
+     *
+     * @return false if the part is not text, has no body, or could not be read; nothing is
+     *         appended in that case.
+     */
+    public boolean appendText(Part part, StringBuilder sb) {
+        mClipped = false;
+        final int start = sb.length();
+        try {
+            if (part == null || part.getBody() == null) {
+                return false;
+            }
+            final String mimeType = part.getMimeType();
+            if (mimeType == null || !MimeUtility.mimeTypeMatches(mimeType, "text/*")) {
+                return false;
+            }
+            final CharsetDecoder decoder = getDecoder(
+                    MimeUtility.getHeaderParameter(part.getContentType(), "charset"));
+            final InputStream in = part.getBody().getInputStream();
+            try {
+                decode(in, decoder, sb);
+            } finally {
+                in.close();
+            }
+            return true;
+        } catch (OutOfMemoryError oom) {
+            /*
+             * If we are not able to process the body there's nothing we can do about it.
+             * Let the upper layers handle the missing content.
+             */
+            sb.setLength(start);
+            Log.e(LOG_TAG, "Unable to getTextFromPart " + oom.toString());
+        } catch (Exception e) {
+            sb.setLength(start);
+            Log.e(LOG_TAG, "Unable to getTextFromPart " + e.toString());
+        }
+        return false;
+    }
+
+    /**
+     * @param charset the MIME charset of the part, or null
+     * @return a reset decoder that replaces bad input, as String's constructors do.
+     * @throws UnsupportedCharsetException if the charset is a known one that the VM can't
+     *             decode. Such parts have never had any text, while unknown charsets are read
+     *             as US-ASCII.
+     */
+    private static CharsetDecoder getDecoder(String charset) {
+        /*
+         * See if there is conversion from the MIME charset to the Java one.
+         */
+        final Charset javaCharset =
+                charset != null ? CharsetUtil.getDecodingCharset(charset) : null;
+        if (javaCharset == null && charset != null) {
+            final String javaName = CharsetUtil.toJavaCharset(charset);
+            if (javaName != null) {
+                throw new UnsupportedCharsetException(javaName);
+            }
+        }
+        /*
+         * No encoding, so use us-ascii, which is the standard.
+         */
+        return CharsetUtil.getDecoder(javaCharset != null ? javaCharset : CharsetUtil.US_ASCII);
+    }
+
+    private void decode(InputStream in, CharsetDecoder decoder, StringBuilder sb)
+            throws IOException {
+        mBytes.clear();
+        mChars.clear();
+        boolean eof = false;
+        CoderResult result;
+        while (!eof) {
+            final int count = in.read(mBytes.array(), mBytes.position(), mBytes.remaining());
+            if (count < 0) {
+                eof = true;
+            } else {
+                mBytes.position(mBytes.position() + count);
+            }
+            mBytes.flip();
+            do {
+                result = decoder.decode(mBytes, mChars, eof);
+                if (!drain(sb)) {
+                    return;
+                }
+            } while (result.isOverflow());
+            // Keep any partial character for the next read
+            mBytes.compact();
+        }
+        do {
+            result = decoder.flush(mChars);
+            if (!drain(sb)) {
+                return;
+            }
+        } while (result.isOverflow());
+    }
+
+    /**
+     * Moves the decoded characters to <code>sb</code>.
+     *
+     * @return false if the clip length was reached and decoding should stop.
+     */
+    private boolean drain(StringBuilder sb) {
+        mChars.flip();
+        final int available = mChars.remaining();
+        int count = Math.max(0, Math.min(available, mClipLength - sb.length()));
+        if (count < available) {
+            // Don't leave half of a surrogate pair at the end
+            if (count > 0 && Character.isHighSurrogate(mChars.get(count - 1))) {
+                count--;
+            }
+            sb.append(mChars.array(), mChars.arrayOffset(), count);
+            mChars.clear();
+            mClipped = true;
+            return false;
+        }
+        sb.append(mChars.array(), mChars.arrayOffset(), count);
+        mChars.clear();
+        return true;
+    }
+}
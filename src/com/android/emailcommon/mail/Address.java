@@ -129,10 +129,14 @@ public class Address implements Parcelable {
         return mSimplifiedName;
     }
 
-    public static synchronized Address getEmailAddress(String rawAddress) {
+    public static Address getEmailAddress(String rawAddress) {
         if (TextUtils.isEmpty(rawAddress)) {
             return null;
         }
+        final String[] simple = SimpleAddressTokenizer.tokenize(rawAddress);
+        if (simple != null) {
+            return new Address(simple[1], simple[0]);
+        }
         String name, address;
         final Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(rawAddress);
         if (tokens.length > 0) {
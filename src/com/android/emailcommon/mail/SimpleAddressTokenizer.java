@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.mail;
+
+/**
+ * Splits a single raw address in one of the forms most messages use:
+ * <pre>
+ *   address
+ *   name &lt;address&gt;
+ *   "name" &lt;address&gt;
+ * </pre>
+ * without {@link android.text.util.Rfc822Tokenizer} and {@link android.text.Html#fromHtml}.
+ * It gives up on anything that they would change, such as entities, escapes, comments, lists
+ * and control characters, so that callers can fall back to them; otherwise its results are the
+ * same as theirs.
+ */
+public final class SimpleAddressTokenizer {
+    private SimpleAddressTokenizer() {}
+
+    /**
+     * @return the name, which is "" if there is none, and the address, or null if
+     *         <code>rawAddress</code> needs the full parse.
+     */
+    public static String[] tokenize(String rawAddress) {
+        final int length = rawAddress.length();
+        if (length == 0) {
+            return null;
+        }
+        if (rawAddress.charAt(length - 1) != '>') {
+            return isAddress(rawAddress, 0, length) ? new String[] { "", rawAddress } : null;
+        }
+        final int open = rawAddress.indexOf('<');
+        // An empty address would make the name the address
+        if (open < 0 || open + 1 >= length - 1 || !isAddress(rawAddress, open + 1, length - 1)) {
+            return null;
+        }
+
+        int nameEnd = open;
+        while (nameEnd > 0 && rawAddress.charAt(nameEnd - 1) == ' ') {
+            nameEnd--;
+        }
+        final String name;
+        if (nameEnd > 0 && rawAddress.charAt(0) == '"') {
+            if (nameEnd < 2 || rawAddress.charAt(nameEnd - 1) != '"') {
+                return null;
+            }
+            name = collapseSpaces(rawAddress, 1, nameEnd - 1, true);
+        } else {
+            name = collapseSpaces(rawAddress, 0, nameEnd, false);
+        }
+        return name != null ? new String[] { name, rawAddress.substring(open + 1, length - 1) }
+                : null;
+    }
+
+    private static boolean isAddress(String s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c == ' ' || !isNameChar(c, false)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the character is left as it is by both parsers. Separators and comments
+     *         are only taken literally inside quotes.
+     */
+    private static boolean isNameChar(char c, boolean quoted) {
+        if (c < 0x20 || (c >= 0x7f && c <= 0x9f)) {
+            // Html.fromHtml drops or maps them
+            return false;
+        }
+        switch (c) {
+            case '"':
+            case '\\':
+            case '<':
+            case '>':
+            case '&':
+                return false;
+            case ',':
+            case ';':
+            case '(':
+            case ')':
+                return quoted;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @return the characters from <code>start</code> to <code>end</code> without leading and
+     *         trailing spaces and with runs of spaces made one, as both parsers leave names, or
+     *         null if there is a character they would change.
+     */
+    private static String collapseSpaces(String s, int start, int end, boolean quoted) {
+        while (start < end && s.charAt(start) == ' ') {
+            start++;
+        }
+        while (end > start && s.charAt(end - 1) == ' ') {
+            end--;
+        }
+        boolean collapsed = true;
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c == ' ') {
+                if (s.charAt(i - 1) == ' ') {
+                    collapsed = false;
+                }
+            } else if (!isNameChar(c, quoted)) {
+                return null;
+            }
+        }
+        if (collapsed) {
+            return s.substring(start, end);
+        }
+        final StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c != ' ' || s.charAt(i - 1) != ' ') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -17,33 +17,26 @@
 package com.android.emailcommon.utility;
 
 import com.android.emailcommon.internet.MimeHeader;
-import com.android.emailcommon.internet.MimeUtility;
+import com.android.emailcommon.internet.PartTextDecoder;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.mail.Part;
 
-import android.text.TextUtils;
-
 import java.util.ArrayList;
 
 public class ConversionUtilities {
     /**
-     * Helper function to append text to a StringBuffer, creating it if necessary.
-     * Optimization:  The majority of the time we are *not* appending - we should have a path
-     * that deals with single strings.
+     * Helper function to append the text of a part to a StringBuilder, separated from any text
+     * already there by a newline. Nothing is appended if the part has no text.
      */
-    private static StringBuffer appendTextPart(StringBuffer sb, String newText) {
-        if (newText == null) {
-            return sb;
+    private static void appendTextPart(PartTextDecoder decoder, StringBuilder sb,
+            Part part) {
+        final int start = sb.length();
+        if (start > 0) {
+            sb.append('\n');
         }
-        else if (sb == null) {
-            sb = new StringBuffer(newText);
-        } else {
-            if (sb.length() > 0) {
-                sb.append('\n');
-            }
-            sb.append(newText);
+        if (!decoder.appendText(part, sb)) {
+            sb.setLength(start);
         }
-        return sb;
     }
 
     /**
@@ -56,6 +49,8 @@ public class ConversionUtilities {
         public String snippet;
         public boolean isQuotedReply;
         public boolean isQuotedForward;
+        /** Whether text was left out because the body exceeded the clip length */
+        public boolean isClipped;
     }
 
     /**
@@ -63,35 +58,45 @@ public class ConversionUtilities {
      */
     public static BodyFieldData parseBodyFields(ArrayList<Part> viewables)
     throws MessagingException {
+        return parseBodyFields(viewables, Integer.MAX_VALUE, true);
+    }
+
+    /**
+     * Parse body text (plain and/or HTML) from MimeMessage to {@link BodyFieldData}, keeping at
+     * most <code>clipLength</code> characters each of text and HTML.
+     *
+     * @param snippetFromHtml whether to make the snippet from the HTML when there is no plain
+     *        text. Callers that go through the HTML anyway can make it on the way, e.g. with
+     *        {@link TextUtilities.SnippetBuilder}, and pass false.
+     */
+    public static BodyFieldData parseBodyFields(ArrayList<Part> viewables, int clipLength,
+            boolean snippetFromHtml) throws MessagingException {
         final BodyFieldData data = new BodyFieldData();
-        StringBuffer sbHtml = null;
-        StringBuffer sbText = null;
+        // Each part is decoded straight into these, so there is one copy of the text at a time
+        final StringBuilder sbHtml = new StringBuilder();
+        final StringBuilder sbText = new StringBuilder();
+        final PartTextDecoder decoder = new PartTextDecoder();
+        decoder.setClipLength(clipLength);
 
         for (Part viewable : viewables) {
-            String text = MimeUtility.getTextFromPart(viewable);
             // Deploy text as marked by the various tags
             boolean isHtml = "text/html".equalsIgnoreCase(viewable.getMimeType());
 
             // Most of the time, just process regular body parts
-            if (isHtml) {
-                sbHtml = appendTextPart(sbHtml, text);
-            } else {
-                sbText = appendTextPart(sbText, text);
-            }
+            appendTextPart(decoder, isHtml ? sbHtml : sbText, viewable);
+            data.isClipped |= decoder.isClipped();
         }
 
-        // write the combined data to the body part
-        if (!TextUtils.isEmpty(sbText)) {
-            String text = sbText.toString();
-            data.textContent = text;
-            data.snippet = TextUtilities.makeSnippetFromPlainText(text);
+        // write the combined data to the body part; the snippets only look at the start of it
+        if (sbText.length() > 0) {
+            data.snippet = TextUtilities.makeSnippetFromPlainText(sbText);
+            data.textContent = sbText.toString();
         }
-        if (!TextUtils.isEmpty(sbHtml)) {
-            String text = sbHtml.toString();
-            data.htmlContent = text;
-            if (data.snippet == null) {
-                data.snippet = TextUtilities.makeSnippetFromHtmlText(text);
+        if (sbHtml.length() > 0) {
+            if (data.snippet == null && snippetFromHtml) {
+                data.snippet = TextUtilities.makeSnippetFromHtmlText(sbHtml);
             }
+            data.htmlContent = sbHtml.toString();
         }
         return data;
     }
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.TextUtils;
+import android.text.style.BackgroundColorSpan;
+
+import java.util.Arrays;
+import java.util.StringTokenizer;
+
+/**
+ * Highlights the terms of a search query in text or HTML. The terms are compiled once into an
+ * Aho-Corasick automaton, so that each message is searched for all of them in a single pass,
+ * however many terms there are; use {@link #forQuery} to share one between the messages of a
+ * conversation.
+ * <p>
+ * Matching ignores case, comparing characters as {@link #fold} does. Overlapping matches are
+ * highlighted as one range. In HTML, terms are only found in text between tags, and not in the
+ * elements whose content {@link TextUtilities#makeSnippetFromHtmlText} strips.
+ */
+public class TermHighlighter {
+    private static final int ROOT = 0;
+
+    private static final String HIGHLIGHT_START =
+            "<span style=\"background-color: " + TextUtilities.HIGHLIGHT_COLOR_STRING + "\">";
+    private static final String HIGHLIGHT_END = "</span>";
+
+    private static TermHighlighter sLastHighlighter;
+
+    private final String mQuery;
+
+    // Edges of the trie: the characters leading out of each state, and the states they lead to.
+    private char[][] mEdgeChars = new char[16][];
+    private int[][] mEdgeTargets = new int[16][];
+    private int[] mEdgeCounts = new int[16];
+    /** The state for the longest proper suffix of each state that is also in the trie */
+    private int[] mFailure = new int[16];
+    /** The length of the longest term that ends in each state, or 0 */
+    private int[] mMatchLength = new int[16];
+    private int mStateCount = 1;
+
+    /**
+     * Receives the ranges to highlight, in order.
+     */
+    private interface RangeHandler {
+        void onRange(int start, int end);
+    }
+
+    /**
+     * @param query search terms separated by whitespace
+     */
+    public TermHighlighter(String query) {
+        mQuery = query;
+        if (query != null) {
+            final StringTokenizer st = new StringTokenizer(query);
+            while (st.hasMoreTokens()) {
+                addTerm(st.nextToken());
+            }
+        }
+        buildFailureLinks();
+    }
+
+    /**
+     * @return a highlighter for <code>query</code>, reusing the one from the previous call if it
+     *         was for the same query.
+     */
+    public static synchronized TermHighlighter forQuery(String query) {
+        if (sLastHighlighter == null || !TextUtils.equals(sLastHighlighter.mQuery, query)) {
+            sLastHighlighter = new TermHighlighter(query);
+        }
+        return sLastHighlighter;
+    }
+
+    /**
+     * Folds case so that characters that differ only in case compare equal, e.g. "&#x3c2;",
+     * "&#x3c3;" and "&#x3a3;". Each char folds to one char, so offsets are unchanged.
+     */
+    static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    /**
+     * @return whether the query had no terms, in which case nothing is highlighted.
+     */
+    public boolean isEmpty() {
+        return mStateCount == 1;
+    }
+
+    private void addTerm(String term) {
+        int state = ROOT;
+        for (int i = 0; i < term.length(); i++) {
+            final char c = fold(term.charAt(i));
+            int next = getEdge(state, c);
+            if (next < 0) {
+                next = newState();
+                addEdge(state, c, next);
+            }
+            state = next;
+        }
+        mMatchLength[state] = term.length();
+    }
+
+    private int newState() {
+        if (mStateCount == mFailure.length) {
+            final int capacity = mStateCount * 2;
+            mEdgeChars = Arrays.copyOf(mEdgeChars, capacity);
+            mEdgeTargets = Arrays.copyOf(mEdgeTargets, capacity);
+            mEdgeCounts = Arrays.copyOf(mEdgeCounts, capacity);
+            mFailure = Arrays.copyOf(mFailure, capacity);
+            mMatchLength = Arrays.copyOf(mMatchLength, capacity);
+        }
+        return mStateCount++;
+    }
+
+    private void addEdge(int state, char c, int target) {
+        final int count = mEdgeCounts[state];
+        if (mEdgeChars[state] == null) {
+            mEdgeChars[state] = new char[2];
+            mEdgeTargets[state] = new int[2];
+        } else if (count == mEdgeChars[state].length) {
+            mEdgeChars[state] = Arrays.copyOf(mEdgeChars[state], count * 2);
+            mEdgeTargets[state] = Arrays.copyOf(mEdgeTargets[state], count * 2);
+        }
+        mEdgeChars[state][count] = c;
+        mEdgeTargets[state][count] = target;
+        mEdgeCounts[state] = count + 1;
+    }
+
+    /**
+     * @return the state the trie edge for <code>c</code> leads to, or -1 if there is none.
+     */
+    private int getEdge(int state, char c) {
+        final char[] chars = mEdgeChars[state];
+        for (int i = mEdgeCounts[state] - 1; i >= 0; i--) {
+            if (chars[i] == c) {
+                return mEdgeTargets[state][i];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the state after reading the folded character <code>c</code> in
+     *         <code>state</code>.
+     */
+    private int next(int state, char c) {
+        while (true) {
+            final int next = getEdge(state, c);
+            if (next >= 0) {
+                return next;
+            }
+            if (state == ROOT) {
+                return ROOT;
+            }
+            state = mFailure[state];
+        }
+    }
+
+    private void buildFailureLinks() {
+        // Breadth first, so that the links of shorter prefixes are known
+        final int[] queue = new int[mStateCount];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = ROOT;
+        while (head < tail) {
+            final int state = queue[head++];
+            for (int i = 0; i < mEdgeCounts[state]; i++) {
+                final int target = mEdgeTargets[state][i];
+                mFailure[target] = state == ROOT ? ROOT
+                        : next(mFailure[state], mEdgeChars[state][i]);
+                // A term that ends in the suffix also ends here
+                mMatchLength[target] = Math.max(mMatchLength[target],
+                        mMatchLength[mFailure[target]]);
+                queue[tail++] = target;
+            }
+        }
+    }
+
+    /**
+     * Finds the ranges of <code>text</code> to highlight, from <code>start</code> to
+     * <code>end</code>, in order.
+     */
+    private void findRanges(String text, int start, int end, RangeHandler handler) {
+        int state = ROOT;
+        int rangeStart = -1;
+        int rangeEnd = -1;
+        // A long term can reach back past ranges that were already handled
+        int handledEnd = start;
+        for (int i = start; i < end; i++) {
+            state = next(state, fold(text.charAt(i)));
+            final int matchLength = mMatchLength[state];
+            if (matchLength == 0) {
+                continue;
+            }
+            final int matchStart = Math.max(i + 1 - matchLength, handledEnd);
+            if (rangeStart >= 0 && matchStart <= rangeEnd) {
+                // Overlaps the range so far
+                rangeStart = Math.min(rangeStart, matchStart);
+            } else {
+                if (rangeStart >= 0) {
+                    handler.onRange(rangeStart, rangeEnd);
+                    handledEnd = rangeEnd;
+                }
+                rangeStart = matchStart;
+            }
+            rangeEnd = i + 1;
+        }
+        if (rangeStart >= 0) {
+            handler.onRange(rangeStart, rangeEnd);
+        }
+    }
+
+    /**
+     * @return the text with a {@link BackgroundColorSpan} over each occurrence of the terms.
+     */
+    public SpannableStringBuilder highlightText(String text) {
+        final SpannableStringBuilder sb = new SpannableStringBuilder(text);
+        if (!isEmpty()) {
+            findRanges(text, 0, text.length(), new RangeHandler() {
+                @Override
+                public void onRange(int start, int end) {
+                    sb.setSpan(new BackgroundColorSpan(TextUtilities.HIGHLIGHT_COLOR_INT), start,
+                            end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+            });
+        }
+        return sb;
+    }
+
+    /**
+     * @return the HTML with each occurrence of the terms in its text wrapped in a highlighting
+     *         span.
+     */
+    public StringBuilder highlightHtml(final String html) {
+        final int length = html.length();
+        final StringBuilder sb = new StringBuilder(length + 64);
+        if (isEmpty()) {
+            return sb.append(html);
+        }
+        final HtmlRangeHandler handler = new HtmlRangeHandler(html, sb);
+        int textStart = 0;
+        int i = 0;
+        while (i < length) {
+            if (html.charAt(i) == '<' && isTagStart(html, i)) {
+                findRanges(html, textStart, i, handler);
+                textStart = skipTag(html, i);
+                i = textStart;
+            } else {
+                i++;
+            }
+        }
+        findRanges(html, textStart, length, handler);
+        sb.append(html, handler.mCopied, length);
+        return sb;
+    }
+
+    /**
+     * Copies HTML to a StringBuilder, wrapping the ranges in highlighting spans.
+     */
+    private static class HtmlRangeHandler implements RangeHandler {
+        private final String mHtml;
+        private final StringBuilder mBuilder;
+        /** How much of the HTML has been copied */
+        int mCopied = 0;
+
+        HtmlRangeHandler(String html, StringBuilder sb) {
+            mHtml = html;
+            mBuilder = sb;
+        }
+
+        @Override
+        public void onRange(int start, int end) {
+            // Everything before the range is copied as it is
+            mBuilder.append(mHtml, mCopied, start);
+            mBuilder.append(HIGHLIGHT_START).append(mHtml, start, end).append(HIGHLIGHT_END);
+            mCopied = end;
+        }
+    }
+
+    /**
+     * Tags begin with &lt;! or &lt;- or &lt;/ or &lt;letter.
+     */
+    private static boolean isTagStart(String html, int pos) {
+        if (pos + 1 >= html.length()) {
+            return false;
+        }
+        final char peek = html.charAt(pos + 1);
+        return peek == '!' || peek == '-' || peek == '/' || Character.isLetter(peek);
+    }
+
+    /**
+     * @param pos the position of the '&lt;' that starts a tag
+     * @return the position after the tag, or after the whole element if its content is not
+     *         text that should be highlighted.
+     */
+    private static int skipTag(String html, int pos) {
+        final int length = html.length();
+        final int tagEnd = html.indexOf('>', pos);
+        if (tagEnd < 0) {
+            return length;
+        }
+        for (String stripTag : TextUtilities.STRIP_TAGS) {
+            if (html.regionMatches(true, pos + 1, stripTag, 0, stripTag.length())) {
+                if (html.charAt(tagEnd - 1) == '/') {
+                    // <tag ... />
+                    return tagEnd + 1;
+                }
+                // Find </tag, ignoring case
+                for (int i = html.indexOf("</", tagEnd); i >= 0; i = html.indexOf("</", i + 2)) {
+                    if (html.regionMatches(true, i + 2, stripTag, 0, stripTag.length())) {
+                        final int closeEnd = html.indexOf('>', i);
+                        return closeEnd < 0 ? length : closeEnd + 1;
+                    }
+                }
+                return length;
+            }
+        }
+        return tagEnd + 1;
+    }
+}
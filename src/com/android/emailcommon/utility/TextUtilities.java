@@ -19,17 +19,11 @@ package com.android.emailcommon.utility;
 import com.google.common.annotations.VisibleForTesting;
 
 import android.graphics.Color;
-import android.text.Spannable;
-import android.text.SpannableString;
-import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
-import android.text.style.BackgroundColorSpan;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.StringTokenizer;
 
 public class TextUtilities {
     // Highlight color is yellow, as in other apps.
@@ -326,11 +320,11 @@ public class TextUtilities {
      * incoming string, at great (and useless, in this case) expense.
      */
 
-    public static String makeSnippetFromHtmlText(String text) {
+    public static String makeSnippetFromHtmlText(CharSequence text) {
         return makeSnippetFromText(text, true);
     }
 
-    public static String makeSnippetFromPlainText(String text) {
+    public static String makeSnippetFromPlainText(CharSequence text) {
         return makeSnippetFromText(text, false);
     }
 
@@ -341,7 +335,7 @@ public class TextUtilities {
      * @param startPos the start position in the HTML text where the tag starts
      * @return the position just before the end of the tag or -1 if not found
      */
-    /*package*/ static int findTagEnd(String htmlText, String tag, int startPos) {
+    /*package*/ static int findTagEnd(CharSequence htmlText, String tag, int startPos) {
         if (tag.endsWith(" ")) {
             tag = tag.substring(0, tag.length() - 1);
         }
@@ -358,29 +352,25 @@ public class TextUtilities {
             prevChar = c;
         }
         // We didn't find /> at the end of the tag so find </tag>
-        return htmlText.indexOf("/" + tag, startPos);
+        return TextUtils.indexOf(htmlText, "/" + tag, startPos);
     }
 
-    public static String makeSnippetFromText(String text, boolean stripHtml) {
+    public static String makeSnippetFromText(CharSequence text, boolean stripHtml) {
         // Handle null and empty string
         if (TextUtils.isEmpty(text)) return "";
 
         final int length = text.length();
-        // Use char[] instead of StringBuilder purely for performance; fewer method calls, etc.
-        char[] buffer = new char[MAX_SNIPPET_LENGTH];
+        final SnippetBuilder snippet = new SnippetBuilder();
         // skipCount is an array of a single int; that int is set inside stripHtmlEntity and is
         // used to determine how many characters can be "skipped" due to the transformation of the
         // entity to a single character.  When Java allows multiple return values, we can make this
         // much cleaner :-)
         int[] skipCount = new int[1];
-        int bufferCount = 0;
-        // Start with space as last character to avoid leading whitespace
-        char last = ' ';
         // Indicates whether we're in the middle of an HTML tag
         boolean inTag = false;
 
         // Walk through the text until we're done with the input OR we've got a large enough snippet
-        for (int i = 0; i < length && bufferCount < MAX_SNIPPET_LENGTH; i++) {
+        for (int i = 0; i < length && !snippet.isFull(); i++) {
             char c = text.charAt(i);
             if (stripHtml && !inTag && (c == '<')) {
                 // Find tags to strip; they will begin with <! or !- or </ or <letter
@@ -390,7 +380,8 @@ public class TextUtilities {
                         inTag = true;
                         // Strip content of title, script, style and applet tags
                         if (i < (length - (MAX_STRIP_TAG_LENGTH + 2))) {
-                            String tag = text.substring(i + 1, i + MAX_STRIP_TAG_LENGTH + 1);
+                            String tag = text.subSequence(i + 1, i + MAX_STRIP_TAG_LENGTH + 1)
+                                    .toString();
                             String tagLowerCase = tag.toLowerCase();
                             boolean stripContent = false;
                             for (String stripTag: STRIP_TAGS) {
@@ -429,34 +420,74 @@ public class TextUtilities {
                 i += skipCount[0];
             }
 
+            snippet.append(c);
+        }
+        return snippet.toString();
+    }
+
+    /**
+     * Collects the characters of a snippet, turning each run of whitespace into a single space
+     * and dropping repeated dashes and equal signs, until it is {@link #MAX_SNIPPET_LENGTH}
+     * long. Used by {@link #makeSnippetFromText}, and by callers that come across the text of a
+     * body a piece at a time, with its tags and entities already dealt with.
+     */
+    public static class SnippetBuilder {
+        // Use char[] instead of StringBuilder purely for performance; fewer method calls, etc.
+        private final char[] mBuffer = new char[MAX_SNIPPET_LENGTH];
+        private int mCount = 0;
+        // Start with space as last character to avoid leading whitespace
+        private char mLast = ' ';
+
+        /**
+         * @return whether the snippet is as long as it gets; more text is ignored.
+         */
+        public boolean isFull() {
+            return mCount == MAX_SNIPPET_LENGTH;
+        }
+
+        public void append(CharSequence text) {
+            final int length = text.length();
+            for (int i = 0; i < length && mCount < MAX_SNIPPET_LENGTH; i++) {
+                append(text.charAt(i));
+            }
+        }
+
+        public void append(char c) {
+            if (mCount == MAX_SNIPPET_LENGTH) {
+                return;
+            }
             if (Character.isWhitespace(c) || (c == NON_BREAKING_SPACE_CHARACTER)) {
                 // The idea is to find the content in the message, not the whitespace, so we'll
                 // turn any combination of contiguous whitespace into a single space
-                if (last == ' ') {
-                    continue;
+                if (mLast == ' ') {
+                    return;
                 } else {
                     // Make every whitespace character a simple space
                     c = ' ';
                 }
-            } else if ((c == '-' || c == '=') && (last == c)) {
+            } else if ((c == '-' || c == '=') && (mLast == c)) {
                 // Lots of messages (especially digests) have whole lines of --- or ===
                 // We'll get rid of those duplicates here
-                continue;
+                return;
             }
 
             // After all that, maybe we've got a character for our snippet
-            buffer[bufferCount++] = c;
-            last = c;
+            mBuffer[mCount++] = c;
+            mLast = c;
         }
 
-        // Lose trailing space and return our snippet
-        if ((bufferCount > 0) && (last == ' ')) {
-            bufferCount--;
+        @Override
+        public String toString() {
+            // Lose trailing space and return our snippet
+            int count = mCount;
+            if ((count > 0) && (mLast == ' ')) {
+                count--;
+            }
+            return new String(mBuffer, 0, count);
         }
-        return new String(buffer, 0, bufferCount);
     }
 
-    static /*package*/ char stripHtmlEntity(String text, int pos, int[] skipCount) {
+    static /*package*/ char stripHtmlEntity(CharSequence text, int pos, int[] skipCount) {
         int length = text.length();
         // Ugly, but we store our skip count in this array; we can't use a static here, because
         // multiple threads might be calling in
@@ -467,7 +498,7 @@ public class TextUtilities {
         // Isolate the entity
         for (int i = pos; (i < length) && (i < end); i++) {
             if (text.charAt(i) == ';') {
-                entity = text.substring(pos, i);
+                entity = text.subSequence(pos, i).toString();
                 break;
             }
         }
@@ -538,20 +569,6 @@ public class TextUtilities {
         }
     }
 
-    static class SearchTerm {
-        final String mTerm;
-        final String mTermLowerCase;
-        final int mLength;
-        int mMatchLength = 0;
-        int mMatchStart = -1;
-
-        SearchTerm(String term) {
-            mTerm = term;
-            mTermLowerCase = term.toLowerCase();
-            mLength = term.length();
-        }
-    }
-
     /**
      * Generate a version of the incoming text in which all search terms in a query are highlighted.
      * If the input is HTML, we return a StringBuilder with additional markup as required
@@ -562,158 +579,18 @@ public class TextUtilities {
      * @param html whether or not the text to be processed is HTML
      * @return highlighted text
      *
-     * @throws IOException as Appendable requires this
+     * @throws IOException never; callers that highlight many texts for one query should use
+     *         {@link TermHighlighter} directly
      */
     public static CharSequence highlightTerms(String text, String query, boolean html)
             throws IOException {
         // Handle null and empty string
         if (TextUtils.isEmpty(text)) return "";
-        final int length = text.length();
-
-        // Break up the query into search terms
-        ArrayList<SearchTerm> terms = new ArrayList<SearchTerm>();
-        if (query != null) {
-            StringTokenizer st = new StringTokenizer(query);
-            while (st.hasMoreTokens()) {
-                terms.add(new SearchTerm(st.nextToken()));
-            }
-        }
-
-        // Our appendable depends on whether we're building HTML text (for webview) or spannable
-        // text (for UI)
-        final Appendable sb = html ? new StringBuilder() : new SpannableStringBuilder();
-        // Indicates whether we're in the middle of an HTML tag
-        boolean inTag = false;
-        // The position of the last input character copied to output
-        int lastOut = -1;
-
-        // Walk through the text until we're done with the input
-        // Just copy any HTML tags directly into the output; search for terms in the remaining text
-        for (int i = 0; i < length; i++) {
-            char chr = text.charAt(i);
-            if (html) {
-                if (!inTag && (chr == '<')) {
-                    // Find tags; they will begin with <! or !- or </ or <letter
-                    if (i < (length - 1)) {
-                        char peek = text.charAt(i + 1);
-                        if (peek == '!' || peek == '-' || peek == '/' || Character.isLetter(peek)) {
-                            inTag = true;
-                            // Skip content of title, script, style and applet tags
-                            if (i < (length - (MAX_STRIP_TAG_LENGTH + 2))) {
-                                String tag = text.substring(i + 1, i + MAX_STRIP_TAG_LENGTH + 1);
-                                String tagLowerCase = tag.toLowerCase();
-                                boolean stripContent = false;
-                                for (String stripTag: STRIP_TAGS) {
-                                    if (tagLowerCase.startsWith(stripTag)) {
-                                        stripContent = true;
-                                        tag = tag.substring(0, stripTag.length());
-                                        break;
-                                    }
-                                }
-                                if (stripContent) {
-                                    // Look for the end of this tag
-                                    int endTagPosition = findTagEnd(text, tag, i);
-                                    if (endTagPosition < 0) {
-                                        sb.append(text.substring(i));
-                                        break;
-                                    } else {
-                                        sb.append(text.substring(i, endTagPosition - 1));
-                                        i = endTagPosition - 1;
-                                        chr = text.charAt(i);
-                                    }
-                                }
-                            }
-                        }
-                    }
-                } else if (inTag && (chr == '>')) {
-                    inTag = false;
-                }
-
-                if (inTag) {
-                    sb.append(chr);
-                    continue;
-                }
-            }
-
-            // After all that, we've got some "body" text
-            char chrLowerCase = Character.toLowerCase(chr);
-            // Whether or not the current character should be appended to the output; we inhibit
-            // this while any search terms match
-            boolean appendNow = true;
-            // Look through search terms for matches
-            for (SearchTerm t: terms) {
-                if (chrLowerCase == t.mTermLowerCase.charAt(t.mMatchLength)) {
-                    if (t.mMatchLength++ == 0) {
-                        // New match start
-                        t.mMatchStart = i;
-                    }
-                    if (t.mMatchLength == t.mLength) {
-                        String matchText = text.substring(t.mMatchStart, t.mMatchStart + t.mLength);
-                        // Completed match; add highlight and reset term
-                        if (t.mMatchStart <= lastOut) {
-                            matchText = text.substring(lastOut + 1, i + 1);
-                        }
-                        /*else*/
-                        if (matchText.length() == 0) {} else
-                        if (html) {
-                            sb.append("<span style=\"background-color: " + HIGHLIGHT_COLOR_STRING +
-                                    "\">");
-                            sb.append(matchText);
-                            sb.append("</span>");
-                        } else {
-                            SpannableString highlightSpan = new SpannableString(matchText);
-                            highlightSpan.setSpan(new BackgroundColorSpan(HIGHLIGHT_COLOR_INT), 0,
-                                    highlightSpan.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                            sb.append(highlightSpan);
-                        }
-                        lastOut = t.mMatchStart + t.mLength - 1;
-                        t.mMatchLength = 0;
-                        t.mMatchStart = -1;
-                    }
-                    appendNow = false;
-                } else {
-                    if (t.mMatchStart >= 0) {
-                        // We're no longer matching; check for other matches in progress
-                        int leastOtherStart = -1;
-                        for (SearchTerm ot: terms) {
-                            // Save away the lowest match start for other search terms
-                            if ((ot != t) && (ot.mMatchStart >= 0) && ((leastOtherStart < 0) ||
-                                    (ot.mMatchStart <= leastOtherStart))) {
-                                leastOtherStart = ot.mMatchStart;
-                            }
-                        }
-                        int matchEnd = t.mMatchStart + t.mMatchLength;
-                        if (leastOtherStart < 0 || leastOtherStart > matchEnd) {
-                            // Append the whole thing
-                            if (t.mMatchStart > lastOut) {
-                                sb.append(text.substring(t.mMatchStart, matchEnd));
-                                lastOut = matchEnd;
-                            }
-                        } else if (leastOtherStart == t.mMatchStart) {
-                            // Ok to append the current char
-                        } else if (leastOtherStart < t.mMatchStart) {
-                            // We're already covered by another search term, so don't append
-                            appendNow = false;
-                        } else if (t.mMatchStart > lastOut) {
-                            // Append the piece of our term that's not already covered
-                            sb.append(text.substring(t.mMatchStart, leastOtherStart));
-                            lastOut = leastOtherStart;
-                        }
-                    }
-                    // Reset this term
-                    t.mMatchLength = 0;
-                    t.mMatchStart = -1;
-                }
-            }
 
-            if (appendNow) {
-                sb.append(chr);
-                lastOut = i;
-            }
-        }
-
-        return (CharSequence)sb;
-   }
+        // The terms are only compiled again when the query changes
+        final TermHighlighter highlighter = TermHighlighter.forQuery(query);
+        return html ? highlighter.highlightHtml(text) : highlighter.highlightText(text);
+    }
 
     /**
      * Determine whether two Strings (either of which might be null) are the same; this is true
@@ -18,6 +18,8 @@ package com.android.mail;
 import android.text.Html;
 import android.text.util.Rfc822Token;
 import android.text.util.Rfc822Tokenizer;
+
+import com.android.emailcommon.mail.SimpleAddressTokenizer;
 import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 
@@ -36,8 +38,8 @@ public class EmailAddress {
 
     private final String mAddress;
 
-    private static final Matcher sEmailMatcher =
-            Pattern.compile("\\\"?([^\"<]*?)\\\"?\\s*<(.*)>").matcher("");
+    private static final Pattern EMAIL_PATTERN =
+            Pattern.compile("\\\"?([^\"<]*?)\\\"?\\s*<(.*)>");
 
     private EmailAddress(String name, String address) {
         mName = name;
@@ -57,13 +59,17 @@ public class EmailAddress {
     }
 
     // TODO (pwestbro): move to provider
-    public static synchronized EmailAddress getEmailAddress(String rawAddress) {
+    public static EmailAddress getEmailAddress(String rawAddress) {
         String name, address;
         if (rawAddress == null) {
             LogUtils.e(LOG_TAG, "null rawAddress in EmailAddress#getEmailAddress");
             rawAddress = "";
         }
-        Matcher m = sEmailMatcher.reset(rawAddress);
+        final String[] simple = SimpleAddressTokenizer.tokenize(rawAddress);
+        if (simple != null) {
+            return new EmailAddress(simple[0], simple[1]);
+        }
+        Matcher m = EMAIL_PATTERN.matcher(rawAddress);
         if (m.matches()) {
             name = m.group(1);
             address = m.group(2);
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.database.Cursor;
+
+import com.android.mail.providers.UIProvider;
+import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+/**
+ * A columnar copy of the columns of {@link UIProvider#CONVERSATION_PROJECTION} that the
+ * conversation list reads on every bind: ids, dates, order keys, flags and counts in primitive
+ * arrays, the boolean columns packed into one bit set per row, and subjects and snippets
+ * interned so repeated values (e.g. a thread of "Re: lunch") share one String.
+ * <p>
+ * The snapshot is filled on the thread that queried the underlying cursor, and is immutable
+ * afterwards except for the per-row bypass flags. {@link ConversationCursor} bypasses a row
+ * once it has cached local changes for it, so those reads keep going through its cache map;
+ * rows are also bypassed if a boolean column holds something other than 0 or 1, so every value
+ * served from the snapshot is exactly what the underlying cursor would have returned.
+ */
+final class ConversationColumnSnapshot {
+    private static final int NOT_SNAPSHOTTED = -1;
+
+    private static final int[] LONG_COLUMNS = {
+        UIProvider.CONVERSATION_ID_COLUMN,
+        UIProvider.CONVERSATION_DATE_RECEIVED_MS_COLUMN,
+        UIProvider.CONVERSATION_ORDER_KEY_COLUMN,
+    };
+
+    private static final int[] INT_COLUMNS = {
+        UIProvider.CONVERSATION_NUM_MESSAGES_COLUMN,
+        UIProvider.CONVERSATION_NUM_DRAFTS_COLUMN,
+        UIProvider.CONVERSATION_SENDING_STATE_COLUMN,
+        UIProvider.CONVERSATION_PRIORITY_COLUMN,
+        UIProvider.CONVERSATION_FLAGS_COLUMN,
+        UIProvider.CONVERSATION_PERSONAL_LEVEL_COLUMN,
+        UIProvider.CONVERSATION_COLOR_COLUMN,
+    };
+
+    /** Columns stored as a single bit each; at most 32 */
+    private static final int[] BIT_COLUMNS = {
+        UIProvider.CONVERSATION_HAS_ATTACHMENTS_COLUMN,
+        UIProvider.CONVERSATION_READ_COLUMN,
+        UIProvider.CONVERSATION_SEEN_COLUMN,
+        UIProvider.CONVERSATION_STARRED_COLUMN,
+        UIProvider.CONVERSATION_IS_SPAM_COLUMN,
+        UIProvider.CONVERSATION_IS_PHISHING_COLUMN,
+        UIProvider.CONVERSATION_MUTED_COLUMN,
+        UIProvider.CONVERSATION_REMOTE_COLUMN,
+    };
+
+    private static final int[] STRING_COLUMNS = {
+        UIProvider.CONVERSATION_SUBJECT_COLUMN,
+        UIProvider.CONVERSATION_SNIPPET_COLUMN,
+    };
+
+    /** For each projection column, its slot in the matching array above, or NOT_SNAPSHOTTED */
+    private static final int[] LONG_SLOT = slots(LONG_COLUMNS);
+    private static final int[] INT_SLOT = slots(INT_COLUMNS);
+    private static final int[] BIT_SLOT = slots(BIT_COLUMNS);
+    private static final int[] STRING_SLOT = slots(STRING_COLUMNS);
+
+    private final int mCount;
+    private final long[][] mLongs;
+    private final int[][] mInts;
+    private final int[] mBits;
+    private final String[][] mStrings;
+    private final boolean[] mBypass;
+    /** Rows with a boolean column the bit set could not hold */
+    private final boolean[] mInexact;
+    /** Only used while filling the snapshot */
+    private Map<String, String> mInternPool;
+
+    private static int[] slots(int[] columns) {
+        final int[] slots = new int[UIProvider.CONVERSATION_PROJECTION.length];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = NOT_SNAPSHOTTED;
+        }
+        for (int i = 0; i < columns.length; i++) {
+            slots[columns[i]] = i;
+        }
+        return slots;
+    }
+
+    ConversationColumnSnapshot(int count) {
+        mCount = count;
+        mLongs = new long[LONG_COLUMNS.length][count];
+        mInts = new int[INT_COLUMNS.length][count];
+        mBits = new int[count];
+        mStrings = new String[STRING_COLUMNS.length][count];
+        mBypass = new boolean[count];
+        mInexact = new boolean[count];
+        mInternPool = Maps.newHashMap();
+    }
+
+    /**
+     * Copies the hot columns of the row {@code cursor} is positioned on into {@code row}.
+     */
+    void copyRow(int row, Cursor cursor) {
+        for (int i = 0; i < LONG_COLUMNS.length; i++) {
+            mLongs[i][row] = cursor.getLong(LONG_COLUMNS[i]);
+        }
+        for (int i = 0; i < INT_COLUMNS.length; i++) {
+            mInts[i][row] = cursor.getInt(INT_COLUMNS[i]);
+        }
+        int bits = 0;
+        for (int i = 0; i < BIT_COLUMNS.length; i++) {
+            final int value = cursor.getInt(BIT_COLUMNS[i]);
+            if (value == 1) {
+                bits |= 1 << i;
+            } else if (value != 0) {
+                mBypass[row] = true;
+                mInexact[row] = true;
+            }
+        }
+        mBits[row] = bits;
+        for (int i = 0; i < STRING_COLUMNS.length; i++) {
+            mStrings[i][row] = intern(cursor.getString(STRING_COLUMNS[i]));
+        }
+    }
+
+    private String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        final String existing = mInternPool.get(value);
+        if (existing != null) {
+            return existing;
+        }
+        mInternPool.put(value, value);
+        return value;
+    }
+
+    /**
+     * Called once every row has been copied, to drop the state used while filling.
+     */
+    void finish() {
+        mInternPool = null;
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Makes all further reads of {@code row} fall through to the caller's slow path.
+     */
+    void bypass(int row) {
+        mBypass[row] = true;
+    }
+
+    /**
+     * @return true if values for {@code row} may be read from this snapshot
+     */
+    boolean isAvailable(int row) {
+        return row >= 0 && row < mCount && !mBypass[row];
+    }
+
+    boolean hasLong(int columnIndex) {
+        return isColumn(LONG_SLOT, columnIndex);
+    }
+
+    boolean hasInt(int columnIndex) {
+        return isColumn(INT_SLOT, columnIndex) || isColumn(BIT_SLOT, columnIndex);
+    }
+
+    boolean hasString(int columnIndex) {
+        return isColumn(STRING_SLOT, columnIndex);
+    }
+
+    private static boolean isColumn(int[] slots, int columnIndex) {
+        return columnIndex >= 0 && columnIndex < slots.length
+                && slots[columnIndex] != NOT_SNAPSHOTTED;
+    }
+
+    long getLong(int row, int columnIndex) {
+        return mLongs[LONG_SLOT[columnIndex]][row];
+    }
+
+    int getInt(int row, int columnIndex) {
+        final int slot = INT_SLOT[columnIndex];
+        if (slot != NOT_SNAPSHOTTED) {
+            return mInts[slot][row];
+        }
+        return (mBits[row] >>> BIT_SLOT[columnIndex]) & 1;
+    }
+
+    String getString(int row, int columnIndex) {
+        return mStrings[STRING_SLOT[columnIndex]][row];
+    }
+
+    /**
+     * Compares the values copied from the underlying cursors, whatever local changes either
+     * snapshot bypasses.
+     *
+     * @return true if {@code row} holds exactly the values {@code otherRow} of {@code other}
+     *         does
+     */
+    boolean rowEquals(int row, ConversationColumnSnapshot other, int otherRow) {
+        if (mInexact[row] || other.mInexact[otherRow] || mBits[row] != other.mBits[otherRow]) {
+            return false;
+        }
+        for (int i = 0; i < LONG_COLUMNS.length; i++) {
+            if (mLongs[i][row] != other.mLongs[i][otherRow]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < INT_COLUMNS.length; i++) {
+            if (mInts[i][row] != other.mInts[i][otherRow]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < STRING_COLUMNS.length; i++) {
+            if (!Objects.equal(mStrings[i][row], other.mStrings[i][otherRow])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -19,11 +19,9 @@ package com.android.mail.browse;
 
 import android.app.Activity;
 import android.content.ContentProvider;
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.OperationApplicationException;
 import android.database.CharArrayBuffer;
 import android.database.ContentObserver;
 import android.database.Cursor;
@@ -33,11 +31,11 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
-import android.os.RemoteException;
 import android.os.SystemClock;
 import android.support.v4.util.SparseArrayCompat;
 import android.text.TextUtils;
 
+import com.android.mail.R;
 import com.android.mail.content.ThreadSafeCursorWrapper;
 import com.android.mail.providers.Conversation;
 import com.android.mail.providers.Folder;
@@ -55,13 +53,11 @@ import com.android.mail.utils.Utils;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -153,11 +149,15 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
 
     /** The current position of the cursor */
     private int mPosition = -1;
+    /** The position in the underlying cursor that backs mPosition */
+    private int mUnderlyingPosition = -1;
 
     /**
-     * The number of cached deletions from this cursor (used to quickly generate an accurate count)
+     * The underlying positions of cached deletions from this cursor (used to quickly generate an
+     * accurate count, and to map between visible and underlying positions). Replaced and changed
+     * in place, so it is only read or written while holding mCacheMapLock.
      */
-    private int mDeletedCount = 0;
+    private DeletedPositions mDeletedPositions = new DeletedPositions(0);
 
     /** Parameters passed to the underlying query */
     private Uri qUri;
@@ -166,6 +166,10 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
     private final Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
 
     private final boolean mCachingEnabled;
+    /** Whether hot columns are copied into a {@link ConversationColumnSnapshot} on query */
+    private final boolean mSnapshotEnabled;
+    /** Whether refreshed cursors are diffed against the current one; see {@link #sync()} */
+    private final boolean mIncrementalRefreshEnabled;
 
     private void setCursor(UnderlyingCursorWrapper cursor) {
         // If we have an existing underlying cursor, make sure it's closed
@@ -198,6 +202,10 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
 
         // Disable caching on low memory devices
         mCachingEnabled = !Utils.isLowRamDevice(activity);
+        mSnapshotEnabled = mCachingEnabled
+                && activity.getResources().getBoolean(R.bool.conversation_list_snapshot_enabled);
+        mIncrementalRefreshEnabled = mCachingEnabled && activity.getResources().getBoolean(
+                R.bool.conversation_list_incremental_refresh_enabled);
     }
 
     /**
@@ -255,16 +263,6 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         return mUnderlyingCursor != null ? mUnderlyingCursor.conversationIds() : null;
     }
 
-    private static class UnderlyingRowData {
-        public final String innerUri;
-        public Conversation conversation;
-
-        public UnderlyingRowData(String innerUri, Conversation conversation) {
-            this.innerUri = innerUri;
-            this.conversation = conversation;
-        }
-    }
-
     /**
      * Simple wrapper for a cursor that provides methods for quickly determining
      * the existence of a row.
@@ -306,18 +304,16 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                             break;
                         }
 
-                        final UnderlyingRowData rowData = mRowCache.get(pos);
-                        if (rowData.conversation == null) {
+                        if (mConversations[pos] == null) {
                             // We are running in a background thread.  Set the position to the row
                             // we are interested in.
                             if (moveToPosition(pos)) {
-                                rowData.conversation = new Conversation(
+                                mConversations[pos] = new Conversation(
                                         UnderlyingCursorWrapper.this);
                             }
                         }
                         mCachePos = pos + 1;
                     }
-                    System.gc();
                 } finally {
                     Utils.traceEndSection();
                 }
@@ -366,16 +362,23 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         private final NewCursorUpdateObserver mCursorUpdateObserver;
         private boolean mUpdateObserverRegistered = false;
 
-        // Ideally these two objects could be combined into a Map from
-        // conversationId -> position, but the cached values uses the conversation
-        // uri as a key.
-        private final Map<String, Integer> mConversationUriPositionMap;
-        private final Map<Long, Integer> mConversationIdPositionMap;
-        private final List<UnderlyingRowData> mRowCache;
+        // Maps both conversationId and conversation uri to position; the cached values use the
+        // conversation uri as a key, so both are needed.
+        private final ConversationPositionIndex mPositionIndex;
+        /** Lazily populated Conversation objects, by position */
+        private final Conversation[] mConversations;
+        /** Columnar copy of the hot columns, or null if snapshots are disabled */
+        private final ConversationColumnSnapshot mSnapshot;
+        /** Whether refreshes are diffed against this cursor; requires {@link #mSnapshot} */
+        private final boolean mDiffEnabled;
+        /** The cursor that {@link #mDiff} was computed against */
+        private UnderlyingCursorWrapper mDiffBase;
+        private ConversationListDiff mDiff;
 
         private boolean mCursorUpdated = false;
 
-        public UnderlyingCursorWrapper(Cursor result, boolean cachingEnabled) {
+        public UnderlyingCursorWrapper(Cursor result, boolean cachingEnabled,
+                boolean snapshotEnabled, boolean diffEnabled) {
             super(result);
 
             mCachingEnabled = cachingEnabled;
@@ -390,18 +393,18 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             }
 
             final long start = SystemClock.uptimeMillis();
-            final Map<String, Integer> uriPositionMap;
-            final Map<Long, Integer> idPositionMap;
-            final UnderlyingRowData[] cache;
+            final ConversationPositionIndex index;
+            ConversationColumnSnapshot snapshot = null;
             final int count;
             Utils.traceBeginSection("blockingCaching");
             if (super.moveToFirst()) {
                 count = super.getCount();
-                cache = new UnderlyingRowData[count];
                 int i = 0;
 
-                uriPositionMap = Maps.newHashMapWithExpectedSize(count);
-                idPositionMap = Maps.newHashMapWithExpectedSize(count);
+                index = new ConversationPositionIndex(count);
+                if (snapshotEnabled) {
+                    snapshot = new ConversationColumnSnapshot(count);
+                }
 
                 do {
                     final String innerUriString;
@@ -411,48 +414,49 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                     convId = super.getLong(UIProvider.CONVERSATION_ID_COLUMN);
 
                     if (DEBUG_DUPLICATE_KEYS) {
-                        if (uriPositionMap.containsKey(innerUriString)) {
+                        final int uriPosition = index.getPosition(innerUriString);
+                        if (uriPosition >= 0) {
                             LogUtils.e(LOG_TAG, "Inserting duplicate conversation uri key: %s. " +
                                     "Cursor position: %d, iteration: %d map position: %d",
-                                    innerUriString, getPosition(), i,
-                                    uriPositionMap.get(innerUriString));
+                                    innerUriString, getPosition(), i, uriPosition);
                         }
-                        if (idPositionMap.containsKey(convId)) {
+                        final int idPosition = index.getPosition(convId);
+                        if (idPosition >= 0) {
                             LogUtils.e(LOG_TAG, "Inserting duplicate conversation id key: %d" +
                                     "Cursor position: %d, iteration: %d map position: %d",
-                                    convId, getPosition(), i, idPositionMap.get(convId));
+                                    convId, getPosition(), i, idPosition);
                         }
                     }
 
-                    uriPositionMap.put(innerUriString, i);
-                    idPositionMap.put(convId, i);
-
-                    cache[i] = new UnderlyingRowData(
-                            innerUriString,
-                            null /* conversation */);
+                    index.put(i, convId, innerUriString);
+                    if (snapshot != null) {
+                        snapshot.copyRow(i, this);
+                    }
                 } while (super.moveToPosition(++i));
 
-                if (uriPositionMap.size() != count || idPositionMap.size() != count) {
+                if (snapshot != null) {
+                    snapshot.finish();
+                }
+
+                if (index.uriSize() != count || index.idSize() != count) {
                     if (DEBUG_DUPLICATE_KEYS)  {
                         throw new IllegalStateException("Unexpected map sizes: cursorN=" + count
-                                + " uriN=" + uriPositionMap.size() + " idN="
-                                + idPositionMap.size());
+                                + " uriN=" + index.uriSize() + " idN="
+                                + index.idSize());
                     } else {
                         LogUtils.e(LOG_TAG, "Unexpected map sizes.  Cursor size: %d, " +
                                 "uri position map size: %d, id position map size: %d", count,
-                                uriPositionMap.size(), idPositionMap.size());
+                                index.uriSize(), index.idSize());
                     }
                 }
             } else {
                 count = 0;
-                cache = new UnderlyingRowData[0];
-                uriPositionMap = Maps.newHashMap();
-                idPositionMap = Maps.newHashMap();
+                index = new ConversationPositionIndex(0);
             }
-            mConversationUriPositionMap = Collections.unmodifiableMap(uriPositionMap);
-            mConversationIdPositionMap = Collections.unmodifiableMap(idPositionMap);
-
-            mRowCache = Collections.unmodifiableList(Arrays.asList(cache));
+            mPositionIndex = index;
+            mConversations = new Conversation[count];
+            mSnapshot = snapshot;
+            mDiffEnabled = diffEnabled && snapshotEnabled;
             final long end = SystemClock.uptimeMillis();
             LogUtils.i(LOG_TAG, "*** ConversationCursor pre-loading took %sms n=%s", (end-start),
                     count);
@@ -497,35 +501,109 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         }
 
         public boolean contains(String uri) {
-            return mConversationUriPositionMap.containsKey(uri);
+            return mPositionIndex.contains(uri);
         }
 
         public Set<Long> conversationIds() {
-            return mConversationIdPositionMap.keySet();
+            return mPositionIndex.idSet();
         }
 
         public int getPosition(long conversationId) {
-            final Integer position = mConversationIdPositionMap.get(conversationId);
-            return position != null ? position.intValue() : -1;
+            return mPositionIndex.getPosition(conversationId);
         }
 
         public int getPosition(String conversationUri) {
-            final Integer position = mConversationUriPositionMap.get(conversationUri);
-            return position != null ? position.intValue() : -1;
+            return mPositionIndex.getPosition(conversationUri);
         }
 
         public String getInnerUri() {
-            return mRowCache.get(getPosition()).innerUri;
+            return mPositionIndex.getUri(getPosition());
         }
 
         public Conversation getConversation() {
-            return mRowCache.get(getPosition()).conversation;
+            return mConversations[getPosition()];
+        }
+
+        /**
+         * Diffs this cursor against the one it will replace, and adopts the previous cursor's
+         * Conversation objects for rows that did not change. Called on the refresh thread.
+         */
+        void diffAgainst(final UnderlyingCursorWrapper previous) {
+            if (!mDiffEnabled || !previous.mDiffEnabled) {
+                return;
+            }
+            final long start = SystemClock.uptimeMillis();
+            final ConversationListDiff diff = ConversationListDiff.compute(
+                    previous.mPositionIndex, mPositionIndex,
+                    new ConversationListDiff.RowMatcher() {
+                        @Override
+                        public boolean isUnchanged(int oldPosition, int newPosition) {
+                            return isRowUnchanged(previous, oldPosition, newPosition);
+                        }
+                    });
+            if (diff == null) {
+                return;
+            }
+            for (int i = 0; i < mConversations.length; i++) {
+                final int oldPosition = diff.getReusablePosition(i);
+                if (oldPosition >= 0 && mConversations[i] == null) {
+                    mConversations[i] = previous.mConversations[oldPosition];
+                }
+            }
+            mDiffBase = previous;
+            mDiff = diff;
+            LogUtils.i(LOG_TAG, "ConversationCursor diff took %sms n=%s unchanged=%s ranges=%s",
+                    SystemClock.uptimeMillis() - start, mConversations.length,
+                    diff.getUnchangedCount(),
+                    diff.getRanges() != null ? diff.getRanges().size() : "too many");
+        }
+
+        /**
+         * Compares a row of this cursor with the row of {@code previous} it was matched with by
+         * id. The snapshot columns, order key included, are compared first; the blobs are only
+         * read, and compared byte for byte with the ones the old row's Conversation was built
+         * from, when those match. The uri columns are left out: they only depend on the
+         * conversation id. A row that never had a Conversation built has nothing to reuse or
+         * rebind, so only its columns need to match.
+         */
+        private boolean isRowUnchanged(UnderlyingCursorWrapper previous, int oldPosition,
+                int newPosition) {
+            if (!mSnapshot.rowEquals(newPosition, previous.mSnapshot, oldPosition)) {
+                return false;
+            }
+            final Conversation conversation = previous.mConversations[oldPosition];
+            if (conversation == null) {
+                return true;
+            }
+            // This cursor is not published yet, and positions are per thread anyway
+            super.moveToPosition(newPosition);
+            return conversation.isReadFromBlobs(
+                    super.getBlob(UIProvider.CONVERSATION_INFO_COLUMN),
+                    super.getBlob(UIProvider.CONVERSATION_RAW_FOLDERS_COLUMN));
+        }
+
+        /**
+         * @return the diff from {@code previous} to this cursor, if that is what it was computed
+         *         against, or null. The diff is only returned once.
+         */
+        ConversationListDiff takeDiffFrom(UnderlyingCursorWrapper previous) {
+            final ConversationListDiff diff = mDiffBase == previous ? mDiff : null;
+            mDiffBase = null;
+            mDiff = null;
+            return diff;
+        }
+
+        /**
+         * @return the columnar snapshot of this cursor's hot columns, or null if there is none
+         */
+        public ConversationColumnSnapshot getSnapshot() {
+            return mSnapshot;
         }
 
         public void cacheConversation(Conversation conversation) {
-            final UnderlyingRowData rowData = mRowCache.get(getPosition());
-            if (rowData.conversation == null) {
-                rowData.conversation = conversation;
+            final int pos = getPosition();
+            if (mConversations[pos] == null) {
+                mConversations[pos] = conversation;
             }
         }
 
@@ -590,6 +668,10 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             final UnderlyingCursorWrapper result = doQuery(false);
             // Make sure window is full
             result.getCount();
+            final UnderlyingCursorWrapper previous = mUnderlyingCursor;
+            if (previous != null) {
+                result.diffAgainst(previous);
+            }
             return result;
         }
 
@@ -645,9 +727,9 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             LogUtils.i(LOG_TAG, "ConversationCursor query: %s, %dms, %d results",
                     uri, time, result.getCount());
         }
-        System.gc();
 
-        return new UnderlyingCursorWrapper(result, mCachingEnabled);
+        return new UnderlyingCursorWrapper(result, mCachingEnabled, mSnapshotEnabled,
+                mIncrementalRefreshEnabled);
     }
 
     static boolean offUiThread() {
@@ -684,13 +766,10 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                     if (values.containsKey(DELETED_COLUMN)) {
                         // Item is deleted locally AND deleted in the new cursor.
                         if (!newCursorWrapper.contains(key)) {
-                            // Keep the deleted count up-to-date; remove the
-                            // cache entry
-                            mDeletedCount--;
+                            // Remove the cache entry
                             removed = true;
                             LogUtils.i(LOG_TAG,
-                                    "IN resetCursor, sDeletedCount decremented to: %d by %s",
-                                    mDeletedCount,
+                                    "IN resetCursor, removing deleted entry %s",
                                     (LogUtils.isLoggable(LOG_TAG, LogUtils.DEBUG)) ? key
                                             : "[redacted]");
                         }
@@ -710,7 +789,19 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             }
             mUnderlyingCursor = newCursorWrapper;
 
+            // Positions are specific to the cursor, so rebuild the deletions and snapshot
+            // overrides from what remains in the cache
+            mDeletedPositions = new DeletedPositions(mUnderlyingCursor.getCount());
+            for (Map.Entry<String, ContentValues> entry : mCacheMap.entrySet()) {
+                final ContentValues values = entry.getValue();
+                if (values != null && values.containsKey(DELETED_COLUMN)) {
+                    markDeleted(entry.getKey(), true);
+                }
+                bypassSnapshot(entry.getKey());
+            }
+
             mPosition = -1;
+            mUnderlyingPosition = -1;
             mUnderlyingCursor.moveToPosition(mPosition);
             if (!mCursorObserverRegistered) {
                 mUnderlyingCursor.registerContentObserver(mCursorObserver);
@@ -777,34 +868,9 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             return underlyingPosition;
         }
 
-        // Walk through each of the deleted items.  If the deleted item is before the underlying
-        // position, decrement the position
+        // Skip over any deleted items before the underlying position
         synchronized (mCacheMapLock) {
-            int updatedPosition = underlyingPosition;
-            final Iterator<Map.Entry<String, ContentValues>> iter =
-                    mCacheMap.entrySet().iterator();
-            while (iter.hasNext()) {
-                final Map.Entry<String, ContentValues> entry = iter.next();
-                final ContentValues values = entry.getValue();
-                if (values.containsKey(DELETED_COLUMN)) {
-                    // Since clients of the conversation cursor see conversation ConversationCursor
-                    // provider uris, we need to make sure that this also returns these uris
-                    final String conversationUri = entry.getKey();
-                    final int deletedItemPosition = mUnderlyingCursor.getPosition(conversationUri);
-                    if (deletedItemPosition == underlyingPosition) {
-                        // The requested items has been deleted.
-                        return -1;
-                    }
-
-                    if (deletedItemPosition >= 0 && deletedItemPosition < underlyingPosition) {
-                        // This item has been deleted, but is still in the underlying cursor, at
-                        // a position before the requested item.  Decrement the position of the
-                        // requested item.
-                        updatedPosition--;
-                    }
-                }
-            }
-            return updatedPosition;
+            return mDeletedPositions.toVisiblePosition(underlyingPosition);
         }
     }
 
@@ -930,36 +996,81 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                 final boolean state = (Boolean)value;
                 final boolean hasValue = map.get(columnName) != null;
                 if (state && !hasValue) {
-                    mDeletedCount++;
+                    markDeleted(uriString, true);
                     if (DEBUG) {
                         LogUtils.i(LOG_TAG, "Deleted %s, incremented deleted count=%d", uriString,
-                                mDeletedCount);
+                                mDeletedPositions.getDeletedCount());
                     }
                 } else if (!state && hasValue) {
-                    mDeletedCount--;
+                    markDeleted(uriString, false);
                     map.remove(columnName);
                     if (DEBUG) {
                         LogUtils.i(LOG_TAG, "Undeleted %s, decremented deleted count=%d", uriString,
-                                mDeletedCount);
+                                mDeletedPositions.getDeletedCount());
                     }
                     return;
                 } else if (!state) {
                     // Trying to undelete, but it's not deleted; just return
                     if (DEBUG) {
                         LogUtils.i(LOG_TAG, "Undeleted %s, IGNORING, deleted count=%d", uriString,
-                                mDeletedCount);
+                                mDeletedPositions.getDeletedCount());
                     }
                     return;
                 }
             }
             putInValues(map, columnName, value);
             map.put(UPDATE_TIME_COLUMN, System.currentTimeMillis());
+            bypassSnapshot(uriString);
             if (DEBUG && (!columnName.equals(DELETED_COLUMN))) {
                 LogUtils.i(LOG_TAG, "Caching value for %s: %s", uriString, columnName);
             }
         }
     }
 
+    /**
+     * Record a local deletion (or undeletion) against the row's position in the underlying
+     * cursor. Deletions of conversations that aren't in the underlying cursor don't affect
+     * the count or positions.
+     */
+    private void markDeleted(String uriString, boolean deleted) {
+        if (mUnderlyingCursor == null) {
+            return;
+        }
+        final int underlyingPosition = mUnderlyingCursor.getPosition(uriString);
+        if (underlyingPosition >= 0) {
+            mDeletedPositions.setDeleted(underlyingPosition, deleted);
+        }
+    }
+
+    /**
+     * Stop serving the row for the given uri from the column snapshot, as it now has cached
+     * values that must be read through {@link #getCachedValue(int)}.
+     */
+    private void bypassSnapshot(String uriString) {
+        if (mUnderlyingCursor == null) {
+            return;
+        }
+        final ConversationColumnSnapshot snapshot = mUnderlyingCursor.getSnapshot();
+        if (snapshot != null) {
+            final int underlyingPosition = mUnderlyingCursor.getPosition(uriString);
+            if (underlyingPosition >= 0) {
+                snapshot.bypass(underlyingPosition);
+            }
+        }
+    }
+
+    /**
+     * Returns the column snapshot if the current row can be read from it, or null if the row has
+     * to go through the cache map and the underlying cursor.
+     */
+    private ConversationColumnSnapshot getSnapshotForCurrentRow() {
+        final ConversationColumnSnapshot snapshot = mUnderlyingCursor.getSnapshot();
+        if (snapshot != null && snapshot.isAvailable(mUnderlyingPosition)) {
+            return snapshot;
+        }
+        return null;
+    }
+
     /**
      * Get the cached value for the provided column; we special case -1 as the "deleted" column
      * @param columnIndex the index of the column whose cached value we want to retrieve
@@ -1052,7 +1163,47 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
     }
 
     /**
-     * Put the refreshed cursor in place (called by the UI)
+     * Must be called on UI thread; notify listeners of the rows that changed in a refresh. Falls
+     * back to {@link #notifyDataChanged()} if there is no usable diff, or if rows were inserted,
+     * removed or moved, which list views can only show by rebinding everything.
+     */
+    private void notifyDataChanged(ConversationListDiff diff) {
+        final List<ConversationListDiff.Range> ranges = diff != null ? diff.getRanges() : null;
+        if (ranges == null) {
+            notifyDataChanged();
+            return;
+        }
+        final int[] starts = new int[ranges.size()];
+        final int[] counts = new int[ranges.size()];
+        for (int i = 0; i < starts.length; i++) {
+            final ConversationListDiff.Range range = ranges.get(i);
+            if (range.mType != ConversationListDiff.Range.CHANGED) {
+                notifyDataChanged();
+                return;
+            }
+            starts[i] = range.mStart;
+            counts[i] = range.mCount;
+        }
+        if (DEBUG) {
+            LogUtils.i(LOG_TAG, "[Notify %s: %s]", mName, ranges);
+        }
+        synchronized(mListeners) {
+            for (ConversationListener listener: mListeners) {
+                if (listener instanceof ConversationRangeListener) {
+                    ((ConversationRangeListener) listener).onItemRangesChanged(starts, counts);
+                } else {
+                    listener.onDataSetChanged();
+                }
+            }
+        }
+
+        handleNotificationActions();
+    }
+
+    /**
+     * Put the refreshed cursor in place (called by the UI). If the refreshed cursor was diffed
+     * against the current one, rows that did not change keep their Conversation objects, and
+     * {@link ConversationRangeListener}s are told which rows changed if none moved.
      */
     public void sync() {
         if (mRequeryCursor == null) {
@@ -1063,16 +1214,26 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             }
             return;
         }
+        final ConversationListDiff diff;
         synchronized(mCacheMapLock) {
             if (DEBUG) {
                 LogUtils.i(LOG_TAG, "[sync() %s]", mName);
             }
             mRefreshTask = null;
             mRefreshReady = false;
+            final UnderlyingCursorWrapper previous = mUnderlyingCursor;
+            final boolean hadDeletions = mDeletedPositions.getDeletedCount() > 0;
             resetCursor(mRequeryCursor);
+            // Diff positions are underlying positions, which are only the visible ones if
+            // nothing is locally deleted
+            if (!hadDeletions && mDeletedPositions.getDeletedCount() == 0) {
+                diff = mRequeryCursor.takeDiffFrom(previous);
+            } else {
+                diff = null;
+            }
             mRequeryCursor = null;
         }
-        notifyDataChanged();
+        notifyDataChanged(diff);
     }
 
     public boolean isRefreshRequired() {
@@ -1135,21 +1296,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
      */
     @Override
     public boolean moveToNext() {
-        while (true) {
-            boolean ret = mUnderlyingCursor.moveToNext();
-            if (!ret) {
-                mPosition = getCount();
-                if (DEBUG) {
-                    LogUtils.i(LOG_TAG, "*** moveToNext returns false: pos = %d, und = %d" +
-                            ", del = %d", mPosition, mUnderlyingCursor.getPosition(),
-                            mDeletedCount);
-                }
-                return false;
-            }
-            if (getCachedValue(DELETED_COLUMN_INDEX) instanceof Integer) continue;
-            mPosition++;
-            return true;
-        }
+        return moveToPosition(mPosition + 1);
     }
 
     /**
@@ -1157,17 +1304,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
      */
     @Override
     public boolean moveToPrevious() {
-        while (true) {
-            boolean ret = mUnderlyingCursor.moveToPrevious();
-            if (!ret) {
-                // Make sure we're before the first position
-                mPosition = -1;
-                return false;
-            }
-            if (getCachedValue(DELETED_COLUMN_INDEX) instanceof Integer) continue;
-            mPosition--;
-            return true;
-        }
+        return moveToPosition(mPosition - 1);
     }
 
     @Override
@@ -1184,7 +1321,9 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             throw new IllegalStateException(
                     "getCount() on disabled cursor: " + mName + "(" + qUri + ")");
         }
-        return mUnderlyingCursor.getCount() - mDeletedCount;
+        synchronized (mCacheMapLock) {
+            return mDeletedPositions.getVisibleCount();
+        }
     }
 
     @Override
@@ -1193,65 +1332,54 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             throw new IllegalStateException(
                     "moveToFirst() on disabled cursor: " + mName + "(" + qUri + ")");
         }
-        mUnderlyingCursor.moveToPosition(-1);
-        mPosition = -1;
-        return moveToNext();
+        return moveToPosition(0);
     }
 
+    /**
+     * Moves directly to the underlying row backing {@code pos}, skipping over locally deleted
+     * rows without visiting them.
+     */
     @Override
     public boolean moveToPosition(int pos) {
         if (mUnderlyingCursor == null) {
             throw new IllegalStateException(
                     "moveToPosition() on disabled cursor: " + mName + "(" + qUri + ")");
         }
-        // Handle the "move to first" case before anything else; moveToPosition(0) in an empty
-        // SQLiteCursor moves the position to 0 when returning false, which we will mirror.
-        // But we don't want to return true on a subsequent "move to first", which we would if we
-        // check pos vs mPosition first
-        if (mUnderlyingCursor.getPosition() == -1) {
-            LogUtils.d(LOG_TAG, "*** Underlying cursor position is -1 asking to move from %d to %d",
-                    mPosition, pos);
-        }
-        if (pos == 0) {
-            return moveToFirst();
-        } else if (pos < 0) {
+        if (pos < 0) {
             mPosition = -1;
+            mUnderlyingPosition = -1;
             mUnderlyingCursor.moveToPosition(mPosition);
             return false;
-        } else if (pos == mPosition) {
-            // Return false if we're past the end of the cursor
-            return pos < getCount();
-        } else if (pos > mPosition) {
-            while (pos > mPosition) {
-                if (!moveToNext()) {
-                    return false;
-                }
-            }
-            return true;
-        } else if ((pos >= 0) && (mPosition - pos) > pos) {
-            // Optimization if it's easier to move forward to position instead of backward
+        }
+        final int count;
+        final int deletedCount;
+        final int underlyingPosition;
+        synchronized (mCacheMapLock) {
+            count = mDeletedPositions.getVisibleCount();
+            deletedCount = mDeletedPositions.getDeletedCount();
+            underlyingPosition = pos < count ? mDeletedPositions.toUnderlyingPosition(pos) : -1;
+        }
+        if (pos >= count) {
+            // Mirror SQLiteCursor, which leaves the position just past the end
+            mPosition = count;
+            mUnderlyingPosition = mUnderlyingCursor.getCount();
+            mUnderlyingCursor.moveToPosition(mUnderlyingPosition);
             if (DEBUG) {
-                LogUtils.i(LOG_TAG, "*** Move from %d to %d, starting from first", mPosition, pos);
+                LogUtils.i(LOG_TAG, "*** moveToPosition returns false: pos = %d, und = %d" +
+                        ", del = %d", mPosition, mUnderlyingCursor.getPosition(), deletedCount);
             }
-            moveToFirst();
-            return moveToPosition(pos);
-        } else {
-            while (pos < mPosition) {
-                if (!moveToPrevious()) {
-                    return false;
-                }
-            }
-            return true;
+            return false;
         }
+        mPosition = pos;
+        mUnderlyingPosition = underlyingPosition;
+        return mUnderlyingCursor.moveToPosition(mUnderlyingPosition);
     }
 
     /**
      * Make sure mPosition is correct after locally deleting/undeleting items
      */
     private void recalibratePosition() {
-        final int pos = mPosition;
-        moveToFirst();
-        moveToPosition(pos);
+        moveToPosition(mPosition);
     }
 
     @Override
@@ -1266,7 +1394,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
 
     /**
      * We need to override all of the getters to make sure they look at cached values before using
-     * the values in the underlying cursor
+     * the values in the underlying cursor. Rows without cached values are served from the column
+     * snapshot, when there is one, without touching the cache map or the cursor window.
      */
     @Override
     public double getDouble(int columnIndex) {
@@ -1284,6 +1413,10 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
 
     @Override
     public int getInt(int columnIndex) {
+        final ConversationColumnSnapshot snapshot = getSnapshotForCurrentRow();
+        if (snapshot != null && snapshot.hasInt(columnIndex)) {
+            return snapshot.getInt(mUnderlyingPosition, columnIndex);
+        }
         Object obj = getCachedValue(columnIndex);
         if (obj != null) return (Integer)obj;
         return mUnderlyingCursor.getInt(columnIndex);
@@ -1291,6 +1424,10 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
 
     @Override
     public long getLong(int columnIndex) {
+        final ConversationColumnSnapshot snapshot = getSnapshotForCurrentRow();
+        if (snapshot != null && snapshot.hasLong(columnIndex)) {
+            return snapshot.getLong(mUnderlyingPosition, columnIndex);
+        }
         Object obj = getCachedValue(columnIndex);
         if (obj != null) return (Long)obj;
         return mUnderlyingCursor.getLong(columnIndex);
@@ -1310,6 +1447,10 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         if (columnIndex == URI_COLUMN_INDEX) {
             return uriToCachingUriString(mUnderlyingCursor.getInnerUri(), null);
         }
+        final ConversationColumnSnapshot snapshot = getSnapshotForCurrentRow();
+        if (snapshot != null && snapshot.hasString(columnIndex)) {
+            return snapshot.getString(mUnderlyingPosition, columnIndex);
+        }
         Object obj = getCachedValue(columnIndex);
         if (obj != null) return (String)obj;
         return mUnderlyingCursor.getString(columnIndex);
@@ -1424,6 +1565,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         public static String sUriPrefix;
         public static final String URI_SEPARATOR = "://";
         private ContentResolver mResolver;
+        private ConversationWriteQueue mWriteQueue;
 
         /**
          * Allows the implementing provider to specify the authority that should be used.
@@ -1436,6 +1578,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             AUTHORITY = getAuthority();
             sUriPrefix = "content://" + AUTHORITY + "/";
             mResolver = getContext().getContentResolver();
+            mWriteQueue = new ConversationWriteQueue(mResolver);
             return true;
         }
 
@@ -1595,26 +1738,28 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             }
         }
 
+        /**
+         * Runs {@code task} on the thread that applies conversation operations, once every
+         * operation applied so far has reached the underlying provider.
+         */
+        void runAfterPendingWrites(Runnable task) {
+            mWriteQueue.runAfterPendingWrites(task);
+        }
+
         public int apply(Collection<ConversationOperation> ops,
                 ConversationCursor conversationCursor) {
-            final HashMap<String, ArrayList<ContentProviderOperation>> batchMap =
-                    new HashMap<String, ArrayList<ContentProviderOperation>>();
+            final ArrayList<ConversationWriteQueue.Write> writes =
+                    new ArrayList<ConversationWriteQueue.Write>(ops.size());
             // Increment sequence count
             sSequence++;
 
-            // Execute locally and build CPO's for underlying provider
+            // Execute locally and build the writes for the underlying provider
             boolean recalibrateRequired = false;
             for (ConversationOperation op: ops) {
                 Uri underlyingUri = uriFromCachingUri(op.mUri);
-                String authority = underlyingUri.getAuthority();
-                ArrayList<ContentProviderOperation> authOps = batchMap.get(authority);
-                if (authOps == null) {
-                    authOps = new ArrayList<ContentProviderOperation>();
-                    batchMap.put(authority, authOps);
-                }
-                ContentProviderOperation cpo = op.execute(underlyingUri);
-                if (cpo != null) {
-                    authOps.add(cpo);
+                ConversationWriteQueue.Write write = op.execute(underlyingUri);
+                if (write != null) {
+                    writes.add(write);
                 }
                 // Keep track of whether our operations require recalibrating the cursor position
                 if (op.mRecalibrateRequired) {
@@ -1630,28 +1775,11 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             // Notify listeners that data has changed
             conversationCursor.notifyDataChanged();
 
-            // Send changes to underlying provider
-            final boolean notUiThread = offUiThread();
-            for (final String authority: batchMap.keySet()) {
-                final ArrayList<ContentProviderOperation> opList = batchMap.get(authority);
-                if (notUiThread) {
-                    try {
-                        mResolver.applyBatch(authority, opList);
-                    } catch (RemoteException e) {
-                    } catch (OperationApplicationException e) {
-                    }
-                } else {
-                    new Thread(new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                mResolver.applyBatch(authority, opList);
-                            } catch (RemoteException e) {
-                            } catch (OperationApplicationException e) {
-                            }
-                        }
-                    }).start();
-                }
+            // Send changes to underlying provider. Off the UI thread, callers expect them to have
+            // been applied on return.
+            mWriteQueue.enqueue(writes);
+            if (offUiThread()) {
+                mWriteQueue.flushAndWait();
             }
             return sSequence;
         }
@@ -1748,12 +1876,12 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             mMostlyDead = conv.isMostlyDead();
         }
 
-        private ContentProviderOperation execute(Uri underlyingUri) {
+        private ConversationWriteQueue.Write execute(Uri underlyingUri) {
             Uri uri = underlyingUri.buildUpon()
                     .appendQueryParameter(UIProvider.SEQUENCE_QUERY_PARAMETER,
                             Integer.toString(sSequence))
                     .build();
-            ContentProviderOperation op = null;
+            ConversationWriteQueue.Write op = null;
             switch(mType) {
                 case UPDATE:
                     if (mLocalDeleteOnUpdate) {
@@ -1763,21 +1891,18 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                         mRecalibrateRequired = false;
                     }
                     if (!mMostlyDead) {
-                        op = ContentProviderOperation.newUpdate(uri)
-                                .withValues(mValues)
-                                .build();
+                        op = ConversationWriteQueue.Write.update(underlyingUri, uri, mValues);
                     } else {
                         sProvider.commitMostlyDead(mConversation, ConversationCursor.this);
                     }
                     break;
                 case MOSTLY_DESTRUCTIVE_UPDATE:
                     sProvider.setMostlyDead(mConversation, ConversationCursor.this, mUndoCallback);
-                    op = ContentProviderOperation.newUpdate(uri).withValues(mValues).build();
+                    op = ConversationWriteQueue.Write.update(underlyingUri, uri, mValues);
                     break;
                 case INSERT:
                     sProvider.insertLocal(mUri, mValues);
-                    op = ContentProviderOperation.newInsert(uri)
-                            .withValues(mValues).build();
+                    op = ConversationWriteQueue.Write.insert(underlyingUri, uri, mValues);
                     break;
                 // Destructive actions below!
                 // "Mostly" operations are reflected globally, but not locally, except to set
@@ -1785,23 +1910,21 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                 case DELETE:
                     sProvider.deleteLocal(mUri, ConversationCursor.this, mUndoCallback);
                     if (!mMostlyDead) {
-                        op = ContentProviderOperation.newDelete(uri).build();
+                        op = ConversationWriteQueue.Write.delete(underlyingUri, uri);
                     } else {
                         sProvider.commitMostlyDead(mConversation, ConversationCursor.this);
                     }
                     break;
                 case MOSTLY_DELETE:
                     sProvider.setMostlyDead(mConversation,ConversationCursor.this, mUndoCallback);
-                    op = ContentProviderOperation.newDelete(uri).build();
+                    op = ConversationWriteQueue.Write.delete(underlyingUri, uri);
                     break;
                 case ARCHIVE:
                     sProvider.deleteLocal(mUri, ConversationCursor.this, mUndoCallback);
                     if (!mMostlyDead) {
                         // Create an update operation that represents archive
-                        op = ContentProviderOperation.newUpdate(uri).withValue(
-                                ConversationOperations.OPERATION_KEY,
-                                ConversationOperations.ARCHIVE)
-                                .build();
+                        op = ConversationWriteQueue.Write.operation(underlyingUri, uri,
+                                ConversationOperations.ARCHIVE);
                     } else {
                         sProvider.commitMostlyDead(mConversation, ConversationCursor.this);
                     }
@@ -1809,9 +1932,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                 case MOSTLY_ARCHIVE:
                     sProvider.setMostlyDead(mConversation, ConversationCursor.this, mUndoCallback);
                     // Create an update operation that represents archive
-                    op = ContentProviderOperation.newUpdate(uri).withValue(
-                            ConversationOperations.OPERATION_KEY, ConversationOperations.ARCHIVE)
-                            .build();
+                    op = ConversationWriteQueue.Write.operation(underlyingUri, uri,
+                            ConversationOperations.ARCHIVE);
                     break;
                 case MUTE:
                     if (mLocalDeleteOnUpdate) {
@@ -1819,9 +1941,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                     }
 
                     // Create an update operation that represents mute
-                    op = ContentProviderOperation.newUpdate(uri).withValue(
-                            ConversationOperations.OPERATION_KEY, ConversationOperations.MUTE)
-                            .build();
+                    op = ConversationWriteQueue.Write.operation(underlyingUri, uri,
+                            ConversationOperations.MUTE);
                     break;
                 case REPORT_SPAM:
                 case REPORT_NOT_SPAM:
@@ -1832,33 +1953,29 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                             ConversationOperations.REPORT_NOT_SPAM;
 
                     // Create an update operation that represents report spam
-                    op = ContentProviderOperation.newUpdate(uri).withValue(
-                            ConversationOperations.OPERATION_KEY, operation).build();
+                    op = ConversationWriteQueue.Write.operation(underlyingUri, uri, operation);
                     break;
                 case REPORT_PHISHING:
                     sProvider.deleteLocal(mUri, ConversationCursor.this, mUndoCallback);
 
                     // Create an update operation that represents report phishing
-                    op = ContentProviderOperation.newUpdate(uri).withValue(
-                            ConversationOperations.OPERATION_KEY,
-                            ConversationOperations.REPORT_PHISHING).build();
+                    op = ConversationWriteQueue.Write.operation(underlyingUri, uri,
+                            ConversationOperations.REPORT_PHISHING);
                     break;
                 case DISCARD_DRAFTS:
                     sProvider.deleteLocal(mUri, ConversationCursor.this, mUndoCallback);
 
                     // Create an update operation that represents discarding drafts
-                    op = ContentProviderOperation.newUpdate(uri).withValue(
-                            ConversationOperations.OPERATION_KEY,
-                            ConversationOperations.DISCARD_DRAFTS).build();
+                    op = ConversationWriteQueue.Write.operation(underlyingUri, uri,
+                            ConversationOperations.DISCARD_DRAFTS);
                     break;
                 case MOVE_FAILED_INTO_DRAFTS:
                     sProvider.deleteLocal(mUri, ConversationCursor.this, mUndoCallback);
 
                     // Create an update operation that represents removing current folder label
                     // and adding the drafts folder label for all failed messages.
-                    op = ContentProviderOperation.newUpdate(uri).withValue(
-                            ConversationOperations.OPERATION_KEY,
-                            ConversationOperations.MOVE_FAILED_TO_DRAFTS).build();
+                    op = ConversationWriteQueue.Write.operation(underlyingUri, uri,
+                            ConversationOperations.MOVE_FAILED_TO_DRAFTS);
                     break;
                 default:
                     throw new UnsupportedOperationException(
@@ -1888,6 +2005,20 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         public void onDataSetChanged();
     }
 
+    /**
+     * A {@link ConversationListener} that can rebind just the rows that changed. When a refresh
+     * only changed the contents of some rows, keeping every row in place, it is told which with
+     * {@link #onItemRangesChanged} instead of {@link ConversationListener#onDataSetChanged()}.
+     */
+    public interface ConversationRangeListener extends ConversationListener {
+        /**
+         * @param starts the first position of each range of changed rows, in increasing order;
+         *        empty if nothing changed
+         * @param counts the number of rows in each range
+         */
+        public void onItemRangesChanged(int[] starts, int[] counts);
+    }
+
     @Override
     public boolean isFirst() {
         throw new UnsupportedOperationException();
@@ -2169,7 +2300,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
     }
 
     public void undo(final Context context, final Uri undoUri) {
-        new Thread(new Runnable() {
+        // The undo has to reach the provider after the operations it undoes
+        sProvider.runAfterPendingWrites(new Runnable() {
             @Override
             public void run() {
                 Cursor c = context.getContentResolver().query(undoUri, UIProvider.UNDO_PROJECTION,
@@ -2178,7 +2310,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                     c.close();
                 }
             }
-        }).start();
+        });
         undoLocal();
     }
 
@@ -2356,7 +2488,9 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         sb.append(" mPaused=");
         sb.append(mPaused);
         sb.append(" mDeletedCount=");
-        sb.append(mDeletedCount);
+        synchronized (mCacheMapLock) {
+            sb.append(mDeletedPositions.getDeletedCount());
+        }
         sb.append(" mUnderlying=");
         sb.append(mUnderlyingCursor);
         if (LogUtils.isLoggable(LOG_TAG, LogUtils.DEBUG)) {
@@ -859,7 +859,7 @@ public class ConversationItemView extends View
             // This is a special view that doesn't need special sender formatting
             mHeader.sendersDisplayText = new SpannableStringBuilder(mHeader.sendersText);
             loadImages();
-        } else if (mHeader.conversation.conversationInfo != null) {
+        } else if (mHeader.conversation.getConversationInfo() != null) {
             Context context = getContext();
             mHeader.messageInfoString = SendersView
                     .createMessageInfo(context, mHeader.conversation, true);
@@ -869,7 +869,7 @@ public class ConversationItemView extends View
             mHeader.displayableNames = new ArrayList<String>();
             mHeader.styledNames = new ArrayList<SpannableString>();
 
-            SendersView.format(context, mHeader.conversation.conversationInfo,
+            SendersView.format(context, mHeader.conversation.getConversationInfo(),
                     mHeader.messageInfoString.toString(), maxChars, mHeader.styledNames,
                     mHeader.displayableNames, mHeader.displayableEmails, mAccount,
                     mDisplayedFolder.shouldShowRecipients(), true);
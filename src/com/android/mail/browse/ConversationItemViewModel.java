@@ -215,7 +215,7 @@ public class ConversationItemViewModel {
      */
     void validate() {
         mDataHashCode = getHashCode(dateText,
-                conversation.conversationInfo, conversation.getRawFolders(), conversation.starred,
+                conversation.getConversationInfo(), conversation.getRawFolders(), conversation.starred,
                 conversation.read, conversation.priority, conversation.sendingState);
         mLayoutHashCode = getLayoutHashCode();
     }
@@ -225,7 +225,7 @@ public class ConversationItemViewModel {
      */
     boolean isDataValid() {
         return mDataHashCode == getHashCode(dateText,
-                conversation.conversationInfo, conversation.getRawFolders(), conversation.starred,
+                conversation.getConversationInfo(), conversation.getRawFolders(), conversation.starred,
                 conversation.read, conversation.priority, conversation.sendingState);
     }
 
@@ -288,17 +288,17 @@ public class ConversationItemViewModel {
             // If all are read, get the last sender.
             String participant = "";
             String lastParticipant = "";
-            int last = conversation.conversationInfo.participantInfos != null ?
-                    conversation.conversationInfo.participantInfos.size() - 1 : -1;
+            int last = conversation.getConversationInfo().participantInfos != null ?
+                    conversation.getConversationInfo().participantInfos.size() - 1 : -1;
             if (last != -1) {
-                lastParticipant = conversation.conversationInfo.participantInfos.get(last).name;
+                lastParticipant = conversation.getConversationInfo().participantInfos.get(last).name;
             }
             if (conversation.read) {
                 participant = TextUtils.isEmpty(lastParticipant) ?
                         SendersView.getMe(showToHeader /* useObjectMe */) : lastParticipant;
             } else {
                 ParticipantInfo firstUnread = null;
-                for (ParticipantInfo p : conversation.conversationInfo.participantInfos) {
+                for (ParticipantInfo p : conversation.getConversationInfo().participantInfos) {
                     if (!p.readConversation) {
                         firstUnread = p;
                         break;
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import com.google.common.collect.Lists;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The difference between two conversation list cursors, computed from the conversation id and
+ * a {@link RowMatcher} that compares the columns each row's
+ * {@link com.android.mail.providers.Conversation} is built from.
+ * <p>
+ * Rows are matched by id. Matched rows whose contents are unchanged can keep the
+ * {@link com.android.mail.providers.Conversation} built for the old row. The longest run of
+ * matched rows that kept their relative order stays in place; every other row is reported as
+ * removed and/or inserted, so a row that moved (e.g. because its order key changed) is
+ * reported as removed from its old position and inserted at its new one.
+ * <p>
+ * {@link #getRanges()} lists the changes in the order they should be applied: removals from the
+ * highest position down, using old positions; then insertions from the lowest position up, using
+ * new positions; then changes, using new positions.
+ */
+final class ConversationListDiff {
+    /** Past this many ranges, listeners are better off rebinding everything */
+    static final int MAX_RANGES = 32;
+
+    /** Compares the contents of rows the diff has matched by id */
+    interface RowMatcher {
+        /**
+         * @return true if the new row holds exactly what the old row did
+         */
+        boolean isUnchanged(int oldPosition, int newPosition);
+    }
+
+    static final class Range {
+        static final int REMOVED = 0;
+        static final int INSERTED = 1;
+        static final int CHANGED = 2;
+
+        final int mType;
+        final int mStart;
+        final int mCount;
+
+        Range(int type, int start, int count) {
+            mType = type;
+            mStart = start;
+            mCount = count;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Range)) {
+                return false;
+            }
+            final Range other = (Range) o;
+            return mType == other.mType && mStart == other.mStart && mCount == other.mCount;
+        }
+
+        @Override
+        public int hashCode() {
+            return (mType * 31 + mStart) * 31 + mCount;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + mType + ":" + mStart + "+" + mCount + "]";
+        }
+    }
+
+    private final int[] mReuse;
+    private final List<Range> mRanges;
+    private final int mUnchangedCount;
+
+    private ConversationListDiff(int[] reuse, List<Range> ranges, int unchangedCount) {
+        mReuse = reuse;
+        mRanges = ranges;
+        mUnchangedCount = unchangedCount;
+    }
+
+    /**
+     * @param oldIndex the ids of the old cursor, by position
+     * @param newIndex the ids of the new cursor, by position
+     * @param matcher compares the contents of the rows matched by id
+     * @return the diff, or null if either cursor has duplicate ids
+     */
+    static ConversationListDiff compute(ConversationPositionIndex oldIndex,
+            ConversationPositionIndex newIndex, RowMatcher matcher) {
+        final int oldCount = oldIndex.getCount();
+        final int newCount = newIndex.getCount();
+        if (oldIndex.idSize() != oldCount || newIndex.idSize() != newCount) {
+            return null;
+        }
+
+        // Match rows by id
+        final int[] reuse = new int[newCount];
+        final int[] oldPositions = new int[newCount];
+        int unchanged = 0;
+        for (int j = 0; j < newCount; j++) {
+            final int i = oldIndex.getPosition(newIndex.getId(j));
+            oldPositions[j] = i;
+            if (i >= 0 && matcher.isUnchanged(i, j)) {
+                reuse[j] = i;
+                unchanged++;
+            } else {
+                reuse[j] = -1;
+            }
+        }
+
+        // Rows on the longest increasing run of old positions stay where they are
+        final boolean[] newStays = longestIncreasingRun(oldPositions);
+        final boolean[] oldStays = new boolean[oldCount];
+        for (int j = 0; j < newCount; j++) {
+            if (newStays[j]) {
+                oldStays[oldPositions[j]] = true;
+            }
+        }
+
+        final List<Range> ranges = Lists.newArrayList();
+        // Removals, from the end so that earlier positions are unaffected
+        for (int i = oldCount - 1; i >= 0; ) {
+            if (oldStays[i]) {
+                i--;
+                continue;
+            }
+            final int end = i;
+            while (i >= 0 && !oldStays[i]) {
+                i--;
+            }
+            if (!addRange(ranges, new Range(Range.REMOVED, i + 1, end - i))) {
+                return new ConversationListDiff(reuse, null, unchanged);
+            }
+        }
+        // Insertions, from the start, at their final positions
+        for (int j = 0; j < newCount; ) {
+            if (newStays[j]) {
+                j++;
+                continue;
+            }
+            final int start = j;
+            while (j < newCount && !newStays[j]) {
+                j++;
+            }
+            if (!addRange(ranges, new Range(Range.INSERTED, start, j - start))) {
+                return new ConversationListDiff(reuse, null, unchanged);
+            }
+        }
+        // Rows that stayed in place but whose contents changed
+        for (int j = 0; j < newCount; ) {
+            if (!newStays[j] || reuse[j] >= 0) {
+                j++;
+                continue;
+            }
+            final int start = j;
+            while (j < newCount && newStays[j] && reuse[j] < 0) {
+                j++;
+            }
+            if (!addRange(ranges, new Range(Range.CHANGED, start, j - start))) {
+                return new ConversationListDiff(reuse, null, unchanged);
+            }
+        }
+        return new ConversationListDiff(reuse, Collections.unmodifiableList(ranges), unchanged);
+    }
+
+    private static boolean addRange(List<Range> ranges, Range range) {
+        if (ranges.size() >= MAX_RANGES) {
+            return false;
+        }
+        ranges.add(range);
+        return true;
+    }
+
+    /**
+     * Finds a longest strictly increasing subsequence of the non-negative values, in
+     * O(n log n).
+     *
+     * @return for each index, whether it is part of that subsequence
+     */
+    private static boolean[] longestIncreasingRun(int[] values) {
+        final int n = values.length;
+        // tails[k]: index of the smallest tail of an increasing run of length k + 1
+        final int[] tails = new int[n];
+        final int[] previous = new int[n];
+        int length = 0;
+        for (int j = 0; j < n; j++) {
+            final int value = values[j];
+            if (value < 0) {
+                continue;
+            }
+            int lo = 0;
+            int hi = length;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (values[tails[mid]] < value) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            previous[j] = lo > 0 ? tails[lo - 1] : -1;
+            tails[lo] = j;
+            if (lo == length) {
+                length++;
+            }
+        }
+        final boolean[] result = new boolean[n];
+        for (int j = length > 0 ? tails[length - 1] : -1; j >= 0; j = previous[j]) {
+            result[j] = true;
+        }
+        return result;
+    }
+
+    /**
+     * @return the old position whose Conversation may be reused for each new position, or -1
+     */
+    int getReusablePosition(int newPosition) {
+        return mReuse[newPosition];
+    }
+
+    /**
+     * @return the number of rows whose contents did not change, wherever they are now
+     */
+    int getUnchangedCount() {
+        return mUnchangedCount;
+    }
+
+    /**
+     * @return the changes, in the order they should be applied, or null if there are too many
+     *         to be worth reporting individually
+     */
+    List<Range> getRanges() {
+        return mRanges;
+    }
+}
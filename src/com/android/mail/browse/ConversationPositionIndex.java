@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A fixed-capacity index from conversation id and conversation uri to cursor position.
+ * <p>
+ * This replaces a pair of {@code HashMap<Long, Integer>} / {@code HashMap<String, Integer>}
+ * in {@link ConversationCursor}. Both tables use open addressing with linear probing over
+ * primitive arrays that are sized once from the cursor count, so building the index for a
+ * large folder allocates a handful of arrays instead of one entry (plus boxed keys and values)
+ * per row. The uri table is keyed by {@link String#hashCode()}; on a hash collision the uri
+ * stored for the candidate position is compared, so lookups remain exact.
+ * <p>
+ * Not thread-safe while being populated. Once {@link #put(int, long, String)} has been called
+ * for every row, the index may be read from any thread.
+ */
+final class ConversationPositionIndex {
+    /** Returned by {@link #put(int, long, String)} if the id was already indexed. */
+    static final int DUPLICATE_ID = 1;
+    /** Returned by {@link #put(int, long, String)} if the uri was already indexed. */
+    static final int DUPLICATE_URI = 2;
+
+    /** Marks an empty slot. Slots otherwise hold (position + 1). */
+    private static final int EMPTY = 0;
+
+    private final int mCount;
+    private final long[] mIds;
+    private final String[] mUris;
+
+    private final int[] mIdSlots;
+    private final int[] mUriSlots;
+    private final int[] mUriSlotHashes;
+    private final int mMask;
+
+    private int mIdSize;
+    private int mUriSize;
+
+    private Set<Long> mIdSet;
+
+    /**
+     * @param count the number of rows that will be indexed
+     */
+    ConversationPositionIndex(int count) {
+        mCount = count;
+        mIds = new long[count];
+        mUris = new String[count];
+        final int capacity = tableCapacity(count);
+        mIdSlots = new int[capacity];
+        mUriSlots = new int[capacity];
+        mUriSlotHashes = new int[capacity];
+        mMask = capacity - 1;
+    }
+
+    /**
+     * Returns the smallest power of two that keeps the load factor at or below one half.
+     */
+    private static int tableCapacity(int count) {
+        int capacity = 2;
+        while (capacity < count * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int mix(int h) {
+        // Spread the bits so that sequential ids and similar uris don't cluster
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int hashId(long id) {
+        return mix((int) (id ^ (id >>> 32)));
+    }
+
+    /**
+     * Records the id and uri of the row at {@code position}. If either key was already present,
+     * it is re-pointed at the new position (matching {@link java.util.Map#put} semantics).
+     *
+     * @return a bitmask of {@link #DUPLICATE_ID} and {@link #DUPLICATE_URI}, or 0
+     */
+    int put(int position, long id, String uri) {
+        mIds[position] = id;
+        mUris[position] = uri;
+        int result = 0;
+        if (putId(id, position)) {
+            result |= DUPLICATE_ID;
+        }
+        if (putUri(uri, position)) {
+            result |= DUPLICATE_URI;
+        }
+        return result;
+    }
+
+    private boolean putId(long id, int position) {
+        int slot = hashId(id) & mMask;
+        while (true) {
+            final int entry = mIdSlots[slot];
+            if (entry == EMPTY) {
+                mIdSlots[slot] = position + 1;
+                mIdSize++;
+                return false;
+            }
+            if (mIds[entry - 1] == id) {
+                mIdSlots[slot] = position + 1;
+                return true;
+            }
+            slot = (slot + 1) & mMask;
+        }
+    }
+
+    private boolean putUri(String uri, int position) {
+        final int hash = uri == null ? 0 : uri.hashCode();
+        int slot = mix(hash) & mMask;
+        while (true) {
+            final int entry = mUriSlots[slot];
+            if (entry == EMPTY) {
+                mUriSlots[slot] = position + 1;
+                mUriSlotHashes[slot] = hash;
+                mUriSize++;
+                return false;
+            }
+            if (mUriSlotHashes[slot] == hash && equal(mUris[entry - 1], uri)) {
+                mUriSlots[slot] = position + 1;
+                return true;
+            }
+            slot = (slot + 1) & mMask;
+        }
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * @return the position of the conversation with the given id, or -1 if not present
+     */
+    int getPosition(long id) {
+        int slot = hashId(id) & mMask;
+        while (true) {
+            final int entry = mIdSlots[slot];
+            if (entry == EMPTY) {
+                return -1;
+            }
+            if (mIds[entry - 1] == id) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mMask;
+        }
+    }
+
+    /**
+     * @return the position of the conversation with the given (inner) uri, or -1 if not present
+     */
+    int getPosition(String uri) {
+        final int hash = uri == null ? 0 : uri.hashCode();
+        int slot = mix(hash) & mMask;
+        while (true) {
+            final int entry = mUriSlots[slot];
+            if (entry == EMPTY) {
+                return -1;
+            }
+            if (mUriSlotHashes[slot] == hash && equal(mUris[entry - 1], uri)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mMask;
+        }
+    }
+
+    boolean contains(String uri) {
+        return getPosition(uri) >= 0;
+    }
+
+    /**
+     * @return the inner uri recorded for the row at {@code position}
+     */
+    String getUri(int position) {
+        return mUris[position];
+    }
+
+    /**
+     * @return the conversation id recorded for the row at {@code position}
+     */
+    long getId(int position) {
+        return mIds[position];
+    }
+
+    /** @return the number of rows this index was sized for */
+    int getCount() {
+        return mCount;
+    }
+
+    /** @return the number of distinct ids indexed */
+    int idSize() {
+        return mIdSize;
+    }
+
+    /** @return the number of distinct uris indexed */
+    int uriSize() {
+        return mUriSize;
+    }
+
+    /**
+     * Returns a read-only view of the distinct conversation ids in this index. Membership tests
+     * go straight to the primitive table; ids are only boxed as they are iterated.
+     */
+    Set<Long> idSet() {
+        if (mIdSet == null) {
+            mIdSet = new IdSet();
+        }
+        return mIdSet;
+    }
+
+    private final class IdSet extends AbstractSet<Long> {
+        @Override
+        public boolean contains(Object o) {
+            return (o instanceof Long) && getPosition(((Long) o).longValue()) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return mIdSize;
+        }
+
+        @Override
+        public Iterator<Long> iterator() {
+            return new Iterator<Long>() {
+                private int mSlot = advance(0);
+
+                private int advance(int from) {
+                    int slot = from;
+                    while (slot < mIdSlots.length && mIdSlots[slot] == EMPTY) {
+                        slot++;
+                    }
+                    return slot;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return mSlot < mIdSlots.length;
+                }
+
+                @Override
+                public Long next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    final long id = mIds[mIdSlots[mSlot] - 1];
+                    mSlot = advance(mSlot + 1);
+                    return id;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
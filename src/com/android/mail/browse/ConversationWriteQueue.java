@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import com.android.mail.providers.UIProvider;
+import com.android.mail.providers.UIProvider.ConversationOperations;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind queue for the provider operations built by
+ * {@link ConversationCursor.ConversationProvider#apply}. Writes are applied on one background
+ * thread, in order, with one {@link ContentResolver#applyBatch} per authority per flush.
+ * <p>
+ * While a write is pending, later writes to the same conversation are coalesced into it:
+ * <ul>
+ * <li>plain column updates merge, with the later value of a column winning;</li>
+ * <li>a delete drops the pending column updates before it, and the updates that follow it;</li>
+ * <li>inserts and updates carrying an {@link ConversationOperations#OPERATION_KEY} (archive,
+ * mute, report spam...) are never merged, and later updates queue up behind them.</li>
+ * </ul>
+ * Updates are only merged if they agree on
+ * {@link ConversationOperations.Parameters#SUPPRESS_UNDO}, so that coalescing never makes an
+ * undoable change part of an un-undoable one, or the reverse. The provider undoes a whole
+ * sequence (one {@link ConversationCursor.ConversationProvider#apply} call) at a time, so
+ * undoable writes only merge within their sequence; updates that suppress undo, such as marking
+ * read, also merge across sequences, and carry the newest one.
+ * <p>
+ * The queue is flushed {@link #FLUSH_DELAY_MS} after the first write enters an empty queue, or
+ * as soon as {@link #MAX_PENDING} writes are waiting.
+ */
+final class ConversationWriteQueue {
+    private static final String LOG_TAG = "ConvWriteQueue";
+
+    @VisibleForTesting
+    static final long FLUSH_DELAY_MS = 100;
+    @VisibleForTesting
+    static final int MAX_PENDING = 100;
+
+    /**
+     * One operation on the underlying provider, kept in a form that can still be merged.
+     */
+    static final class Write {
+        static final int INSERT = 0;
+        static final int UPDATE = 1;
+        static final int DELETE = 2;
+
+        final int mType;
+        /** The underlying conversation uri, without the sequence parameter */
+        final String mKey;
+        final String mAuthority;
+        final long mEnqueueTime;
+        /** The uri to send, with its sequence parameter */
+        private Uri mUri;
+        /** The sequence parameter of mUri, or null if it has none */
+        private String mSequence;
+        private ContentValues mValues;
+        private boolean mDropped;
+
+        private Write(int type, Uri underlyingUri, Uri uri, ContentValues values) {
+            mType = type;
+            mKey = underlyingUri.toString();
+            mAuthority = underlyingUri.getAuthority();
+            mUri = uri;
+            mSequence = uri.getQueryParameter(UIProvider.SEQUENCE_QUERY_PARAMETER);
+            mValues = values;
+            mEnqueueTime = SystemClock.elapsedRealtime();
+        }
+
+        static Write insert(Uri underlyingUri, Uri uri, ContentValues values) {
+            return new Write(INSERT, underlyingUri, uri, values);
+        }
+
+        static Write update(Uri underlyingUri, Uri uri, ContentValues values) {
+            return new Write(UPDATE, underlyingUri, uri, values);
+        }
+
+        /**
+         * An update that tells the provider to perform one of the {@link ConversationOperations}.
+         */
+        static Write operation(Uri underlyingUri, Uri uri, String operation) {
+            final ContentValues values = new ContentValues(1);
+            values.put(ConversationOperations.OPERATION_KEY, operation);
+            return new Write(UPDATE, underlyingUri, uri, values);
+        }
+
+        static Write delete(Uri underlyingUri, Uri uri) {
+            return new Write(DELETE, underlyingUri, uri, null);
+        }
+
+        boolean isColumnUpdate() {
+            return mType == UPDATE && (mValues == null
+                    || !mValues.containsKey(ConversationOperations.OPERATION_KEY));
+        }
+
+        private boolean isSameSequence(Write other) {
+            return Objects.equal(mSequence, other.mSequence);
+        }
+
+        private boolean canAbsorb(Write later) {
+            if (!isColumnUpdate() || !later.isColumnUpdate()) {
+                return false;
+            }
+            final boolean suppressUndo = suppressesUndo(this);
+            // Undoing a sequence must not undo part of another
+            return suppressUndo == suppressesUndo(later)
+                    && (suppressUndo || isSameSequence(later));
+        }
+
+        private static boolean suppressesUndo(Write write) {
+            if (write.mValues == null) {
+                return false;
+            }
+            final Boolean suppressUndo = write.mValues.getAsBoolean(
+                    ConversationOperations.Parameters.SUPPRESS_UNDO);
+            return suppressUndo != null && suppressUndo;
+        }
+
+        private void absorb(Write later) {
+            mUri = later.mUri;
+            mSequence = later.mSequence;
+            if (later.mValues != null) {
+                // Don't modify the caller's values; they may be shared with other operations
+                final ContentValues merged = mValues != null ?
+                        new ContentValues(mValues) : new ContentValues();
+                merged.putAll(later.mValues);
+                mValues = merged;
+            }
+        }
+
+        ContentProviderOperation toOperation() {
+            switch (mType) {
+                case INSERT:
+                    return ContentProviderOperation.newInsert(mUri).withValues(mValues).build();
+                case UPDATE:
+                    return ContentProviderOperation.newUpdate(mUri).withValues(mValues).build();
+                case DELETE:
+                    return ContentProviderOperation.newDelete(mUri).build();
+                default:
+                    throw new IllegalStateException("Unknown write type " + mType);
+            }
+        }
+
+        @VisibleForTesting
+        Uri getUri() {
+            return mUri;
+        }
+
+        @VisibleForTesting
+        ContentValues getValues() {
+            return mValues;
+        }
+    }
+
+    /**
+     * A snapshot of what the queue has done so far.
+     */
+    static final class Stats {
+        /** Writes handed to {@link #enqueue} */
+        final int enqueued;
+        /** Writes merged into a pending write */
+        final int coalesced;
+        /** Writes dropped because of a delete */
+        final int dropped;
+        /** Writes sent to the underlying providers */
+        final int applied;
+        final int flushes;
+        /** How long the oldest write of each flush waited, on average and at most */
+        final long averageLatencyMs;
+        final long maxLatencyMs;
+
+        private Stats(int enqueued, int coalesced, int dropped, int applied, int flushes,
+                long averageLatencyMs, long maxLatencyMs) {
+            this.enqueued = enqueued;
+            this.coalesced = coalesced;
+            this.dropped = dropped;
+            this.applied = applied;
+            this.flushes = flushes;
+            this.averageLatencyMs = averageLatencyMs;
+            this.maxLatencyMs = maxLatencyMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("queued=%d coalesced=%d dropped=%d applied=%d flushes=%d"
+                    + " latencyMs(avg=%d max=%d)", enqueued, coalesced, dropped, applied,
+                    flushes, averageLatencyMs, maxLatencyMs);
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final ScheduledExecutorService mExecutor;
+    private final long mFlushDelayMs;
+    private final int mMaxPending;
+
+    private final Object mLock = new Object();
+    /** Guarded by mLock */
+    private ArrayList<Write> mPending = Lists.newArrayList();
+    /** The last pending write for each conversation. Guarded by mLock */
+    private final Map<String, Write> mLatest = Maps.newHashMap();
+    /** Guarded by mLock */
+    private boolean mFlushScheduled;
+
+    // Metrics, guarded by mLock
+    private int mEnqueuedCount;
+    private int mCoalescedCount;
+    private int mDroppedCount;
+    private int mFlushCount;
+    private int mAppliedCount;
+    private long mTotalLatencyMs;
+    private long mMaxLatencyMs;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushNow();
+        }
+    };
+
+    ConversationWriteQueue(ContentResolver resolver) {
+        this(resolver, FLUSH_DELAY_MS, MAX_PENDING);
+    }
+
+    @VisibleForTesting
+    ConversationWriteQueue(ContentResolver resolver, long flushDelayMs, int maxPending) {
+        mResolver = resolver;
+        mFlushDelayMs = flushDelayMs;
+        mMaxPending = maxPending;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "ConversationWriteQueue");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Queues the given writes, in order, coalescing them with pending writes where possible.
+     */
+    void enqueue(List<Write> writes) {
+        synchronized (mLock) {
+            for (Write write : writes) {
+                mEnqueuedCount++;
+                final Write latest = mLatest.get(write.mKey);
+                if (latest != null) {
+                    // A delete is undone with the rest of its sequence, so it only drops
+                    // updates from that sequence
+                    final boolean sameSequence = latest.isSameSequence(write);
+                    if (sameSequence && latest.mType == Write.DELETE
+                            && write.isColumnUpdate()) {
+                        mDroppedCount++;
+                        continue;
+                    }
+                    if (sameSequence && write.mType == Write.DELETE
+                            && latest.isColumnUpdate()) {
+                        latest.mDropped = true;
+                        mDroppedCount++;
+                    } else if (latest.canAbsorb(write)) {
+                        latest.absorb(write);
+                        mCoalescedCount++;
+                        continue;
+                    }
+                }
+                mPending.add(write);
+                mLatest.put(write.mKey, write);
+            }
+
+            if (mPending.size() >= mMaxPending) {
+                mFlushScheduled = true;
+                mExecutor.execute(mFlushRunnable);
+            } else if (!mFlushScheduled && !mPending.isEmpty()) {
+                mFlushScheduled = true;
+                mExecutor.schedule(mFlushRunnable, mFlushDelayMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Applies every pending write, and waits for that to finish. Must not be called on the UI
+     * thread.
+     */
+    void flushAndWait() {
+        waitFor(mExecutor.submit(mFlushRunnable));
+    }
+
+    /**
+     * Runs {@code task} on the write thread once every write queued so far has been applied,
+     * e.g. for a query that must see their effects.
+     */
+    void runAfterPendingWrites(final Runnable task) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                flushNow();
+                task.run();
+            }
+        });
+    }
+
+    private static void waitFor(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LogUtils.e(LOG_TAG, e.getCause(), "Error applying conversation writes");
+        }
+    }
+
+    /**
+     * Takes every pending write out of the queue.
+     */
+    @VisibleForTesting
+    List<Write> drainPending() {
+        synchronized (mLock) {
+            final ArrayList<Write> pending = mPending;
+            mPending = Lists.newArrayList();
+            mLatest.clear();
+            mFlushScheduled = false;
+            final ArrayList<Write> live = Lists.newArrayListWithCapacity(pending.size());
+            for (Write write : pending) {
+                if (!write.mDropped) {
+                    live.add(write);
+                }
+            }
+            return live;
+        }
+    }
+
+    /**
+     * Applies the pending writes on the calling thread, which is always the write thread.
+     */
+    private void flushNow() {
+        final List<Write> writes = drainPending();
+        if (writes.isEmpty()) {
+            return;
+        }
+        // One batch per authority, keeping the order of the writes within each
+        final Map<String, ArrayList<ContentProviderOperation>> batches = Maps.newLinkedHashMap();
+        long oldest = Long.MAX_VALUE;
+        for (Write write : writes) {
+            ArrayList<ContentProviderOperation> batch = batches.get(write.mAuthority);
+            if (batch == null) {
+                batch = Lists.newArrayList();
+                batches.put(write.mAuthority, batch);
+            }
+            batch.add(write.toOperation());
+            oldest = Math.min(oldest, write.mEnqueueTime);
+        }
+        for (Map.Entry<String, ArrayList<ContentProviderOperation>> entry : batches.entrySet()) {
+            try {
+                mResolver.applyBatch(entry.getKey(), entry.getValue());
+            } catch (RemoteException e) {
+                LogUtils.w(LOG_TAG, e, "Error applying conversation writes");
+            } catch (OperationApplicationException e) {
+                LogUtils.w(LOG_TAG, e, "Error applying conversation writes");
+            }
+        }
+
+        final long latency = SystemClock.elapsedRealtime() - oldest;
+        synchronized (mLock) {
+            mFlushCount++;
+            mAppliedCount += writes.size();
+            mTotalLatencyMs += latency;
+            mMaxLatencyMs = Math.max(mMaxLatencyMs, latency);
+            LogUtils.d(LOG_TAG, "Applied %d writes in %d batches, %dms after the first was queued;"
+                    + " %s", writes.size(), batches.size(), latency, getStatsLocked());
+        }
+    }
+
+    /**
+     * @return how many writes were queued, coalesced, dropped and applied so far, and how long
+     *         they waited
+     */
+    Stats getStats() {
+        synchronized (mLock) {
+            return getStatsLocked();
+        }
+    }
+
+    private Stats getStatsLocked() {
+        return new Stats(mEnqueuedCount, mCoalescedCount, mDroppedCount, mAppliedCount,
+                mFlushCount, mFlushCount == 0 ? 0 : mTotalLatencyMs / mFlushCount,
+                mMaxLatencyMs);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+/**
+ * Tracks which rows of an underlying cursor have been deleted locally, and translates between
+ * underlying positions and visible (not deleted) positions in O(log n).
+ * <p>
+ * Backed by a Fenwick (binary indexed) tree counting the visible rows, so marking a row deleted
+ * or undeleted, counting the visible rows before a position, and finding the n-th visible row
+ * are all logarithmic in the size of the underlying cursor. When nothing is deleted the
+ * translations are the identity and skip the tree entirely.
+ * <p>
+ * Not thread-safe; {@link ConversationCursor} guards it with its cache map lock.
+ */
+final class DeletedPositions {
+    private final int mSize;
+    /** 1-based Fenwick tree; mTree[i] counts the visible rows in (i - lowbit(i), i] */
+    private final int[] mTree;
+    private final boolean[] mDeleted;
+    /** The highest power of two no greater than mSize, for the binary-lifting search */
+    private final int mTopBit;
+    private int mDeletedCount;
+
+    DeletedPositions(int size) {
+        mSize = size;
+        mTree = new int[size + 1];
+        mDeleted = new boolean[size];
+        mTopBit = size == 0 ? 0 : Integer.highestOneBit(size);
+        reset();
+    }
+
+    /**
+     * Marks every row as visible again.
+     */
+    void reset() {
+        // With every row present, each node simply covers lowbit(i) rows.
+        for (int i = 1; i <= mSize; i++) {
+            mTree[i] = i & -i;
+        }
+        if (mDeletedCount > 0) {
+            for (int i = 0; i < mSize; i++) {
+                mDeleted[i] = false;
+            }
+        }
+        mDeletedCount = 0;
+    }
+
+    /**
+     * @return the number of rows in the underlying cursor
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the number of underlying rows that are marked deleted
+     */
+    int getDeletedCount() {
+        return mDeletedCount;
+    }
+
+    /**
+     * @return the number of underlying rows that are not marked deleted
+     */
+    int getVisibleCount() {
+        return mSize - mDeletedCount;
+    }
+
+    boolean isDeleted(int underlyingPosition) {
+        return mDeleted[underlyingPosition];
+    }
+
+    /**
+     * Marks the row at the given underlying position as deleted or not deleted.
+     *
+     * @return true if the state of the row changed
+     */
+    boolean setDeleted(int underlyingPosition, boolean deleted) {
+        if (mDeleted[underlyingPosition] == deleted) {
+            return false;
+        }
+        mDeleted[underlyingPosition] = deleted;
+        final int delta;
+        if (deleted) {
+            mDeletedCount++;
+            delta = -1;
+        } else {
+            mDeletedCount--;
+            delta = 1;
+        }
+        for (int i = underlyingPosition + 1; i <= mSize; i += i & -i) {
+            mTree[i] += delta;
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of visible rows at underlying positions before {@code end}
+     */
+    private int visibleBefore(int end) {
+        int sum = 0;
+        for (int i = end; i > 0; i -= i & -i) {
+            sum += mTree[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Translates an underlying position into the position it is shown at.
+     *
+     * @return the visible position, or -1 if the row is deleted or out of range
+     */
+    int toVisiblePosition(int underlyingPosition) {
+        if (underlyingPosition < 0 || underlyingPosition >= mSize
+                || mDeleted[underlyingPosition]) {
+            return -1;
+        }
+        if (mDeletedCount == 0) {
+            return underlyingPosition;
+        }
+        return visibleBefore(underlyingPosition);
+    }
+
+    /**
+     * Translates a visible position into the underlying position that backs it.
+     *
+     * @return the underlying position, or -1 if {@code visiblePosition} is out of range
+     */
+    int toUnderlyingPosition(int visiblePosition) {
+        if (visiblePosition < 0 || visiblePosition >= getVisibleCount()) {
+            return -1;
+        }
+        if (mDeletedCount == 0) {
+            return visiblePosition;
+        }
+        // Find the largest prefix holding at most visiblePosition visible rows; the next
+        // underlying row is the one we want.
+        int pos = 0;
+        int remaining = visiblePosition + 1;
+        for (int step = mTopBit; step > 0; step >>= 1) {
+            final int next = pos + step;
+            if (next <= mSize && mTree[next] < remaining) {
+                pos = next;
+                remaining -= mTree[next];
+            }
+        }
+        return pos;
+    }
+}
@@ -20,19 +20,28 @@ package com.android.mail.browse;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ProviderInfo;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 
 import com.android.emailcommon.TempDirectory;
 import com.android.emailcommon.internet.MimeMessage;
 import com.android.emailcommon.mail.MessagingException;
+import com.android.mail.providers.EmlAttachmentProvider;
 import com.android.mail.ui.MailAsyncTaskLoader;
 import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 
+import org.apache.commons.io.IOUtils;
+
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * Loader that builds a ConversationMessage from an EML file Uri.
@@ -52,19 +61,34 @@ public class EmlMessageLoader extends MailAsyncTaskLoader<ConversationMessage> {
         final Context context = getContext();
         TempDirectory.setTempDirectory(context);
         final ContentResolver resolver = context.getContentResolver();
-        final InputStream stream;
-        try {
-            stream = resolver.openInputStream(mEmlFileUri);
-        } catch (FileNotFoundException e) {
-            LogUtils.e(LOG_TAG, e, "Could not find eml file at uri: %s", mEmlFileUri);
-            return null;
+        final long start = SystemClock.elapsedRealtime();
+        final ByteBuffer buffer = isMappable(context) ? mapEmlFile(resolver) : null;
+        InputStream stream = null;
+        if (buffer == null) {
+            try {
+                stream = resolver.openInputStream(mEmlFileUri);
+            } catch (FileNotFoundException e) {
+                LogUtils.e(LOG_TAG, e, "Could not find eml file at uri: %s", mEmlFileUri);
+                return null;
+            }
         }
 
         final MimeMessage mimeMessage;
         ConversationMessage convMessage;
         try {
-            mimeMessage = new MimeMessage(stream);
+            mimeMessage = buffer != null ? new MimeMessage(buffer) : new MimeMessage(stream);
             convMessage = new ConversationMessage(context, mimeMessage, mEmlFileUri);
+            if (buffer == null && convMessage.attachmentListUri != null) {
+                // the attachments are written from the temp files, which are deleted below
+                try {
+                    EmlAttachmentProvider.waitForPendingSaves(convMessage.attachmentListUri);
+                } catch (InterruptedException e) {
+                    LogUtils.w(LOG_TAG, "Interrupted while writing eml attachments");
+                    Thread.currentThread().interrupt();
+                }
+            }
+            LogUtils.d(LOG_TAG, "Loaded %s eml file in %d ms",
+                    buffer != null ? "mapped" : "streamed", SystemClock.elapsedRealtime() - start);
         } catch (IOException e) {
             LogUtils.e(LOG_TAG, e, "Could not read eml file");
             return null;
@@ -73,7 +97,9 @@ public class EmlMessageLoader extends MailAsyncTaskLoader<ConversationMessage> {
             return null;
         } finally {
             try {
-                stream.close();
+                if (stream != null) {
+                    stream.close();
+                }
             } catch (IOException e) {
                 convMessage = null;
             }
@@ -93,6 +119,77 @@ public class EmlMessageLoader extends MailAsyncTaskLoader<ConversationMessage> {
         return convMessage;
     }
 
+    /**
+     * @return whether the eml file may be mapped into memory: only files in this app's private
+     *         data directory, and files served by this app. Anyone else, another app or the user
+     *         on shared storage, may change or truncate the file while it is mapped, which would
+     *         crash reading the parts in place, so those are streamed.
+     */
+    private boolean isMappable(Context context) {
+        final String scheme = mEmlFileUri.getScheme();
+        if (ContentResolver.SCHEME_FILE.equals(scheme)) {
+            return isPrivateFile(context, mEmlFileUri.getPath());
+        }
+        if (!ContentResolver.SCHEME_CONTENT.equals(scheme)) {
+            return false;
+        }
+        final ProviderInfo provider = context.getPackageManager().resolveContentProvider(
+                mEmlFileUri.getAuthority(), 0);
+        return provider != null && context.getPackageName().equals(provider.packageName);
+    }
+
+    private static boolean isPrivateFile(Context context, String path) {
+        if (path == null) {
+            return false;
+        }
+        try {
+            // Canonical paths, so that neither ".." nor links lead out of the directory
+            final String dataDir =
+                    new File(context.getApplicationInfo().dataDir).getCanonicalPath();
+            return new File(path).getCanonicalPath().startsWith(dataDir + File.separator);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Maps the eml file into memory when it is a regular file, so that its parts are read in
+     * place rather than copied to temp files during parsing.
+     *
+     * @return the mapped file, or null if it should be read as a stream instead
+     */
+    private ByteBuffer mapEmlFile(ContentResolver resolver) {
+        ParcelFileDescriptor fd = null;
+        FileInputStream in = null;
+        try {
+            fd = resolver.openFileDescriptor(mEmlFileUri, "r");
+            if (fd == null) {
+                return null;
+            }
+            in = new FileInputStream(fd.getFileDescriptor());
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            if (size <= 0 || size > Integer.MAX_VALUE) {
+                // Pipes and sockets have no size, and a buffer holds at most 2GB
+                return null;
+            }
+            // The mapping remains valid once the file is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (IOException e) {
+            LogUtils.d(LOG_TAG, e, "Could not map eml file, reading it as a stream");
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+            if (fd != null) {
+                try {
+                    fd.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
     /**
      * Helper function to take care of releasing resources associated
      * with an actively loaded data set.
@@ -101,6 +198,9 @@ public class EmlMessageLoader extends MailAsyncTaskLoader<ConversationMessage> {
     protected void onDiscardResult(ConversationMessage message) {
         // if this eml message had attachments, start a service to clean up the cache files
         if (message.attachmentListUri != null) {
+            // and let go of the bodies that were never saved, and of the file mapping, right away
+            EmlAttachmentProvider.releaseUnsavedBodies(message.attachmentListUri);
+
             final Intent intent = new Intent(Intent.ACTION_DELETE);
             intent.setClass(getContext(), EmlTempFileDeletionService.class);
             intent.setData(message.attachmentListUri);
@@ -176,8 +176,8 @@ public class SelectedConversationsActionMenu implements ActionMode.Callback,
                 Uri accountUri = null;
                 for (Conversation conv: mSelectionSet.values()) {
                     if (accountUri == null) {
-                        accountUri = conv.accountUri;
-                    } else if (!accountUri.equals(conv.accountUri)) {
+                        accountUri = conv.getAccountUri();
+                    } else if (!accountUri.equals(conv.getAccountUri())) {
                         // Tell the user why we can't do this
                         Toast.makeText(mContext, R.string.cant_move_or_change_labels,
                                 Toast.LENGTH_LONG).show();
@@ -33,19 +33,20 @@ public class HtmlPrintTemplates extends AbstractHtmlTemplates {
 
     private static final String TAG = LogTag.getLogTag();
 
-    private final String mConversationUpper;
-    private final String mMessage;
-    private final String mConversationLower;
-    private final String mConversationLowerNoJs;
+    private final Template mConversationUpper;
+    private final Template mMessage;
+    private final Template mConversationLower;
+    private final Template mConversationLowerNoJs;
     private final String mLogo;
 
     public HtmlPrintTemplates(Context context) {
         super(context);
 
-        mConversationUpper = readTemplate(R.raw.template_print_conversation_upper);
-        mMessage = readTemplate(R.raw.template_print_message);
-        mConversationLower = readTemplate(R.raw.template_print_conversation_lower);
-        mConversationLowerNoJs = readTemplate(R.raw.template_print_conversation_lower_no_js);
+        mConversationUpper = readCompiledTemplate(R.raw.template_print_conversation_upper);
+        mMessage = readCompiledTemplate(R.raw.template_print_message);
+        mConversationLower = readCompiledTemplate(R.raw.template_print_conversation_lower);
+        mConversationLowerNoJs =
+                readCompiledTemplate(R.raw.template_print_conversation_lower_no_js);
         mLogo = readTemplate(R.raw.logo);
     }
 
@@ -100,8 +101,7 @@ public class HtmlPrintTemplates extends AbstractHtmlTemplates {
 
         mInProgress = false;
 
-        LogUtils.d(TAG, "rendered conversation of %d bytes, buffer capacity=%d",
-                mBuilder.length() << 1, mBuilder.capacity() << 1);
+        LogUtils.d(TAG, "rendered conversation of %d bytes", getLength() << 1);
 
         return emit();
     }
@@ -121,8 +121,7 @@ public class HtmlPrintTemplates extends AbstractHtmlTemplates {
 
         mInProgress = false;
 
-        LogUtils.d(TAG, "rendered conversation of %d bytes, buffer capacity=%d",
-                mBuilder.length() << 1, mBuilder.capacity() << 1);
+        LogUtils.d(TAG, "rendered conversation of %d bytes", getLength() << 1);
 
         return emit();
     }
@@ -16,7 +16,6 @@
 
 package com.android.mail.providers;
 
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
@@ -25,7 +24,9 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.TextUtils;
 
+import com.android.emailcommon.internet.MimeHeader;
 import com.android.emailcommon.internet.MimeUtility;
+import com.android.emailcommon.mail.Body;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.mail.Part;
 import com.android.mail.browse.MessageAttachmentBar;
@@ -40,15 +41,10 @@ import com.android.mail.utils.MimeType;
 import com.android.mail.utils.Utils;
 import com.google.common.collect.Lists;
 
-import org.apache.commons.io.IOUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.Collection;
 import java.util.List;
 
@@ -237,11 +233,13 @@ public class Attachment implements Parcelable {
                       boolean inline) {
         try {
             // Transfer fields from mime format to provider format
-            final String contentTypeHeader = MimeUtility.unfoldAndDecode(part.getContentType());
+            final String contentTypeHeader =
+                    MimeUtility.getFirstHeaderDecoded(part, MimeHeader.HEADER_CONTENT_TYPE);
             name = MimeUtility.getHeaderParameter(contentTypeHeader, "name");
             if (name == null) {
                 final String contentDisposition =
-                        MimeUtility.unfoldAndDecode(part.getDisposition());
+                        MimeUtility.getFirstHeaderDecoded(part,
+                                MimeHeader.HEADER_CONTENT_DISPOSITION);
                 name = MimeUtility.getHeaderParameter(contentDisposition, "filename");
             }
 
@@ -258,25 +256,15 @@ public class Attachment implements Parcelable {
             partId = cid;
             flags = 0;
 
-            // insert attachment into content provider so that we can open the file
-            final ContentResolver resolver = context.getContentResolver();
-            resolver.insert(uri, toContentValues());
-
-            // save the file in the cache
-            try {
-                final InputStream in = part.getBody().getInputStream();
-                final OutputStream out = resolver.openOutputStream(uri, "rwt");
-                size = IOUtils.copy(in, out);
-                downloadedSize = size;
-                in.close();
-                out.close();
-            } catch (FileNotFoundException e) {
-                LogUtils.e(LOG_TAG, e, "Error in writing attachment to cache");
-            } catch (IOException e) {
-                LogUtils.e(LOG_TAG, e, "Error in writing attachment to cache");
+            // the provider finds the size in the background and writes the cache file the
+            // first time it is opened, so only the metadata is stored here
+            final Body body = part.getBody();
+            if (body != null) {
+                EmlAttachmentProvider.registerUnsavedBody(uri, body);
             }
-            // perform a second insert to put the updated size and downloaded size values in
-            resolver.insert(uri, toContentValues());
+
+            // insert attachment into content provider so that we can open the file
+            context.getContentResolver().insert(uri, toContentValues());
         } catch (MessagingException e) {
             LogUtils.e(LOG_TAG, e, "Error parsing eml attachment");
         }
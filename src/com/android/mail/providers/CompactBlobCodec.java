@@ -0,0 +1,531 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.providers;
+
+import android.net.Uri;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact, versioned binary encoding for {@link ConversationInfo} and {@link FolderList}
+ * blobs, as an alternative to {@link android.os.Parcel#marshall()}.
+ * <p>
+ * Integers are written as varints (zig-zag encoded where they may be negative) and strings as
+ * UTF-8. The strings of participants and folders go into a table at the start of the blob, and
+ * are referred to by index, so a sender appearing on every message of a thread is stored once.
+ * <p>
+ * Every compact blob starts with a four byte header whose last byte has its high bits set. Read
+ * as the little-endian int that a marshalled Parcel starts with, that is a negative count other
+ * than -1, which neither Parcel format can produce, so {@link #isCompact(byte[])} tells the two
+ * formats apart and the {@code fromBlob} methods accept either. Providers advertise that they
+ * accept compact blobs in updates with
+ * {@link UIProvider.AccountCapabilities#COMPACT_CONVERSATION_BLOBS}.
+ * <p>
+ * The static reader methods work directly on the blob bytes, so callers that only need counts or
+ * the first few participants don't need to decode the whole blob.
+ */
+public final class CompactBlobCodec {
+    private static final byte MAGIC_0 = 'U';
+    private static final byte MAGIC_1 = 'B';
+    private static final int KIND_CONVERSATION_INFO = 1;
+    private static final int KIND_FOLDER_LIST = 2;
+    /** The high bits of the last header byte, which make the header a negative Parcel int */
+    private static final int VERSION_MARKER = 0xC0;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4;
+
+    /** A string reference to null; other references are (table index + 1) */
+    private static final int NULL_REF = 0;
+
+    private CompactBlobCodec() {
+    }
+
+    /**
+     * @return true if {@code blob} is in this compact format, rather than a marshalled Parcel
+     */
+    public static boolean isCompact(byte[] blob) {
+        return blob != null && blob.length >= HEADER_SIZE && blob[0] == MAGIC_0
+                && blob[1] == MAGIC_1 && (blob[3] & 0xFF) == (VERSION_MARKER | VERSION);
+    }
+
+    private static boolean isCompact(byte[] blob, int kind) {
+        return isCompact(blob) && blob[2] == kind;
+    }
+
+    // ConversationInfo layout, after the header:
+    //   messageCount, draftCount (varint)
+    //   firstSnippet, firstUnreadSnippet, lastSnippet (inline strings)
+    //   string table (count, then inline strings)
+    //   participant count, then per participant:
+    //     name ref, email ref (varint), priority (zig-zag varint), readConversation (byte)
+    // Counts come first so that they can be read without looking at the rest of the blob.
+
+    static byte[] encode(ConversationInfo info) {
+        final StringTable table = new StringTable();
+        for (ParticipantInfo p : info.participantInfos) {
+            table.add(p.name);
+            table.add(p.email);
+        }
+        final Output out = new Output(64 + table.mByteEstimate + 8 * info.participantInfos.size());
+        out.writeHeader(KIND_CONVERSATION_INFO);
+        out.writeVarint(info.messageCount);
+        out.writeVarint(info.draftCount);
+        out.writeString(info.firstSnippet);
+        out.writeString(info.firstUnreadSnippet);
+        out.writeString(info.lastSnippet);
+        table.writeTo(out);
+        out.writeVarint(info.participantInfos.size());
+        for (ParticipantInfo p : info.participantInfos) {
+            out.writeVarint(table.ref(p.name));
+            out.writeVarint(table.ref(p.email));
+            out.writeZigZag(p.priority);
+            out.writeByte(p.readConversation ? 1 : 0);
+        }
+        return out.toByteArray();
+    }
+
+    static ConversationInfo decodeConversationInfo(byte[] blob) {
+        final Input in = new Input(blob, KIND_CONVERSATION_INFO);
+        final int messageCount = in.readVarint();
+        final int draftCount = in.readVarint();
+        final String first = in.readString();
+        final String firstUnread = in.readString();
+        final String last = in.readString();
+        final ConversationInfo info =
+                new ConversationInfo(messageCount, draftCount, first, firstUnread, last);
+        final String[] table = in.readStringTable();
+        readParticipants(in, table, Integer.MAX_VALUE, info.participantInfos);
+        return info;
+    }
+
+    private static void readParticipants(Input in, String[] table, int max,
+            List<ParticipantInfo> out) {
+        final int count = Math.min(in.readVarint(), max);
+        for (int i = 0; i < count; i++) {
+            final String name = in.resolve(table, in.readVarint());
+            final String email = in.resolve(table, in.readVarint());
+            final int priority = in.readZigZag();
+            final boolean read = in.readByte() != 0;
+            out.add(new ParticipantInfo(name, email, priority, read));
+        }
+    }
+
+    /**
+     * Reads the message count from a conversation info blob in either format, without decoding
+     * the rest of a compact blob.
+     */
+    public static int readMessageCount(byte[] blob) {
+        if (!isCompact(blob, KIND_CONVERSATION_INFO)) {
+            final ConversationInfo info = ConversationInfo.fromBlob(blob);
+            return info != null ? info.messageCount : 0;
+        }
+        return new Input(blob, KIND_CONVERSATION_INFO).readVarint();
+    }
+
+    /**
+     * Reads the draft count from a conversation info blob in either format, without decoding
+     * the rest of a compact blob.
+     */
+    public static int readDraftCount(byte[] blob) {
+        if (!isCompact(blob, KIND_CONVERSATION_INFO)) {
+            final ConversationInfo info = ConversationInfo.fromBlob(blob);
+            return info != null ? info.draftCount : 0;
+        }
+        final Input in = new Input(blob, KIND_CONVERSATION_INFO);
+        in.readVarint();
+        return in.readVarint();
+    }
+
+    /**
+     * Reads at most {@code max} participants from a conversation info blob in either format.
+     * For compact blobs, the snippets are skipped and only the strings the returned participants
+     * refer to are decoded.
+     */
+    public static List<ParticipantInfo> readParticipants(byte[] blob, int max) {
+        final ArrayList<ParticipantInfo> result = Lists.newArrayList();
+        if (!isCompact(blob, KIND_CONVERSATION_INFO)) {
+            final ConversationInfo info = ConversationInfo.fromBlob(blob);
+            if (info != null) {
+                result.addAll(info.participantInfos.subList(0,
+                        Math.min(max, info.participantInfos.size())));
+            }
+            return result;
+        }
+        final Input in = new Input(blob, KIND_CONVERSATION_INFO);
+        in.readVarint();
+        in.readVarint();
+        in.skipString();
+        in.skipString();
+        in.skipString();
+        final int[] table = in.indexStringTable();
+        final int count = Math.min(in.readVarint(), max);
+        for (int i = 0; i < count; i++) {
+            final String name = in.resolve(table, in.readVarint());
+            final String email = in.resolve(table, in.readVarint());
+            final int priority = in.readZigZag();
+            final boolean read = in.readByte() != 0;
+            result.add(new ParticipantInfo(name, email, priority, read));
+        }
+        return result;
+    }
+
+    // FolderList layout, after the header:
+    //   string table (count, then inline strings); holds every string and uri of every folder
+    //   folder count, then per folder the fields in Folder#writeToParcel order, with strings and
+    //   uris as table refs, ints as zig-zag varints and the timestamp as a zig-zag varlong.
+
+    static byte[] encode(Collection<Folder> folders) {
+        final StringTable table = new StringTable();
+        for (Folder f : folders) {
+            table.add(f.persistentId);
+            table.add(toString(f.folderUri != null ? f.folderUri.fullUri : null));
+            table.add(f.name);
+            table.add(toString(f.conversationListUri));
+            table.add(toString(f.childFoldersListUri));
+            table.add(toString(f.refreshUri));
+            table.add(f.bgColor);
+            table.add(f.fgColor);
+            table.add(toString(f.loadMoreUri));
+            table.add(f.hierarchicalDesc);
+            table.add(toString(f.parent));
+            table.add(f.unreadSenders);
+        }
+        final Output out = new Output(16 + table.mByteEstimate + 48 * folders.size());
+        out.writeHeader(KIND_FOLDER_LIST);
+        table.writeTo(out);
+        out.writeVarint(folders.size());
+        for (Folder f : folders) {
+            out.writeZigZag(f.id);
+            out.writeVarint(table.ref(f.persistentId));
+            out.writeVarint(table.ref(toString(f.folderUri != null ? f.folderUri.fullUri : null)));
+            out.writeVarint(table.ref(f.name));
+            out.writeZigZag(f.capabilities);
+            out.writeByte(f.hasChildren ? 1 : 0);
+            out.writeZigZag(f.syncWindow);
+            out.writeVarint(table.ref(toString(f.conversationListUri)));
+            out.writeVarint(table.ref(toString(f.childFoldersListUri)));
+            out.writeZigZag(f.unseenCount);
+            out.writeZigZag(f.unreadCount);
+            out.writeZigZag(f.totalCount);
+            out.writeVarint(table.ref(toString(f.refreshUri)));
+            out.writeZigZag(f.syncStatus);
+            out.writeZigZag(f.lastSyncResult);
+            out.writeZigZag(f.type);
+            out.writeZigZag(f.iconResId);
+            out.writeZigZag(f.notificationIconResId);
+            out.writeVarint(table.ref(f.bgColor));
+            out.writeVarint(table.ref(f.fgColor));
+            out.writeVarint(table.ref(toString(f.loadMoreUri)));
+            out.writeVarint(table.ref(f.hierarchicalDesc));
+            out.writeVarint(table.ref(toString(f.parent)));
+            out.writeZigZagLong(f.lastMessageTimestamp);
+            out.writeVarint(table.ref(f.unreadSenders));
+        }
+        return out.toByteArray();
+    }
+
+    static List<Folder> decodeFolders(byte[] blob) {
+        final Input in = new Input(blob, KIND_FOLDER_LIST);
+        final String[] table = in.readStringTable();
+        final int count = in.readVarint();
+        final ArrayList<Folder> folders = Lists.newArrayListWithCapacity(count);
+        // Uris repeat across folders (e.g. the same parent), so parse each one only once
+        final Map<String, Uri> uris = Maps.newHashMap();
+        for (int i = 0; i < count; i++) {
+            final Folder.Builder builder = new Folder.Builder();
+            builder.setId(in.readZigZag());
+            builder.setPersistentId(in.resolve(table, in.readVarint()));
+            builder.setUri(parse(uris, in.resolve(table, in.readVarint())));
+            builder.setName(in.resolve(table, in.readVarint()));
+            builder.setCapabilities(in.readZigZag());
+            builder.setHasChildren(in.readByte() != 0);
+            builder.setSyncWindow(in.readZigZag());
+            builder.setConversationListUri(parse(uris, in.resolve(table, in.readVarint())));
+            builder.setChildFoldersListUri(parse(uris, in.resolve(table, in.readVarint())));
+            builder.setUnseenCount(in.readZigZag());
+            builder.setUnreadCount(in.readZigZag());
+            builder.setTotalCount(in.readZigZag());
+            builder.setRefreshUri(parse(uris, in.resolve(table, in.readVarint())));
+            builder.setSyncStatus(in.readZigZag());
+            builder.setLastSyncResult(in.readZigZag());
+            builder.setType(in.readZigZag());
+            builder.setIconResId(in.readZigZag());
+            builder.setNotificationIconResId(in.readZigZag());
+            builder.setBgColor(in.resolve(table, in.readVarint()));
+            builder.setFgColor(in.resolve(table, in.readVarint()));
+            builder.setLoadMoreUri(parse(uris, in.resolve(table, in.readVarint())));
+            builder.setHierarchicalDesc(in.resolve(table, in.readVarint()));
+            builder.setParent(parse(uris, in.resolve(table, in.readVarint())));
+            builder.setLastMessageTimestamp(in.readZigZagLong());
+            builder.setUnreadSenders(in.resolve(table, in.readVarint()));
+            folders.add(builder.build());
+        }
+        return folders;
+    }
+
+    private static String toString(Uri uri) {
+        return uri != null ? uri.toString() : null;
+    }
+
+    private static Uri parse(Map<String, Uri> cache, String uri) {
+        if (uri == null) {
+            return null;
+        }
+        Uri result = cache.get(uri);
+        if (result == null) {
+            result = Uri.parse(uri);
+            cache.put(uri, result);
+        }
+        return result;
+    }
+
+    /**
+     * Collects the distinct non-null strings to write, in first-seen order.
+     */
+    private static final class StringTable {
+        private final Map<String, Integer> mRefs = Maps.newHashMap();
+        private final List<String> mStrings = Lists.newArrayList();
+        /** Rough UTF-8 size of the table, to size the output buffer */
+        private int mByteEstimate;
+
+        void add(String s) {
+            if (s != null && !mRefs.containsKey(s)) {
+                mStrings.add(s);
+                mRefs.put(s, mStrings.size());
+                mByteEstimate += s.length() + 2;
+            }
+        }
+
+        int ref(String s) {
+            return s == null ? NULL_REF : mRefs.get(s);
+        }
+
+        void writeTo(Output out) {
+            out.writeVarint(mStrings.size());
+            for (String s : mStrings) {
+                out.writeString(s);
+            }
+        }
+    }
+
+    private static final class Output {
+        private byte[] mBuffer;
+        private int mSize;
+
+        Output(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        private void ensure(int extra) {
+            if (mSize + extra > mBuffer.length) {
+                final byte[] grown = new byte[Math.max(mBuffer.length * 2, mSize + extra)];
+                System.arraycopy(mBuffer, 0, grown, 0, mSize);
+                mBuffer = grown;
+            }
+        }
+
+        void writeHeader(int kind) {
+            ensure(HEADER_SIZE);
+            mBuffer[mSize++] = MAGIC_0;
+            mBuffer[mSize++] = MAGIC_1;
+            mBuffer[mSize++] = (byte) kind;
+            mBuffer[mSize++] = (byte) (VERSION_MARKER | VERSION);
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            mBuffer[mSize++] = (byte) b;
+        }
+
+        void writeVarint(int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        void writeZigZag(int value) {
+            writeVarint((value << 1) ^ (value >> 31));
+        }
+
+        void writeZigZagLong(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        private void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                mBuffer[mSize++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mBuffer[mSize++] = (byte) value;
+        }
+
+        /**
+         * Writes (UTF-8 length + 1) followed by the bytes, or 0 for null.
+         */
+        void writeString(String s) {
+            if (s == null) {
+                writeVarint(0);
+                return;
+            }
+            final byte[] bytes = s.getBytes(Charsets.UTF_8);
+            writeVarint(bytes.length + 1);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, mBuffer, mSize, bytes.length);
+            mSize += bytes.length;
+        }
+
+        byte[] toByteArray() {
+            if (mSize == mBuffer.length) {
+                return mBuffer;
+            }
+            final byte[] result = new byte[mSize];
+            System.arraycopy(mBuffer, 0, result, 0, mSize);
+            return result;
+        }
+    }
+
+    /**
+     * Reads directly from the blob array. Malformed blobs throw IllegalArgumentException.
+     */
+    private static final class Input {
+        private final byte[] mBlob;
+        private int mPos;
+
+        Input(byte[] blob, int kind) {
+            if (!isCompact(blob, kind)) {
+                throw new IllegalArgumentException("Not a compact blob of kind " + kind);
+            }
+            mBlob = blob;
+            mPos = HEADER_SIZE;
+        }
+
+        private void require(int count) {
+            if (count < 0 || mPos + count > mBlob.length) {
+                throw new IllegalArgumentException("Truncated compact blob");
+            }
+        }
+
+        int readByte() {
+            require(1);
+            return mBlob[mPos++];
+        }
+
+        int readVarint() {
+            return (int) readVarLong();
+        }
+
+        int readZigZag() {
+            final int value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long readZigZagLong() {
+            final long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long readVarLong() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint in compact blob");
+        }
+
+        String readString() {
+            final int length = readVarint() - 1;
+            if (length < 0) {
+                return null;
+            }
+            require(length);
+            final String s = new String(mBlob, mPos, length, Charsets.UTF_8);
+            mPos += length;
+            return s;
+        }
+
+        void skipString() {
+            final int length = readVarint() - 1;
+            if (length > 0) {
+                require(length);
+                mPos += length;
+            }
+        }
+
+        String[] readStringTable() {
+            final int count = readVarint();
+            require(count);
+            final String[] table = new String[count];
+            for (int i = 0; i < count; i++) {
+                table[i] = readString();
+            }
+            return table;
+        }
+
+        String resolve(String[] table, int ref) {
+            if (ref == NULL_REF) {
+                return null;
+            }
+            if (ref > table.length) {
+                throw new IllegalArgumentException("Bad string reference in compact blob");
+            }
+            return table[ref - 1];
+        }
+
+        /**
+         * Walks the string table without decoding it.
+         *
+         * @return the offset in the blob of each table string's length prefix
+         */
+        int[] indexStringTable() {
+            final int count = readVarint();
+            require(count);
+            final int[] offsets = new int[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = mPos;
+                skipString();
+            }
+            return offsets;
+        }
+
+        /**
+         * Decodes one string of an indexed table, leaving the read position unchanged.
+         */
+        String resolve(int[] offsets, int ref) {
+            if (ref == NULL_REF) {
+                return null;
+            }
+            if (ref > offsets.length) {
+                throw new IllegalArgumentException("Bad string reference in compact blob");
+            }
+            final int saved = mPos;
+            mPos = offsets[ref - 1];
+            final String s = readString();
+            mPos = saved;
+            return s;
+        }
+    }
+}
@@ -36,6 +36,7 @@ import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 import com.google.common.collect.ImmutableList;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
@@ -47,6 +48,9 @@ public class Conversation implements Parcelable {
 
     private static final String EMPTY_STRING = "";
 
+    /** Source of values that were not read from a cursor blob */
+    private static final byte[] NOT_FROM_BLOB = new byte[0];
+
     /**
      * @see BaseColumns#_ID
      */
@@ -69,8 +73,11 @@ public class Conversation implements Parcelable {
     public final boolean hasAttachments;
     /**
      * @see UIProvider.ConversationColumns#MESSAGE_LIST_URI
+     * @see #getMessageListUri()
      */
-    public final Uri messageListUri;
+    private Uri messageListUri;
+    /** Unparsed {@link #messageListUri}, when read from a cursor */
+    private final String messageListUriString;
     /**
      * @see UIProvider.ConversationColumns#SENDING_STATE
      */
@@ -95,6 +102,13 @@ public class Conversation implements Parcelable {
      * @see UIProvider.ConversationColumns#RAW_FOLDERS
      */
     private FolderList rawFolders;
+    /** Undecoded {@link #rawFolders}, when read from a cursor, until first needed */
+    private byte[] rawFoldersBlob;
+    /**
+     * The blob {@link #rawFolders} was read from, kept after decoding so that a refreshed row
+     * can be compared with it, or {@link #NOT_FROM_BLOB}
+     */
+    private byte[] rawFoldersSource = NOT_FROM_BLOB;
     /**
      * @see UIProvider.ConversationColumns#FLAGS
      */
@@ -121,16 +135,27 @@ public class Conversation implements Parcelable {
     public final int color;
     /**
      * @see UIProvider.ConversationColumns#ACCOUNT_URI
+     * @see #getAccountUri()
      */
-    public final Uri accountUri;
+    private Uri accountUri;
+    /** Unparsed {@link #accountUri}, when read from a cursor */
+    private final String accountUriString;
     /**
      * @see UIProvider.ConversationColumns#CONVERSATION_INFO
+     * @see #getConversationInfo()
      */
-    public final ConversationInfo conversationInfo;
+    private ConversationInfo conversationInfo;
+    /** Undecoded {@link #conversationInfo}, when read from a cursor, until first needed */
+    private byte[] conversationInfoBlob;
+    /** The blob {@link #conversationInfo} was read from, or {@link #NOT_FROM_BLOB} */
+    private byte[] conversationInfoSource = NOT_FROM_BLOB;
     /**
      * @see UIProvider.ConversationColumns#CONVERSATION_BASE_URI
+     * @see #getConversationBaseUri()
      */
-    public final Uri conversationBaseUri;
+    private Uri conversationBaseUri;
+    /** Unparsed {@link #conversationBaseUri}, when read from a cursor */
+    private final String conversationBaseUriString;
     /**
      * @see UIProvider.ConversationColumns#REMOTE
      */
@@ -180,22 +205,22 @@ public class Conversation implements Parcelable {
         dest.writeString(subject);
         dest.writeLong(dateMs);
         dest.writeInt(hasAttachments ? 1 : 0);
-        dest.writeParcelable(messageListUri, 0);
+        dest.writeParcelable(getMessageListUri(), 0);
         dest.writeInt(sendingState);
         dest.writeInt(priority);
         dest.writeInt(read ? 1 : 0);
         dest.writeInt(seen ? 1 : 0);
         dest.writeInt(starred ? 1 : 0);
-        dest.writeParcelable(rawFolders, 0);
+        dest.writeParcelable(getRawFolderList(), 0);
         dest.writeInt(convFlags);
         dest.writeInt(personalLevel);
         dest.writeInt(spam ? 1 : 0);
         dest.writeInt(phishing ? 1 : 0);
         dest.writeInt(muted ? 1 : 0);
         dest.writeInt(color);
-        dest.writeParcelable(accountUri, 0);
-        dest.writeParcelable(conversationInfo, 0);
-        dest.writeParcelable(conversationBaseUri, 0);
+        dest.writeParcelable(getAccountUri(), 0);
+        dest.writeParcelable(getConversationInfo(), 0);
+        dest.writeParcelable(getConversationBaseUri(), 0);
         dest.writeInt(isRemote ? 1 : 0);
         dest.writeLong(orderKey);
     }
@@ -207,6 +232,7 @@ public class Conversation implements Parcelable {
         dateMs = in.readLong();
         hasAttachments = (in.readInt() != 0);
         messageListUri = in.readParcelable(null);
+        messageListUriString = null;
         sendingState = in.readInt();
         priority = in.readInt();
         read = (in.readInt() != 0);
@@ -220,10 +246,12 @@ public class Conversation implements Parcelable {
         muted = in.readInt() != 0;
         color = in.readInt();
         accountUri = in.readParcelable(null);
+        accountUriString = null;
         position = NO_POSITION;
         localDeleteOnUpdate = false;
         conversationInfo = in.readParcelable(loader);
         conversationBaseUri = in.readParcelable(null);
+        conversationBaseUriString = null;
         isRemote = in.readInt() != 0;
         orderKey = in.readLong();
     }
@@ -268,6 +296,11 @@ public class Conversation implements Parcelable {
      */
     public static final String UPDATE_FOLDER_COLUMN = ConversationColumns.RAW_FOLDERS;
 
+    /**
+     * Creates a Conversation from the current row of a conversation cursor. The uri columns other
+     * than {@link #uri}, the folder list and the conversation info are only parsed or decoded
+     * when first accessed, as most list rows never need them.
+     */
     public Conversation(Cursor cursor) {
         if (cursor == null) {
             throw new IllegalArgumentException("Creating conversation from null cursor");
@@ -283,32 +316,30 @@ public class Conversation implements Parcelable {
             subject = subj;
         }
         hasAttachments = cursor.getInt(UIProvider.CONVERSATION_HAS_ATTACHMENTS_COLUMN) != 0;
-        String messageList = cursor.getString(UIProvider.CONVERSATION_MESSAGE_LIST_URI_COLUMN);
-        messageListUri = !TextUtils.isEmpty(messageList) ? Uri.parse(messageList) : null;
+        messageListUriString = emptyToNull(
+                cursor.getString(UIProvider.CONVERSATION_MESSAGE_LIST_URI_COLUMN));
         sendingState = cursor.getInt(UIProvider.CONVERSATION_SENDING_STATE_COLUMN);
         priority = cursor.getInt(UIProvider.CONVERSATION_PRIORITY_COLUMN);
         read = cursor.getInt(UIProvider.CONVERSATION_READ_COLUMN) != 0;
         seen = cursor.getInt(UIProvider.CONVERSATION_SEEN_COLUMN) != 0;
         starred = cursor.getInt(UIProvider.CONVERSATION_STARRED_COLUMN) != 0;
-        rawFolders = readRawFolders(cursor);
+        readRawFolders(cursor);
         convFlags = cursor.getInt(UIProvider.CONVERSATION_FLAGS_COLUMN);
         personalLevel = cursor.getInt(UIProvider.CONVERSATION_PERSONAL_LEVEL_COLUMN);
         spam = cursor.getInt(UIProvider.CONVERSATION_IS_SPAM_COLUMN) != 0;
         phishing = cursor.getInt(UIProvider.CONVERSATION_IS_PHISHING_COLUMN) != 0;
         muted = cursor.getInt(UIProvider.CONVERSATION_MUTED_COLUMN) != 0;
         color = cursor.getInt(UIProvider.CONVERSATION_COLOR_COLUMN);
-        String account = cursor.getString(UIProvider.CONVERSATION_ACCOUNT_URI_COLUMN);
-        accountUri = !TextUtils.isEmpty(account) ? Uri.parse(account) : null;
+        accountUriString = emptyToNull(
+                cursor.getString(UIProvider.CONVERSATION_ACCOUNT_URI_COLUMN));
         position = NO_POSITION;
         localDeleteOnUpdate = false;
-        conversationInfo = readConversationInfo(cursor);
-        if (conversationInfo == null) {
+        readConversationInfo(cursor);
+        if (conversationInfo == null && conversationInfoBlob == null) {
             LogUtils.wtf(LOG_TAG, "Null conversation info from cursor");
         }
-        final String conversationBase =
-                cursor.getString(UIProvider.CONVERSATION_BASE_URI_COLUMN);
-        conversationBaseUri = !TextUtils.isEmpty(conversationBase) ?
-                Uri.parse(conversationBase) : null;
+        conversationBaseUriString = emptyToNull(
+                cursor.getString(UIProvider.CONVERSATION_BASE_URI_COLUMN));
         isRemote = cursor.getInt(UIProvider.CONVERSATION_REMOTE_COLUMN) != 0;
         orderKey = cursor.getLong(UIProvider.CONVERSATION_ORDER_KEY_COLUMN);
     }
@@ -324,12 +355,18 @@ public class Conversation implements Parcelable {
         subject = other.subject;
         hasAttachments = other.hasAttachments;
         messageListUri = other.messageListUri;
+        messageListUriString = other.messageListUriString;
         sendingState = other.sendingState;
         priority = other.priority;
         read = other.read;
         seen = other.seen;
         starred = other.starred;
-        rawFolders = other.rawFolders; // FolderList is immutable, shallow copy is OK
+        synchronized (other) {
+            // FolderList is immutable, shallow copy is OK
+            rawFolders = other.rawFolders;
+            rawFoldersBlob = other.rawFoldersBlob;
+            rawFoldersSource = other.rawFoldersSource;
+        }
         convFlags = other.convFlags;
         personalLevel = other.personalLevel;
         spam = other.spam;
@@ -337,12 +374,19 @@ public class Conversation implements Parcelable {
         muted = other.muted;
         color = other.color;
         accountUri = other.accountUri;
+        accountUriString = other.accountUriString;
         position = other.position;
         localDeleteOnUpdate = other.localDeleteOnUpdate;
         // although ConversationInfo is mutable (see ConversationInfo.markRead), applyCachedValues
-        // will overwrite this if cached changes exist anyway, so a shallow copy is OK
-        conversationInfo = other.conversationInfo;
+        // will overwrite this if cached changes exist anyway, so a shallow copy is OK. If the
+        // other conversation hasn't decoded it yet, this copy decodes its own.
+        synchronized (other) {
+            conversationInfo = other.conversationInfo;
+            conversationInfoBlob = other.conversationInfoBlob;
+            conversationInfoSource = other.conversationInfoSource;
+        }
         conversationBaseUri = other.conversationBaseUri;
+        conversationBaseUriString = other.conversationBaseUriString;
         isRemote = other.isRemote;
         orderKey = other.orderKey;
     }
@@ -363,6 +407,7 @@ public class Conversation implements Parcelable {
         this.dateMs = dateMs;
         this.hasAttachments = hasAttachment;
         this.messageListUri = messageListUri;
+        this.messageListUriString = null;
         this.sendingState = sendingState;
         this.priority = priority;
         this.read = read;
@@ -376,8 +421,10 @@ public class Conversation implements Parcelable {
         this.muted = muted;
         this.color = 0;
         this.accountUri = accountUri;
+        this.accountUriString = null;
         this.conversationInfo = conversationInfo;
         this.conversationBaseUri = conversationBase;
+        this.conversationBaseUriString = null;
         this.isRemote = isRemote;
         this.orderKey = orderKey;
     }
@@ -558,48 +605,56 @@ public class Conversation implements Parcelable {
                 ConversationCursorCommand.OPTION_MOVE_POSITION);
     }
 
-    private static ConversationInfo readConversationInfo(Cursor cursor) {
-        final ConversationInfo ci;
-
+    /**
+     * Reads the conversation info for the current row. Blobs are kept as they are, to be decoded
+     * by {@link #getConversationInfo()}.
+     */
+    private void readConversationInfo(Cursor cursor) {
         if (cursor instanceof ConversationCursor) {
             final byte[] blob = ((ConversationCursor) cursor).getCachedBlob(
                     UIProvider.CONVERSATION_INFO_COLUMN);
             if (blob != null && blob.length > 0) {
-                return ConversationInfo.fromBlob(blob);
+                conversationInfoBlob = blob;
+                conversationInfoSource = blob;
+                return;
             }
         }
 
         final Bundle response = cursor.respond(CONVERSATION_INFO_REQUEST);
         if (response.containsKey(ConversationCursorCommand.COMMAND_GET_CONVERSATION_INFO)) {
-            ci = response.getParcelable(ConversationCursorCommand.COMMAND_GET_CONVERSATION_INFO);
+            conversationInfo = response.getParcelable(
+                    ConversationCursorCommand.COMMAND_GET_CONVERSATION_INFO);
         } else {
             // legacy fallback
-            ci = ConversationInfo.fromBlob(cursor.getBlob(UIProvider.CONVERSATION_INFO_COLUMN));
+            conversationInfoBlob = cursor.getBlob(UIProvider.CONVERSATION_INFO_COLUMN);
+            conversationInfoSource = conversationInfoBlob;
         }
-        return ci;
     }
 
-    private static FolderList readRawFolders(Cursor cursor) {
-        final FolderList fl;
-
+    /**
+     * Reads the folder list for the current row. Blobs are kept as they are, to be decoded
+     * by {@link #getRawFolderList()}.
+     */
+    private void readRawFolders(Cursor cursor) {
         if (cursor instanceof ConversationCursor) {
             final byte[] blob = ((ConversationCursor) cursor).getCachedBlob(
                     UIProvider.CONVERSATION_RAW_FOLDERS_COLUMN);
             if (blob != null && blob.length > 0) {
-                return FolderList.fromBlob(blob);
+                rawFoldersBlob = blob;
+                rawFoldersSource = blob;
+                return;
             }
         }
 
         final Bundle response = cursor.respond(RAW_FOLDERS_REQUEST);
         if (response.containsKey(ConversationCursorCommand.COMMAND_GET_RAW_FOLDERS)) {
-            fl = response.getParcelable(ConversationCursorCommand.COMMAND_GET_RAW_FOLDERS);
+            rawFolders = response.getParcelable(ConversationCursorCommand.COMMAND_GET_RAW_FOLDERS);
         } else {
             // legacy fallback
             // TODO: delete this once Email supports the respond call
-            fl = FolderList.fromBlob(
-                    cursor.getBlob(UIProvider.CONVERSATION_RAW_FOLDERS_COLUMN));
+            rawFoldersBlob = cursor.getBlob(UIProvider.CONVERSATION_RAW_FOLDERS_COLUMN);
+            rawFoldersSource = rawFoldersBlob;
         }
-        return fl;
     }
 
     /**
@@ -622,7 +677,10 @@ public class Conversation implements Parcelable {
                 if (cachedCi == null) {
                     LogUtils.d(LOG_TAG, "Null ConversationInfo in applyCachedValues");
                 } else {
-                    conversationInfo.overwriteWith(cachedCi);
+                    getConversationInfo().overwriteWith(cachedCi);
+                    synchronized (this) {
+                        conversationInfoSource = NOT_FROM_BLOB;
+                    }
                 }
             } else if (ConversationColumns.FLAGS.equals(key)) {
                 convFlags = (Integer) val;
@@ -631,7 +689,7 @@ public class Conversation implements Parcelable {
             } else if (ConversationColumns.SEEN.equals(key)) {
                 seen = (Integer) val != 0;
             } else if (ConversationColumns.RAW_FOLDERS.equals(key)) {
-                rawFolders = FolderList.fromBlob((byte[]) val);
+                setRawFolders(FolderList.fromBlob((byte[]) val));
             } else if (ConversationColumns.VIEWED.equals(key)) {
                 // ignore. this is not read from the cursor, either.
             } else if (ConversationColumns.PRIORITY.equals(key)) {
@@ -650,11 +708,84 @@ public class Conversation implements Parcelable {
      * @return <strong>Immutable</strong> list of {@link Folder}s.
      */
     public List<Folder> getRawFolders() {
-        return rawFolders.folders;
+        return getRawFolderList().folders;
     }
 
-    public void setRawFolders(FolderList folders) {
+    private synchronized FolderList getRawFolderList() {
+        if (rawFolders == null) {
+            rawFolders = FolderList.fromBlob(rawFoldersBlob);
+            rawFoldersBlob = null;
+        }
+        return rawFolders;
+    }
+
+    public synchronized void setRawFolders(FolderList folders) {
         rawFolders = folders;
+        rawFoldersBlob = null;
+        rawFoldersSource = NOT_FROM_BLOB;
+    }
+
+    /**
+     * Tells whether a refreshed cursor row still holds what this conversation was read from.
+     * Conversations that got their conversation info or folders some other way, or had them
+     * replaced since, never match.
+     *
+     * @return true if this was read from exactly these conversation info and folder blobs
+     */
+    public synchronized boolean isReadFromBlobs(byte[] conversationInfo, byte[] rawFolders) {
+        return conversationInfoSource != NOT_FROM_BLOB && rawFoldersSource != NOT_FROM_BLOB
+                && Arrays.equals(conversationInfoSource, conversationInfo)
+                && Arrays.equals(rawFoldersSource, rawFolders);
+    }
+
+    /**
+     * @see UIProvider.ConversationColumns#CONVERSATION_INFO
+     */
+    public synchronized ConversationInfo getConversationInfo() {
+        if (conversationInfoBlob != null) {
+            conversationInfo = ConversationInfo.fromBlob(conversationInfoBlob);
+            conversationInfoBlob = null;
+        }
+        return conversationInfo;
+    }
+
+    /**
+     * @return the undecoded conversation info blob if it is in the compact format, so counts
+     *         can be read from it directly, or null
+     */
+    private synchronized byte[] getPendingConversationInfoBlob() {
+        return CompactBlobCodec.isCompact(conversationInfoBlob) ? conversationInfoBlob : null;
+    }
+
+    /**
+     * @see UIProvider.ConversationColumns#MESSAGE_LIST_URI
+     */
+    public Uri getMessageListUri() {
+        // Racing threads may both parse the string, but will produce equal Uris
+        if (messageListUri == null && messageListUriString != null) {
+            messageListUri = Uri.parse(messageListUriString);
+        }
+        return messageListUri;
+    }
+
+    /**
+     * @see UIProvider.ConversationColumns#ACCOUNT_URI
+     */
+    public Uri getAccountUri() {
+        if (accountUri == null && accountUriString != null) {
+            accountUri = Uri.parse(accountUriString);
+        }
+        return accountUri;
+    }
+
+    /**
+     * @see UIProvider.ConversationColumns#CONVERSATION_BASE_URI
+     */
+    public Uri getConversationBaseUri() {
+        if (conversationBaseUri == null && conversationBaseUriString != null) {
+            conversationBaseUri = Uri.parse(conversationBaseUriString);
+        }
+        return conversationBaseUri;
     }
 
     @Override
@@ -728,22 +859,30 @@ public class Conversation implements Parcelable {
      * Get the snippet for this conversation.
      */
     public String getSnippet() {
-        return !TextUtils.isEmpty(conversationInfo.firstSnippet) ?
-                conversationInfo.firstSnippet : "";
+        final ConversationInfo info = getConversationInfo();
+        return !TextUtils.isEmpty(info.firstSnippet) ? info.firstSnippet : "";
     }
 
     /**
      * Get the number of messages for this conversation.
      */
     public int getNumMessages() {
-        return conversationInfo.messageCount;
+        final byte[] blob = getPendingConversationInfoBlob();
+        if (blob != null) {
+            return CompactBlobCodec.readMessageCount(blob);
+        }
+        return getConversationInfo().messageCount;
     }
 
     /**
      * Get the number of drafts for this conversation.
      */
     public int numDrafts() {
-        return conversationInfo.draftCount;
+        final byte[] blob = getPendingConversationInfoBlob();
+        if (blob != null) {
+            return CompactBlobCodec.readDraftCount(blob);
+        }
+        return getConversationInfo().draftCount;
     }
 
     public boolean isViewed() {
@@ -755,6 +894,10 @@ public class Conversation implements Parcelable {
     }
 
     public String getBaseUri(String defaultValue) {
+        // No need to parse the uri just to turn it back into a string
+        if (conversationBaseUriString != null) {
+            return conversationBaseUriString;
+        }
         return conversationBaseUri != null ? conversationBaseUri.toString() : defaultValue;
     }
 
@@ -775,6 +918,13 @@ public class Conversation implements Parcelable {
         return out.toString();
     }
 
+    /**
+     * Returns null if the specified string is null or empty
+     */
+    private static String emptyToNull(String in) {
+        return TextUtils.isEmpty(in) ? null : in;
+    }
+
     /**
      * Returns an empty string if the specified string is null
      */
@@ -89,10 +89,16 @@ public class ConversationInfo implements Parcelable {
         dest.writeTypedList(participantInfos);
     }
 
+    /**
+     * Decodes a blob written by either {@link #toBlob()} or {@link #toCompactBlob()}.
+     */
     public static ConversationInfo fromBlob(byte[] blob) {
         if (blob == null) {
             return null;
         }
+        if (CompactBlobCodec.isCompact(blob)) {
+            return CompactBlobCodec.decodeConversationInfo(blob);
+        }
         final Parcel p = Parcel.obtain();
         p.unmarshall(blob, 0, blob.length);
         p.setDataPosition(0);
@@ -109,6 +115,21 @@ public class ConversationInfo implements Parcelable {
         return result;
     }
 
+    /**
+     * Encodes this in the {@link CompactBlobCodec} format. Only send these to providers that
+     * have {@link UIProvider.AccountCapabilities#COMPACT_CONVERSATION_BLOBS}.
+     */
+    public byte[] toCompactBlob() {
+        return CompactBlobCodec.encode(this);
+    }
+
+    /**
+     * @param compact true to use {@link #toCompactBlob()}, false for {@link #toBlob()}
+     */
+    public byte[] toBlob(boolean compact) {
+        return compact ? toCompactBlob() : toBlob();
+    }
+
     public void set(int count, int draft, String first, String firstUnread, String last) {
         participantInfos.clear();
         messageCount = count;
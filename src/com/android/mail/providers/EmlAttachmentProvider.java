@@ -32,11 +32,15 @@ import android.os.ParcelFileDescriptor;
 import android.os.SystemClock;
 import android.text.TextUtils;
 
+import com.android.emailcommon.internet.MappedBody;
+import com.android.emailcommon.mail.Body;
+import com.android.emailcommon.mail.MessagingException;
 import com.android.ex.photo.provider.PhotoContract;
 import com.android.mail.R;
 import com.android.mail.utils.LogTag;
 import com.android.mail.utils.LogUtils;
 import com.android.mail.utils.MimeType;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
@@ -47,8 +51,14 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A {@link ContentProvider} for attachments created from eml files.
@@ -90,8 +100,38 @@ public class EmlAttachmentProvider extends ContentProvider {
     /**
      * Map that contains a mapping from an attachment uri to an {@link Attachment} object.
      */
-    private Map<Uri, Attachment> mUriAttachmentMap;
+    private ConcurrentMap<Uri, Attachment> mUriAttachmentMap;
 
+    /**
+     * Map from an attachment uri to the body of an attachment that has not been written to its
+     * cache file yet. The file is written the first time it is opened.
+     */
+    private static final Map<Uri, Body> sUnsavedBodies = Maps.newConcurrentMap();
+
+    private static final int MAX_BACKGROUND_THREADS = 4;
+    private static final int BACKGROUND_THREAD_COUNT = Math.max(1,
+            Math.min(MAX_BACKGROUND_THREADS, Runtime.getRuntime().availableProcessors() - 1));
+
+    /**
+     * Finds the sizes of unsaved bodies, and writes the cache files of those that can only be
+     * read once, a few at a time. Inline parts go first since the message's WebView asks for
+     * them as soon as it renders.
+     */
+    private static final ThreadPoolExecutor sBackgroundExecutor = new ThreadPoolExecutor(
+            BACKGROUND_THREAD_COUNT, BACKGROUND_THREAD_COUNT, 1, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>());
+    static {
+        sBackgroundExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Keeps tasks of the same priority in the order they were queued */
+    private static final AtomicInteger sTaskSequence = new AtomicInteger();
+
+    /**
+     * The number of queued bodies that can only be read once, for each attachment list uri.
+     * Guarded by itself.
+     */
+    private static final Map<Uri, Integer> sPendingSaves = Maps.newHashMap();
 
     @Override
     public boolean onCreate() {
@@ -110,7 +150,8 @@ public class EmlAttachmentProvider extends ContentProvider {
                 (DownloadManager) getContext().getSystemService(Context.DOWNLOAD_SERVICE);
 
         mUriListMap = Maps.newHashMap();
-        mUriAttachmentMap = Maps.newHashMap();
+        // also read by the background tasks
+        mUriAttachmentMap = Maps.newConcurrentMap();
         return true;
     }
 
@@ -183,7 +224,8 @@ public class EmlAttachmentProvider extends ContentProvider {
         final Uri listUri = getListUriFromAttachmentUri(uri);
 
         // add mapping from uri to attachment
-        if (mUriAttachmentMap.put(uri, new Attachment(values)) == null) {
+        final Attachment attachment = new Attachment(values);
+        if (mUriAttachmentMap.put(uri, attachment) == null) {
             // only add uri to list if the list
             // get list of attachment uris, creating if necessary
             List<Uri> list = mUriListMap.get(listUri);
@@ -195,6 +237,16 @@ public class EmlAttachmentProvider extends ContentProvider {
             list.add(uri);
         }
 
+        final Body body = sUnsavedBodies.get(uri);
+        if (body != null) {
+            final boolean readOnce = !(body instanceof MappedBody);
+            if (readOnce) {
+                changePendingSaves(listUri, 1);
+            }
+            sBackgroundExecutor.execute(new UnsavedBodyTask(this, uri,
+                    attachment.isInlineAttachment(), readOnce));
+        }
+
         return uri;
     }
 
@@ -205,6 +257,12 @@ public class EmlAttachmentProvider extends ContentProvider {
             case ATTACHMENT_LIST:
                 // remove from list mapping
                 final List<Uri> attachmentUris = mUriListMap.remove(uri);
+                // including bodies that were registered but never inserted
+                releaseUnsavedBodies(uri);
+                if (attachmentUris == null) {
+                    // already deleted
+                    return 0;
+                }
 
                 // delete each file and remove each element from the mapping
                 for (final Uri attachmentUri : attachmentUris) {
@@ -309,14 +367,23 @@ public class EmlAttachmentProvider extends ContentProvider {
 
         // update the destination before getting the new file path
         // otherwise it will just point to the old location.
-        attachment.destination = UIProvider.AttachmentDestination.EXTERNAL;
-        final String newFilePath = getFilePath(uri);
+        final Attachment savedAttachment = changeAttachment(uri, new AttachmentChange() {
+            @Override
+            public void apply(Attachment copy) {
+                copy.destination = UIProvider.AttachmentDestination.EXTERNAL;
+            }
+        });
+        if (savedAttachment == null) {
+            return 0;
+        }
+        final String newFilePath = getFilePath(uri, savedAttachment);
 
         InputStream inputStream = null;
         OutputStream outputStream = null;
 
         try {
             try {
+                saveUnsavedBody(uri, oldFilePath);
                 inputStream = new FileInputStream(oldFilePath);
             } catch (FileNotFoundException e) {
                 LogUtils.e(LOG_TAG, "File not found for file %s", oldFilePath);
@@ -348,7 +415,12 @@ public class EmlAttachmentProvider extends ContentProvider {
 
                 // if the attachment is an APK, change contentUri to be a direct file uri
                 if (MimeType.isInstallable(attachment.getContentType())) {
-                    attachment.contentUri = Uri.parse("file://" + newFilePath);
+                    changeAttachment(uri, new AttachmentChange() {
+                        @Override
+                        public void apply(Attachment copy) {
+                            copy.contentUri = Uri.parse("file://" + newFilePath);
+                        }
+                    });
                 }
 
                 // 3. add file to download manager
@@ -411,11 +483,238 @@ public class EmlAttachmentProvider extends ContentProvider {
             fileMode = ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE;
         } else {
             fileMode = ParcelFileDescriptor.MODE_READ_ONLY;
+            saveUnsavedBody(uri, filePath);
         }
 
         return ParcelFileDescriptor.open(new File(filePath), fileMode);
     }
 
+    /**
+     * Registers the body of an attachment at the given uri whose cache file has not been
+     * written. It must be registered before the attachment is inserted, which queues a task
+     * to find its size. The file is written from the body when the attachment is first opened,
+     * or by that task if the body is not a {@link MappedBody}; see {@link #waitForPendingSaves}.
+     */
+    public static void registerUnsavedBody(Uri uri, Body body) {
+        sUnsavedBodies.put(uri, body);
+    }
+
+    /**
+     * Forgets the bodies registered for the attachments in the given list that have not been
+     * written to their cache files, so that they, and any eml file mapping they read from, can
+     * be released. Their attachments can not be opened afterwards.
+     */
+    public static void releaseUnsavedBodies(Uri listUri) {
+        final List<String> listSegments = listUri.getPathSegments();
+        final Iterator<Uri> uris = sUnsavedBodies.keySet().iterator();
+        while (uris.hasNext()) {
+            final List<String> segments = uris.next().getPathSegments();
+            // attachment/<eml file uri hash>/<message id>/<part id>, attachments/<hash>/<id>
+            if (segments.get(1).equals(listSegments.get(1))
+                    && segments.get(2).equals(listSegments.get(2))) {
+                uris.remove();
+            }
+        }
+    }
+
+    /**
+     * Finds the size of a registered body once the attachment has been inserted, and updates
+     * the attachment with it. Mapped bodies whose size is known without decoding them are left
+     * for {@link #openFile} to write; the cache files of other bodies are written here, which
+     * sizes them, and bodies that are not mapped may only be read once anyway.
+     */
+    @VisibleForTesting
+    static class UnsavedBodyTask implements Runnable, Comparable<UnsavedBodyTask> {
+        private final EmlAttachmentProvider mProvider;
+        private final Uri mUri;
+        private final boolean mInline;
+        private final boolean mReadOnce;
+        private final int mSequence = sTaskSequence.getAndIncrement();
+
+        UnsavedBodyTask(EmlAttachmentProvider provider, Uri uri, boolean inline,
+                boolean readOnce) {
+            mProvider = provider;
+            mUri = uri;
+            mInline = inline;
+            mReadOnce = readOnce;
+        }
+
+        @VisibleForTesting
+        Uri getUri() {
+            return mUri;
+        }
+
+        @Override
+        public int compareTo(UnsavedBodyTask other) {
+            if (mInline != other.mInline) {
+                return mInline ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            try {
+                mProvider.updateSize(mUri);
+            } finally {
+                if (mReadOnce) {
+                    changePendingSaves(getListUriFromAttachmentUri(mUri), -1);
+                }
+            }
+        }
+    }
+
+    private void updateSize(Uri uri) {
+        final Attachment attachment = mUriAttachmentMap.get(uri);
+        if (attachment == null) {
+            // the attachments were deleted before the task ran
+            return;
+        }
+        final Body body = sUnsavedBodies.get(uri);
+        final long size;
+        try {
+            final long mappedSize =
+                    body instanceof MappedBody ? ((MappedBody) body).getDecodedSize() : -1;
+            if (mappedSize >= 0) {
+                size = mappedSize;
+            } else {
+                // Sizing any other body means reading it, so write its cache file meanwhile
+                final String filePath = getFilePath(uri, attachment);
+                saveUnsavedBody(uri, filePath);
+                final File file = new File(filePath);
+                if (!file.exists()) {
+                    // released with its list before it was saved
+                    return;
+                }
+                size = file.length();
+            }
+        } catch (FileNotFoundException e) {
+            // already logged
+            return;
+        }
+        final Attachment changed = changeAttachment(uri, new AttachmentChange() {
+            @Override
+            public void apply(Attachment copy) {
+                copy.size = (int) size;
+                copy.downloadedSize = copy.size;
+            }
+        });
+        if (changed != null) {
+            getContext().getContentResolver().notifyChange(
+                    getListUriFromAttachmentUri(uri), null, false);
+        }
+    }
+
+    /**
+     * A change to an attachment, which is made to a copy of it.
+     */
+    private interface AttachmentChange {
+        void apply(Attachment attachment);
+    }
+
+    /**
+     * Replaces the attachment at the given uri with a changed copy. Attachments are read on
+     * other threads, so they are never changed in place, and a change made meanwhile is kept by
+     * making this one again on top of it.
+     *
+     * @return the changed attachment, or null if it has been deleted
+     */
+    private Attachment changeAttachment(Uri uri, AttachmentChange change) {
+        while (true) {
+            final Attachment current = mUriAttachmentMap.get(uri);
+            if (current == null) {
+                return null;
+            }
+            final Attachment changed = new Attachment(current.toContentValues());
+            change.apply(changed);
+            if (mUriAttachmentMap.replace(uri, current, changed)) {
+                return changed;
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static void changePendingSaves(Uri listUri, int delta) {
+        synchronized (sPendingSaves) {
+            final Integer count = sPendingSaves.get(listUri);
+            final int newCount = (count != null ? count : 0) + delta;
+            if (newCount > 0) {
+                sPendingSaves.put(listUri, newCount);
+            } else {
+                sPendingSaves.remove(listUri);
+                sPendingSaves.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until the cache files of the attachments in the given list whose bodies can only be
+     * read once have been written, for callers that are about to delete what those bodies read.
+     */
+    public static void waitForPendingSaves(Uri listUri) throws InterruptedException {
+        synchronized (sPendingSaves) {
+            while (sPendingSaves.containsKey(listUri)) {
+                sPendingSaves.wait();
+            }
+        }
+    }
+
+    /**
+     * Writes the cache file of the attachment at the given uri if its body was registered with
+     * {@link #registerUnsavedBody} and the file does not exist yet.
+     */
+    private static void saveUnsavedBody(Uri uri, String filePath) throws FileNotFoundException {
+        final Body body = sUnsavedBodies.get(uri);
+        if (body == null) {
+            return;
+        }
+        synchronized (body) {
+            final File file = new File(filePath);
+            if (file.exists() || !sUnsavedBodies.containsKey(uri)) {
+                return;
+            }
+            // write to a temp file first so that no one opens a partly written file
+            final File tempFile = new File(filePath + ".tmp");
+            InputStream in = null;
+            OutputStream out = null;
+            try {
+                in = body.getInputStream();
+                out = new FileOutputStream(tempFile);
+                final byte data[] = new byte[BUFFER_SIZE];
+                int len;
+                while ((len = in.read(data)) != -1) {
+                    out.write(data, 0, len);
+                }
+                out.close();
+                out = null;
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("Could not rename " + tempFile);
+                }
+                sUnsavedBodies.remove(uri);
+            } catch (IOException e) {
+                LogUtils.e(LOG_TAG, e, "Error in writing attachment to cache");
+                tempFile.delete();
+                throw new FileNotFoundException("Could not write attachment to cache");
+            } catch (MessagingException e) {
+                LogUtils.e(LOG_TAG, e, "Error in writing attachment to cache");
+                throw new FileNotFoundException("Could not read attachment");
+            } finally {
+                try {
+                    if (in != null) {
+                        in.close();
+                    }
+                } catch (IOException e) {
+                }
+                try {
+                    if (out != null) {
+                        out.close();
+                    }
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
     /**
      * Returns an attachment list uri for the specific attachment uri passed.
      */
@@ -468,7 +767,10 @@ public class EmlAttachmentProvider extends ContentProvider {
      * Returns the absolute file path for the attachment at the given uri.
      */
     private String getFilePath(Uri uri) {
-        final Attachment attachment = mUriAttachmentMap.get(uri);
+        return getFilePath(uri, mUriAttachmentMap.get(uri));
+    }
+
+    private String getFilePath(Uri uri, Attachment attachment) {
         final boolean saveToSd =
                 attachment.destination == UIProvider.AttachmentDestination.EXTERNAL;
         final String pathStart = (saveToSd) ?
@@ -66,10 +66,31 @@ public class FolderList implements Parcelable {
         return result;
     }
 
+    /**
+     * Encodes this in the {@link CompactBlobCodec} format. Only send these to providers that
+     * have {@link UIProvider.AccountCapabilities#COMPACT_CONVERSATION_BLOBS}.
+     */
+    public byte[] toCompactBlob() {
+        return CompactBlobCodec.encode(folders);
+    }
+
+    /**
+     * @param compact true to use {@link #toCompactBlob()}, false for {@link #toBlob()}
+     */
+    public byte[] toBlob(boolean compact) {
+        return compact ? toCompactBlob() : toBlob();
+    }
+
+    /**
+     * Decodes a blob written by either {@link #toBlob()} or {@link #toCompactBlob()}.
+     */
     public static FolderList fromBlob(byte[] blob) {
         if (blob == null) {
             return EMPTY;
         }
+        if (CompactBlobCodec.isCompact(blob)) {
+            return new FolderList(CompactBlobCodec.decodeFolders(blob));
+        }
 
         final Parcel p = Parcel.obtain();
         p.unmarshall(blob, 0, blob.length);
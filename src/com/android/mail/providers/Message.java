@@ -40,7 +40,8 @@ import com.android.emailcommon.mail.Part;
 import com.android.emailcommon.utility.ConversionUtilities;
 import com.android.mail.providers.UIProvider.MessageColumns;
 import com.android.mail.ui.HtmlMessage;
-import com.android.mail.utils.HtmlSanitizer;
+import com.android.mail.utils.HtmlBodyPipeline;
+import com.android.mail.utils.SanitizedHtmlCache;
 import com.android.mail.utils.Utils;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
@@ -65,6 +66,10 @@ public class Message implements Parcelable, HtmlMessage {
     // regex that matches content id surrounded by "<>" optionally.
     private static final Pattern REMOVE_OPTIONAL_BRACKETS = Pattern.compile("^<?([^>]+)>?$");
 
+    // The most characters of text, and of HTML, kept from the body of an .eml file. Anything
+    // longer is clipped rather than risking running out of memory.
+    private static final int MAX_EML_BODY_LENGTH = 2 * 1024 * 1024;
+
     /**
      * @see BaseColumns#_ID
      */
@@ -459,13 +464,23 @@ public class Message implements Parcelable, HtmlMessage {
         ArrayList<Part> attachments = new ArrayList<Part>();
         MimeUtility.collectParts(mimeMessage, viewables, attachments);
 
-        ConversionUtilities.BodyFieldData data = ConversionUtilities.parseBodyFields(viewables);
+        // the snippet comes from the sanitizer's pass over the HTML if there is no plain text
+        ConversionUtilities.BodyFieldData data = ConversionUtilities.parseBodyFields(viewables,
+                MAX_EML_BODY_LENGTH, false /* snippetFromHtml */);
 
         snippet = data.snippet;
+        clipped = data.isClipped;
         bodyText = data.textContent;
 
         // sanitize the HTML found within the .eml file before consuming it
-        bodyHtml = HtmlSanitizer.sanitizeHtml(data.htmlContent);
+        if (snippet == null && data.htmlContent != null) {
+            final HtmlBodyPipeline.SnippetSink snippetSink = new HtmlBodyPipeline.SnippetSink();
+            bodyHtml = SanitizedHtmlCache.getInstance(context).sanitizeHtml(data.htmlContent,
+                    snippetSink);
+            snippet = snippetSink.getSnippet();
+        } else {
+            bodyHtml = SanitizedHtmlCache.getInstance(context).sanitizeHtml(data.htmlContent);
+        }
 
         // populate mAttachments
         mAttachments = Lists.newArrayList();
@@ -316,6 +316,13 @@ public class UIProvider {
          * Whether the account supports nested folders
          */
         public static final int NESTED_FOLDERS = 0x800000;
+        /**
+         * Whether the account accepts conversation info and folder list blobs in the compact
+         * format of {@link com.android.mail.providers.CompactBlobCodec} in conversation updates.
+         * The UI reads either format regardless, so providers may return compact blobs in
+         * query results without setting this.
+         */
+        public static final int COMPACT_CONVERSATION_BLOBS = 0x1000000;
     }
 
     public static final class AccountColumns implements BaseColumns {
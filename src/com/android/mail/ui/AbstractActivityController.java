@@ -70,6 +70,7 @@ import com.android.mail.analytics.AnalyticsUtils;
 import com.android.mail.browse.ConfirmDialogFragment;
 import com.android.mail.browse.ConversationCursor;
 import com.android.mail.browse.ConversationCursor.ConversationOperation;
+import com.android.mail.browse.ConversationCursor.ConversationRangeListener;
 import com.android.mail.browse.ConversationItemViewModel;
 import com.android.mail.browse.ConversationMessage;
 import com.android.mail.browse.ConversationPagerController;
@@ -137,7 +138,8 @@ import java.util.TimerTask;
  * </p>
  */
 public abstract class AbstractActivityController implements ActivityController,
-        EmptyFolderDialogFragment.EmptyFolderDialogFragmentListener, View.OnClickListener {
+        ConversationRangeListener, EmptyFolderDialogFragment.EmptyFolderDialogFragmentListener,
+        View.OnClickListener {
     // Keys for serialization of various information in Bundles.
     /** Tag for {@link #mAccount} */
     private static final String SAVED_ACCOUNT = "saved-account";
@@ -1840,10 +1842,12 @@ public abstract class AbstractActivityController implements ActivityController,
             if (markViewed) {
                 value.put(ConversationColumns.VIEWED, true);
             }
-            final ConversationInfo info = target.conversationInfo;
+            final ConversationInfo info = target.getConversationInfo();
             final boolean changed = info.markRead(read);
             if (changed) {
-                value.put(ConversationColumns.CONVERSATION_INFO, info.toBlob());
+                value.put(ConversationColumns.CONVERSATION_INFO, info.toBlob(
+                        mAccount.supportsCapability(
+                                AccountCapabilities.COMPACT_CONVERSATION_BLOBS)));
             }
             opList.add(mConversationListCursor.getOperationForConversation(
                     target, ConversationOperation.UPDATE, value));
@@ -3095,6 +3099,19 @@ public abstract class AbstractActivityController implements ActivityController,
         mSelectedSet.validateAgainstCursor(mConversationListCursor);
     }
 
+    @Override
+    public final void onItemRangesChanged(int[] starts, int[] counts) {
+        final ConversationListFragment convList = getConversationListFragment();
+        if (convList != null) {
+            convList.requestListRefresh(starts, counts);
+            if (isFragmentVisible(convList)) {
+                informCursorVisiblity(true);
+            }
+        }
+        mConversationListObservable.notifyChanged();
+        mSelectedSet.validateAgainstCursor(mConversationListCursor);
+    }
+
     /**
      * If the Conversation List Fragment is visible, updates the fragment.
      */
@@ -433,7 +433,7 @@ public abstract class AbstractConversationViewFragment extends Fragment implemen
 
         @Override
         public Loader<ObjectCursor<ConversationMessage>> onCreateLoader(int id, Bundle args) {
-            return new MessageLoader(mActivity.getActivityContext(), mConversation.messageListUri);
+            return new MessageLoader(mActivity.getActivityContext(), mConversation.getMessageListUri());
         }
 
         @Override
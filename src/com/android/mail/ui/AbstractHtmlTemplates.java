@@ -22,7 +22,9 @@ import android.content.res.Resources;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Formatter;
+import java.util.List;
 
 /**
  * Abstract class to support common functionality for both
@@ -31,35 +33,155 @@ import java.util.Formatter;
  *
  * Renders data into very simple string-substitution HTML templates.
  *
- * Templates should be UTF-8 encoded HTML with '%s' placeholders to be substituted upon render.
- * Plain-jane string substitution with '%s' is slightly faster than typed substitution.
+ * Templates should be UTF-8 encoded HTML with '%s' placeholders to be substituted upon render,
+ * and '%%' for a literal '%'. They are split into literal text and slots once, when they are
+ * loaded, so rendering only joins pieces together. The pieces are kept until {@link #emit()},
+ * when the total length is known and the document is assembled in a buffer of exactly that size.
  */
 public abstract class AbstractHtmlTemplates {
-    // TODO: refine. too expensive to iterate over cursor and pre-calculate total. so either
-    // estimate it, or defer assembly until the end when size is known (deferring increases
-    // working set size vs. estimation but is exact).
-    private static final int BUFFER_SIZE_CHARS = 64 * 1024;
-
     protected Context mContext;
+    /**
+     * @deprecated Use {@link #append(Template, Object...)}. Whatever is still formatted here
+     *             goes into the document after what was appended before it.
+     */
+    @Deprecated
     protected Formatter mFormatter;
+    /** @deprecated Use {@link #append(Template, Object...)}; see {@link #mFormatter}. */
+    @Deprecated
     protected StringBuilder mBuilder;
     protected boolean mInProgress = false;
 
+    /** The pieces of the document so far, or null when nothing is being rendered */
+    private List<String> mSegments;
+    private int mLength;
+
+    /** A document that {@link #emit()} returns instead of a copy if it renders the same one */
+    private String mPreviousDocument;
+    /**
+     * Whether everything rendered since {@link #reset()} is the start of mPreviousDocument, in
+     * which case it is compared as it is rendered instead of being kept in mSegments.
+     */
+    private boolean mMatchingPrevious;
+
+    /**
+     * A template split into the literal text around its '%s' slots.
+     */
+    protected static class Template {
+        /** The literal text before each slot, and after the last one */
+        private final String[] mLiterals;
+
+        private Template(String[] literals) {
+            mLiterals = literals;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the template has a conversion other than '%s' or
+         *             '%%'.
+         */
+        public static Template compile(String template) {
+            final List<String> literals = new ArrayList<String>();
+            final StringBuilder literal = new StringBuilder();
+            final int length = template.length();
+            for (int i = 0; i < length; i++) {
+                final char c = template.charAt(i);
+                if (c != '%') {
+                    literal.append(c);
+                    continue;
+                }
+                final char conversion = i + 1 < length ? template.charAt(++i) : 0;
+                if (conversion == '%') {
+                    literal.append('%');
+                } else if (conversion == 's') {
+                    literals.add(literal.toString());
+                    literal.setLength(0);
+                } else {
+                    throw new IllegalArgumentException("Unsupported conversion at " + (i - 1)
+                            + " in template: " + template);
+                }
+            }
+            literals.add(literal.toString());
+            return new Template(literals.toArray(new String[literals.size()]));
+        }
+
+        public int getSlotCount() {
+            return mLiterals.length - 1;
+        }
+    }
+
     public AbstractHtmlTemplates(Context context) {
         mContext = context;
     }
 
+    /**
+     * @return the document rendered since {@link #reset()}, which is then forgotten.
+     */
     public String emit() {
-        final String out = mFormatter.toString();
+        flushBuilder();
         // release the builder memory ASAP
         mFormatter = null;
         mBuilder = null;
-        return out;
+        final String previous = mPreviousDocument;
+        mPreviousDocument = null;
+        if (mMatchingPrevious) {
+            mMatchingPrevious = false;
+            mSegments = null;
+            return mLength == previous.length() ? previous : previous.substring(0, mLength);
+        }
+        final StringBuilder out = new StringBuilder(mLength);
+        for (String segment : mSegments) {
+            out.append(segment);
+        }
+        // release the segments ASAP
+        mSegments = null;
+        return out.toString();
+    }
+
+    /**
+     * Writes the document rendered since {@link #reset()} to <code>out</code>, without building
+     * it in memory first, and then forgets it.
+     */
+    public void emit(Appendable out) throws IOException {
+        flushBuilder();
+        // release the builder memory ASAP
+        mFormatter = null;
+        mBuilder = null;
+        final List<String> segments = mSegments;
+        final String previous = mPreviousDocument;
+        mSegments = null;
+        mPreviousDocument = null;
+        if (mMatchingPrevious) {
+            mMatchingPrevious = false;
+            out.append(previous, 0, mLength);
+            return;
+        }
+        for (String segment : segments) {
+            out.append(segment);
+        }
     }
 
     public void reset() {
-        mBuilder = new StringBuilder(BUFFER_SIZE_CHARS);
+        mSegments = new ArrayList<String>();
+        mLength = 0;
+        mBuilder = new StringBuilder();
         mFormatter = new Formatter(mBuilder, null /* no localization */);
+        mMatchingPrevious = mPreviousDocument != null;
+    }
+
+    /**
+     * @return the length of the document rendered so far.
+     */
+    public int getLength() {
+        return mLength + (mBuilder != null ? mBuilder.length() : 0);
+    }
+
+    /**
+     * Lets the next {@link #emit()} return <code>document</code> as it is, without assembling
+     * a copy, if exactly the same document is rendered again. It must be called before
+     * {@link #reset()}. Each piece is compared with the document as it is rendered, so the
+     * templates are still filled in, but nothing is kept or copied while they match.
+     */
+    public void setPreviousDocument(String document) {
+        mPreviousDocument = document;
     }
 
     protected String readTemplate(int id) throws Resources.NotFoundException {
@@ -89,7 +211,72 @@ public abstract class AbstractHtmlTemplates {
         }
     }
 
+    protected Template readCompiledTemplate(int id) throws Resources.NotFoundException {
+        return Template.compile(readTemplate(id));
+    }
+
+    /**
+     * Appends <code>template</code> with <code>args</code> in its slots, in order. Each argument
+     * is rendered as '%s' would render it.
+     */
+    protected void append(Template template, Object... args) {
+        final String[] literals = template.mLiterals;
+        final int slots = literals.length - 1;
+        if (args.length < slots) {
+            throw new IllegalArgumentException("Template has " + slots + " slots but only "
+                    + args.length + " arguments");
+        }
+        appendSegment(literals[0]);
+        for (int i = 0; i < slots; i++) {
+            appendSegment(String.valueOf(args[i]));
+            appendSegment(literals[i + 1]);
+        }
+    }
+
+    /**
+     * Appends <code>template</code> formatted with <code>args</code>, as {@link Formatter} does.
+     *
+     * @deprecated Compile the template once with {@link Template#compile} and use
+     *             {@link #append(Template, Object...)}, which does not parse it on every call.
+     */
+    @Deprecated
     protected void append(String template, Object... args) {
         mFormatter.format(template, args);
     }
+
+    /**
+     * Moves whatever was written to {@link #mBuilder} into the document.
+     */
+    private void flushBuilder() {
+        if (mBuilder != null && mBuilder.length() > 0) {
+            final String text = mBuilder.toString();
+            mBuilder.setLength(0);
+            addSegment(text);
+        }
+    }
+
+    private void appendSegment(String segment) {
+        flushBuilder();
+        addSegment(segment);
+    }
+
+    private void addSegment(String segment) {
+        final int length = segment.length();
+        if (length == 0) {
+            return;
+        }
+        if (mMatchingPrevious) {
+            if (mPreviousDocument.regionMatches(mLength, segment, 0, length)) {
+                mLength += length;
+                return;
+            }
+            // The document differs from here on, so keep what matched so far
+            mMatchingPrevious = false;
+            if (mLength > 0) {
+                mSegments.add(mPreviousDocument.substring(0, mLength));
+            }
+        }
+        mSegments.add(segment);
+        mLength += length;
+    }
 }
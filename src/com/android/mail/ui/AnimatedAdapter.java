@@ -1066,6 +1066,71 @@ public class AnimatedAdapter extends SimpleCursorAdapter {
         return mSpecialViews.indexOfValue(view);
     }
 
+    /**
+     * Rebinds the visible conversations in the given ranges of cursor positions, for refreshes
+     * that only changed the contents of those rows. Positions are shifted past the headers and
+     * the special views that are shown. Falls back to {@link #notifyDataSetChanged()} if the
+     * refresh changed which special views are shown, or while rows are animating, since views
+     * are not then simply those of the cursor.
+     *
+     * @see ConversationCursor.ConversationRangeListener#onItemRangesChanged
+     */
+    public void notifyItemRangesChanged(int[] starts, int[] counts) {
+        if (isAnimating() || hasLeaveBehinds()) {
+            notifyDataSetChanged();
+            return;
+        }
+        if (!mFleetingViews.isEmpty()) {
+            final SparseArray<ConversationSpecialItemView> shown = mSpecialViews.clone();
+            updateSpecialViews();
+            if (!sameSpecialViews(shown, mSpecialViews)) {
+                super.notifyDataSetChanged();
+                return;
+            }
+        }
+        final int firstPosition =
+                mListView.getFirstVisiblePosition() - mListView.getHeaderViewsCount();
+        final int conversationEnd = getCount() - (mShowFooter ? 1 : 0);
+        int range = 0;
+        for (int i = 0, n = mListView.getChildCount(); i < n; i++) {
+            final int position = firstPosition + i;
+            if (position < mHeaders.size() || position >= conversationEnd
+                    || mSpecialViews.get(getSpecialViewsPos(position)) != null) {
+                continue;
+            }
+            final int cursorPosition = position - getPositionOffset(position);
+            while (range < starts.length && starts[range] + counts[range] <= cursorPosition) {
+                range++;
+            }
+            if (range == starts.length) {
+                break;
+            }
+            if (cursorPosition < starts[range]) {
+                continue;
+            }
+            final View child = mListView.getChildAt(i);
+            if (!(child instanceof SwipeableConversationItemView)
+                    || getView(position, child, mListView) != child) {
+                notifyDataSetChanged();
+                return;
+            }
+        }
+    }
+
+    private static boolean sameSpecialViews(SparseArray<ConversationSpecialItemView> a,
+            SparseArray<ConversationSpecialItemView> b) {
+        final int size = a.size();
+        if (size != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (a.keyAt(i) != b.keyAt(i) || a.valueAt(i) != b.valueAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public void notifyDataSetChanged() {
         // This may be a temporary catch for a problem, or we may leave it here.
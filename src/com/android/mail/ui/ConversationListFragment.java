@@ -856,6 +856,15 @@ public final class ConversationListFragment extends Fragment implements
         mListAdapter.notifyDataSetChanged();
     }
 
+    /**
+     * Rebinds only the conversations in the given ranges of cursor positions.
+     *
+     * @see AnimatedAdapter#notifyItemRangesChanged
+     */
+    public void requestListRefresh(int[] starts, int[] counts) {
+        mListAdapter.notifyItemRangesChanged(starts, counts);
+    }
+
     /**
      * Change the UI to delete the conversations provided and then call the
      * {@link DestructiveAction} provided here <b>after</b> the UI has been
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.ui;
+
+import android.content.Context;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import com.android.mail.utils.LogTag;
+import com.android.mail.utils.LogUtils;
+import com.android.mail.utils.Utils;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+/**
+ * Remembers the last document {@link ConversationViewFragment} rendered for each of the recently
+ * shown conversations, so that showing one again (after a rotation, or on paging back to it) does
+ * not render it again from scratch.
+ * <p>
+ * A document is reused as it is when its {@link Key} is the same and rendering comes out the
+ * same, which {@link AbstractHtmlTemplates#setPreviousDocument} checks without assembling a copy.
+ * Bodies are kept with what they were prepared from, so that they are only reused for exactly
+ * the same sources.
+ * Otherwise the message bodies of the entry are reused for the messages whose bodies did not
+ * change, so only the changed messages are prepared again. Entries are bounded by their total
+ * size, which is kept small on low-RAM devices.
+ */
+public class ConversationRenderCache {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    private static final int MAX_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_BYTES_LOW_RAM = 512 * 1024;
+
+    private static ConversationRenderCache sInstance;
+
+    private final LruCache<Uri, Entry> mEntries;
+
+    public static synchronized ConversationRenderCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ConversationRenderCache(
+                    Utils.isLowRamDevice(context) ? MAX_BYTES_LOW_RAM : MAX_BYTES);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    ConversationRenderCache(int maxBytes) {
+        mEntries = new LruCache<Uri, Entry>(maxBytes) {
+            @Override
+            protected int sizeOf(Uri key, Entry value) {
+                return value.getSizeInBytes();
+            }
+        };
+    }
+
+    /**
+     * @return the last entry for the conversation, whatever its key.
+     */
+    public Entry get(Uri conversationUri) {
+        return conversationUri != null ? mEntries.get(conversationUri) : null;
+    }
+
+    /**
+     * Replaces the entry for its conversation. It must not be changed afterwards.
+     */
+    public void put(Entry entry) {
+        final Uri conversationUri = entry.mKey.mConversationUri;
+        if (conversationUri != null) {
+            mEntries.put(conversationUri, entry);
+            LogUtils.d(LOG_TAG, "Conversation render cache: %d bytes, %d hits, %d misses",
+                    mEntries.size(), mEntries.hitCount(), mEntries.missCount());
+        }
+    }
+
+    public void remove(Uri conversationUri) {
+        if (conversationUri != null) {
+            mEntries.remove(conversationUri);
+        }
+    }
+
+    @VisibleForTesting
+    void clear() {
+        mEntries.evictAll();
+    }
+
+    /**
+     * What a rendered document depends on besides the heights of its overlays, which are only
+     * known while rendering.
+     */
+    public static class Key {
+        private final Uri mConversationUri;
+        /** {@link com.android.mail.browse.MessageCursor#getStateHashCode()} */
+        private final int mStateHashCode;
+        private final int mViewportWidth;
+        private final boolean mAlwaysShowImages;
+
+        public Key(Uri conversationUri, int stateHashCode, int viewportWidth,
+                boolean alwaysShowImages) {
+            mConversationUri = conversationUri;
+            mStateHashCode = stateHashCode;
+            mViewportWidth = viewportWidth;
+            mAlwaysShowImages = alwaysShowImages;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mStateHashCode == other.mStateHashCode
+                    && mViewportWidth == other.mViewportWidth
+                    && mAlwaysShowImages == other.mAlwaysShowImages
+                    && Objects.equal(mConversationUri, other.mConversationUri);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(mConversationUri, mStateHashCode, mViewportWidth,
+                    mAlwaysShowImages);
+        }
+    }
+
+    /**
+     * A prepared message body, and what it was prepared from. The sources are compared whole
+     * before the body is reused, which costs much less than preparing it again.
+     */
+    private static class Body {
+        final String mBodyHtml;
+        final String mBodyText;
+        final boolean mEmbedsExternalResources;
+        final boolean mSafeForImages;
+        final String mHtml;
+
+        Body(String bodyHtml, String bodyText, boolean embedsExternalResources,
+                boolean safeForImages, String html) {
+            mBodyHtml = bodyHtml;
+            mBodyText = bodyText;
+            mEmbedsExternalResources = embedsExternalResources;
+            mSafeForImages = safeForImages;
+            mHtml = html;
+        }
+
+        boolean isPreparedFrom(String bodyHtml, String bodyText, boolean embedsExternalResources,
+                boolean safeForImages) {
+            return mEmbedsExternalResources == embedsExternalResources
+                    && mSafeForImages == safeForImages
+                    && TextUtils.equals(mBodyHtml, bodyHtml)
+                    && TextUtils.equals(mBodyText, bodyText);
+        }
+
+        int getLength() {
+            return mHtml.length() + (mBodyHtml != null ? mBodyHtml.length() : 0)
+                    + (mBodyText != null ? mBodyText.length() : 0);
+        }
+    }
+
+    /**
+     * A rendered conversation document, and the message bodies that went into it.
+     */
+    public static class Entry {
+        private final Key mKey;
+        private final Map<Long, Body> mBodies = Maps.newHashMap();
+        private int mBodiesLength;
+        private String mDocument;
+
+        public Entry(Key key) {
+            mKey = key;
+        }
+
+        public Key getKey() {
+            return mKey;
+        }
+
+        /**
+         * @return the body prepared for the message, or null if it was not in the document or
+         *         was prepared from something else.
+         */
+        public String getBody(long messageId, String bodyHtml, String bodyText,
+                boolean embedsExternalResources, boolean safeForImages) {
+            final Body body = mBodies.get(messageId);
+            if (body == null || !body.isPreparedFrom(bodyHtml, bodyText, embedsExternalResources,
+                    safeForImages)) {
+                return null;
+            }
+            return body.mHtml;
+        }
+
+        public void putBody(long messageId, String bodyHtml, String bodyText,
+                boolean embedsExternalResources, boolean safeForImages, String html) {
+            final Body body = new Body(bodyHtml, bodyText, embedsExternalResources,
+                    safeForImages, html);
+            final Body old = mBodies.put(messageId, body);
+            if (old != null) {
+                mBodiesLength -= old.getLength();
+            }
+            mBodiesLength += body.getLength();
+        }
+
+        public void setDocument(String document) {
+            mDocument = document;
+        }
+
+        public String getDocument() {
+            return mDocument;
+        }
+
+        int getSizeInBytes() {
+            return 2 * ((mDocument != null ? mDocument.length() : 0) + mBodiesLength);
+        }
+    }
+}
@@ -152,6 +152,12 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
 
     protected HtmlConversationTemplates mTemplates;
 
+    private ConversationRenderCache mRenderCache;
+    /** The render of this conversation that the one in progress can reuse parts of, if any */
+    private ConversationRenderCache.Entry mPreviousRender;
+    /** The render in progress, while {@link #renderMessageBodies} runs */
+    private ConversationRenderCache.Entry mRender;
+
     private final MailJsBridge mJsBridge = new MailJsBridge();
 
     protected ConversationViewAdapter mAdapter;
@@ -287,6 +293,7 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
 
         Context context = getContext();
         mTemplates = new HtmlConversationTemplates(context);
+        mRenderCache = ConversationRenderCache.getInstance(context);
 
         final FormattedDateBuilder dateBuilder = new FormattedDateBuilder(context);
 
@@ -338,10 +345,10 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
             }
         });
 
-        if (mConversation != null && mConversation.conversationBaseUri != null &&
+        if (mConversation != null && mConversation.getConversationBaseUri() != null &&
                 !Utils.isEmpty(mAccount.accountCookieQueryUri)) {
             // Set the cookie for this base url
-            new SetCookieTask(getContext(), mConversation.conversationBaseUri.toString(),
+            new SetCookieTask(getContext(), mConversation.getConversationBaseUri().toString(),
                     mAccount.accountCookieQueryUri).execute();
         }
 
@@ -733,14 +740,24 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
         final int convHeaderPos = mAdapter.addConversationHeader(mConversation);
         final int convHeaderPx = measureOverlayHeight(convHeaderPos);
 
+        final boolean alwaysShowImages = shouldAlwaysShowImages();
+
+        // Reuse the last render of this conversation: all of it if it comes out the same,
+        // otherwise the bodies of the messages that did not change
+        mRender = new ConversationRenderCache.Entry(new ConversationRenderCache.Key(
+                mConversation.uri, messageCursor.getStateHashCode(),
+                mWebView.getViewportWidth(), alwaysShowImages));
+        mPreviousRender = mRenderCache.get(mConversation.uri);
+        if (mPreviousRender != null && mPreviousRender.getKey().equals(mRender.getKey())) {
+            mTemplates.setPreviousDocument(mPreviousRender.getDocument());
+        }
+
         mTemplates.startConversation(mWebView.getViewportWidth(),
                 mWebView.screenPxToWebPx(mSideMarginPx), mWebView.screenPxToWebPx(convHeaderPx));
 
         int collapsedStart = -1;
         ConversationMessage prevCollapsedMsg = null;
 
-        final boolean alwaysShowImages = shouldAlwaysShowImages();
-
         boolean prevSafeForImages = alwaysShowImages;
 
         boolean hasDraft = false;
@@ -826,11 +843,17 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
         final boolean applyTransforms = shouldApplyTransforms();
 
         // If the conversation has specified a base uri, use it here, otherwise use mBaseUri
-        return mTemplates.endConversation(convFooterPx, mBaseUri,
+        final String html = mTemplates.endConversation(convFooterPx, mBaseUri,
                 mConversation.getBaseUri(mBaseUri),
                 mWebView.getViewportWidth(), mWebView.getWidthInDp(mSideMarginPx),
                 enableContentReadySignal, isOverviewMode(mAccount), applyTransforms,
                 applyTransforms);
+
+        mRender.setDocument(html);
+        mRenderCache.put(mRender);
+        mRender = null;
+        mPreviousRender = null;
+        return html;
     }
 
     private MessageHeaderItem getLastMessageHeaderItem() {
@@ -862,11 +885,30 @@ public class ConversationViewFragment extends AbstractConversationViewFragment i
         final int headerPx = measureOverlayHeight(headerPos);
         final int footerPx = measureOverlayHeight(footerPos);
 
-        mTemplates.appendMessageHtml(msg, expanded, safeForImages,
-                mWebView.screenPxToWebPx(headerPx), mWebView.screenPxToWebPx(footerPx));
+        mTemplates.appendMessageHtml(msg, getMessageBodyHtml(msg, safeForImages), expanded,
+                safeForImages, mWebView.screenPxToWebPx(headerPx),
+                mWebView.screenPxToWebPx(footerPx));
         timerMark("rendered message");
     }
 
+    /**
+     * @return the body of the message as it goes into the document, reused from the previous
+     *         render of the conversation if the message has not changed since.
+     */
+    private String getMessageBodyHtml(ConversationMessage msg, boolean safeForImages) {
+        if (mRender == null) {
+            return mTemplates.getMessageBodyHtml(msg, safeForImages);
+        }
+        String body = mPreviousRender != null ? mPreviousRender.getBody(msg.id, msg.bodyHtml,
+                msg.bodyText, msg.embedsExternalResources, safeForImages) : null;
+        if (body == null) {
+            body = mTemplates.getMessageBodyHtml(msg, safeForImages);
+        }
+        mRender.putBody(msg.id, msg.bodyHtml, msg.bodyText, msg.embedsExternalResources,
+                safeForImages, body);
+        return body;
+    }
+
     private String renderCollapsedHeaders(MessageCursor cursor,
             SuperCollapsedBlockItem blockToReplace) {
         final List<ConversationOverlayItem> replacements = Lists.newArrayList();
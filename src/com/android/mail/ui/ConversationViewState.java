@@ -121,7 +121,8 @@ public class ConversationViewState implements Parcelable {
     }
 
     public void setInfoForConversation(Conversation conv) {
-        mConversationInfo = conv.conversationInfo.toBlob();
+        // Only ever applied to the local cursor cache, which reads either format
+        mConversationInfo = conv.getConversationInfo().toCompactBlob();
     }
 
     /**
@@ -79,10 +79,10 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
     private static final String RIGHT_TO_LEFT_TRIANGLE = "\u25C0 ";
 
     private static boolean sLoadedTemplates;
-    private static String sSuperCollapsed;
-    private static String sMessage;
-    private static String sConversationUpper;
-    private static String sConversationLower;
+    private static Template sSuperCollapsed;
+    private static Template sMessage;
+    private static Template sConversationUpper;
+    private static Template sConversationLower;
 
     public HtmlConversationTemplates(Context context) {
         super(context);
@@ -91,10 +91,10 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
         // them in memory.
         if (!sLoadedTemplates) {
             sLoadedTemplates = true;
-            sSuperCollapsed = readTemplate(R.raw.template_super_collapsed);
-            sMessage = readTemplate(R.raw.template_message);
-            sConversationUpper = readTemplate(R.raw.template_conversation_upper);
-            sConversationLower = readTemplate(R.raw.template_conversation_lower);
+            sSuperCollapsed = readCompiledTemplate(R.raw.template_super_collapsed);
+            sMessage = readCompiledTemplate(R.raw.template_message);
+            sConversationUpper = readCompiledTemplate(R.raw.template_conversation_upper);
+            sConversationLower = readCompiledTemplate(R.raw.template_conversation_lower);
         }
     }
 
@@ -129,11 +129,37 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
 
     public void appendMessageHtml(HtmlMessage message, boolean isExpanded,
             boolean safeForImages, int headerHeight, int footerHeight) {
+        appendMessageHtml(message, getMessageBodyHtml(message, safeForImages), isExpanded,
+                safeForImages, headerHeight, footerHeight);
+    }
 
+    /**
+     * Appends a message whose body was prepared earlier by {@link #getMessageBodyHtml}, with the
+     * same <code>safeForImages</code>.
+     */
+    public void appendMessageHtml(HtmlMessage message, String bodyHtml, boolean isExpanded,
+            boolean safeForImages, int headerHeight, int footerHeight) {
         final String bodyDisplay = isExpanded ? "block" : "none";
         final String expandedClass = isExpanded ? "expanded" : "";
         final String showImagesClass = safeForImages ? "mail-show-images" : "";
 
+        append(sMessage,
+                getMessageDomId(message),
+                expandedClass,
+                headerHeight,
+                showImagesClass,
+                bodyDisplay,
+                bodyHtml,
+                bodyDisplay,
+                footerHeight
+        );
+    }
+
+    /**
+     * @return the body of <code>message</code> as it goes into the document. This only depends
+     *         on the message and <code>safeForImages</code>, so it can be kept and reused.
+     */
+    public String getMessageBodyHtml(HtmlMessage message, boolean safeForImages) {
         String body = message.getBodyAsHtml();
 
         /* Work around a WebView bug (5522414) in setBlockNetworkImage that causes img onload event
@@ -154,16 +180,7 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
             body = replaceAbsoluteImgUrls(body);
         }
 
-        append(sMessage,
-                getMessageDomId(message),
-                expandedClass,
-                headerHeight,
-                showImagesClass,
-                bodyDisplay,
-                wrapMessageBody(body),
-                bodyDisplay,
-                footerHeight
-        );
+        return wrapMessageBody(body);
     }
 
     public String getMessageDomId(HtmlMessage msg) {
@@ -208,8 +225,7 @@ public class HtmlConversationTemplates extends AbstractHtmlTemplates {
 
         mInProgress = false;
 
-        LogUtils.d(TAG, "rendered conversation of %d bytes, buffer capacity=%d",
-                mBuilder.length() << 1, mBuilder.capacity() << 1);
+        LogUtils.d(TAG, "rendered conversation of %d bytes", getLength() << 1);
 
         return emit();
     }
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.text.TextUtils;
+
+import com.android.emailcommon.mail.Address;
+import com.android.mail.perf.Timer;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The {@link Address}es parsed from raw addresses, shared by every screen that shows them.
+ * <p>
+ * The cache is split by hash into stripes, each a small LRU under its own lock, so that threads
+ * looking up different addresses rarely wait for each other. Addresses are parsed outside the
+ * locks; if two threads parse the same one, the first to finish wins. Hits, misses and how often
+ * a thread had to wait for a stripe are counted and logged with the parse time from
+ * {@link Timer}.
+ */
+public class AddressCache {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    /** Must be a power of two */
+    private static final int STRIPE_COUNT = 16;
+    private static final int MAX_ENTRIES_PER_STRIPE = 64;
+
+    private static final String TIMER_PARSE = "addressCacheParse";
+    /** Statistics are logged after this many misses */
+    private static final int LOG_INTERVAL = 256;
+
+    private static final AddressCache sInstance =
+            new AddressCache(STRIPE_COUNT, MAX_ENTRIES_PER_STRIPE);
+
+    private final Stripe[] mStripes;
+
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private final AtomicInteger mContended = new AtomicInteger();
+
+    private static class Stripe extends LinkedHashMap<String, Address> {
+        private final ReentrantLock mLock = new ReentrantLock();
+        private final int mMaxEntries;
+
+        Stripe(int maxEntries) {
+            super(16, 0.75f, true /* accessOrder */);
+            mMaxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Address> eldest) {
+            return size() > mMaxEntries;
+        }
+    }
+
+    public static AddressCache getInstance() {
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    AddressCache(int stripeCount, int maxEntriesPerStripe) {
+        mStripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            mStripes[i] = new Stripe(maxEntriesPerStripe);
+        }
+    }
+
+    /**
+     * @return the address parsed as {@link Address#getEmailAddress(String)} does, or null if
+     *         there is none.
+     */
+    public Address get(String rawAddress) {
+        if (TextUtils.isEmpty(rawAddress)) {
+            return null;
+        }
+        final Stripe stripe = getStripe(rawAddress);
+        Address address;
+        lock(stripe);
+        try {
+            address = stripe.get(rawAddress);
+        } finally {
+            stripe.mLock.unlock();
+        }
+        if (address != null) {
+            mHits.incrementAndGet();
+            return address;
+        }
+
+        final int misses = mMisses.incrementAndGet();
+        Timer.startTiming(TIMER_PARSE);
+        address = Address.getEmailAddress(rawAddress);
+        Timer.stopTiming(TIMER_PARSE);
+        if (address == null) {
+            return null;
+        }
+        lock(stripe);
+        try {
+            final Address existing = stripe.get(rawAddress);
+            if (existing != null) {
+                address = existing;
+            } else {
+                stripe.put(rawAddress, address);
+            }
+        } finally {
+            stripe.mLock.unlock();
+        }
+        if (misses % LOG_INTERVAL == 0) {
+            LogUtils.d(LOG_TAG, "Address cache: %d hits, %d misses, %d contended lookups",
+                    mHits.get(), misses, mContended.get());
+        }
+        return address;
+    }
+
+    private Stripe getStripe(String rawAddress) {
+        final int h = rawAddress.hashCode();
+        return mStripes[(h ^ (h >>> 16)) & (mStripes.length - 1)];
+    }
+
+    private void lock(Stripe stripe) {
+        if (!stripe.mLock.tryLock()) {
+            mContended.incrementAndGet();
+            stripe.mLock.lock();
+        }
+    }
+
+    @VisibleForTesting
+    int getHitCount() {
+        return mHits.get();
+    }
+
+    @VisibleForTesting
+    int getMissCount() {
+        return mMisses.get();
+    }
+
+    @VisibleForTesting
+    int getContendedCount() {
+        return mContended.get();
+    }
+}
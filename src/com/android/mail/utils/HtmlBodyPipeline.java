@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import com.android.emailcommon.utility.TextUtilities;
+import com.google.android.mail.common.html.parser.HTML;
+import com.google.android.mail.common.html.parser.HTML4;
+import com.google.android.mail.common.html.parser.HtmlDocument;
+import com.google.android.mail.common.html.parser.HtmlTree;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import org.owasp.html.HtmlStreamEventReceiver;
+import org.owasp.html.HtmlStreamRenderer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tokenizes an HTML body once and hands every tag and piece of text to any number of
+ * {@link Sink}s, each of which builds one output: sanitized HTML, a snippet, plain text, or plain
+ * text without the quoted text. This replaces running {@link HtmlSanitizer}, the snippet tag
+ * stripper and {@link HtmlTree} over the same HTML one after another.
+ * <p>
+ * Text reaches the sinks with its entities decoded. Tags are not balanced unless the HTML is
+ * sanitized, since the sanitizer's policy does that.
+ */
+public class HtmlBodyPipeline {
+
+    /**
+     * Receives the events of a pass over an HTML body.
+     */
+    public interface Sink extends HtmlStreamEventReceiver {
+        /**
+         * @return whether the sink needs no more events. The pass stops early once all of its
+         *         sinks are done.
+         */
+        boolean isDone();
+    }
+
+    private HtmlBodyPipeline() {}
+
+    /**
+     * Sanitizes <code>rawHtml</code> with {@link HtmlSanitizer}'s policy, so that the sinks only
+     * see what would be left in the sanitized HTML. Add a {@link SanitizedHtmlSink} to get that
+     * HTML. Like {@link HtmlSanitizer#sanitizeHtml}, this should be called from a background
+     * Thread.
+     */
+    public static void sanitize(String rawHtml, Sink... sinks) {
+        if (rawHtml == null) {
+            return;
+        }
+        final FanOut fanOut = new FanOut(sinks);
+        try {
+            HtmlSanitizer.sanitize(rawHtml, fanOut);
+        } catch (AllSinksDoneException e) {
+            // nothing left to do
+        }
+    }
+
+    /**
+     * Sends the tags and text of <code>html</code>, which is trusted or already sanitized, to
+     * the sinks as they are.
+     */
+    public static void process(String html, Sink... sinks) {
+        if (html == null) {
+            return;
+        }
+        final FanOut fanOut = new FanOut(sinks);
+        try {
+            org.owasp.html.HtmlSanitizer.sanitize(html, fanOut);
+        } catch (AllSinksDoneException e) {
+            // nothing left to do
+        }
+    }
+
+    /**
+     * Thrown to abandon a pass that no sink needs any more; it is never seen outside this class.
+     */
+    private static class AllSinksDoneException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Forwards events to the sinks that are not done yet. It is also a policy, so that the
+     * sanitizer can feed it tokens without applying one.
+     */
+    private static class FanOut implements org.owasp.html.HtmlSanitizer.Policy {
+        private final Sink[] mSinks;
+
+        FanOut(Sink[] sinks) {
+            mSinks = sinks;
+        }
+
+        private void checkDone() {
+            for (Sink sink : mSinks) {
+                if (!sink.isDone()) {
+                    return;
+                }
+            }
+            throw new AllSinksDoneException();
+        }
+
+        @Override
+        public void openDocument() {
+            for (Sink sink : mSinks) {
+                sink.openDocument();
+            }
+        }
+
+        @Override
+        public void closeDocument() {
+            for (Sink sink : mSinks) {
+                sink.closeDocument();
+            }
+        }
+
+        @Override
+        public void openTag(String elementName, List<String> attrs) {
+            for (Sink sink : mSinks) {
+                if (!sink.isDone()) {
+                    sink.openTag(elementName, attrs);
+                }
+            }
+        }
+
+        @Override
+        public void closeTag(String elementName) {
+            for (Sink sink : mSinks) {
+                if (!sink.isDone()) {
+                    sink.closeTag(elementName);
+                }
+            }
+        }
+
+        @Override
+        public void text(String text) {
+            for (Sink sink : mSinks) {
+                if (!sink.isDone()) {
+                    sink.text(text);
+                }
+            }
+            checkDone();
+        }
+    }
+
+    /**
+     * Renders the events back into HTML, which is sanitized HTML when the pass was started with
+     * {@link HtmlBodyPipeline#sanitize}.
+     */
+    public static class SanitizedHtmlSink implements Sink {
+        private final StringBuilder mHtml;
+        private final HtmlStreamRenderer mRenderer;
+
+        public SanitizedHtmlSink(int capacity) {
+            mHtml = new StringBuilder(capacity);
+            mRenderer = HtmlSanitizer.createRenderer(mHtml);
+        }
+
+        public String getHtml() {
+            return mHtml.toString();
+        }
+
+        @Override
+        public boolean isDone() {
+            return false;
+        }
+
+        @Override
+        public void openDocument() {
+            mRenderer.openDocument();
+        }
+
+        @Override
+        public void closeDocument() {
+            mRenderer.closeDocument();
+        }
+
+        @Override
+        public void openTag(String elementName, List<String> attrs) {
+            mRenderer.openTag(elementName, attrs);
+        }
+
+        @Override
+        public void closeTag(String elementName) {
+            mRenderer.closeTag(elementName);
+        }
+
+        @Override
+        public void text(String text) {
+            mRenderer.text(text);
+        }
+    }
+
+    /**
+     * Makes a snippet from the text of the body, leaving out the content of the same elements
+     * as {@link TextUtilities#makeSnippetFromHtmlText}. It is done once the snippet is full.
+     */
+    public static class SnippetSink implements Sink {
+        private static final Set<String> STRIP_ELEMENTS =
+                ImmutableSet.of("title", "script", "style", "applet", "head");
+
+        private final TextUtilities.SnippetBuilder mSnippet = new TextUtilities.SnippetBuilder();
+        private int mStripDepth = 0;
+
+        public String getSnippet() {
+            return mSnippet.toString();
+        }
+
+        @Override
+        public boolean isDone() {
+            return mSnippet.isFull();
+        }
+
+        @Override
+        public void openDocument() {}
+
+        @Override
+        public void closeDocument() {}
+
+        @Override
+        public void openTag(String elementName, List<String> attrs) {
+            if (STRIP_ELEMENTS.contains(elementName)) {
+                mStripDepth++;
+            }
+        }
+
+        @Override
+        public void closeTag(String elementName) {
+            if (mStripDepth > 0 && STRIP_ELEMENTS.contains(elementName)) {
+                mStripDepth--;
+            }
+        }
+
+        @Override
+        public void text(String text) {
+            if (mStripDepth == 0) {
+                mSnippet.append(text);
+            }
+        }
+    }
+
+    /**
+     * Converts the body to plain text with an {@link HtmlTree.Converter}, by default the one
+     * {@link HtmlTree#getPlainText} uses. Elements that are not HTML4 are left out, but not
+     * their text.
+     */
+    public static class PlainTextSink implements Sink {
+        private final HtmlTree.Converter<String> mConverter;
+        private int mNodeNum = 0;
+        private int mScriptDepth = 0;
+
+        public PlainTextSink() {
+            this(new HtmlTree.DefaultPlainTextConverter());
+        }
+
+        /**
+         * @param converter a converter that does not rely on the end node numbers passed to
+         *            {@link HtmlTree.Converter#addNode}, which are not known during the pass.
+         */
+        public PlainTextSink(HtmlTree.Converter<String> converter) {
+            mConverter = converter;
+        }
+
+        public String getPlainText() {
+            return mConverter.getObject();
+        }
+
+        @Override
+        public boolean isDone() {
+            return false;
+        }
+
+        @Override
+        public void openDocument() {}
+
+        @Override
+        public void closeDocument() {}
+
+        @Override
+        public void openTag(String elementName, List<String> attrs) {
+            final HTML.Element element = HTML4.lookupElement(elementName);
+            if (element == null) {
+                return;
+            }
+            if (HTML4.SCRIPT_ELEMENT.equals(element)) {
+                mScriptDepth++;
+            }
+            addNode(HtmlDocument.createTag(element, null));
+        }
+
+        @Override
+        public void closeTag(String elementName) {
+            final HTML.Element element = HTML4.lookupElement(elementName);
+            // Empty elements such as <br> have no end tags in an HtmlTree either
+            if (element == null || element.isEmpty()) {
+                return;
+            }
+            if (mScriptDepth > 0 && HTML4.SCRIPT_ELEMENT.equals(element)) {
+                mScriptDepth--;
+            }
+            addNode(HtmlDocument.createEndTag(element));
+        }
+
+        @Override
+        public void text(String text) {
+            if (mScriptDepth == 0) {
+                addNode(HtmlDocument.createText(text));
+            }
+        }
+
+        protected final void addNode(HtmlDocument.Node node) {
+            final int nodeNum = mNodeNum++;
+            mConverter.addNode(node, nodeNum, nodeNum);
+        }
+    }
+
+    /**
+     * Converts the body to plain text like {@link PlainTextSink}, but replaces each
+     * <code>&lt;div class="elided-text"&gt;</code>, which {@link HtmlSanitizer} puts around
+     * quoted text, with a line break. This is the text shown in notifications.
+     * <p>
+     * The events of {@link HtmlBodyPipeline#process} are not balanced, so this keeps the open
+     * elements the way {@link HtmlTree} would: an end tag closes the elements opened after its
+     * own, an end tag for no open element is dropped, and the end of the document closes
+     * everything. The elided text ends when its div is closed, however that happens.
+     */
+    public static class ElidedTextSink extends PlainTextSink {
+        private static final String ELIDED_TEXT_ELEMENT_NAME = "div";
+        private static final String ELIDED_TEXT_ATTRIBUTE_NAME = "class";
+        private static final String ELIDED_TEXT_ATTRIBUTE_VALUE = "elided-text";
+
+        private static final HtmlDocument.Node ELIDED_TEXT_REPLACEMENT_NODE =
+                HtmlDocument.createSelfTerminatingTag(HTML4.BR_ELEMENT, null, null, null);
+
+        /** The names of the open elements that have end tags, outermost first */
+        private final ArrayList<String> mOpenElements = Lists.newArrayList();
+        /** The index of the elided text div in mOpenElements, or -1 outside of one */
+        private int mElidedIndex = -1;
+
+        @Override
+        public void openTag(String elementName, List<String> attrs) {
+            if (mElidedIndex < 0 && isElidedText(elementName, attrs)) {
+                mElidedIndex = mOpenElements.size();
+                mOpenElements.add(elementName);
+                return;
+            }
+            final HTML.Element element = HTML4.lookupElement(elementName);
+            if (element == null || !element.isEmpty()) {
+                mOpenElements.add(elementName);
+            }
+            if (mElidedIndex < 0) {
+                super.openTag(elementName, attrs);
+            }
+        }
+
+        private static boolean isElidedText(String elementName, List<String> attrs) {
+            if (!ELIDED_TEXT_ELEMENT_NAME.equals(elementName)) {
+                return false;
+            }
+            // attrs holds alternating names and values
+            for (int i = 0; i + 1 < attrs.size(); i += 2) {
+                if (ELIDED_TEXT_ATTRIBUTE_NAME.equals(attrs.get(i))
+                        && ELIDED_TEXT_ATTRIBUTE_VALUE.equals(attrs.get(i + 1))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void closeTag(String elementName) {
+            final int index = mOpenElements.lastIndexOf(elementName);
+            if (index < 0) {
+                return;
+            }
+            closeElements(index);
+        }
+
+        @Override
+        public void closeDocument() {
+            closeElements(0);
+            super.closeDocument();
+        }
+
+        /**
+         * Closes the open elements from the innermost one to the one at <code>index</code>.
+         */
+        private void closeElements(int index) {
+            for (int i = mOpenElements.size() - 1; i >= index; i--) {
+                final String elementName = mOpenElements.remove(i);
+                if (i == mElidedIndex) {
+                    mElidedIndex = -1;
+                    addNode(ELIDED_TEXT_REPLACEMENT_NODE);
+                } else if (mElidedIndex < 0) {
+                    super.closeTag(elementName);
+                }
+            }
+        }
+
+        @Override
+        public void text(String text) {
+            if (mElidedIndex < 0) {
+                super.text(text);
+            }
+        }
+    }
+}
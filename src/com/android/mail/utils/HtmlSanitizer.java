@@ -28,6 +28,7 @@ import org.owasp.html.ElementPolicy;
 import org.owasp.html.FilterUrlByProtocolAttributePolicy;
 import org.owasp.html.Handler;
 import org.owasp.html.HtmlPolicyBuilder;
+import org.owasp.html.HtmlStreamEventReceiver;
 import org.owasp.html.HtmlStreamRenderer;
 import org.owasp.html.PolicyFactory;
 
@@ -46,6 +47,12 @@ import java.util.List;
 public final class HtmlSanitizer {
     private static final String LOG_TAG = LogTag.getLogTag();
 
+    /**
+     * Identifies the policy below in {@link SanitizedHtmlCache}. Increment it whenever the
+     * policy changes, so that HTML sanitized by the old policy is not reused.
+     */
+    public static final int POLICY_VERSION = 1;
+
     /**
      * The following CSS properties do not appear in the default whitelist from OWASP, but they
      * improve the fidelity of the HTML display without unacceptable risk.
@@ -342,10 +349,6 @@ public final class HtmlSanitizer {
      *      <code>rawHtml</code> was <code>null</code>
      */
     public static String sanitizeHtml(final String rawHtml) {
-        if (Looper.getMainLooper() == Looper.myLooper()) {
-            throw new IllegalStateException("sanitizing email should not occur on the main thread");
-        }
-
         if (rawHtml == null) {
             return null;
         }
@@ -353,8 +356,17 @@ public final class HtmlSanitizer {
         // create the builder into which the sanitized email will be written
         final StringBuilder htmlBuilder = new StringBuilder(rawHtml.length());
 
-        // create the renderer that will write the sanitized HTML to the builder
-        final HtmlStreamRenderer renderer = HtmlStreamRenderer.create(
+        sanitize(rawHtml, createRenderer(htmlBuilder));
+
+        // return the resulting HTML from the builder
+        return htmlBuilder.toString();
+    }
+
+    /**
+     * Creates the renderer that writes sanitized HTML to <code>htmlBuilder</code>.
+     */
+    static HtmlStreamRenderer createRenderer(final StringBuilder htmlBuilder) {
+        return HtmlStreamRenderer.create(
                 htmlBuilder,
                 Handler.PROPAGATE,
                 // log errors resulting from exceptionally bizarre inputs
@@ -365,9 +377,21 @@ public final class HtmlSanitizer {
                     }
                 }
         );
+    }
+
+    /**
+     * Runs <code>rawHtml</code> through the policy, sending whatever survives it to
+     * <code>receiver</code> rather than rendering it. This lets {@link HtmlBodyPipeline} derive
+     * other outputs from the same pass. Like {@link #sanitizeHtml}, this should be called from a
+     * background Thread.
+     */
+    static void sanitize(final String rawHtml, final HtmlStreamEventReceiver receiver) {
+        if (Looper.getMainLooper() == Looper.myLooper()) {
+            throw new IllegalStateException("sanitizing email should not occur on the main thread");
+        }
 
         // create a thread-specific policy
-        final org.owasp.html.HtmlSanitizer.Policy policy = POLICY_DEFINITION.apply(renderer);
+        final org.owasp.html.HtmlSanitizer.Policy policy = POLICY_DEFINITION.apply(receiver);
 
         // run the html through the sanitizer
         Timer.startTiming("sanitizingHTMLEmail");
@@ -376,8 +400,5 @@ public final class HtmlSanitizer {
         } finally {
             Timer.stopTiming("sanitizingHTMLEmail");
         }
-
-        // return the resulting HTML from the builder
-        return htmlBuilder.toString();
     }
 }
@@ -99,10 +99,11 @@ public class HtmlUtils {
         }
 
         private void appendPlainTextFromConverter() {
-            String textString = mTextConverter.getObject();
-            if (textString.length() > mTextConverterIndex) {
-                mBuilder.append(textString.substring(mTextConverterIndex));
-                mTextConverterIndex = textString.length();
+            // Only copy what the last node added, not all of the text so far
+            final int length = mTextConverter.getPlainTextLength();
+            if (length > mTextConverterIndex) {
+                mBuilder.append(mTextConverter.getTextSince(mTextConverterIndex));
+                mTextConverterIndex = length;
             }
         }
 
@@ -108,15 +108,6 @@ public class NotificationUtils {
     private static TextAppearanceSpan sNotificationUnreadStyleSpan;
     private static CharacterStyle sNotificationReadStyleSpan;
 
-    /** A factory that produces a plain text converter that removes elided text. */
-    private static final HtmlTree.ConverterFactory MESSAGE_CONVERTER_FACTORY =
-            new HtmlTree.ConverterFactory() {
-                @Override
-                public HtmlTree.Converter<String> createInstance() {
-                    return new MailMessagePlainTextConverter();
-                }
-            };
-
     private static BidiFormatter sBidiFormatter = BidiFormatter.getInstance();
 
     // Maps summary notification to conversation notification ids.
@@ -1054,7 +1045,7 @@ public class NotificationUtils {
                         Cursor cursor = null;
                         MessageCursor messageCursor = null;
                         try {
-                            final Uri.Builder uriBuilder = conversation.messageListUri.buildUpon();
+                            final Uri.Builder uriBuilder = conversation.getMessageListUri().buildUpon();
                             uriBuilder.appendQueryParameter(
                                     UIProvider.LABEL_QUERY_PARAMETER, notificationLabelName);
                             cursor = context.getContentResolver().query(uriBuilder.build(),
@@ -1233,7 +1224,7 @@ public class NotificationUtils {
         boolean multipleUnseenThread = false;
         String from = null;
         try {
-            final Uri uri = conversation.messageListUri.buildUpon().appendQueryParameter(
+            final Uri uri = conversation.getMessageListUri().buildUpon().appendQueryParameter(
                     UIProvider.LABEL_QUERY_PARAMETER, folder.persistentId).build();
             cursor = context.getContentResolver().query(uri, UIProvider.MESSAGE_PROJECTION,
                     null, null, null);
@@ -1371,7 +1362,7 @@ public class NotificationUtils {
             final Cursor conversationCursor, final int maxLength, final String account) {
         final Conversation conversation = new Conversation(conversationCursor);
         final com.android.mail.providers.ConversationInfo conversationInfo =
-                conversation.conversationInfo;
+                conversation.getConversationInfo();
         final ArrayList<SpannableString> senders = new ArrayList<SpannableString>();
         if (sNotificationUnreadStyleSpan == null) {
             sNotificationUnreadStyleSpan = new TextAppearanceSpan(
@@ -1845,11 +1836,12 @@ public class NotificationUtils {
         if (TextUtils.isEmpty(html)) {
             return "";
         }
-        // Get the html "tree" for this message body
-        final HtmlTree htmlTree = com.android.mail.utils.Utils.getHtmlTree(html);
-        htmlTree.setConverterFactory(MESSAGE_CONVERTER_FACTORY);
+        // Convert the message body in one pass, without building a tree for it
+        final HtmlBodyPipeline.ElidedTextSink elidedTextSink =
+                new HtmlBodyPipeline.ElidedTextSink();
+        HtmlBodyPipeline.process(html, elidedTextSink);
 
-        return htmlTree.getPlainText();
+        return elidedTextSink.getPlainText();
     }
 
     public static void markSeen(final Context context, final Folder folder) {
@@ -1945,7 +1937,7 @@ public class NotificationUtils {
 
     /**
      * Contains the logic for converting the contents of one HtmlTree into
-     * plaintext.
+     * plaintext. {@link HtmlBodyPipeline.ElidedTextSink} does the same without a tree.
      */
     public static class MailMessagePlainTextConverter extends HtmlTree.DefaultPlainTextConverter {
         // Strings for parsing html message bodies
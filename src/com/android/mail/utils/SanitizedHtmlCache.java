@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.content.Context;
+import android.util.LruCache;
+
+import com.android.mail.perf.Timer;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers the output of {@link HtmlSanitizer#sanitizeHtml(String)}, so that reopening a
+ * message (e.g. an .eml file, after every rotation) does not sanitize its HTML again.
+ * <p>
+ * Entries are keyed by the SHA-256 of the raw HTML and by
+ * {@link HtmlSanitizer#POLICY_VERSION}. They are kept in an in-memory LRU cache bounded by
+ * the size of the sanitized HTML, and in files in the app's cache directory, which are
+ * bounded by their total size and evicted least recently used first.
+ * <p>
+ * Lookups are timed per tier with {@link Timer}; hit and miss counts are logged on a miss.
+ */
+public class SanitizedHtmlCache {
+    private static final String LOG_TAG = LogTag.getLogTag();
+
+    private static final String DIRECTORY_NAME = "sanitized_html";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int MAX_MEMORY_BYTES = 4 * 1024 * 1024;
+    private static final long MAX_DISK_BYTES = 20 * 1024 * 1024;
+
+    private static final String TIMER_MEMORY = "sanitizedHtmlCacheMemoryLookup";
+    private static final String TIMER_DISK = "sanitizedHtmlCacheDiskLookup";
+
+    private static SanitizedHtmlCache sInstance;
+
+    private final LruCache<String, String> mMemoryCache;
+    private final File mDirectory;
+    private final long mMaxDiskBytes;
+    /** Total size of the cache files, or -1 until the directory has been scanned */
+    private long mDiskBytes = -1;
+
+    private final AtomicInteger mMemoryHits = new AtomicInteger();
+    private final AtomicInteger mDiskHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+
+    public static synchronized SanitizedHtmlCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SanitizedHtmlCache(new File(context.getCacheDir(), DIRECTORY_NAME),
+                    MAX_MEMORY_BYTES, MAX_DISK_BYTES);
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    SanitizedHtmlCache(File directory, int maxMemoryBytes, long maxDiskBytes) {
+        mDirectory = directory;
+        mMaxDiskBytes = maxDiskBytes;
+        mMemoryCache = new LruCache<String, String>(maxMemoryBytes) {
+            @Override
+            protected int sizeOf(String key, String value) {
+                return 2 * value.length();
+            }
+        };
+    }
+
+    /**
+     * Sanitizes HTML as {@link HtmlSanitizer#sanitizeHtml(String)} does, reusing a previous
+     * result for the same HTML when there is one. Like it, this should be called from a
+     * background thread.
+     *
+     * @param sinks also receive the sanitized HTML, from the same pass that sanitizes it, or
+     *        from a pass over the cached result.
+     */
+    public String sanitizeHtml(final String rawHtml, HtmlBodyPipeline.Sink... sinks) {
+        if (rawHtml == null) {
+            return null;
+        }
+        final String key = getKey(rawHtml);
+
+        Timer.startTiming(TIMER_MEMORY);
+        String html = mMemoryCache.get(key);
+        Timer.stopTiming(TIMER_MEMORY);
+        if (html != null) {
+            mMemoryHits.incrementAndGet();
+            processCached(html, sinks);
+            return html;
+        }
+
+        Timer.startTiming(TIMER_DISK);
+        html = read(key);
+        Timer.stopTiming(TIMER_DISK);
+        if (html != null) {
+            mDiskHits.incrementAndGet();
+            mMemoryCache.put(key, html);
+            processCached(html, sinks);
+            return html;
+        }
+
+        mMisses.incrementAndGet();
+        final HtmlBodyPipeline.SanitizedHtmlSink htmlSink =
+                new HtmlBodyPipeline.SanitizedHtmlSink(rawHtml.length());
+        final HtmlBodyPipeline.Sink[] allSinks = new HtmlBodyPipeline.Sink[sinks.length + 1];
+        allSinks[0] = htmlSink;
+        System.arraycopy(sinks, 0, allSinks, 1, sinks.length);
+        HtmlBodyPipeline.sanitize(rawHtml, allSinks);
+        html = htmlSink.getHtml();
+        mMemoryCache.put(key, html);
+        write(key, html);
+        LogUtils.d(LOG_TAG, "Sanitized HTML cache: %d memory hits, %d disk hits, %d misses",
+                mMemoryHits.get(), mDiskHits.get(), mMisses.get());
+        return html;
+    }
+
+    private static void processCached(String html, HtmlBodyPipeline.Sink[] sinks) {
+        if (sinks.length > 0) {
+            HtmlBodyPipeline.process(html, sinks);
+        }
+    }
+
+    @VisibleForTesting
+    int getMemoryHitCount() {
+        return mMemoryHits.get();
+    }
+
+    @VisibleForTesting
+    int getDiskHitCount() {
+        return mDiskHits.get();
+    }
+
+    @VisibleForTesting
+    int getMissCount() {
+        return mMisses.get();
+    }
+
+    @VisibleForTesting
+    void clearMemory() {
+        mMemoryCache.evictAll();
+    }
+
+    /**
+     * @return the policy version followed by the hex SHA-256 of the HTML. Files whose names
+     *         start with another version are deleted.
+     */
+    private static String getKey(String rawHtml) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final byte[] hash = digest.digest(rawHtml.getBytes(Charsets.UTF_8));
+        final StringBuilder sb = new StringBuilder(getKeyPrefix());
+        for (byte b : hash) {
+            LogUtils.byteToHex(sb, b & 0xFF);
+        }
+        return sb.toString();
+    }
+
+    private static String getKeyPrefix() {
+        return "v" + HtmlSanitizer.POLICY_VERSION + "-";
+    }
+
+    /**
+     * Finds the size of the cache files, deleting any left by older policies or by writes
+     * that did not finish. Must be called with the lock held.
+     */
+    private void scanDirectory() {
+        if (mDiskBytes >= 0) {
+            return;
+        }
+        mDiskBytes = 0;
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            LogUtils.w(LOG_TAG, "Could not create %s", mDirectory);
+            return;
+        }
+        final String prefix = getKeyPrefix();
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            if (!name.startsWith(prefix) || name.endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            } else {
+                mDiskBytes += file.length();
+            }
+        }
+    }
+
+    private synchronized String read(String key) {
+        scanDirectory();
+        final File file = new File(mDirectory, key);
+        if (!file.exists()) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            final byte[] bytes = new byte[(int) file.length()];
+            int count = 0;
+            while (count < bytes.length) {
+                final int read = in.read(bytes, count, bytes.length - count);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+                count += read;
+            }
+            // Recently used files are evicted last
+            file.setLastModified(System.currentTimeMillis());
+            return new String(bytes, Charsets.UTF_8);
+        } catch (IOException e) {
+            LogUtils.w(LOG_TAG, e, "Could not read %s", file);
+            mDiskBytes -= file.length();
+            file.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private synchronized void write(String key, String html) {
+        scanDirectory();
+        final byte[] bytes = html.getBytes(Charsets.UTF_8);
+        if (bytes.length > mMaxDiskBytes) {
+            return;
+        }
+        final File file = new File(mDirectory, key);
+        final File tempFile = new File(mDirectory, key + TEMP_SUFFIX);
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tempFile);
+            out.write(bytes);
+            out.close();
+            out = null;
+            final long oldLength = file.length();
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Could not rename " + tempFile);
+            }
+            mDiskBytes += bytes.length - oldLength;
+        } catch (IOException e) {
+            LogUtils.w(LOG_TAG, e, "Could not write %s", file);
+            tempFile.delete();
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        if (mDiskBytes > mMaxDiskBytes) {
+            trim(file);
+        }
+    }
+
+    /**
+     * Deletes the least recently used files other than <code>keep</code> until the rest fit.
+     * Must be called with the lock held.
+     */
+    private void trim(File keep) {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long[] lastModified = new long[files.length];
+        final Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            // Read once, since sorting must not see them change
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                final long l = lastModified[lhs];
+                final long r = lastModified[rhs];
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < order.length && mDiskBytes > mMaxDiskBytes; i++) {
+            final File file = files[order[i]];
+            // Timestamps may be too coarse to tell the newest file apart
+            if (file.equals(keep)) {
+                continue;
+            }
+            final long length = file.length();
+            if (file.delete()) {
+                mDiskBytes -= length;
+            }
+        }
+    }
+}
@@ -288,6 +288,23 @@ public class Utils {
         return sUseFolderListFragmentTransition != 0;
     }
 
+    /**
+     * Parsers and tree builders can be reused but not shared, so each thread keeps one of each.
+     */
+    private static final ThreadLocal<HtmlParser> sHtmlParser = new ThreadLocal<HtmlParser>() {
+        @Override
+        protected HtmlParser initialValue() {
+            return new HtmlParser();
+        }
+    };
+    private static final ThreadLocal<HtmlTreeBuilder> sHtmlTreeBuilder =
+            new ThreadLocal<HtmlTreeBuilder>() {
+        @Override
+        protected HtmlTreeBuilder initialValue() {
+            return new HtmlTreeBuilder();
+        }
+    };
+
     /**
      * Returns displayable text from the provided HTML string.
      * @param htmlText HTML string
@@ -297,7 +314,7 @@ public class Utils {
         if (TextUtils.isEmpty(htmlText)) {
             return "";
         }
-        return getHtmlTree(htmlText, new HtmlParser(), new HtmlTreeBuilder()).getPlainText();
+        return getHtmlTree(htmlText).getPlainText();
     }
 
     public static String convertHtmlToPlainText(String htmlText, HtmlParser parser,
@@ -312,7 +329,7 @@ public class Utils {
      * Returns a {@link HtmlTree} representation of the specified HTML string.
      */
     public static HtmlTree getHtmlTree(String htmlText) {
-        return getHtmlTree(htmlText, new HtmlParser(), new HtmlTreeBuilder());
+        return getHtmlTree(htmlText, sHtmlParser.get(), sHtmlTreeBuilder.get());
     }
 
     /**
@@ -1099,15 +1116,16 @@ public class Utils {
         return -1;
     }
 
+    /**
+     * Looks an address up in <code>cache</code>, which keeps the addresses of one screen, and
+     * then in the {@link AddressCache} shared by all of them. Neither is locked while parsing.
+     */
     public static Address getAddress(Map<String, Address> cache, String emailStr) {
-        Address addr;
-        synchronized (cache) {
-            addr = cache.get(emailStr);
-            if (addr == null) {
-                addr = Address.getEmailAddress(emailStr);
-                if (addr != null) {
-                    cache.put(emailStr, addr);
-                }
+        Address addr = cache.get(emailStr);
+        if (addr == null) {
+            addr = AddressCache.getInstance().get(emailStr);
+            if (addr != null) {
+                cache.put(emailStr, addr);
             }
         }
         return addr;
@@ -26,10 +26,11 @@ import com.google.common.io.ByteStreams;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -40,6 +41,8 @@ import java.util.regex.Pattern;
  * - It offers 3 levels of aggressiveness in correcting errors in HTML (see
  * HtmlParser.ParseStyle).
  * - HTML comments are ignored unless initialized with ParseStyle.PRESERVE_ALL.
+ * - A parser can be reused for any number of documents, one at a time, and
+ * allocates little besides the nodes it returns. It is not thread safe.
  */
 public class HtmlParser {
 
@@ -57,8 +60,18 @@ public class HtmlParser {
   // The html text
   private String html;
 
-  // The entire array of nodes
-  private List<HtmlDocument.Node> nodes;
+  // The nodes parsed so far. The array is kept from one parse to the next,
+  // unless it grew beyond MAX_KEPT_NODES.
+  private HtmlDocument.Node[] nodes = new HtmlDocument.Node[INITIAL_NODES];
+  private int nodeCount;
+  private static final int INITIAL_NODES = 64;
+  private static final int MAX_KEPT_NODES = 4096;
+
+  // Scanners and the attributes of the current tag, reused for every tag
+  private final TagNameScanner tagNameScanner = new TagNameScanner();
+  private final AttributeScanner attributeScanner = new AttributeScanner();
+  private final ArrayList<HtmlDocument.TagAttribute> tagAttributes =
+      new ArrayList<HtmlDocument.TagAttribute>();
 
   // Turn on for debug information.
   private static boolean DEBUG = false;
@@ -69,6 +82,16 @@ public class HtmlParser {
   // Whitelists for looking up accepted HTML tags and attributes
   private List<HtmlWhitelist> whitelists = Lists.newArrayList(DEFAULT_WHITELIST);
 
+  // True while whitelists only holds DEFAULT_WHITELIST, so that names can be
+  // looked up in HTML4_ELEMENTS and HTML4_ATTRIBUTES
+  private boolean defaultWhitelistOnly = true;
+
+  // The HTML4 names, for looking up names in the html without copying them
+  private static final NameTable<HTML.Element> HTML4_ELEMENTS =
+      new NameTable<HTML.Element>(HTML4.getAllElements());
+  private static final NameTable<HTML.Attribute> HTML4_ATTRIBUTES =
+      new NameTable<HTML.Attribute>(HTML4.getAllAttributes());
+
   /**
    * This setting controls how much of the original HTML is preserved.  In
    * ascending order of aggressiveness:
@@ -142,6 +165,7 @@ public class HtmlParser {
   public void setWhitelist(HtmlWhitelist whitelist) {
     Preconditions.checkNotNull(whitelist);
     whitelists = Lists.newArrayList(whitelist);
+    defaultWhitelistOnly = (whitelist == DEFAULT_WHITELIST);
   }
 
   /**
@@ -160,6 +184,7 @@ public class HtmlParser {
    */
   public void addWhitelist(HtmlWhitelist whitelist) {
     whitelists.add(whitelist);
+    defaultWhitelistOnly = false;
   }
 
   /**
@@ -186,9 +211,9 @@ public class HtmlParser {
    */
   public HtmlDocument parse(String html) {
     this.html = html;
-    // Use a LinkedList because we don't know the number of nodes ahead of
-    // time. This will be compacted into an ArrayList in coalesceTextNodes().
-    nodes = Lists.newLinkedList();
+    // Nodes are collected in an array because we don't know the number of
+    // nodes ahead of time. This is copied into a List in coalesceTextNodes().
+    nodeCount = 0;
     state = State.IN_TEXT;
 
     clipped = false;
@@ -232,56 +257,84 @@ public class HtmlParser {
       clipped = pos >= clipLength;
     }
 
-    nodes = coalesceTextNodes(nodes);
-
-    HtmlDocument doc = new HtmlDocument(nodes);
-    nodes = null;
+    HtmlDocument doc = new HtmlDocument(coalesceTextNodes(nodes, nodeCount));
+    if (nodes.length > MAX_KEPT_NODES) {
+      nodes = new HtmlDocument.Node[INITIAL_NODES];
+    } else {
+      Arrays.fill(nodes, 0, nodeCount, null);
+    }
+    nodeCount = 0;
+    tagAttributes.clear();
     html = null;
     return doc;
   }
 
+  /**
+   * Adds a node to the end of the nodes parsed so far.
+   */
+  private void addNode(HtmlDocument.Node node) {
+    if (nodeCount == nodes.length) {
+      nodes = Arrays.copyOf(nodes, nodeCount * 2);
+    }
+    nodes[nodeCount++] = node;
+  }
+
   /**
    * During the course of parsing, we may have multiple adjacent Text nodes,
    * due to the sanitizer stripping out nodes between Text nodes. It is
    * important to coalesce them so that later steps in the pipeline can
    * treat the text as a single block (e.g. the step that inserts <wbr> tags).
    * @param nodes Original nodes.
-   * @return Nodes with text nodes changed.
+   * @param count Number of nodes in {@code nodes}.
+   * @return Nodes with text nodes changed, in a List of their own.
    */
   static List<HtmlDocument.Node> coalesceTextNodes(
-      List<HtmlDocument.Node> nodes) {
-    List<HtmlDocument.Node> out =
-        new ArrayList<HtmlDocument.Node>(nodes.size());
-    LinkedList<HtmlDocument.Text> textNodes = Lists.newLinkedList();
-
-    for (HtmlDocument.Node node : nodes) {
-      if (node instanceof HtmlDocument.Text) {
-        textNodes.add((HtmlDocument.Text) node);
+      HtmlDocument.Node[] nodes, int count) {
+    // Count the nodes first so that the List is the right size
+    int outCount = 0;
+    for (int i = 0; i < count; i++) {
+      if (i == 0 || !(nodes[i] instanceof HtmlDocument.Text)
+          || !(nodes[i - 1] instanceof HtmlDocument.Text)) {
+        outCount++;
+      }
+    }
+    List<HtmlDocument.Node> out = new ArrayList<HtmlDocument.Node>(outCount);
+
+    int textStart = -1;
+    for (int i = 0; i < count; i++) {
+      if (nodes[i] instanceof HtmlDocument.Text) {
+        if (textStart == -1) {
+          textStart = i;
+        }
       } else {
-        mergeTextNodes(textNodes, out);
-        out.add(node);
+        mergeTextNodes(nodes, textStart, i, out);
+        textStart = -1;
+        out.add(nodes[i]);
       }
     }
-    mergeTextNodes(textNodes, out);
+    mergeTextNodes(nodes, textStart, count, out);
     return out;
   }
 
   /**
-   * Flushes any Text nodes in {@code textNodes} into a single Text node
-   * in {@code output}. {@code textNodes} is guaranteed to be empty when
-   * the function returns.
-   * @param textNodes Text nodes.
+   * Flushes the Text nodes from {@code start} to {@code end} into a single
+   * Text node in {@code output}.
+   * @param nodes Nodes, which are Text nodes from {@code start} to
+   * {@code end}.
+   * @param start Position of the first Text node, or -1 if there are none.
+   * @param end Position after the last Text node.
    * @param output Destination to which results are added.
    */
-  private static void mergeTextNodes(LinkedList<HtmlDocument.Text> textNodes,
-                                     List<HtmlDocument.Node> output) {
-    if (!textNodes.isEmpty()) {
-      if (textNodes.size() == 1) {
-        output.add(textNodes.removeFirst());
+  private static void mergeTextNodes(HtmlDocument.Node[] nodes, int start,
+                                     int end, List<HtmlDocument.Node> output) {
+    if (start != -1) {
+      if (end - start == 1) {
+        output.add(nodes[start]);
       } else {
         int combinedTextLen = 0;
         int combinedInputLen = 0;
-        for (HtmlDocument.Text text : textNodes) {
+        for (int i = start; i < end; i++) {
+          HtmlDocument.Text text = (HtmlDocument.Text) nodes[i];
           combinedTextLen += text.getText().length();
           if (text.getOriginalHTML() != null) {
             combinedInputLen += text.getOriginalHTML().length();
@@ -289,8 +342,8 @@ public class HtmlParser {
         }
         StringBuilder combinedText = new StringBuilder(combinedTextLen);
         StringBuilder combinedInput = new StringBuilder(combinedInputLen);
-        while (!textNodes.isEmpty()) {
-          HtmlDocument.Text text = textNodes.removeFirst();
+        for (int i = start; i < end; i++) {
+          HtmlDocument.Text text = (HtmlDocument.Text) nodes[i];
           combinedText.append(text.getText());
           if (text.getOriginalHTML() != null) {
             combinedInput.append(text.getOriginalHTML());
@@ -374,7 +427,7 @@ public class HtmlParser {
         }
 
         HtmlDocument.Text textnode = HtmlDocument.createEscapedText(htmlTail, originalHtml);
-        nodes.add(textnode);
+        addNode(textnode);
       }
     }
     return pos;
@@ -383,14 +436,18 @@ public class HtmlParser {
   //------------------------------------------------------------------------
   // Tag name scanning utility class
   //------------------------------------------------------------------------
-  private static class TagNameScanner {
-    private final String html;
+  private class TagNameScanner {
     private String tagName;
-    private int startNamePos = -1;
-    private int endNamePos = -1;
+    int startNamePos = -1;
+    int endNamePos = -1;
 
-    public TagNameScanner(String html) {
-      this.html = html;
+    /**
+     * Reset to scan another tag name.
+     */
+    public void reset() {
+      startNamePos = -1;
+      endNamePos = -1;
+      tagName = null;
     }
 
     /**
@@ -416,6 +473,10 @@ public class HtmlParser {
       return pos;
     }
 
+    public boolean hasName() {
+      return startNamePos != -1 && endNamePos != -1;
+    }
+
     /**
      * @return Tag name.
      */
@@ -430,8 +491,7 @@ public class HtmlParser {
   //------------------------------------------------------------------------
   // Attribute scanning utility class
   //------------------------------------------------------------------------
-  private static class AttributeScanner {
-    private final String html;
+  private class AttributeScanner {
     private String name;
     private String value;
 
@@ -444,10 +504,6 @@ public class HtmlParser {
     int endValuePos = -1;
     boolean attrValueIsQuoted = false;
 
-    public AttributeScanner(String html) {
-      this.html = html;
-    }
-
     /**
      * Reset to scan another attribute.
      */
@@ -571,6 +627,10 @@ public class HtmlParser {
       return pos;
     }
 
+    public boolean hasName() {
+      return startNamePos != -1 && endNamePos != -1;
+    }
+
     public String getName() {
       if (name == null && startNamePos != -1 && endNamePos != -1) {
         name = html.substring(startNamePos, endNamePos);
@@ -659,18 +719,17 @@ public class HtmlParser {
     }
 
     // Tag name and element
-    TagNameScanner tagNameScanner = new TagNameScanner(html);
+    tagNameScanner.reset();
     int pos = tagNameScanner.scanName(nameStart, end);
-    String tagName = tagNameScanner.getTagName();
     HTML.Element element = null;
-    if (tagName == null) {
+    if (!tagNameScanner.hasName()) {
       // For some reason, browsers treat start and end tags differently
       // when they don't have a valid tag name - end tags are swallowed
       // (e.g., "</ >"), start tags treated as text (e.g., "< >")
       if (!isEndTag) {
         // This is not really a tag, treat the '<' as text.
         HtmlDocument.Text text = HtmlDocument.createText("<", preserveAll ? "<" : null);
-        nodes.add(text);
+        addNode(text);
         state = State.IN_TEXT;
         return nameStart;
       }
@@ -679,24 +738,24 @@ public class HtmlParser {
         element = lookupUnknownElement("");
       }
     } else {
-      element = lookupElement(tagName);
+      element = lookupElement(tagNameScanner.startNamePos, tagNameScanner.endNamePos);
       if (element == null) {
         if (DEBUG) {
           // Unknown element
-          debug("Unknown element: " + tagName);
+          debug("Unknown element: " + tagNameScanner.getTagName());
         }
         if (preserveAll) {
-          element = lookupUnknownElement(tagName);
+          element = lookupUnknownElement(tagNameScanner.getTagName());
         }
       }
     }
 
     // Attributes
     boolean isSingleTag = false;
-    ArrayList<HtmlDocument.TagAttribute> attributes = null;
+    boolean hasAttributes = false;
+    tagAttributes.clear();
     int allAttributesStartPos = pos;
     int nextAttributeStartPos = pos;
-    AttributeScanner attributeScanner = new AttributeScanner(html);
     while (pos < end) {
       int startPos = pos;
       char ch = html.charAt(pos);
@@ -733,15 +792,13 @@ public class HtmlParser {
         X.assertTrue(pos > startPos);
 
         // If it's a valid attribute, scan attribute values
-        if (attributeScanner.getName() != null) {
+        if (attributeScanner.hasName()) {
           pos = attributeScanner.scanValue(pos, end);
 
           // Add the attribute to the list
           if (element != null) {
-            if (attributes == null) {
-              attributes = new ArrayList<HtmlDocument.TagAttribute>();
-            }
-            addAttribute(attributes, attributeScanner, nextAttributeStartPos, pos);
+            hasAttributes = true;
+            addAttribute(tagAttributes, attributeScanner, nextAttributeStartPos, pos);
           }
           nextAttributeStartPos = pos;
         }
@@ -764,7 +821,7 @@ public class HtmlParser {
         originalContent =
             CharMatcher.is('<').replaceFrom(html.substring(start, end), "&lt;");
       }
-      nodes.add(HtmlDocument.createEscapedText(textNodeContent, originalContent));
+      addNode(HtmlDocument.createEscapedText(textNodeContent, originalContent));
       return end;
     }
 
@@ -784,6 +841,10 @@ public class HtmlParser {
           state = State.IN_CDATA;
         }
 
+        // The tag gets a List of its own, just big enough
+        ArrayList<HtmlDocument.TagAttribute> attributes = hasAttributes
+            ? new ArrayList<HtmlDocument.TagAttribute>(tagAttributes) : null;
+        tagAttributes.clear();
         addStartTag(element, start, allAttributesStartPos,
             nextAttributeStartPos,
             pos, isSingleTag, attributes);
@@ -831,6 +892,101 @@ public class HtmlParser {
     return null;
   }
 
+  /**
+   * Like {@link #lookupElement(String)}, for the name from {@code start} to
+   * {@code end} in the html.
+   */
+  private HTML.Element lookupElement(int start, int end) {
+    if (defaultWhitelistOnly) {
+      return HTML4_ELEMENTS.lookup(html, start, end);
+    }
+    return lookupElement(html.substring(start, end));
+  }
+
+  /**
+   * Like {@link #lookupAttribute(String)}, for the name from {@code start} to
+   * {@code end} in the html.
+   */
+  private HTML.Attribute lookupAttribute(int start, int end) {
+    if (defaultWhitelistOnly) {
+      return HTML4_ATTRIBUTES.lookup(html, start, end);
+    }
+    return lookupAttribute(html.substring(start, end));
+  }
+
+  /**
+   * A case-insensitive table of lowercase names, such as those of HTML4,
+   * that finds the name in a region of a String without copying it. The
+   * names found are the keys of the table, so they are interned.
+   */
+  private static class NameTable<V> {
+    private final Map<String, V> map;
+    private final String[] names;
+    private final Object[] values;
+    private final int mask;
+
+    NameTable(Map<String, V> map) {
+      this.map = map;
+      int capacity = 1;
+      while (capacity < map.size() * 2) {
+        capacity <<= 1;
+      }
+      names = new String[capacity];
+      values = new Object[capacity];
+      mask = capacity - 1;
+      for (Map.Entry<String, V> entry : map.entrySet()) {
+        String name = entry.getKey();
+        int i = hash(name, 0, name.length()) & mask;
+        while (names[i] != null) {
+          i = (i + 1) & mask;
+        }
+        names[i] = name;
+        values[i] = entry.getValue();
+      }
+    }
+
+    /**
+     * @return Hash of the region with ASCII letters in lowercase, or -1 if
+     * the region has characters that are not ASCII.
+     */
+    private static int hash(String s, int start, int end) {
+      int h = 0;
+      for (int i = start; i < end; i++) {
+        char ch = s.charAt(i);
+        if (ch >= 0x80) {
+          return -1;
+        }
+        if (ch >= 'A' && ch <= 'Z') {
+          ch += 'a' - 'A';
+        }
+        h = 31 * h + ch;
+      }
+      return h & 0x7fffffff;
+    }
+
+    /**
+     * @return Value for the name from {@code start} to {@code end} in
+     * {@code s}, ignoring case like the map does, or null.
+     */
+    @SuppressWarnings("unchecked")
+    V lookup(String s, int start, int end) {
+      int h = hash(s, start, end);
+      if (h == -1) {
+        // Lowercasing could turn some of these characters into ASCII, so
+        // look them up as the map does.
+        return map.get(s.substring(start, end).toLowerCase());
+      }
+      int length = end - start;
+      for (int i = h & mask; names[i] != null; i = (i + 1) & mask) {
+        if (names[i].length() == length
+            && s.regionMatches(true, start, names[i], 0, length)) {
+          return (V) values[i];
+        }
+      }
+      return null;
+    }
+  }
+
   /**
    * @param element Tag element
    * @param startPos Start of tag, including '<'
@@ -858,7 +1014,7 @@ public class HtmlParser {
               beforeAttrs, afterAttrs)
           : HtmlDocument.createTag(element, attributes,
               beforeAttrs, afterAttrs);
-      nodes.add(tag);
+      addNode(tag);
     } else if (preserveValidHtml) {
       // This is the beginning of the tag up through the tag name. It should not
       // be possible for this to contain characters needing escaping, but we add
@@ -889,13 +1045,13 @@ public class HtmlParser {
               beforeAttrs.toString(), afterAttrs)
           : HtmlDocument.createTag(element, attributes,
               beforeAttrs.toString(), afterAttrs);
-      nodes.add(tag);
+      addNode(tag);
     } else {
       // Normalize.
       HtmlDocument.Tag tag = (isSingleTag)
           ? HtmlDocument.createSelfTerminatingTag(element, attributes)
           : HtmlDocument.createTag(element, attributes);
-      nodes.add(tag);
+      addNode(tag);
     }
   }
 
@@ -918,7 +1074,7 @@ public class HtmlParser {
       // Preserve all: keep actual content even if it's malformed.
       X.assertTrue(startPos < endPos);
       String content = html.substring(startPos, endPos);
-      nodes.add(HtmlDocument.createEndTag(element, content));
+      addNode(HtmlDocument.createEndTag(element, content));
     } else if (preserveValidHtml) {
       // Preserve valid: terminate the tag.
 
@@ -943,10 +1099,10 @@ public class HtmlParser {
       // Strip everything but leading whitespace.
       validContent.append(endOfTag.replaceAll("\\S+.*>", ">"));
 
-      nodes.add(HtmlDocument.createEndTag(element, validContent.toString()));
+      addNode(HtmlDocument.createEndTag(element, validContent.toString()));
     } else {
       // Normalize: ignore the original content.
-      nodes.add(HtmlDocument.createEndTag(element));
+      addNode(HtmlDocument.createEndTag(element));
     }
   }
 
@@ -965,9 +1121,9 @@ public class HtmlParser {
       AttributeScanner scanner, final int startPos, final int endPos) {
     X.assertTrue(startPos < endPos);
 
-    String name = scanner.getName();
-    X.assertTrue(name != null);
-    HTML.Attribute htmlAttribute = lookupAttribute(name);
+    X.assertTrue(scanner.hasName());
+    HTML.Attribute htmlAttribute =
+        lookupAttribute(scanner.startNamePos, scanner.endNamePos);
 
     // This can be null when there's no value, e.g., input.checked attribute.
     String value = scanner.getValue();
@@ -975,12 +1131,12 @@ public class HtmlParser {
     if (htmlAttribute == null) {
       // Unknown attribute.
       if (DEBUG) {
-        debug("Unknown attribute: " + name);
+        debug("Unknown attribute: " + scanner.getName());
       }
       if (preserveAll) {
         String original = html.substring(startPos, endPos);
         attributes.add(HtmlDocument.createTagAttribute(
-            lookupUnknownAttribute(name), value, original));
+            lookupUnknownAttribute(scanner.getName()), value, original));
       }
     } else {
       String unescapedValue = (value == null) ? null : StringUtil.unescapeHTML(value);
@@ -1011,7 +1167,7 @@ public class HtmlParser {
         } else {
           // Escape name in case the name has any quotes or '<' that could
           // confuse a browser.
-          original.append(CharEscapers.asciiHtmlEscaper().escape(name));
+          original.append(CharEscapers.asciiHtmlEscaper().escape(scanner.getName()));
 
           // This includes the equal sign, and any other whitespace
           // between the name and value. It also contains the opening quote
@@ -1075,7 +1231,7 @@ public class HtmlParser {
     }
 
     if (preserveAll) {
-      nodes.add(HtmlDocument.createHtmlComment(html.substring(start, pos)));
+      addNode(HtmlDocument.createHtmlComment(html.substring(start, pos)));
     }
 
     return pos;
@@ -1087,7 +1243,7 @@ public class HtmlParser {
   int scanCDATA(final int start, final int end) {
 
     // Get the tag: must be either STYLE or SCRIPT
-    HtmlDocument.Tag tag = (HtmlDocument.Tag) nodes.get(nodes.size() - 1);
+    HtmlDocument.Tag tag = (HtmlDocument.Tag) nodes[nodeCount - 1];
     HTML.Element element = tag.getElement();
     X.assertTrue(HTML4.SCRIPT_ELEMENT.equals(element) || HTML4.STYLE_ELEMENT.equals(element));
 
@@ -1106,7 +1262,7 @@ public class HtmlParser {
     if (pos > start) {
       HtmlDocument.CDATA cdata =
         HtmlDocument.createCDATA(html.substring(start, pos));
-      nodes.add(cdata);
+      addNode(cdata);
     }
 
     state = State.IN_TAG;
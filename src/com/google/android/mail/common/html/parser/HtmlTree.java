@@ -23,12 +23,12 @@ import com.google.android.mail.common.base.X;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableSet;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
-import java.util.Stack;
 import java.util.logging.Logger;
 
 /**
@@ -101,9 +101,12 @@ public class HtmlTree {
   /** Contains html nodes */
   private final List<HtmlDocument.Node> nodes = new ArrayList<HtmlDocument.Node>();
 
-  /** Keeps track of beginning and end of each node */
-  private final Stack<Integer> begins = new Stack<Integer>();
-  private final Stack<Integer> ends = new Stack<Integer>();
+  /**
+   * Keeps track of beginning and end of each node. The arrays may be longer
+   * than the list of nodes.
+   */
+  private int[] begins = new int[16];
+  private int[] ends = new int[16];
 
   /** Plain text (lazy creation) */
   private String plainText;
@@ -163,7 +166,7 @@ public class HtmlTree {
    */
   public int findOpenTag(int endTagNodeNum) {
     X.assertTrue(endTagNodeNum >= 0 && endTagNodeNum < nodes.size());
-    return begins.get(endTagNodeNum);
+    return begins[endTagNodeNum];
   }
 
   /**
@@ -172,7 +175,7 @@ public class HtmlTree {
    */
   public int findEndTag(int openTagNodeNum) {
     X.assertTrue(openTagNodeNum >= 0 && openTagNodeNum < nodes.size());
-    return ends.get(openTagNodeNum);
+    return ends[openTagNodeNum];
   }
 
   /**
@@ -181,8 +184,8 @@ public class HtmlTree {
    */
   public int findPairedTag(int tagNodeNum) {
     X.assertTrue(tagNodeNum >= 0 && tagNodeNum < nodes.size());
-    int openNodeNum = begins.get(tagNodeNum);
-    int endNodeNum = ends.get(tagNodeNum);
+    int openNodeNum = begins[tagNodeNum];
+    int endNodeNum = ends[tagNodeNum];
     return tagNodeNum == openNodeNum ? endNodeNum : openNodeNum;
   }
 
@@ -214,14 +217,49 @@ public class HtmlTree {
    * to do wrapping at the specified size.
    */
   public String getHtml(int fromNode, int toNode, int wrapSize) {
-    X.assertTrue(fromNode >= 0 && toNode <= nodes.size());
-
     int estSize = (toNode - fromNode) * 10;
     StringBuilder sb = new StringBuilder(estSize);
+    try {
+      appendHtml(fromNode, toNode, wrapSize, sb);
+    } catch (IOException ex) {
+      // StringBuilder.append does not throw IOExceptions.
+      throw new RuntimeException(ex);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Appends parts of the html to {@code out}, wrapping it as
+   * {@link #getHtml(int, int, int)} does, without building a String of it
+   * first. Unless {@code out} is a StringBuilder, the nodes are rendered one
+   * at a time into a small buffer.
+   */
+  public void appendHtml(int fromNode, int toNode, int wrapSize, Appendable out)
+      throws IOException {
+    X.assertTrue(fromNode >= 0 && toNode <= nodes.size());
+
+    StringBuilder sb = (out instanceof StringBuilder)
+        ? (StringBuilder) out : new StringBuilder(256);
+    int length = 0;             // chars of html appended so far
+    int lastNewLine = -1;       // position of the last '\n' appended
     int lastWrapIndex = 0;      // used for wrapping
     for (int n = fromNode; n < toNode; n++) {
       HtmlDocument.Node node = nodes.get(n);
+      int nodeStart = sb.length();
       node.toHTML(sb);
+      if (wrapSize > 0) {
+        for (int i = sb.length() - 1; i >= nodeStart; i--) {
+          if (sb.charAt(i) == '\n') {
+            lastNewLine = length + (i - nodeStart);
+            break;
+          }
+        }
+      }
+      length += sb.length() - nodeStart;
+      if (sb != out) {
+        out.append(sb);
+        sb.setLength(0);
+      }
       // TODO: maybe we can be smarter about this and not add newlines
       // within <pre> tags, unless the whole long line is encompassed
       // by the <pre> tag.
@@ -233,22 +271,22 @@ public class HtmlTree {
               ((HtmlDocument.Tag) node).getElement().breaksFlow()) ||
             (node instanceof HtmlDocument.EndTag &&
               ((HtmlDocument.EndTag) node).getElement().breaksFlow())) {
-          // Check to see if there is a newline in the most recent node's html.
-          int recentNewLine = sb.substring(lastWrapIndex + 1).lastIndexOf('\n');
-          if (recentNewLine != -1) {
-            lastWrapIndex += recentNewLine;
+          // Check to see if there is a newline since the last wrap. (This
+          // has always left lastWrapIndex just before that newline.)
+          if (lastNewLine > lastWrapIndex) {
+            lastWrapIndex = lastNewLine - 1;
           }
           // If the last index - last index of a newline is greater than
           // wrapSize, add a newline.
-          if (((sb.length() - 1) - lastWrapIndex) > wrapSize) {
-            sb.append('\n');
-            lastWrapIndex = sb.length() - 1;
+          if (((length - 1) - lastWrapIndex) > wrapSize) {
+            out.append('\n');
+            lastWrapIndex = length;
+            lastNewLine = length;
+            length++;
           }
         }
       }
     }
-
-    return sb.toString();
   }
 
   /**
@@ -395,8 +433,8 @@ public class HtmlTree {
     for (int n = startNode; n < endNode;) {
 
       // The node n spans [nBegin, nEnd]
-      int nBegin = begins.get(n);
-      int nEnd = ends.get(n);
+      int nBegin = begins[n];
+      int nEnd = ends[n];
 
       if (blockStart == -1) {
         // Check if this is a valid start node
@@ -549,6 +587,18 @@ public class HtmlTree {
     return plainText.substring(textstart, textend);
   }
 
+  /**
+   * Appends the plain-text of a part of the html tree to {@code out}, without
+   * copying it into a String of its own.
+   */
+  public void appendPlainText(int fromNode, int toNode, Appendable out)
+      throws IOException {
+    if (plainText == null) {
+      convertToPlainText();
+    }
+    out.append(plainText, textPositions[fromNode], textPositions[toNode]);
+  }
+
   /**
    * Converts the html tree to plain text.
    * We simply iterate through the nodes in the tree.
@@ -570,7 +620,7 @@ public class HtmlTree {
 
     for (int i = 0; i < numNodes; i++) {
       textPositions[i] = converter.getPlainTextLength();
-      converter.addNode(nodes.get(i), i, ends.get(i));
+      converter.addNode(nodes.get(i), i, ends[i]);
     }
 
     // Add a last entry, so that textPositions_[nodes_.size()] is valid.
@@ -618,7 +668,7 @@ public class HtmlTree {
         Converter<Spanned> converter = (Converter<Spanned>) converterFactory.createInstance();
 
         for (int i = 0; i < numNodes; i++) {
-            converter.addNode(nodes.get(i), i, ends.get(i));
+            converter.addNode(nodes.get(i), i, ends[i]);
         }
 
         constructedSpan = converter.getObject();
@@ -692,6 +742,11 @@ public class HtmlTree {
       return sb.toString();
     }
 
+    /** Returns the text appended since the text was {@code start} long. */
+    final String getTextSince(int start) {
+      return sb.substring(start);
+    }
+
     /**
      * Sets the next separator between two text nodes. A Space separator is
      * used if there is any whitespace between the two text nodes when there is
@@ -970,25 +1025,38 @@ public class HtmlTree {
     public final String getObject() {
       return printer.getText();
     }
+
+    /**
+     * Returns the plain text added since it was {@code start} characters long.
+     * Unlike {@link #getObject}, this only copies the new text, so a caller
+     * can follow the conversion node by node in linear time: pass the
+     * previous {@link #getPlainTextLength} as {@code start}.
+     */
+    public final String getTextSince(int start) {
+      return printer.getTextSince(start);
+    }
   }
 
   //------------------------------------------------------------------------
   // The following methods are used to build the html tree.
   //------------------------------------------------------------------------
   /** For building the html tree */
-  private Stack<Integer> stack;
+  private int[] stack;
+  private int stackSize;
   private int parent;
 
   /** Starts the build process */
   void start() {
-    stack = new Stack<Integer>();
+    stack = new int[16];
+    stackSize = 0;
     parent = -1;
   }
 
   /** Finishes the build process */
   void finish() {
-    X.assertTrue(stack.size() == 0);
+    X.assertTrue(stackSize == 0);
     X.assertTrue(parent == -1);
+    stack = null;
   }
 
   /**
@@ -999,7 +1067,10 @@ public class HtmlTree {
     int nodenum = nodes.size();
     addNode(t, nodenum, -1);
 
-    stack.add(parent);
+    if (stackSize == stack.length) {
+      stack = Arrays.copyOf(stack, stackSize * 2);
+    }
+    stack[stackSize++] = parent;
     parent = nodenum;
   }
 
@@ -1011,10 +1082,10 @@ public class HtmlTree {
     addNode(t, parent, nodenum);
 
     if (parent != -1) {
-      ends.set(parent, nodenum);
+      ends[parent] = nodenum;
     }
 
-    parent = stack.pop();
+    parent = stack[--stackSize];
   }
 
   /** Adds a singular tag that does not have a corresponding end tag */
@@ -1034,9 +1105,14 @@ public class HtmlTree {
 
   /** Adds a node */
   private void addNode(HtmlDocument.Node n, int begin, int end) {
+    int nodenum = nodes.size();
+    if (nodenum == begins.length) {
+      begins = Arrays.copyOf(begins, nodenum * 2);
+      ends = Arrays.copyOf(ends, nodenum * 2);
+    }
     nodes.add(n);
-    begins.add(begin);
-    ends.add(end);
+    begins[nodenum] = begin;
+    ends[nodenum] = end;
   }
 
   /** For debugging */
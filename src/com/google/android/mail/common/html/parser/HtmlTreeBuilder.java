@@ -26,7 +26,9 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * HtmlTreeBuilder builds a well-formed HtmlTree.
+ * HtmlTreeBuilder builds a well-formed HtmlTree. A builder can be reused for
+ * another document once it has finished, or after a failed build; each build
+ * starts a new tree.
  *
  * @see HtmlTree
  * @author jlim@google.com (Jing Yee Lim)
@@ -49,6 +51,11 @@ public class HtmlTreeBuilder implements HtmlDocument.Visitor {
 
   /** Implements HtmlDocument.Visitor.start */
   public void start() {
+    // Forget anything left over from a build that did not finish
+    stack.clear();
+    tableFixer.reset();
+    built = false;
+
     tree = new HtmlTree();
     tree.start();
   }
@@ -192,6 +199,11 @@ public class HtmlTreeBuilder implements HtmlDocument.Visitor {
 
     private int state;
 
+    void reset() {
+      tables = 0;
+      state = NULL;
+    }
+
     void seeTag(HtmlDocument.Tag tag) {
       HTML.Element element = tag.getElement();
       if (element.getType() == HTML.Element.TABLE_TYPE) {
@@ -21,12 +21,15 @@ package org.apache.james.mime4j;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PushbackInputStream;
 
 /**
  * InputStream which converts <code>\r</code>
  * bytes not followed by <code>\n</code> and <code>\n</code> not 
  * preceded by <code>\r</code> to <code>\r\n</code>.
+ * <p>
+ * The underlying stream is read in blocks. A block whose line endings are
+ * already <code>\r\n</code> is handed out as it is; only blocks with bare
+ * <code>\r</code> or <code>\n</code> bytes are copied while converting.
  *
  * 
  * @version $Id: EOLConvertingInputStream.java,v 1.4 2004/11/29 13:15:42 ntherning Exp $
@@ -39,8 +42,9 @@ public class EOLConvertingInputStream extends InputStream {
     /** Converts single '\r' and '\n' to '\r\n' */
     public static final int CONVERT_BOTH = 3;
 
-    private PushbackInputStream in = null;
-    private int previous = 0;
+    private static final int BUFFER_SIZE = 8192;
+
+    private InputStream in = null;
     private int flags = CONVERT_BOTH;
     private int size = 0;
     private int pos = 0;
@@ -48,10 +52,40 @@ public class EOLConvertingInputStream extends InputStream {
     private int tenPctSize;
     private Callback callback;
 
+    /** Unconverted bytes read from the underlying stream */
+    private final byte[] raw = new byte[BUFFER_SIZE];
+    /** Holds converted bytes when a block needs converting */
+    private byte[] converted = null;
+    /** Bytes ready to be returned are output[outputPos..outputLimit) */
+    private byte[] output = raw;
+    private int outputPos = 0;
+    private int outputLimit = 0;
+    /** Whether the last byte read from the underlying stream was '\r' */
+    private boolean previousCR = false;
+    private boolean eof = false;
+    /** Bytes read from the underlying stream, and bytes of output produced from them */
+    private long sourcePos = 0;
+    private long produced = 0;
+    private Checkpoints checkpoints = null;
+
     public interface Callback {
         public void report(int bytesRead);
     }
 
+    /**
+     * Told where each block read from the underlying stream starts, so
+     * that conversion can later be resumed from there with
+     * {@link EOLConvertingInputStream#EOLConvertingInputStream(InputStream, boolean)}.
+     */
+    public interface Checkpoints {
+        /**
+         * @param outputOffset offset of the block's first converted byte in this stream
+         * @param sourceOffset offset of the block in the underlying stream
+         * @param previousCR whether the byte before the block was '\r'
+         */
+        public void add(long outputOffset, long sourceOffset, boolean previousCR);
+    }
+
     /**
      * Creates a new <code>EOLConvertingInputStream</code>
      * instance converting bytes in the given <code>InputStream</code>.
@@ -61,7 +95,7 @@ public class EOLConvertingInputStream extends InputStream {
      */
     public EOLConvertingInputStream(InputStream _in) {
         super();
-        in = new PushbackInputStream(_in, 2);
+        in = _in;
     }
 
     /**
@@ -80,6 +114,30 @@ public class EOLConvertingInputStream extends InputStream {
         callback = _callback;
     }
 
+    /**
+     * Creates a new <code>EOLConvertingInputStream</code> that reports
+     * where each block of the underlying stream starts.
+     *
+     * @param _in the <code>InputStream</code> to read from.
+     * @param _checkpoints told about each block read from <code>_in</code>
+     */
+    public EOLConvertingInputStream(InputStream _in, Checkpoints _checkpoints) {
+        this(_in);
+        checkpoints = _checkpoints;
+    }
+
+    /**
+     * Creates a new <code>EOLConvertingInputStream</code> resuming
+     * conversion in the middle of a stream.
+     *
+     * @param _in the rest of the stream to convert.
+     * @param _previousCR whether the byte before the rest was '\r'.
+     */
+    public EOLConvertingInputStream(InputStream _in, boolean _previousCR) {
+        this(_in);
+        previousCR = _previousCR;
+    }
+
     /**
      * Closes the underlying stream.
      * 
@@ -88,52 +146,209 @@ public class EOLConvertingInputStream extends InputStream {
     public void close() throws IOException {
         in.close();
     }
-    
-    private int readByte() throws IOException {
-        int b = in.read();
-        if (b != -1) {
-            if (callback != null && pos++ == nextTenPctPos) {
+
+    /**
+     * Counts bytes read from the underlying stream, reporting each 10% of
+     * the expected size that has been passed.
+     */
+    private void advance(int count) {
+        pos += count;
+        while (callback != null && pos > nextTenPctPos) {
+            callback.report(pos);
+            if (tenPctSize == 0) {
+                // Report a tiny stream once
+                nextTenPctPos = Integer.MAX_VALUE;
+            } else {
                 nextTenPctPos += tenPctSize;
-                if (callback != null) {
-                    callback.report(pos);
+            }
+        }
+    }
+
+    /**
+     * @return the index of the first byte in b[off..off+len) before which
+     *         a '\r' or '\n' has to be inserted, or -1 if there is none.
+     */
+    private int firstConversion(byte[] b, int off, int len) {
+        boolean cr = previousCR;
+        final int end = off + len;
+        for (int i = off; i < end; i++) {
+            final byte c = b[i];
+            if (cr) {
+                if (c != '\n' && (flags & CONVERT_CR) != 0) {
+                    return i;
+                }
+            } else if (c == '\n' && (flags & CONVERT_LF) != 0) {
+                return i;
+            }
+            cr = c == '\r';
+        }
+        return -1;
+    }
+
+    /**
+     * Converts raw[0..len) into the output buffer, handing out raw as it
+     * is if nothing needs converting from index <code>first</code> on.
+     */
+    private void convert(int len, int first) {
+        if (first < 0) {
+            output = raw;
+            outputPos = 0;
+            outputLimit = len;
+            previousCR = raw[len - 1] == '\r';
+            return;
+        }
+        if (converted == null) {
+            // Every byte may need a byte inserted before it
+            converted = new byte[raw.length * 2];
+        }
+        final byte[] out = converted;
+        System.arraycopy(raw, 0, out, 0, first);
+        int o = first;
+        boolean cr = first > 0 ? raw[first - 1] == '\r' : previousCR;
+        for (int i = first; i < len; i++) {
+            final byte c = raw[i];
+            if (cr) {
+                if (c != '\n' && (flags & CONVERT_CR) != 0) {
+                    out[o++] = '\n';
                 }
+            } else if (c == '\n' && (flags & CONVERT_LF) != 0) {
+                out[o++] = '\r';
+            }
+            out[o++] = c;
+            cr = c == '\r';
+        }
+        previousCR = cr;
+        output = out;
+        outputPos = 0;
+        outputLimit = o;
+    }
+
+    /**
+     * Reads and converts the next block of the underlying stream.
+     *
+     * @return <code>false</code> at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        while (!eof) {
+            final int n = in.read(raw, 0, raw.length);
+            if (n < 0) {
+                return endOfStream();
+            }
+            if (n > 0) {
+                startBlock(n);
+                convert(n, firstConversion(raw, 0, n));
+                produced += outputLimit;
+                return true;
             }
         }
-        return b;
+        return false;
+    }
+
+    /**
+     * Accounts for a block of <code>count</code> bytes just read from the
+     * underlying stream, before it is converted.
+     */
+    private void startBlock(int count) {
+        if (checkpoints != null) {
+            checkpoints.add(produced, sourcePos, previousCR);
+        }
+        sourcePos += count;
+        advance(count);
     }
 
-    private void unreadByte(int c) throws IOException {
-        in.unread(c);
-        pos--;
+    /**
+     * Notes the end of the underlying stream.
+     *
+     * @return <code>true</code> if a '\n' still has to be returned after a
+     *         '\r' at the very end.
+     */
+    private boolean endOfStream() {
+        eof = true;
+        pos = size;
+        if (previousCR && (flags & CONVERT_CR) != 0) {
+            previousCR = false;
+            raw[0] = '\n';
+            output = raw;
+            outputPos = 0;
+            outputLimit = 1;
+            produced++;
+            return true;
+        }
+        return false;
     }
 
     /**
      * @see java.io.InputStream#read()
      */
     public int read() throws IOException {
-        int b = readByte();
-        
-        if (b == -1) {
-            pos = size;
+        if (outputPos == outputLimit && !fill()) {
             return -1;
         }
-        
-        if ((flags & CONVERT_CR) != 0 && b == '\r') {
-            int c = readByte();
-            if (c != -1) {
-                unreadByte(c);
+        return output[outputPos++] & 0xFF;
+    }
+
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (outputPos == outputLimit) {
+            if (len >= raw.length && !eof) {
+                return readDirect(b, off);
             }
-            if (c != '\n') {
-                unreadByte('\n');
+            if (!fill()) {
+                return -1;
             }
-        } else if ((flags & CONVERT_LF) != 0 && b == '\n' && previous != '\r') {
-            b = '\r';
-            unreadByte('\n');
         }
-        
-        previous = b;
-        
-        return b;
+        final int count = Math.min(len, outputLimit - outputPos);
+        System.arraycopy(output, outputPos, b, off, count);
+        outputPos += count;
+        return count;
     }
 
+    /**
+     * Reads a block of the underlying stream straight into the caller's
+     * buffer, which has room for at least a full block. The bytes before
+     * the first one that needs converting stay there; the rest are
+     * converted and kept for the next read.
+     */
+    private int readDirect(byte[] b, int off) throws IOException {
+        final int n = in.read(b, off, raw.length);
+        if (n < 0) {
+            if (!endOfStream()) {
+                return -1;
+            }
+            b[off] = output[outputPos++];
+            return 1;
+        } else if (n == 0) {
+            return 0;
+        }
+        startBlock(n);
+        final int first = firstConversion(b, off, n);
+        if (first < 0) {
+            previousCR = b[off + n - 1] == '\r';
+            produced += n;
+            return n;
+        }
+        final int kept = first - off;
+        if (kept > 0) {
+            previousCR = b[first - 1] == '\r';
+        }
+        System.arraycopy(b, first, raw, 0, n - kept);
+        // The first of these bytes is known to need converting
+        convert(n - kept, 0);
+        produced += kept + outputLimit;
+        if (kept > 0) {
+            return kept;
+        }
+        final int count = Math.min(raw.length, outputLimit);
+        System.arraycopy(output, 0, b, off, count);
+        outputPos = count;
+        return count;
+    }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered stream whose buffer {@link MimeBoundaryInputStream} scans in place. Bytes that a
+ * boundary stream has looked at but not consumed stay in the buffer, so all the body parts of
+ * a multipart and its epilogue must be read through the same instance; see {@link #wrap}.
+ */
+class LookaheadInputStream extends InputStream {
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    /** Buffered bytes are buffer[pos..limit) */
+    byte[] buffer;
+    int pos = 0;
+    int limit = 0;
+    private boolean eof = false;
+    /** Total number of bytes read from the underlying stream */
+    private long filled = 0;
+
+    LookaheadInputStream(InputStream in) {
+        this.in = in;
+        this.buffer = new byte[DEFAULT_BUFFER_SIZE];
+    }
+
+    /**
+     * @return <code>is</code> if it already is a <code>LookaheadInputStream</code>, or a new
+     *         one reading from it.
+     */
+    static LookaheadInputStream wrap(InputStream is) {
+        return is instanceof LookaheadInputStream
+                ? (LookaheadInputStream) is : new LookaheadInputStream(is);
+    }
+
+    /**
+     * Reads more bytes from the underlying stream into the buffer, moving the buffered bytes
+     * to the start of the buffer or growing it as needed.
+     *
+     * @return <code>false</code> if the underlying stream has no more bytes.
+     * @throws IOException on I/O errors.
+     */
+    boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        } else if (limit == buffer.length) {
+            final byte[] larger = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, larger, 0, limit);
+            buffer = larger;
+        }
+        final int n = in.read(buffer, limit, buffer.length - limit);
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+        limit += n;
+        filled += n;
+        return true;
+    }
+
+    /**
+     * @return the number of bytes of the underlying stream consumed by
+     *         the readers of this one.
+     */
+    long position() {
+        return filled - (limit - pos);
+    }
+
+    public int read() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buffer[pos++] & 0xFF;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        final int count = Math.min(len, limit - pos);
+        System.arraycopy(buffer, pos, b, off, count);
+        pos += count;
+        return count;
+    }
+
+    public int available() throws IOException {
+        return limit - pos;
+    }
+
+    /**
+     * Closes the underlying stream.
+     *
+     * @throws IOException on I/O errors.
+     */
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -21,7 +21,6 @@ package org.apache.james.mime4j;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PushbackInputStream;
 
 /**
  * Stream that constrains itself to a single MIME body part.
@@ -29,19 +28,41 @@ import java.io.PushbackInputStream;
  * can be used to determine if a final boundary has been seen or not.
  * If {@link #parentEOF()} is <code>true</code> an unexpected end of stream
  * has been detected in the parent stream.
- * 
+ * <p>
+ * The part ends at the first <code>\r\n--boundary</code> in the parent stream, or at a
+ * <code>--boundary</code> right at its start. The parent is read in blocks through a
+ * {@link LookaheadInputStream}, which is searched for the delimiter with a
+ * Boyer-Moore-Horspool skip table; body bytes up to the delimiter are handed out in whole
+ * chunks by {@link #read(byte[], int, int)}.
+ * <p>
+ * Bytes after the end of the part are left in the <code>LookaheadInputStream</code>. The
+ * next part must therefore be read from the same one: pass it in, or pass the same stream
+ * that {@link LookaheadInputStream#wrap} returned for the previous part.
  * 
  * 
  * @version $Id: MimeBoundaryInputStream.java,v 1.2 2004/11/29 13:15:42 ntherning Exp $
  */
 public class MimeBoundaryInputStream extends InputStream {
     
-    private PushbackInputStream s = null;
-    private byte[] boundary = null;
-    private boolean first = true;
+    private final LookaheadInputStream s;
+    /** "--" + boundary */
+    private final byte[] boundary;
+    /** "\r\n--" + boundary */
+    private final byte[] delimiter;
+    /** Horspool shift for each value of the byte under the last delimiter position */
+    private final int[] skip = new int[256];
+    /**
+     * The old byte-at-a-time matcher compared unsigned bytes with signed ones, so a boundary
+     * with non-ASCII characters never matched. Keep doing that.
+     */
+    private final boolean matchable;
     private boolean eof = false;
     private boolean parenteof = false;
     private boolean moreParts = true;
+    /** Number of buffered bytes at the current position known to be body bytes */
+    private int bodyRemaining = 0;
+    /** Whether the delimiter follows those body bytes */
+    private boolean delimiterAhead = false;
 
     /**
      * Creates a new MimeBoundaryInputStream.
@@ -51,21 +72,39 @@ public class MimeBoundaryInputStream extends InputStream {
     public MimeBoundaryInputStream(InputStream s, String boundary) 
             throws IOException {
         
-        this.s = new PushbackInputStream(s, boundary.length() + 4);
+        this.s = LookaheadInputStream.wrap(s);
 
         boundary = "--" + boundary;
         this.boundary = new byte[boundary.length()];
+        this.delimiter = new byte[boundary.length() + 2];
+        this.delimiter[0] = '\r';
+        this.delimiter[1] = '\n';
+        boolean ascii = true;
         for (int i = 0; i < this.boundary.length; i++) {
             this.boundary[i] = (byte) boundary.charAt(i);
+            this.delimiter[i + 2] = this.boundary[i];
+            ascii &= this.boundary[i] >= 0;
         }
-        
+        this.matchable = ascii;
+
+        final int last = delimiter.length - 1;
+        for (int i = 0; i < skip.length; i++) {
+            skip[i] = delimiter.length;
+        }
+        for (int i = 0; i < last; i++) {
+            skip[delimiter[i] & 0xFF] = last - i;
+        }
+
         /*
-         * By reading one byte we will update moreParts to be as expected
-         * before any bytes have been read.
+         * Look for a boundary right at the start, and then for the
+         * delimiter or EOF, so that moreParts is as expected before
+         * any bytes have been read.
          */
-        int b = read();
-        if (b != -1) {
-            this.s.unread(b);
+        if (matchable && startsWith(this.boundary)) {
+            this.s.pos += this.boundary.length;
+            readBoundaryTail();
+        } else {
+            scan();
         }
     }
 
@@ -106,7 +145,9 @@ public class MimeBoundaryInputStream extends InputStream {
      * @throws IOException on I/O errors.
      */
     public void consume() throws IOException {
-        while (read() != -1) {
+        while (bodyRemaining > 0 || scan()) {
+            s.pos += bodyRemaining;
+            bodyRemaining = 0;
         }
     }
     
@@ -114,51 +155,150 @@ public class MimeBoundaryInputStream extends InputStream {
      * @see java.io.InputStream#read()
      */
     public int read() throws IOException {
-        if (eof) {
+        if (bodyRemaining == 0 && !scan()) {
             return -1;
         }
-        
-        if (first) {
-            first = false;
-            if (matchBoundary()) {
-                return -1;
-            }
+        bodyRemaining--;
+        return s.buffer[s.pos++] & 0xFF;
+    }
+
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
         }
-        
-        int b1 = s.read();
-        int b2 = s.read();
-        
-        if (b1 == '\r' && b2 == '\n') {
-            if (matchBoundary()) {
-                return -1;
-            }
+        if (len == 0) {
+            return 0;
         }
-        
-        if (b2 != -1) {
-            s.unread(b2);
+        if (bodyRemaining == 0 && !scan()) {
+            return -1;
         }
+        final int count = Math.min(len, bodyRemaining);
+        System.arraycopy(s.buffer, s.pos, b, off, count);
+        s.pos += count;
+        bodyRemaining -= count;
+        return count;
+    }
 
-        parenteof = b1 == -1;
-        eof = parenteof;
-        
-        return b1;
+    public int available() throws IOException {
+        return bodyRemaining;
     }
-    
-    private boolean matchBoundary() throws IOException {
-        
-        for (int i = 0; i < boundary.length; i++) {
-            int b = s.read();
-            if (b != boundary[i]) {
-                if (b != -1) {
-                    s.unread(b);
+
+    /**
+     * Finds out how many of the bytes at the current position are body bytes, reading more of
+     * the parent stream as needed. If the delimiter or the end of the parent stream comes
+     * first, consumes the boundary line and marks this stream as ended.
+     *
+     * @return <code>true</code> if {@link #bodyRemaining} is now positive,
+     *         <code>false</code> if this stream has ended.
+     */
+    private boolean scan() throws IOException {
+        while (!eof) {
+            if (delimiterAhead) {
+                delimiterAhead = false;
+                s.pos += delimiter.length;
+                readBoundaryTail();
+                return false;
+            }
+
+            final int found = matchable ? indexOfDelimiter(s.buffer, s.pos, s.limit) : -1;
+            if (found >= 0) {
+                bodyRemaining = found - s.pos;
+                delimiterAhead = true;
+                if (bodyRemaining > 0) {
+                    return true;
                 }
-                for (int j = i - 1; j >= 0; j--) {
-                    s.unread(boundary[j]);
+                continue;
+            }
+
+            // Hold back a trailing partial delimiter until more bytes show whether it is one
+            final int safe = (matchable ? partialDelimiterStart(s.buffer, s.pos, s.limit)
+                    : s.limit) - s.pos;
+            if (safe > 0) {
+                bodyRemaining = safe;
+                return true;
+            }
+            if (!s.fill()) {
+                if (s.limit > s.pos) {
+                    // A partial delimiter at EOF is just body
+                    bodyRemaining = s.limit - s.pos;
+                    return true;
                 }
+                parenteof = true;
+                eof = true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the stream at the current position starts with <code>bytes</code>.
+     */
+    private boolean startsWith(byte[] bytes) throws IOException {
+        while (s.limit - s.pos < bytes.length && s.fill()) {
+        }
+        if (s.limit - s.pos < bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (s.buffer[s.pos + i] != bytes[i]) {
                 return false;
             }
         }
-        
+        return true;
+    }
+
+    /**
+     * Boyer-Moore-Horspool search for the delimiter in buffer[from..to).
+     *
+     * @return the index of the first occurrence, or -1.
+     */
+    private int indexOfDelimiter(byte[] buffer, int from, int to) {
+        final byte[] pattern = delimiter;
+        final int last = pattern.length - 1;
+        for (int i = from; i <= to - pattern.length; ) {
+            final byte tail = buffer[i + last];
+            if (tail == pattern[last]) {
+                int j = last - 1;
+                while (j >= 0 && buffer[i + j] == pattern[j]) {
+                    j--;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += skip[tail & 0xFF];
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the first position in buffer[from..to) from which the rest of the
+     *         buffer is a proper prefix of the delimiter, or <code>to</code>.
+     */
+    private int partialDelimiterStart(byte[] buffer, int from, int to) {
+        for (int i = Math.max(from, to - delimiter.length + 1); i < to; i++) {
+            if (buffer[i] != '\r') {
+                continue;
+            }
+            int j = i + 1;
+            while (j < to && buffer[j] == delimiter[j - i]) {
+                j++;
+            }
+            if (j == to) {
+                return i;
+            }
+        }
+        return to;
+    }
+
+    /**
+     * Consumes the rest of a boundary line whose boundary has just been
+     * consumed, noting whether it was the end boundary.
+     */
+    private void readBoundaryTail() throws IOException {
         /*
          * We have a match. Is it an end boundary?
          */
@@ -178,7 +318,5 @@ public class MimeBoundaryInputStream extends InputStream {
         }
         
         eof = true;
-        
-        return true;
     }
 }
@@ -57,6 +57,10 @@ public class MimeStreamParser {
     private ContentHandler handler = null;
     private boolean raw = false;
     private boolean prematureEof = false;
+    /** Number of bytes in the last header parsed, including the blank line */
+    private long headerLength = 0;
+    /** Offset of the body being reported to ContentHandler#body, or -1 */
+    private long bodyOffset = -1;
 
     static {
         fieldChars = new BitSet();
@@ -82,7 +86,19 @@ public class MimeStreamParser {
      */
     public void parse(InputStream is) throws IOException {
         rootStream = new RootInputStream(is);
-        parseMessage(rootStream);
+        parseMessage(rootStream, 0);
+    }
+
+    /**
+     * Gets the offset in the parsed stream of the first byte of the body
+     * being passed to {@link ContentHandler#body(BodyDescriptor, InputStream)}.
+     * Only valid during that call.
+     *
+     * @return the offset, or -1 if the body is not a plain slice of the
+     *         parsed stream (e.g. within a base64 encoded message/rfc822).
+     */
+    public long getBodyOffset() {
+        return bodyOffset;
     }
 
     /**
@@ -131,16 +147,26 @@ public class MimeStreamParser {
      * arbitrary data, body parts or an embedded message.
      *
      * @param is the stream to parse.
+     * @param offset the offset of the first byte of <code>is</code> in the
+     *        parsed stream, or -1 if unknown.
      * @throws IOException on I/O errors.
      */
-    private void parseEntity(InputStream is) throws IOException {
+    private void parseEntity(InputStream is, long offset) throws IOException {
         BodyDescriptor bd = parseHeader(is);
+        final long contentOffset = offset >= 0 ? offset + headerLength : -1;
 
         if (bd.isMultipart()) {
             bodyDescriptors.addFirst(bd);
 
             handler.startMultipart(bd);
 
+            /*
+             * The boundary streams read ahead, so every part and the
+             * epilogue must come from the same buffered stream.
+             */
+            final LookaheadInputStream lookahead = LookaheadInputStream.wrap(is);
+            final long lookaheadStart = lookahead.position();
+            is = lookahead;
             MimeBoundaryInputStream tempIs =
                 new MimeBoundaryInputStream(is, bd.getBoundary());
             handler.preamble(new CloseShieldInputStream(tempIs));
@@ -148,7 +174,8 @@ public class MimeStreamParser {
 
             while (tempIs.hasMoreParts()) {
                 tempIs = new MimeBoundaryInputStream(is, bd.getBoundary());
-                parseBodyPart(tempIs);
+                parseBodyPart(tempIs, contentOffset >= 0
+                        ? contentOffset + lookahead.position() - lookaheadStart : -1);
                 tempIs.consume();
                 if (tempIs.parentEOF()) {
                     prematureEof = true;
@@ -179,10 +206,13 @@ public class MimeStreamParser {
                         new QuotedPrintableInputStream(is));
             }
             bodyDescriptors.addFirst(bd);
-            parseMessage(is);
+            parseMessage(is, bd.isBase64Encoded() || bd.isQuotedPrintableEncoded()
+                    ? -1 : contentOffset);
             bodyDescriptors.removeFirst();
         } else {
+            bodyOffset = contentOffset;
             handler.body(bd, new CloseShieldInputStream(is));
+            bodyOffset = -1;
         }
 
         /*
@@ -192,12 +222,12 @@ public class MimeStreamParser {
         }
     }
 
-    private void parseMessage(InputStream is) throws IOException {
+    private void parseMessage(InputStream is, long offset) throws IOException {
         if (raw) {
             handler.raw(new CloseShieldInputStream(is));
         } else {
             handler.startMessage();
-            parseEntity(is);
+            parseEntity(is, offset);
             handler.endMessage();
         }
     }
@@ -206,12 +236,12 @@ public class MimeStreamParser {
         return prematureEof;
     }
 
-    private void parseBodyPart(InputStream is) throws IOException {
+    private void parseBodyPart(InputStream is, long offset) throws IOException {
         if (raw) {
             handler.raw(new CloseShieldInputStream(is));
         } else {
             handler.startBodyPart();
-            parseEntity(is);
+            parseEntity(is, offset);
             handler.endBodyPart();
         }
     }
@@ -234,7 +264,9 @@ public class MimeStreamParser {
         StringBuffer sb = new StringBuffer();
         int curr = 0;
         int prev = 0;
+        headerLength = 0;
         while ((curr = is.read()) != -1) {
+            headerLength++;
             if (curr == '\n' && (prev == '\n' || prev == 0)) {
                 /*
                  * [\r]\n[\r]\n or an immediate \r\n have been seen.
@@ -33,11 +33,21 @@ import java.io.InputStream;
  * @version $Id: Base64InputStream.java,v 1.3 2004/11/29 13:15:47 ntherning Exp $
  */
 public class Base64InputStream extends InputStream {
+    private static final int BUFFER_SIZE = 8192;
+
     private final InputStream s;
-    private int outCount = 0;
+    /** Encoded bytes read ahead from s */
+    private final byte[] inputBuffer = new byte[BUFFER_SIZE];
+    private int inPos = 0;
+    private int inCount = 0;
+    /** Sextets of the current, incomplete quantum, and how many there are */
+    private int quantum = 0;
+    private int quantumCount = 0;
+    /** Decoded bytes that didn't fit in the caller's array */
+    private final byte[] outputBuffer = new byte[3];
     private int outIndex = 0;
-    private final int[] outputBuffer = new int[3];
-    private final byte[] inputBuffer = new byte[4];
+    private int outCount = 0;
+    private final byte[] singleByte = new byte[1];
     private boolean done = false;
 
     public Base64InputStream(InputStream s) {
@@ -56,76 +66,144 @@ public class Base64InputStream extends InputStream {
     
     @Override
     public int read() throws IOException {
-        if (outIndex == outCount) {
-            fillBuffer();
-            if (outIndex == outCount) {
-                return -1;
+        if (outIndex < outCount) {
+            return outputBuffer[outIndex++] & 0xFF;
+        }
+        int n;
+        do {
+            n = read(singleByte, 0, 1);
+        } while (n == 0);
+        return n < 0 ? -1 : singleByte[0] & 0xFF;
+    }
+
+    /**
+     * Decodes as many whole quanta as fit in {@code b} from the encoded bytes already buffered,
+     * reading ahead from the underlying stream only when nothing has been decoded yet.
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int out = off;
+        final int end = off + len;
+
+        // Leftovers of a quantum that didn't fit last time
+        while (outIndex < outCount && out < end) {
+            b[out++] = outputBuffer[outIndex++];
+        }
+
+        while (out < end && !done) {
+            if (inPos == inCount) {
+                if (out > off) {
+                    // Don't block for more input once there's something to return
+                    break;
+                }
+                inCount = s.read(inputBuffer, 0, BUFFER_SIZE);
+                inPos = 0;
+                if (inCount < 0) {
+                    // No more input; an incomplete quantum without padding is dropped
+                    inCount = 0;
+                    done = true;
+                    break;
+                }
+                continue;
             }
+            out = decode(b, out, end);
         }
 
-        return outputBuffer[outIndex++];
+        return out == off ? -1 : out - off;
     }
 
     /**
-     * Retrieve data from the underlying stream, decode it,
-     * and put the results in the byteq.
-     * @throws IOException
+     * Decodes buffered input into b[out..end), stopping when either runs out.
+     *
+     * @return the new output position
      */
-    private void fillBuffer() throws IOException {
-        outCount = 0;
-        outIndex = 0;
-        int inCount = 0;
-
-        int i;
-        // "done" is needed for the two successive '=' at the end
-        while (!done) {
-            switch (i = s.read()) {
-                case -1:
-                    // No more input - just return, let outputBuffer drain out, and be done
-                    return;
-                case '=':
-                    // once we meet the first '=', avoid reading the second '='
-                    done = true;
-                    decodeAndEnqueue(inCount);
-                    return;
-                default:
-                    byte sX = TRANSLATION[i];
-                    if (sX < 0) continue;
-                    inputBuffer[inCount++] = sX;
-                    if (inCount == 4) {
-                        decodeAndEnqueue(inCount);
-                        return;
-                    }
+    private int decode(byte[] b, int out, int end) {
+        final byte[] in = inputBuffer;
+        int pos = inPos;
+        final int inEnd = inCount;
+
+        // Fast path: whole quanta of four valid characters, as in the middle of every line
+        if (quantumCount == 0) {
+            while (pos + 4 <= inEnd && out + 3 <= end) {
+                final int s0 = TRANSLATION[in[pos] & 0xFF];
+                final int s1 = TRANSLATION[in[pos + 1] & 0xFF];
+                final int s2 = TRANSLATION[in[pos + 2] & 0xFF];
+                final int s3 = TRANSLATION[in[pos + 3] & 0xFF];
+                if ((s0 | s1 | s2 | s3) < 0) {
+                    // Line break, padding or garbage; take the slow path
+                    break;
+                }
+                final int accum = (s0 << 18) | (s1 << 12) | (s2 << 6) | s3;
+                b[out] = (byte) (accum >> 16);
+                b[out + 1] = (byte) (accum >> 8);
+                b[out + 2] = (byte) accum;
+                out += 3;
+                pos += 4;
+            }
+        }
+
+        while (pos < inEnd && out < end) {
+            final int c = in[pos++] & 0xFF;
+            if (c == '=') {
+                // Once we meet the first '=', the data is over; avoid reading the second '='
+                done = true;
+                out = flushPartialQuantum(b, out, end);
+                break;
+            }
+            final int sX = TRANSLATION[c];
+            if (sX < 0) {
+                continue;
+            }
+            quantum = (quantum << 6) | sX;
+            if (++quantumCount == 4) {
+                out = emit(b, out, end, quantum, 3);
+                quantum = 0;
+                quantumCount = 0;
+                if (pos + 4 <= inEnd && out + 3 <= end) {
+                    // Back on a quantum boundary; let the fast path take over again
                     break;
+                }
             }
         }
+        inPos = pos;
+        return out;
     }
 
-    private void decodeAndEnqueue(int len) {
-        int accum = 0;
-        accum |= inputBuffer[0] << 18;
-        accum |= inputBuffer[1] << 12;
-        accum |= inputBuffer[2] << 6;
-        accum |= inputBuffer[3];
-
-        // There's a bit of duplicated code here because we want to have straight-through operation
-        // for the most common case of len==4
-        if (len == 4) {
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outputBuffer[1] = (accum >> 8) & 0xFF;
-            outputBuffer[2] = (accum) & 0xFF;
-            outCount = 3;
-            return;
-        } else if (len == 3) {
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outputBuffer[1] = (accum >> 8) & 0xFF;
-            outCount = 2;
-            return;
-        } else {    // len == 2
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outCount = 1;
-            return;
+    private int flushPartialQuantum(byte[] b, int out, int end) {
+        final int count = quantumCount;
+        final int accum = quantum << (6 * (4 - count));
+        quantum = 0;
+        quantumCount = 0;
+        if (count == 3) {
+            return emit(b, out, end, accum, 2);
+        } else if (count == 2) {
+            return emit(b, out, end, accum, 1);
+        }
+        // A lone sextet (or none) doesn't make a byte
+        return out;
+    }
+
+    /**
+     * Writes the top {@code count} bytes of a 24 bit group, keeping what doesn't fit.
+     */
+    private int emit(byte[] b, int out, int end, int accum, int count) {
+        outIndex = 0;
+        outCount = 0;
+        for (int i = 0; i < count; i++) {
+            final byte value = (byte) (accum >> (16 - 8 * i));
+            if (out < end) {
+                b[out++] = value;
+            } else {
+                outputBuffer[outCount++] = value;
+            }
         }
+        return out;
     }
 
     private static byte[] TRANSLATION = {
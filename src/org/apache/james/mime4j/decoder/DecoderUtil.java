@@ -109,8 +109,11 @@ public class DecoderUtil {
      */
     public static String decodeB(String encodedWord, String charset) 
             throws UnsupportedEncodingException {
-        
-        return new String(decodeBase64(encodedWord), charset);
+        //BEGIN android-changed: Decode from the string, with a cached charset
+        final byte[] bytes = getByteBuffer(encodedWord.length());
+        final int count = decodeB(encodedWord, 0, encodedWord.length(), bytes);
+        return CharsetUtil.decode(getSupportedCharset(charset), bytes, 0, count);
+        //END android-changed
     }
     
     /**
@@ -125,23 +128,191 @@ public class DecoderUtil {
      */
     public static String decodeQ(String encodedWord, String charset)
             throws UnsupportedEncodingException {
-           
-        /*
-         * Replace _ with =20
-         */
-        StringBuffer sb = new StringBuffer();
-        for (int i = 0; i < encodedWord.length(); i++) {
-            char c = encodedWord.charAt(i);
-            if (c == '_') {
-                sb.append("=20");
-            } else {
-                sb.append(c);
+        //BEGIN android-changed: Decode from the string, with a cached charset
+        final byte[] bytes = getByteBuffer(3 * encodedWord.length());
+        final int count = decodeQ(encodedWord, 0, encodedWord.length(), bytes);
+        return CharsetUtil.decode(getSupportedCharset(charset), bytes, 0, count);
+        //END android-changed
+    }
+
+    //BEGIN android-changed: Decoding encoded words in place
+    /** Decoded bytes of encoded words, kept for each thread */
+    private static final ThreadLocal<byte[]> byteBuffers = new ThreadLocal<byte[]>();
+    private static final int MIN_BYTE_BUFFER_SIZE = 256;
+    private static final int MAX_BYTE_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * @return a buffer for at least <code>length</code> decoded bytes.
+     */
+    private static byte[] getByteBuffer(int length) {
+        byte[] bytes = byteBuffers.get();
+        if (bytes == null || bytes.length < length) {
+            bytes = new byte[Math.max(length, MIN_BYTE_BUFFER_SIZE)];
+            if (length <= MAX_BYTE_BUFFER_SIZE) {
+                byteBuffers.set(bytes);
             }
         }
-        
-        return new String(decodeBaseQuotedPrintable(sb.toString()), charset);
+        return bytes;
     }
-    
+
+    private static java.nio.charset.Charset getSupportedCharset(String charset)
+            throws UnsupportedEncodingException {
+        final java.nio.charset.Charset javaCharset = CharsetUtil.getDecodingCharset(charset);
+        if (javaCharset == null) {
+            throw new UnsupportedEncodingException(charset);
+        }
+        return javaCharset;
+    }
+
+    /**
+     * Decodes <code>s[start..end)</code> as {@link #decodeBase64} does, into
+     * <code>out</code>, which must have room for <code>end - start</code> bytes.
+     *
+     * @return the number of bytes decoded.
+     */
+    private static int decodeB(String s, int start, int end, byte[] out) {
+        int count = 0;
+        int quantum = 0;
+        int quantumCount = 0;
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c == '=') {
+                // The data is over; a partial quantum makes one or two bytes, a lone sextet none
+                if (quantumCount == 3) {
+                    out[count++] = (byte) (quantum >> 10);
+                    out[count++] = (byte) (quantum >> 2);
+                } else if (quantumCount == 2) {
+                    out[count++] = (byte) (quantum >> 4);
+                }
+                return count;
+            }
+            final int sextet = c < 128 ? BASE64_VALUES[c] : -1;
+            if (sextet < 0) {
+                continue;
+            }
+            quantum = (quantum << 6) | sextet;
+            if (++quantumCount == 4) {
+                out[count++] = (byte) (quantum >> 16);
+                out[count++] = (byte) (quantum >> 8);
+                out[count++] = (byte) quantum;
+                quantum = 0;
+                quantumCount = 0;
+            }
+        }
+        // Without padding, a partial quantum is dropped
+        return count;
+    }
+
+    private static final byte[] BASE64_VALUES = new byte[128];
+    static {
+        java.util.Arrays.fill(BASE64_VALUES, (byte) -1);
+        final String alphabet =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) {
+            BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+        }
+    }
+
+    private static boolean isHexDigit(int b) {
+        return (b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f');
+    }
+
+    private static int hexValue(int b) {
+        return b <= '9' ? b - '0' : (b | 0x20) - 'a' + 10;
+    }
+
+    private static final String UNDERSCORE = "=20";
+
+    /**
+     * Decodes <code>s[start..end)</code> as {@link #decodeQ(String, String)} does before
+     * converting the bytes, that is as {@link QuotedPrintableInputStream} decodes the string
+     * with each '_' replaced by "=20", into <code>out</code>, which must have room for
+     * <code>3 * (end - start)</code> bytes.
+     *
+     * @return the number of bytes decoded.
+     */
+    private static int decodeQ(String s, int start, int end, byte[] out) {
+        int count = 0;
+        // The states of QuotedPrintableInputStream: none, "=", "=\r" and "=" and a digit
+        int state = 0;
+        int msd = 0;
+        // Spaces and tabs are dropped if a line break or the end follows them
+        int blankStart = -1;
+        for (int i = start; i < end; i++) {
+            final char c = s.charAt(i);
+            if (c == ' ' || c == '\t') {
+                if (blankStart < 0) {
+                    blankStart = i;
+                }
+                continue;
+            }
+            int from = i;
+            if (blankStart >= 0) {
+                if (c != '\r' && c != '\n') {
+                    from = blankStart;
+                }
+                blankStart = -1;
+            }
+            int next = i + 1;
+            if (Character.isHighSurrogate(c) && next < end
+                    && Character.isLowSurrogate(s.charAt(next))) {
+                // One '?' for the pair, as US-ASCII bytes have
+                next++;
+            }
+            for (int j = from; j <= i; j++) {
+                final char d = s.charAt(j);
+                final int length = d == '_' ? UNDERSCORE.length() : 1;
+                for (int k = 0; k < length; k++) {
+                    final int b = d == '_' ? UNDERSCORE.charAt(k) : (d < 128 ? d : '?');
+                    switch (state) {
+                        case 0:
+                            if (b == '=') {
+                                state = 1;
+                            } else {
+                                out[count++] = (byte) b;
+                            }
+                            break;
+                        case 1:
+                            if (b == '\r') {
+                                state = 2;
+                            } else if (isHexDigit(b)) {
+                                state = 3;
+                                msd = b;
+                            } else if (b == '=') {
+                                out[count++] = '=';
+                            } else {
+                                state = 0;
+                                out[count++] = '=';
+                                out[count++] = (byte) b;
+                            }
+                            break;
+                        case 2:
+                            state = 0;
+                            if (b != '\n') {
+                                out[count++] = '=';
+                                out[count++] = '\r';
+                                out[count++] = (byte) b;
+                            }
+                            break;
+                        default:
+                            state = 0;
+                            if (isHexDigit(b)) {
+                                out[count++] = (byte) ((hexValue(msd) << 4) | hexValue(b));
+                            } else {
+                                out[count++] = '=';
+                                out[count++] = (byte) msd;
+                                out[count++] = (byte) b;
+                            }
+                            break;
+                    }
+                }
+            }
+            i = next - 1;
+        }
+        // Anything pending at the end is dropped
+        return count;
+    }
+
     /**
      * Decodes a string containing encoded words as defined by RFC 2047.
      * Encoded words in have the form 
@@ -156,25 +327,21 @@ public class DecoderUtil {
     public static String decodeEncodedWords(String body) {
         
         // ANDROID:  Most strings will not include "=?" so a quick test can prevent unneeded
-        // object creation.  This could also be handled via lazy creation of the StringBuilder.
-        if (body.indexOf("=?") == -1) {
+        // object creation.  The builder is also only created once a word has been decoded.
+        int begin = body.indexOf("=?");
+        if (begin == -1) {
             return body;
         }
 
         int previousEnd = 0;
         boolean previousWasEncoded = false;
 
-        StringBuilder sb = new StringBuilder();
-
-        while (true) {
-            int begin = body.indexOf("=?", previousEnd);
+        StringBuilder sb = null;
 
+        while (begin != -1) {
             // ANDROID:  The mime4j original version has an error here.  It gets confused if
             // the encoded string begins with an '=' (just after "?Q?").  This patch seeks forward
             // to find the two '?' in the "header", before looking for the final "?=".
-            if (begin == -1) {
-                break;
-            }
             int qm1 = body.indexOf('?', begin + 2);
             if (qm1 == -1) {
                 break;
@@ -189,30 +356,43 @@ public class DecoderUtil {
             }
             end += 2;
 
-            String sep = body.substring(previousEnd, begin);
-
-            String decoded = decodeEncodedWord(body, begin, end);
+            String decoded = decodeEncodedWord(body, begin, qm1, qm2, end);
             if (decoded == null) {
-                sb.append(sep);
-                sb.append(body.substring(begin, end));
+                if (sb != null) {
+                    sb.append(body, previousEnd, end);
+                }
             } else {
-                if (!previousWasEncoded || !CharsetUtil.isWhitespace(sep)) {
-                    sb.append(sep);
+                if (sb == null) {
+                    sb = new StringBuilder(body.length());
+                    sb.append(body, 0, previousEnd);
+                }
+                if (!previousWasEncoded || !isWhitespace(body, previousEnd, begin)) {
+                    sb.append(body, previousEnd, begin);
                 }
                 sb.append(decoded);
             }
 
             previousEnd = end;
             previousWasEncoded = decoded != null;
+            begin = body.indexOf("=?", previousEnd);
         }
 
-        if (previousEnd == 0)
+        if (sb == null)
             return body;
 
-        sb.append(body.substring(previousEnd));
+        sb.append(body, previousEnd, body.length());
         return sb.toString();
     }
 
+    private static boolean isWhitespace(String s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (!CharsetUtil.isWhitespace(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     // return null on error. Begin is index of '=?' in body.
     public static String decodeEncodedWord(String body, int begin, int end) {
         // Skip the '?=' chars in body and scan forward from there for next '?'
@@ -224,29 +404,56 @@ public class DecoderUtil {
         if (qm2 == -1 || qm2 == end - 2)
             return null;
 
-        String mimeCharset = body.substring(begin + 2, qm1);
-        String encoding = body.substring(qm1 + 1, qm2);
-        String encodedText = body.substring(qm2 + 1, end - 2);
+        return decodeEncodedWord(body, begin, qm1, qm2, end);
+    }
+
+    /** The last charset of an encoded word, which the next word most likely has too */
+    private static class LastCharset {
+        final String mimeCharset;
+        final java.nio.charset.Charset charset;
 
-        String charset = CharsetUtil.toJavaCharset(mimeCharset);
+        LastCharset(String mimeCharset, java.nio.charset.Charset charset) {
+            this.mimeCharset = mimeCharset;
+            this.charset = charset;
+        }
+    }
+
+    private static volatile LastCharset lastCharset = new LastCharset("", null);
+
+    /**
+     * @return the Java charset for body[start..end), or null if there is none that decodes.
+     */
+    private static java.nio.charset.Charset getCharset(String body, int start, int end) {
+        final LastCharset last = lastCharset;
+        final int length = end - start;
+        if (last.mimeCharset.length() == length
+                && body.regionMatches(start, last.mimeCharset, 0, length)) {
+            return last.charset;
+        }
+        final String mimeCharset = body.substring(start, end);
+        final java.nio.charset.Charset charset = CharsetUtil.getDecodingCharset(mimeCharset);
+        lastCharset = new LastCharset(mimeCharset, charset);
+        return charset;
+    }
+
+    /**
+     * Decodes body[begin..end), whose '?' are at qm1 and qm2, without copying its parts.
+     */
+    private static String decodeEncodedWord(String body, int begin, int qm1, int qm2, int end) {
+        final java.nio.charset.Charset charset = getCharset(body, begin + 2, qm1);
         if (charset == null) {
             if (log.isWarnEnabled()) {
-                log.warn("MIME charset '" + mimeCharset + "' in encoded word '"
-                        + body.substring(begin, end) + "' doesn't have a "
-                        + "corresponding Java charset");
-            }
-            return null;
-        } else if (!CharsetUtil.isDecodingSupported(charset)) {
-            if (log.isWarnEnabled()) {
-                log.warn("Current JDK doesn't support decoding of charset '"
-                        + charset + "' (MIME charset '" + mimeCharset
+                log.warn("MIME charset '" + body.substring(begin + 2, qm1)
                         + "' in encoded word '" + body.substring(begin, end)
-                        + "')");
+                        + "' doesn't have a corresponding Java charset that the current JDK "
+                        + "can decode");
             }
             return null;
         }
 
-        if (encodedText.length() == 0) {
+        final int textStart = qm2 + 1;
+        final int textEnd = end - 2;
+        if (textStart == textEnd) {
             if (log.isWarnEnabled()) {
                 log.warn("Missing encoded text in encoded word: '"
                         + body.substring(begin, end) + "'");
@@ -255,10 +462,15 @@ public class DecoderUtil {
         }
 
         try {
-            if (encoding.equalsIgnoreCase("Q")) {
-                return DecoderUtil.decodeQ(encodedText, charset);
-            } else if (encoding.equalsIgnoreCase("B")) {
-                return DecoderUtil.decodeB(encodedText, charset);
+            final char encoding = qm2 == qm1 + 2 ? body.charAt(qm1 + 1) : 0;
+            final byte[] bytes;
+            final int count;
+            if (encoding == 'Q' || encoding == 'q') {
+                bytes = getByteBuffer(3 * (textEnd - textStart));
+                count = decodeQ(body, textStart, textEnd, bytes);
+            } else if (encoding == 'B' || encoding == 'b') {
+                bytes = getByteBuffer(textEnd - textStart);
+                count = decodeB(body, textStart, textEnd, bytes);
             } else {
                 if (log.isWarnEnabled()) {
                     log.warn("Warning: Unknown encoding in encoded word '"
@@ -266,13 +478,7 @@ public class DecoderUtil {
                 }
                 return null;
             }
-        } catch (UnsupportedEncodingException e) {
-            // should not happen because of isDecodingSupported check above
-            if (log.isWarnEnabled()) {
-                log.warn("Unsupported encoding in encoded word '"
-                        + body.substring(begin, end) + "'", e);
-            }
-            return null;
+            return CharsetUtil.decode(charset, bytes, 0, count);
         } catch (RuntimeException e) {
             if (log.isWarnEnabled()) {
                 log.warn("Could not decode encoded word '"
@@ -281,4 +487,5 @@ public class DecoderUtil {
             return null;
         }
     }
+    //END android-changed
 }
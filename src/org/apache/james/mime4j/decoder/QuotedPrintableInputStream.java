@@ -36,11 +36,28 @@ import org.apache.james.mime4j.LogFactory;
  */
 public class QuotedPrintableInputStream extends InputStream {
     private static Log log = LogFactory.getLog(QuotedPrintableInputStream.class);
-    
+
+    private static final int BUFFER_SIZE = 8192;
+
     private InputStream stream;
-    ByteQueue byteq = new ByteQueue();
-    ByteQueue pushbackq = new ByteQueue();
+
+    // Encoded bytes read in bulk from the underlying stream
+    private final byte[] encoded = new byte[BUFFER_SIZE];
+    private int encodedPos = 0;
+    private int encodedCount = 0;
+    private boolean eof = false;
+
+    // Decoded bytes not yet returned to the caller
+    private byte[] decoded = new byte[BUFFER_SIZE];
+    private int decodedPos = 0;
+    private int decodedCount = 0;
+
+    // Whitespace that is dropped if it turns out to be transport padding
+    private byte[] blanks = new byte[16];
+    private int blankCount = 0;
+
     private byte state = 0;
+    private byte msdChar = 0;  // first digit of escaped num
 
     public QuotedPrintableInputStream(InputStream stream) {
         this.stream = stream;
@@ -56,151 +73,199 @@ public class QuotedPrintableInputStream extends InputStream {
     }
 
     public int read() throws IOException {
-        fillBuffer();
-        if (byteq.count() == 0)
+        if (decodedPos == decodedCount && !fillBuffer()) {
             return -1;
-        else {
-            byte val = byteq.dequeue();
-            if (val >= 0)
-                return val;
-            else
-                return val & 0xFF;
         }
+        return decoded[decodedPos++] & 0xFF;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (b == null) {
+            throw new NullPointerException();
+        } else if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        } else if (len == 0) {
+            return 0;
+        }
+        if (decodedPos == decodedCount && !fillBuffer()) {
+            return -1;
+        }
+        final int count = Math.min(len, decodedCount - decodedPos);
+        System.arraycopy(decoded, decodedPos, b, off, count);
+        decodedPos += count;
+        return count;
     }
 
     /**
-     * Pulls bytes out of the underlying stream and places them in the
-     * pushback queue.  This is necessary (vs. reading from the
-     * underlying stream directly) to detect and filter out "transport
-     * padding" whitespace, i.e., all whitespace that appears immediately
-     * before a CRLF.
+     * Decodes as much of the available input as fits in the decode buffer, reading from the
+     * underlying stream until at least one byte has been decoded.
+     * <p>
+     * "Transport padding" whitespace, i.e., all whitespace that appears immediately before a
+     * CRLF or the end of the stream, is filtered out before decoding.
      *
+     * @return false if the underlying stream is exhausted and nothing was decoded.
      * @throws IOException Underlying stream threw IOException.
      */
-    private void populatePushbackQueue() throws IOException {
-        //Debug.verify(pushbackq.count() == 0, "PopulatePushbackQueue called when pushback queue was not empty!");
-
-        if (pushbackq.count() != 0)
-            return;
+    private boolean fillBuffer() throws IOException {
+        decodedPos = 0;
+        decodedCount = 0;
+        // Leave room for the longest output of a single input byte
+        final int limit = decoded.length - 3;
+        while (decodedCount == 0) {
+            if (encodedPos == encodedCount) {
+                if (eof) {
+                    return false;
+                }
+                final int n = stream.read(encoded, 0, encoded.length);
+                if (n < 0) {
+                    eof = true;
+                    blankCount = 0;  // discard any whitespace preceding EOF
+                    return false;
+                }
+                encodedPos = 0;
+                encodedCount = n;
+            }
 
-        while (true) {
-            int i = stream.read();
-            switch (i) {
-                case -1:
-                    // stream is done
-                    pushbackq.clear();  // discard any whitespace preceding EOF
-                    return;
-                case ' ':
-                case '\t':
-                    pushbackq.enqueue((byte)i);
-                    break;
-                case '\r':
-                case '\n':
-                    pushbackq.clear();  // discard any whitespace preceding EOL
-                    pushbackq.enqueue((byte)i);
-                    return;
-                default:
-                    pushbackq.enqueue((byte)i);
-                    return;
+            final byte[] in = encoded;
+            int pos = encodedPos;
+            final int end = encodedCount;
+            while (pos < end && decodedCount <= limit) {
+                final byte b = in[pos++];
+                if (state == 0 && blankCount == 0 && b != '=' && b != ' ' && b != '\t') {
+                    // Literal byte, by far the most common case
+                    decoded[decodedCount++] = b;
+                    continue;
+                }
+                switch (b) {
+                    case ' ':
+                    case '\t':
+                        if (blankCount == blanks.length) {
+                            final byte[] larger = new byte[blanks.length * 2];
+                            System.arraycopy(blanks, 0, larger, 0, blankCount);
+                            blanks = larger;
+                        }
+                        blanks[blankCount++] = b;
+                        break;
+                    case '\r':
+                    case '\n':
+                        blankCount = 0;  // discard any whitespace preceding EOL
+                        decodeByte(b);
+                        break;
+                    default:
+                        flushBlanks();
+                        decodeByte(b);
+                        break;
+                }
             }
+            encodedPos = pos;
         }
+        return true;
     }
 
     /**
-     * Causes the pushback queue to get populated if it is empty, then
-     * consumes and decodes bytes out of it until one or more bytes are
-     * in the byte queue.  This decoding step performs the actual QP
-     * decoding.
-     *
-     * @throws IOException Underlying stream threw IOException.
+     * Decodes the pending whitespace, which turned out not to be transport padding.
      */
-    private void fillBuffer() throws IOException {
-        byte msdChar = 0;  // first digit of escaped num
-        while (byteq.count() == 0) {
-            if (pushbackq.count() == 0) {
-                populatePushbackQueue();
-                if (pushbackq.count() == 0)
-                    return;
-            }
+    private void flushBlanks() {
+        if (blankCount == 0) {
+            return;
+        }
+        // Each blank decodes to at most three bytes for the first and one for the rest, and
+        // the byte that follows them needs room for three more
+        final int needed = decodedCount + blankCount + 6;
+        if (needed > decoded.length) {
+            final byte[] larger = new byte[Math.max(needed, decoded.length * 2)];
+            System.arraycopy(decoded, 0, larger, 0, decodedCount);
+            decoded = larger;
+        }
+        for (int i = 0; i < blankCount; i++) {
+            decodeByte(blanks[i]);
+        }
+        blankCount = 0;
+    }
 
-            byte b = (byte)pushbackq.dequeue();
+    private void emit(byte b) {
+        decoded[decodedCount++] = b;
+    }
 
-            switch (state) {
-                case 0:  // start state, no bytes pending
-                    if (b != '=') {
-                        byteq.enqueue(b);
-                        break;  // state remains 0
-                    } else {
-                        state = 1;
-                        break;
+    /**
+     * Feeds one byte of (padding-free) input through the decoder.
+     */
+    private void decodeByte(byte b) {
+        switch (state) {
+            case 0:  // start state, no bytes pending
+                if (b != '=') {
+                    emit(b);
+                    break;  // state remains 0
+                } else {
+                    state = 1;
+                    break;
+                }
+            case 1:  // encountered "=" so far
+                if (b == '\r') {
+                    state = 2;
+                    break;
+                } else if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
+                    state = 3;
+                    msdChar = b;  // save until next digit encountered
+                    break;
+                } else if (b == '=') {
+                    /*
+                     * Special case when == is encountered.
+                     * Emit one = and stay in this state.
+                     */
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; got ==");
                     }
-                case 1:  // encountered "=" so far
-                    if (b == '\r') {
-                        state = 2;
-                        break;
-                    } else if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
-                        state = 3;
-                        msdChar = b;  // save until next digit encountered
-                        break;
-                    } else if (b == '=') {
-                        /*
-                         * Special case when == is encountered.
-                         * Emit one = and stay in this state.
-                         */
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; got ==");
-                        }
-                        byteq.enqueue((byte)'=');
-                        break;
-                    } else {
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; expected \\r or "
-                                    + "[0-9A-Z], got " + b);
-                        }
-                        state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue(b);
-                        break;
+                    emit((byte)'=');
+                    break;
+                } else {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; expected \\r or "
+                                + "[0-9A-Z], got " + b);
                     }
-                case 2:  // encountered "=\r" so far
-                    if (b == '\n') {
-                        state = 0;
-                        break;
-                    } else {
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; expected " 
-                                    + (int)'\n' + ", got " + b);
-                        }
-                        state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue((byte)'\r');
-                        byteq.enqueue(b);
-                        break;
+                    state = 0;
+                    emit((byte)'=');
+                    emit(b);
+                    break;
+                }
+            case 2:  // encountered "=\r" so far
+                if (b == '\n') {
+                    state = 0;
+                    break;
+                } else {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; expected " 
+                                + (int)'\n' + ", got " + b);
                     }
-                case 3:  // encountered =<digit> so far; expecting another <digit> to complete the octet
-                    if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
-                        byte msd = asciiCharToNumericValue(msdChar);
-                        byte low = asciiCharToNumericValue(b);
-                        state = 0;
-                        byteq.enqueue((byte)((msd << 4) | low));
-                        break;
-                    } else {
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; expected "
-                                     + "[0-9A-Z], got " + b);
-                        }
-                        state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue(msdChar);
-                        byteq.enqueue(b);
-                        break;
+                    state = 0;
+                    emit((byte)'=');
+                    emit((byte)'\r');
+                    emit(b);
+                    break;
+                }
+            case 3:  // encountered =<digit> so far; expecting another <digit> to complete the octet
+                if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
+                    byte msd = asciiCharToNumericValue(msdChar);
+                    byte low = asciiCharToNumericValue(b);
+                    state = 0;
+                    emit((byte)((msd << 4) | low));
+                    break;
+                } else {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; expected "
+                                 + "[0-9A-Z], got " + b);
                     }
-                default:  // should never happen
-                    log.error("Illegal state: " + state);
                     state = 0;
-                    byteq.enqueue(b);
+                    emit((byte)'=');
+                    emit(msdChar);
+                    emit(b);
                     break;
-            }
+                }
+            default:  // should never happen
+                log.error("Illegal state: " + state);
+                state = 0;
+                emit(b);
+                break;
         }
     }
 
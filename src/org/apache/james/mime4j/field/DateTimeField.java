@@ -27,6 +27,7 @@ import org.apache.james.mime4j.Log;
 import org.apache.james.mime4j.LogFactory;
 //END
 import org.apache.james.mime4j.field.datetime.DateTime;
+import org.apache.james.mime4j.field.datetime.SimpleDateTimeParser;
 import org.apache.james.mime4j.field.datetime.parser.ParseException;
 
 import java.util.Date;
@@ -57,6 +58,10 @@ public class DateTimeField extends Field {
             ParseException parseException = null;
             //BEGIN android-changed
             body = LogUtils.cleanUpMimeDate(body);
+            final long time = SimpleDateTimeParser.parse(body);
+            if (time != SimpleDateTimeParser.UNPARSED) {
+                return new DateTimeField(name, body, raw, new Date(time), null);
+            }
             //END android-changed
             try {
                 date = DateTime.parse(body).getDate();
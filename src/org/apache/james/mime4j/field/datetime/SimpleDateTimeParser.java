@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j.field.datetime;
+
+/**
+ * Parses the date-time forms nearly all messages use,
+ * <pre>
+ *   [Mon, ]1 Jan 2014 10:00[:00] +0100[ (CET)]
+ * </pre>
+ * straight to milliseconds, without the tokens, strings and {@link java.util.Calendar} of
+ * {@link DateTime#parse}. Anything it does not handle simply, such as nested or escaped
+ * comments, spaces after a zone sign, years before 1600 or unusually long numbers, makes it
+ * return {@link #UNPARSED} so that callers can fall back to {@link DateTime#parse}; otherwise
+ * its result is the time of the date {@link DateTime#parse} returns.
+ */
+public final class SimpleDateTimeParser {
+    /** Returned by {@link #parse} for strings that need {@link DateTime#parse} */
+    public static final long UNPARSED = Long.MIN_VALUE;
+
+    private static final String[] DAYS_OF_WEEK = {
+        "Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun"
+    };
+    private static final String[] MONTHS = {
+        "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"
+    };
+    /** Obsolete zone names and their offsets, as hhmm */
+    private static final String[] ZONES = {
+        "UT", "GMT", "EST", "EDT", "CST", "CDT", "MST", "MDT", "PST", "PDT"
+    };
+    private static final int[] ZONE_OFFSETS = {
+        0, 0, -500, -400, -600, -500, -700, -600, -800, -700
+    };
+
+    private static final int MIN_YEAR = 1600;
+
+    private SimpleDateTimeParser() {}
+
+    /**
+     * @return the time in milliseconds since the epoch, or {@link #UNPARSED} if
+     *         <code>s</code> is not in a simple form.
+     */
+    public static long parse(String s) {
+        if (s == null) {
+            return UNPARSED;
+        }
+        final int length = s.length();
+        int pos = skipSpace(s, 0);
+
+        if (pos >= 0 && pos < length && isLetter(s.charAt(pos))) {
+            final int end = skipLetters(s, pos);
+            if (indexOf(DAYS_OF_WEEK, s, pos, end) < 0) {
+                return UNPARSED;
+            }
+            pos = skipSpace(s, end);
+            if (pos < 0 || pos >= length || s.charAt(pos) != ',') {
+                return UNPARSED;
+            }
+            pos = skipSpace(s, pos + 1);
+        }
+
+        // Day
+        int end = skipDigits(s, pos, 2);
+        if (end < 0) {
+            return UNPARSED;
+        }
+        final int day = parseDigits(s, pos, end);
+
+        // Month
+        pos = skipSpace(s, end);
+        if (pos < 0 || pos >= length || !isLetter(s.charAt(pos))) {
+            return UNPARSED;
+        }
+        end = skipLetters(s, pos);
+        final int month = indexOf(MONTHS, s, pos, end) + 1;
+        if (month == 0) {
+            return UNPARSED;
+        }
+
+        // Year, which DateTime reads from two or three digits as 1950 to 2049 or 1900 on
+        pos = skipSpace(s, end);
+        end = skipDigits(s, pos, 4);
+        if (end < 0) {
+            return UNPARSED;
+        }
+        int year = parseDigits(s, pos, end);
+        if (end - pos == 3) {
+            year += 1900;
+        } else if (end - pos < 3) {
+            year += year < 50 ? 2000 : 1900;
+        }
+        if (year < MIN_YEAR) {
+            return UNPARSED;
+        }
+
+        // Time
+        pos = skipSpace(s, end);
+        end = skipDigits(s, pos, 2);
+        if (end < 0) {
+            return UNPARSED;
+        }
+        final int hour = parseDigits(s, pos, end);
+        pos = skipSpace(s, end);
+        if (pos < 0 || pos >= length || s.charAt(pos) != ':') {
+            return UNPARSED;
+        }
+        pos = skipSpace(s, pos + 1);
+        end = skipDigits(s, pos, 2);
+        if (end < 0) {
+            return UNPARSED;
+        }
+        final int minute = parseDigits(s, pos, end);
+        int second = 0;
+        pos = skipSpace(s, end);
+        if (pos >= 0 && pos < length && s.charAt(pos) == ':') {
+            pos = skipSpace(s, pos + 1);
+            end = skipDigits(s, pos, 2);
+            if (end < 0) {
+                return UNPARSED;
+            }
+            second = parseDigits(s, pos, end);
+            pos = skipSpace(s, end);
+        }
+
+        // Zone
+        if (pos < 0 || pos >= length) {
+            return UNPARSED;
+        }
+        final char c = s.charAt(pos);
+        final int zone;
+        if (c == '+' || c == '-') {
+            end = skipDigits(s, pos + 1, 4);
+            if (end < 0) {
+                return UNPARSED;
+            }
+            zone = c == '-' ? -parseDigits(s, pos + 1, end) : parseDigits(s, pos + 1, end);
+        } else if (isLetter(c)) {
+            end = skipLetters(s, pos);
+            if (end - pos == 1) {
+                // Military zones, whose offsets DateTimeParser ignores; J is not one
+                if (c == 'J' || c == 'j') {
+                    return UNPARSED;
+                }
+                zone = 0;
+            } else {
+                final int i = indexOf(ZONES, s, pos, end);
+                if (i < 0) {
+                    return UNPARSED;
+                }
+                zone = ZONE_OFFSETS[i];
+            }
+        } else {
+            return UNPARSED;
+        }
+        if (skipSpace(s, end) != length) {
+            return UNPARSED;
+        }
+
+        // The calendar DateTime uses is lenient, so days, hours and so on past their ranges
+        // simply carry over
+        final long days = daysFromEpoch(year, month) + day - 1;
+        final long seconds = days * 86400 + hour * 3600 + minute * 60 + second;
+        final int zoneMinutes = (zone / 100) * 60 + zone % 100;
+        return (seconds - zoneMinutes * 60) * 1000;
+    }
+
+    /**
+     * @return the number of days from 1 January 1970 to the first day of the month in the
+     *         Gregorian calendar.
+     */
+    private static long daysFromEpoch(int year, int month) {
+        if (month <= 2) {
+            year--;
+        }
+        final int era = year / 400;
+        final int yearOfEra = year - era * 400;
+        final int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5;
+        final int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+
+    private static int skipLetters(String s, int pos) {
+        final int length = s.length();
+        while (pos < length && isLetter(s.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    /**
+     * @return the end of the digits at <code>pos</code>, or -1 if there are none or more than
+     *         <code>maxDigits</code>.
+     */
+    private static int skipDigits(String s, int pos, int maxDigits) {
+        if (pos < 0) {
+            return -1;
+        }
+        final int length = s.length();
+        int end = pos;
+        while (end < length && s.charAt(end) >= '0' && s.charAt(end) <= '9') {
+            end++;
+        }
+        return end > pos && end - pos <= maxDigits ? end : -1;
+    }
+
+    private static int parseDigits(String s, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + s.charAt(i) - '0';
+        }
+        return value;
+    }
+
+    /**
+     * Skips spaces, tabs and comments that contain no comments or quoted pairs.
+     *
+     * @return the position after them, or -1 if there is a comment that is not simple.
+     */
+    private static int skipSpace(String s, int pos) {
+        if (pos < 0) {
+            return -1;
+        }
+        final int length = s.length();
+        while (pos < length) {
+            final char c = s.charAt(pos);
+            if (c == ' ' || c == '\t') {
+                pos++;
+            } else if (c == '(') {
+                pos++;
+                while (true) {
+                    if (pos >= length) {
+                        return -1;
+                    }
+                    final char d = s.charAt(pos++);
+                    if (d == ')') {
+                        break;
+                    }
+                    // DateTimeParser does not accept characters past U+00FF unless their low
+                    // byte is past 0x7F
+                    if (d == '(' || d == '\\' || d == '\r' || d == '\n'
+                            || (d >= 0x80 && (d & 0x80) == 0)) {
+                        return -1;
+                    }
+                }
+            } else {
+                break;
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * @return the index of the name that the characters from <code>start</code> to
+     *         <code>end</code> are, or -1 if none is.
+     */
+    private static int indexOf(String[] names, String s, int start, int end) {
+        final int length = end - start;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].length() == length && s.regionMatches(start, names[i], 0, length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
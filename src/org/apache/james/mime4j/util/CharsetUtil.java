@@ -20,11 +20,18 @@
 package org.apache.james.mime4j.util;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 //BEGIN android-changed: Stubbing out logging
 import org.apache.james.mime4j.Log;
@@ -1210,6 +1217,127 @@ public class CharsetUtil {
         }
 
     }
+
+    //BEGIN android-changed: Cached charsets and pooled decoders
+    /**
+     * MIME charset labels, as they were written, and the Java charsets that decode them, or
+     * {@link #NO_CHARSET} for labels that have none.
+     */
+    private static final ConcurrentHashMap<String, Object> decodingCharsets =
+            new ConcurrentHashMap<String, Object>();
+    private static final Object NO_CHARSET = new Object();
+    /** Keeps labels made up by broken or hostile messages from filling the cache */
+    private static final int MAX_DECODING_CHARSETS = 256;
+
+    private static final int MAX_POOLED_DECODERS = 8;
+    private static final int MIN_CHAR_BUFFER_SIZE = 256;
+    private static final int MAX_CHAR_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * The decoders and the buffer a thread decodes bytes with.
+     */
+    private static class DecoderPool {
+        final HashMap<java.nio.charset.Charset, CharsetDecoder> decoders =
+                new HashMap<java.nio.charset.Charset, CharsetDecoder>();
+        CharBuffer chars = CharBuffer.allocate(MIN_CHAR_BUFFER_SIZE);
+    }
+
+    private static final ThreadLocal<DecoderPool> decoderPools = new ThreadLocal<DecoderPool>() {
+        @Override
+        protected DecoderPool initialValue() {
+            return new DecoderPool();
+        }
+    };
+
+    /**
+     * Gets the Java charset that decodes the specified MIME charset, like
+     * {@link #toJavaCharset(String)} followed by {@link #isDecodingSupported(String)} and
+     * <code>java.nio.charset.Charset.forName()</code>, but only looks each label up once.
+     *
+     * @param mimeCharset the MIME character set name.
+     * @return the charset, or <code>null</code> if there is no corresponding Java charset or
+     *         the VM can't decode it.
+     */
+    public static java.nio.charset.Charset getDecodingCharset(String mimeCharset) {
+        Object charset = decodingCharsets.get(mimeCharset);
+        if (charset == null) {
+            charset = NO_CHARSET;
+            final String javaCharset = toJavaCharset(mimeCharset);
+            if (javaCharset != null && isDecodingSupported(javaCharset)) {
+                try {
+                    charset = java.nio.charset.Charset.forName(javaCharset);
+                } catch (IllegalArgumentException e) {
+                    // Illegal or unsupported after all
+                }
+            }
+            if (decodingCharsets.size() < MAX_DECODING_CHARSETS) {
+                decodingCharsets.put(mimeCharset, charset);
+            }
+        }
+        return charset != NO_CHARSET ? (java.nio.charset.Charset) charset : null;
+    }
+
+    /**
+     * Gets a decoder for the charset that is kept for the calling thread. It replaces
+     * malformed input and unmappable characters, as String's constructors do, and may only be
+     * used until the thread calls this method or {@link #decode} again.
+     *
+     * @param charset the Java charset.
+     * @return the decoder, reset.
+     */
+    public static CharsetDecoder getDecoder(java.nio.charset.Charset charset) {
+        final HashMap<java.nio.charset.Charset, CharsetDecoder> decoders =
+                decoderPools.get().decoders;
+        CharsetDecoder decoder = decoders.get(charset);
+        if (decoder == null) {
+            if (decoders.size() >= MAX_POOLED_DECODERS) {
+                decoders.clear();
+            }
+            decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            decoders.put(charset, decoder);
+        }
+        return decoder.reset();
+    }
+
+    /**
+     * Decodes bytes into a string as <code>new String(bytes, offset, length, charset)</code>
+     * does, with a decoder and a char buffer that are reused by the calling thread.
+     *
+     * @param charset the Java charset.
+     * @return the decoded string.
+     */
+    public static String decode(java.nio.charset.Charset charset, byte[] bytes, int offset,
+            int length) {
+        final DecoderPool pool = decoderPools.get();
+        final CharsetDecoder decoder = getDecoder(charset);
+        final ByteBuffer in = ByteBuffer.wrap(bytes, offset, length);
+        CharBuffer out = pool.chars;
+        final int needed = (int) (length * (double) decoder.maxCharsPerByte()) + 1;
+        if (out.capacity() < needed) {
+            out = CharBuffer.allocate(Math.max(needed, out.capacity() * 2));
+            if (needed <= MAX_CHAR_BUFFER_SIZE) {
+                pool.chars = out;
+            }
+        }
+        out.clear();
+        try {
+            CoderResult result = decoder.decode(in, out, true);
+            if (!result.isUnderflow()) {
+                result.throwException();
+            }
+            result = decoder.flush(out);
+            if (!result.isUnderflow()) {
+                result.throwException();
+            }
+        } catch (CharacterCodingException e) {
+            // Not with enough room and errors replaced, but just in case
+            return new String(bytes, offset, length, charset);
+        }
+        return new String(out.array(), 0, out.position());
+    }
+    //END android-changed
     /*
      * Uncomment the code below and run the main method to regenerate the
      * Javadoc table above when the known charsets change.
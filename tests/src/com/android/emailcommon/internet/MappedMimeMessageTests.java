@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Base64;
+
+import com.android.emailcommon.TempDirectory;
+import com.android.emailcommon.mail.Body;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.mail.Multipart;
+import com.android.emailcommon.mail.Part;
+import com.android.mail.utils.LogUtils;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.mime4j.util.CharsetUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that a message parsed from a buffer has the same bodies as one parsed from a stream.
+ */
+public class MappedMimeMessageTests extends AndroidTestCase {
+    private static final String LOG_TAG = "MappedMimeMessageTests";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        TempDirectory.setTempDirectory(getContext());
+    }
+
+    private static String base64Lines(byte[] data) {
+        return Base64.encodeToString(data, Base64.CRLF);
+    }
+
+    private static String buildMessage(Random random, int attachmentSize) {
+        final byte[] attachment = new byte[attachmentSize];
+        random.nextBytes(attachment);
+        final StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            html.append("<p>line ").append(i).append(" caf=C3=A9 =3D</p>=\r\n");
+        }
+        return "From: sender@example.com\r\n"
+                + "To: recipient@example.com\r\n"
+                + "Subject: mapped\r\n"
+                + "MIME-Version: 1.0\r\n"
+                + "Content-Type: multipart/mixed; boundary=\"outer\"\r\n"
+                + "\r\n"
+                + "preamble\r\n"
+                + "--outer\r\n"
+                + "Content-Type: multipart/alternative; boundary=\"inner\"\r\n"
+                + "\r\n"
+                + "--inner\r\n"
+                + "Content-Type: text/plain; charset=us-ascii\r\n"
+                + "Content-Transfer-Encoding: 7bit\r\n"
+                + "\r\n"
+                + "Plain text\r\nwith two lines\r\n"
+                + "--inner\r\n"
+                + "Content-Type: text/html; charset=utf-8\r\n"
+                + "Content-Transfer-Encoding: quoted-printable\r\n"
+                + "\r\n"
+                + html
+                + "\r\n--inner--\r\n"
+                + "--outer\r\n"
+                + "Content-Type: application/octet-stream; name=\"data.bin\"\r\n"
+                + "Content-Transfer-Encoding: base64\r\n"
+                + "Content-Disposition: attachment; filename=\"data.bin\"\r\n"
+                + "\r\n"
+                + base64Lines(attachment)
+                + "--outer\r\n"
+                + "Content-Type: message/rfc822\r\n"
+                + "\r\n"
+                + "Subject: forwarded\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "\r\n"
+                + "Forwarded body\r\n"
+                + "--outer--\r\n"
+                + "epilogue\r\n";
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(CharsetUtil.ISO_8859_1);
+    }
+
+    private static void collectBodies(Part part, ArrayList<Body> bodies)
+            throws MessagingException {
+        final Body body = part.getBody();
+        if (body instanceof Multipart) {
+            final Multipart multipart = (Multipart) body;
+            for (int i = 0; i < multipart.getCount(); i++) {
+                collectBodies(multipart.getBodyPart(i), bodies);
+            }
+        } else if (body instanceof MimeMessage) {
+            collectBodies((MimeMessage) body, bodies);
+        } else if (body != null) {
+            bodies.add(body);
+        }
+    }
+
+    private static byte[] read(Body body) throws IOException, MessagingException {
+        final InputStream in = body.getInputStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void assertSameBodies(byte[] message) throws Exception {
+        final ArrayList<Body> expected = new ArrayList<Body>();
+        collectBodies(new MimeMessage(new ByteArrayInputStream(message)), expected);
+        final ArrayList<Body> actual = new ArrayList<Body>();
+        collectBodies(new MimeMessage(ByteBuffer.wrap(message)), actual);
+
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertTrue(actual.get(i) instanceof MappedBody);
+            final MappedBody mapped = (MappedBody) actual.get(i);
+            final byte[] decoded = read(expected.get(i));
+            // the size is known up front, or once the body has been read
+            final long sizeBeforeRead = mapped.getDecodedSize();
+            assertTrue("body " + i, sizeBeforeRead == -1 || sizeBeforeRead == decoded.length);
+            assertTrue("body " + i, Arrays.equals(decoded, read(mapped)));
+            assertEquals(decoded.length, mapped.getDecodedSize());
+            // mapped bodies can be read again
+            assertTrue("body " + i, Arrays.equals(decoded, read(mapped)));
+        }
+    }
+
+    @SmallTest
+    public void testMappedBodiesMatchStreamedBodies() throws Exception {
+        final Random random = new Random(11);
+        // Small and large enough to span many blocks of the converting stream
+        for (int size : new int[] { 0, 1, 100, 70000 }) {
+            final String message = buildMessage(random, size);
+            assertSameBodies(bytes(message));
+            // Offsets are in the converted stream, so bare line endings must come out the same
+            assertSameBodies(bytes(message.replace("\r\n", "\n")));
+            assertSameBodies(bytes(message.replace("\r\n", "\r")));
+        }
+    }
+
+    @SmallTest
+    public void testNonMultipartMessage() throws Exception {
+        assertSameBodies(bytes("Subject: one part\nContent-Type: text/plain\n\nline 1\nline 2\n"));
+        assertSameBodies(bytes("Subject: no body\n"));
+    }
+
+    private static long bodyFilesSize(File directory) {
+        long size = 0;
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith("body")) {
+                    size += file.length();
+                }
+            }
+        }
+        return size;
+    }
+
+    private static void deleteBodyFiles(File directory) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith("body")) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Times parsing a large message and extracting its text, as the eml viewer does, and
+     * measures how much is written to temp files on the way.
+     */
+    @LargeTest
+    public void testBenchmark() throws Exception {
+        final byte[] message = bytes(buildMessage(new Random(5), 22 * 1024 * 1024));
+        final File tempDirectory = TempDirectory.getTempDirectory();
+        deleteBodyFiles(tempDirectory);
+
+        long streamed = Long.MAX_VALUE;
+        long mapped = Long.MAX_VALUE;
+        long streamedTempBytes = 0;
+        long mappedTempBytes = 0;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            MimeMessage mimeMessage = new MimeMessage(new ByteArrayInputStream(message));
+            extractText(mimeMessage);
+            streamed = Math.min(streamed, System.nanoTime() - start);
+            streamedTempBytes = bodyFilesSize(tempDirectory);
+            deleteBodyFiles(tempDirectory);
+
+            start = System.nanoTime();
+            mimeMessage = new MimeMessage(ByteBuffer.wrap(message));
+            extractText(mimeMessage);
+            mapped = Math.min(mapped, System.nanoTime() - start);
+            mappedTempBytes = bodyFilesSize(tempDirectory);
+            deleteBodyFiles(tempDirectory);
+        }
+        LogUtils.i(LOG_TAG, "Parsed a %d byte message: streamed %d ms, %d temp bytes;"
+                + " mapped %d ms, %d temp bytes", message.length, streamed / 1000000,
+                streamedTempBytes, mapped / 1000000, mappedTempBytes);
+        assertEquals(0, mappedTempBytes);
+    }
+
+    private static void extractText(MimeMessage message) throws MessagingException {
+        final ArrayList<Part> viewables = new ArrayList<Part>();
+        final ArrayList<Part> attachments = new ArrayList<Part>();
+        MimeUtility.collectParts(message, viewables, attachments);
+        for (Part part : viewables) {
+            assertNotNull(MimeUtility.getTextFromPart(part));
+        }
+    }
+}
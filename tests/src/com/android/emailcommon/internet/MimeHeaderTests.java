@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.mail.MessagingException;
+import com.android.mail.utils.LogUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+public class MimeHeaderTests extends AndroidTestCase {
+    private static final String LOG_TAG = "MimeHeaderTests";
+
+    @SmallTest
+    public void testLookupIgnoresCase() throws MessagingException {
+        final MimeHeader header = new MimeHeader();
+        header.addHeader("Received", "from a");
+        header.addHeader("Subject", "Hello");
+        header.addHeader("received", "from b");
+        header.addHeader("RECEIVED", "from c");
+
+        final String[] received = header.getHeader("Received");
+        assertEquals(3, received.length);
+        assertEquals("from a", received[0]);
+        assertEquals("from b", received[1]);
+        assertEquals("from c", received[2]);
+        assertEquals("from a", header.getFirstHeader("rEcEiVeD"));
+        assertEquals("Hello", header.getFirstHeader("SUBJECT"));
+        assertNull(header.getHeader("To"));
+        assertNull(header.getFirstHeader("To"));
+        assertNull(header.getFirstHeaderDecoded("To"));
+    }
+
+    @SmallTest
+    public void testWriteOrderIsKept() throws Exception {
+        final MimeHeader header = new MimeHeader();
+        header.addHeader("Received", "from a");
+        header.addHeader("Subject", "Hello");
+        header.addHeader("Received", "from b");
+        header.addHeader("To", "a@example.com");
+        header.addHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, "1.2");
+        header.setHeader("subject", "Hi");
+        header.removeHeader("RECEIVED");
+        assertNull(header.getHeader("Received"));
+        header.addHeader("Received", "from c");
+
+        final String expected = "To: a@example.com\r\nsubject: Hi\r\nReceived: from c\r\n";
+        assertEquals(expected, header.writeToString());
+        final java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        header.writeTo(out);
+        assertEquals(expected, out.toString("US-ASCII"));
+        assertEquals(1, header.getHeader("Received").length);
+
+        header.clear();
+        assertNull(header.getFirstHeader("To"));
+        assertNull(header.writeToString());
+    }
+
+    @SmallTest
+    public void testNullNamesAreNotFound() throws MessagingException {
+        final MimeHeader header = new MimeHeader();
+        assertNull(header.getFirstHeader(null));
+        header.addHeader("Subject", "Hello");
+        assertNull(header.getFirstHeader(null));
+        assertNull(header.getFirstHeaderDecoded(null));
+        assertNull(header.getHeader(null));
+        header.removeHeader(null);
+        assertEquals("Hello", header.getFirstHeader("Subject"));
+    }
+
+    /** A subclass that still changes the fields itself */
+    private static class ReorderingHeader extends MimeHeader {
+        void reverse() {
+            Collections.reverse(mFields);
+        }
+
+        void dropLast() {
+            mFields.remove(mFields.size() - 1);
+        }
+    }
+
+    @SmallTest
+    public void testFieldsChangedBySubclass() throws MessagingException {
+        final ReorderingHeader header = new ReorderingHeader();
+        header.addHeader("Received", "from a");
+        header.addHeader("Subject", "Hello");
+        header.addHeader("Received", "from b");
+        assertEquals("from a", header.getFirstHeader("Received"));
+
+        header.reverse();
+        assertEquals("from b", header.getFirstHeader("received"));
+        final String[] received = header.getHeader("Received");
+        assertEquals(2, received.length);
+        assertEquals("from a", received[1]);
+
+        header.dropLast();
+        header.addHeader("Received", "from c");
+        final String[] changed = header.getHeader("Received");
+        assertEquals(2, changed.length);
+        assertEquals("from b", changed[0]);
+        assertEquals("from c", changed[1]);
+        assertEquals("Received: from b\r\nSubject: Hello\r\nReceived: from c\r\n",
+                header.writeToString());
+    }
+
+    @SmallTest
+    public void testValuesAreUnfoldedAndDecodedOnce() throws MessagingException {
+        final String subject = "=?UTF-8?B?w6l0w6k=?=\r\n =?ISO-8859-1?Q?caf=E9?=";
+        final MimeHeader header = new MimeHeader();
+        header.addHeader("Subject", subject);
+        header.addHeader("To", "A <a@example.com>,\r\n B <b@example.com>");
+
+        final String decoded = header.getFirstHeaderDecoded("subject");
+        assertEquals(MimeUtility.unfoldAndDecode(subject), decoded);
+        assertSame(decoded, header.getFirstHeaderDecoded("Subject"));
+        assertEquals(subject, header.getFirstHeader("Subject"));
+        assertEquals("A <a@example.com>, B <b@example.com>", header.getFirstHeaderUnfolded("To"));
+
+        // A new value is decoded again
+        header.setHeader("Subject", "Plain");
+        assertEquals("Plain", header.getFirstHeaderDecoded("Subject"));
+    }
+
+    @SmallTest
+    public void testPartHeadersAreDecodedOnce() throws MessagingException {
+        final String disposition = "attachment;\r\n filename=\"=?UTF-8?B?w6l0w6k=?=.txt\"";
+        final MimeBodyPart part = new MimeBodyPart();
+        part.addHeader(MimeHeader.HEADER_CONTENT_DISPOSITION, disposition);
+
+        final String decoded =
+                MimeUtility.getFirstHeaderDecoded(part, MimeHeader.HEADER_CONTENT_DISPOSITION);
+        assertEquals(MimeUtility.unfoldAndDecode(disposition), decoded);
+        assertSame(decoded,
+                MimeUtility.getFirstHeaderDecoded(part, MimeHeader.HEADER_CONTENT_DISPOSITION));
+        assertNull(MimeUtility.getFirstHeaderDecoded(part, MimeHeader.HEADER_CONTENT_TYPE));
+    }
+
+    /**
+     * The header store before it was indexed, for comparison.
+     */
+    private static class ListHeader {
+        private final ArrayList<String[]> mFields = new ArrayList<String[]>();
+
+        void addHeader(String name, String value) {
+            mFields.add(new String[] { name, value });
+        }
+
+        String[] getHeader(String name) {
+            final ArrayList<String> values = new ArrayList<String>();
+            for (String[] field : mFields) {
+                if (field[0].equalsIgnoreCase(name)) {
+                    values.add(field[1]);
+                }
+            }
+            return values.size() == 0 ? null : values.toArray(new String[] {});
+        }
+
+        String getFirstHeader(String name) {
+            final String[] header = getHeader(name);
+            return header == null ? null : header[0];
+        }
+    }
+
+    private static final String[] LOOKUPS = {
+        "Date", "Subject", "From", "To", "CC", "Reply-to", "Message-ID",
+        MimeHeader.HEADER_CONTENT_TYPE, MimeHeader.HEADER_CONTENT_DISPOSITION,
+        MimeHeader.HEADER_CONTENT_ID, MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING
+    };
+    private static final String[] DECODED = { "Subject", MimeHeader.HEADER_CONTENT_TYPE };
+
+    private static String[][] buildMailingListHeaders(Random random) {
+        final ArrayList<String[]> fields = new ArrayList<String[]>();
+        final int received = 40 + random.nextInt(140);
+        for (int i = 0; i < received; i++) {
+            fields.add(new String[] { "Received", "from relay" + i + ".example.com (relay" + i
+                    + ".example.com [10.0.0." + (i % 250) + "])\r\n\tby mx.example.com with "
+                    + "ESMTPS id " + random.nextInt() + "\r\n\tfor <list@example.com>;"
+                    + " Tue, 1 Jul 2014 10:00:00 -0700" });
+        }
+        fields.add(new String[] { "DKIM-Signature", "v=1; a=rsa-sha256; c=relaxed/relaxed;\r\n"
+                + "\td=example.com; s=20120113; h=from:to:subject" });
+        fields.add(new String[] { "List-Id", "<list.example.com>" });
+        fields.add(new String[] { "List-Unsubscribe", "<mailto:leave@example.com>" });
+        fields.add(new String[] { "Date", "Tue, 1 Jul 2014 10:00:00 -0700" });
+        fields.add(new String[] { "From", "\"Sender\" <sender@example.com>" });
+        fields.add(new String[] { "To", "list@example.com" });
+        fields.add(new String[] { "Subject", "=?UTF-8?Q?Re:_[list]_caf=C3=A9?=\r\n =?UTF-8?B?"
+                + "w6l0w6k=?=" });
+        fields.add(new String[] { "Message-ID", "<" + random.nextInt() + "@example.com>" });
+        fields.add(new String[] { "Content-Type", "text/plain; charset=\"utf-8\"" });
+        return fields.toArray(new String[fields.size()][]);
+    }
+
+    /**
+     * Times the lookups {@link MimeMessage} and {@link MimeUtility#collectParts} make of a
+     * message, many times over, on mailing list messages with 50 to 200 fields.
+     */
+    @LargeTest
+    public void testLookupBenchmark() throws MessagingException {
+        final Random random = new Random(50200);
+        final int messageCount = 200;
+        final MimeHeader[] headers = new MimeHeader[messageCount];
+        final ListHeader[] listHeaders = new ListHeader[messageCount];
+        for (int m = 0; m < messageCount; m++) {
+            headers[m] = new MimeHeader();
+            listHeaders[m] = new ListHeader();
+            for (String[] field : buildMailingListHeaders(random)) {
+                headers[m].addHeader(field[0], field[1]);
+                listHeaders[m].addHeader(field[0], field[1]);
+            }
+            for (String name : LOOKUPS) {
+                assertEquals(listHeaders[m].getFirstHeader(name), headers[m].getFirstHeader(name));
+            }
+            assertEquals(listHeaders[m].getHeader("Received").length,
+                    headers[m].getHeader("received").length);
+        }
+
+        long indexed = Long.MAX_VALUE;
+        long list = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int repeat = 0; repeat < 10; repeat++) {
+                for (MimeHeader header : headers) {
+                    for (String name : LOOKUPS) {
+                        header.getFirstHeader(name);
+                    }
+                    for (String name : DECODED) {
+                        header.getFirstHeaderDecoded(name);
+                    }
+                }
+            }
+            indexed = Math.min(indexed, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int repeat = 0; repeat < 10; repeat++) {
+                for (ListHeader header : listHeaders) {
+                    for (String name : LOOKUPS) {
+                        header.getFirstHeader(name);
+                    }
+                    for (String name : DECODED) {
+                        MimeUtility.unfoldAndDecode(header.getFirstHeader(name));
+                    }
+                }
+            }
+            list = Math.min(list, System.nanoTime() - start);
+        }
+        LogUtils.i(LOG_TAG, "Header lookups in %d messages: indexed %d us, list %d us",
+                messageCount, indexed / 1000, list / 1000);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.internet;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.mail.Body;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.mail.Part;
+
+import org.apache.james.mime4j.util.CharsetUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+@SmallTest
+public class PartTextDecoderTests extends AndroidTestCase {
+
+    private static class BytesBody implements Body {
+        private final byte[] mBytes;
+
+        BytesBody(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(mBytes);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static Part part(String contentType, byte[] bytes) throws MessagingException {
+        return new MimeBodyPart(new BytesBody(bytes), contentType);
+    }
+
+    private static String repeat(String s, int count) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    public void testMatchesStringDecoding() throws Exception {
+        // Multi-byte characters that straddle the decoder's buffers, and some bad bytes
+        final String text = repeat("caf\u00e9 \u65e5\u672c \ud834\udf06 ", 3000);
+        final byte[] utf8 = text.getBytes("UTF-8");
+        final byte[] bad = new byte[] { 'a', (byte) 0xc3, 'b', (byte) 0xff };
+        final String[][] cases = {
+            { "text/plain; charset=utf-8", "UTF-8" },
+            { "text/html; charset=\"UTF-8\"", "UTF-8" },
+            { "text/plain; charset=iso-8859-1", "ISO-8859-1" },
+            { "text/plain", "US-ASCII" },
+        };
+        for (String[] c : cases) {
+            assertEquals(new String(utf8, c[1]),
+                    MimeUtility.getTextFromPart(part(c[0], utf8)));
+            assertEquals(new String(bad, c[1]), MimeUtility.getTextFromPart(part(c[0], bad)));
+        }
+    }
+
+    public void testNoText() throws Exception {
+        assertNull(MimeUtility.getTextFromPart(part("image/png", new byte[] { 1, 2, 3 })));
+        // Unknown charsets are read as ASCII
+        assertEquals("a", MimeUtility.getTextFromPart(
+                part("text/plain; charset=no-such-charset", new byte[] { 'a' })));
+        assertNull(MimeUtility.getTextFromPart(new MimeBodyPart(null, "text/plain")));
+        // Known charsets that can't be decoded have no text, as they never had
+        for (String charset : new String[] { "iso2022_cn_gb", "iso2022_cn_cns", "x0208" }) {
+            if (CharsetUtil.toJavaCharset(charset) != null
+                    && CharsetUtil.getDecodingCharset(charset) == null) {
+                assertNull(charset, MimeUtility.getTextFromPart(
+                        part("text/plain; charset=" + charset, new byte[] { 'a' })));
+            }
+        }
+        assertEquals("", MimeUtility.getTextFromPart(part("text/plain", new byte[0])));
+    }
+
+    public void testClipLength() throws Exception {
+        final PartTextDecoder decoder = new PartTextDecoder();
+        decoder.setClipLength(10000);
+        final StringBuilder sb = new StringBuilder("prefix");
+
+        assertTrue(decoder.appendText(part("text/plain", "short".getBytes("US-ASCII")), sb));
+        assertFalse(decoder.isClipped());
+        assertEquals("prefixshort", sb.toString());
+
+        // The clip length applies to the whole builder
+        final String text = repeat("0123456789", 2000);
+        assertTrue(decoder.appendText(part("text/plain", text.getBytes("US-ASCII")), sb));
+        assertTrue(decoder.isClipped());
+        assertEquals(10000, sb.length());
+        assertEquals("prefixshort" + text.substring(0, 10000 - 11), sb.toString());
+
+        // A surrogate pair is not split
+        decoder.setClipLength(6);
+        sb.setLength(0);
+        assertTrue(decoder.appendText(
+                part("text/plain; charset=utf-8", "abcde\ud834\udf06".getBytes("UTF-8")), sb));
+        assertTrue(decoder.isClipped());
+        assertEquals("abcde", sb.toString());
+    }
+}
@@ -18,8 +18,14 @@ package com.android.emailcommon.mail;
 
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.text.Html;
+import android.text.util.Rfc822Token;
+import android.text.util.Rfc822Tokenizer;
+
 import org.apache.james.mime4j.decoder.DecoderUtil;
 
+import java.util.Random;
+
 /**
  * This is a series of unit tests for the Address class.  These tests must be locally
  * complete - no server(s) required.
@@ -698,4 +704,52 @@ public class AddressUnitTests extends AndroidTestCase {
         // isAllValid() must accept empty address list as valid
         assertTrue("Empty address list is valid", Address.isAllValid(""));
     }
+
+    /**
+     * Checks the addresses {@link SimpleAddressTokenizer} handles against the full parse that
+     * {@link Address#getEmailAddress} falls back to.
+     */
+    public void testSimpleTokenizerMatchesFullParse() {
+        final String[] simple = {
+            "john@gmail.com", "<john@gmail.com>", "John Doe <john@gmail.com>",
+            "  John   Doe<john@gmail.com>", "\"Doe, John (work)\" <john@gmail.com>",
+            "\"  John  \"   <john@gmail.com>", "\"\" <john@gmail.com>",
+            "\u65E5\u672C\u8A9E <address6@co.jp>", "j.o'hn+tag@example.co.uk",
+        };
+        for (String raw : simple) {
+            assertNotNull(raw, SimpleAddressTokenizer.tokenize(raw));
+            checkSimpleTokenizer(raw);
+        }
+        final String[] notSimple = {
+            "", "a, b", "John <>", "Tom &amp; Jerry <tj@example.com>", "\"a\\\"b\" <x@y.z>",
+            "John (work) <john@gmail.com>", "\"John <john@gmail.com>", "a b", "<a>>",
+            "John\tDoe <john@gmail.com>", "John <john@gmail.com> ",
+        };
+        for (String raw : notSimple) {
+            assertNull(raw, SimpleAddressTokenizer.tokenize(raw));
+        }
+
+        final Random random = new Random(21);
+        final String alphabet = "ab \"<>@.,;()&\\\t\u00e9\u0085";
+        for (int round = 0; round < 20000; round++) {
+            final StringBuilder sb = new StringBuilder();
+            final int length = random.nextInt(16);
+            for (int i = 0; i < length; i++) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            checkSimpleTokenizer(sb.toString());
+        }
+    }
+
+    private static void checkSimpleTokenizer(String raw) {
+        final String[] simple = SimpleAddressTokenizer.tokenize(raw);
+        if (simple == null) {
+            return;
+        }
+        final Rfc822Token[] tokens = Rfc822Tokenizer.tokenize(raw);
+        assertTrue(raw, tokens.length > 0);
+        final String name = tokens[0].getName();
+        assertEquals(raw, name != null ? Html.fromHtml(name.trim()).toString() : "", simple[0]);
+        assertEquals(raw, Html.fromHtml(tokens[0].getAddress()).toString(), simple[1]);
+    }
 }
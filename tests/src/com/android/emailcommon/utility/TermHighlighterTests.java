@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.emailcommon.utility;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.text.SpannableStringBuilder;
+import android.text.style.BackgroundColorSpan;
+
+import java.util.Random;
+
+@SmallTest
+public class TermHighlighterTests extends AndroidTestCase {
+    private static final String START = "<span style=\"background-color: "
+            + TextUtilities.HIGHLIGHT_COLOR_STRING + "\">";
+    private static final String END = "</span>";
+
+    private static String highlight(String s) {
+        return START + s + END;
+    }
+
+    public void testHighlightHtml() {
+        final TermHighlighter highlighter = new TermHighlighter("foo  BAR");
+        assertEquals("<p class=\"foo\">" + highlight("Foo") + " and " + highlight("bar")
+                + "</p>", highlighter.highlightHtml("<p class=\"foo\">Foo and bar</p>")
+                .toString());
+        // Overlapping and adjacent matches make one range
+        assertEquals(highlight("foobar") + "!", new TermHighlighter("foob obar")
+                .highlightHtml("foobar!").toString());
+        // Nothing is found in stripped elements or across tags
+        assertEquals("<SCRIPT>foo</script><title>bar</TITLE>fo<b>o</b>",
+                highlighter.highlightHtml("<SCRIPT>foo</script><title>bar</TITLE>fo<b>o</b>")
+                .toString());
+        assertEquals("a<b", highlighter.highlightHtml("a<b").toString());
+    }
+
+    public void testNoTerms() {
+        assertEquals("<b>text</b>", new TermHighlighter("  ").highlightHtml("<b>text</b>")
+                .toString());
+        assertEquals("<b>text</b>", new TermHighlighter(null).highlightHtml("<b>text</b>")
+                .toString());
+        assertEquals("", TextUtilities.highlightTermsInHtml("", "foo"));
+    }
+
+    public void testCaseFolding() {
+        // Final and medial sigma, and the capital
+        assertEquals(highlight("\u03a3\u03bf\u03c2"),
+                new TermHighlighter("\u03c3\u03bf\u03c3").highlightHtml("\u03a3\u03bf\u03c2")
+                .toString());
+    }
+
+    public void testForQueryReusesHighlighter() {
+        final TermHighlighter highlighter = TermHighlighter.forQuery("one two");
+        assertSame(highlighter, TermHighlighter.forQuery("one two"));
+        assertNotSame(highlighter, TermHighlighter.forQuery("one"));
+    }
+
+    /**
+     * Compares the highlighted characters with those covered by a naive search for every term.
+     */
+    public void testMatchesNaiveSearch() {
+        final Random random = new Random(16);
+        final String alphabet = "abAB ";
+        for (int round = 0; round < 2000; round++) {
+            final StringBuilder query = new StringBuilder();
+            final int termCount = 1 + random.nextInt(4);
+            final String[] terms = new String[termCount];
+            for (int t = 0; t < termCount; t++) {
+                final StringBuilder term = new StringBuilder();
+                final int length = 1 + random.nextInt(4);
+                for (int i = 0; i < length; i++) {
+                    term.append(alphabet.charAt(random.nextInt(4)));
+                }
+                terms[t] = term.toString();
+                query.append(terms[t]).append(' ');
+            }
+            final StringBuilder text = new StringBuilder();
+            final int length = random.nextInt(40);
+            for (int i = 0; i < length; i++) {
+                text.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+
+            final boolean[] expected = new boolean[length];
+            final String lowerText = text.toString().toLowerCase();
+            for (String term : terms) {
+                final String lowerTerm = term.toLowerCase();
+                for (int i = lowerText.indexOf(lowerTerm); i >= 0;
+                        i = lowerText.indexOf(lowerTerm, i + 1)) {
+                    for (int j = i; j < i + term.length(); j++) {
+                        expected[j] = true;
+                    }
+                }
+            }
+
+            final SpannableStringBuilder spanned =
+                    new TermHighlighter(query.toString()).highlightText(text.toString());
+            assertEquals(text.toString(), spanned.toString());
+            final boolean[] actual = new boolean[length];
+            int lastEnd = 0;
+            for (BackgroundColorSpan span :
+                    spanned.getSpans(0, length, BackgroundColorSpan.class)) {
+                final int start = spanned.getSpanStart(span);
+                final int end = spanned.getSpanEnd(span);
+                // In order, without overlaps
+                assertTrue(start >= lastEnd && end > start);
+                lastEnd = end;
+                for (int j = start; j < end; j++) {
+                    actual[j] = true;
+                }
+            }
+            for (int i = 0; i < length; i++) {
+                assertEquals(query + "/" + text + " at " + i, expected[i], actual[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.database.MatrixCursor;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.providers.UIProvider;
+
+@SmallTest
+public class ConversationColumnSnapshotTests extends AndroidTestCase {
+    private static final int[] BOOLEAN_COLUMNS = {
+        UIProvider.CONVERSATION_HAS_ATTACHMENTS_COLUMN,
+        UIProvider.CONVERSATION_READ_COLUMN,
+        UIProvider.CONVERSATION_SEEN_COLUMN,
+        UIProvider.CONVERSATION_STARRED_COLUMN,
+        UIProvider.CONVERSATION_IS_SPAM_COLUMN,
+        UIProvider.CONVERSATION_IS_PHISHING_COLUMN,
+        UIProvider.CONVERSATION_MUTED_COLUMN,
+        UIProvider.CONVERSATION_REMOTE_COLUMN,
+    };
+
+    private static Object[] newRow(long id, String subject, int booleans) {
+        final Object[] row = new Object[UIProvider.CONVERSATION_PROJECTION.length];
+        row[UIProvider.CONVERSATION_ID_COLUMN] = id;
+        row[UIProvider.CONVERSATION_URI_COLUMN] = "content://test/conversation/" + id;
+        row[UIProvider.CONVERSATION_SUBJECT_COLUMN] = subject;
+        row[UIProvider.CONVERSATION_SNIPPET_COLUMN] = "Snippet " + (id % 2);
+        row[UIProvider.CONVERSATION_DATE_RECEIVED_MS_COLUMN] = 1400000000000L + id;
+        row[UIProvider.CONVERSATION_NUM_MESSAGES_COLUMN] = (int) id + 1;
+        row[UIProvider.CONVERSATION_NUM_DRAFTS_COLUMN] = 0;
+        row[UIProvider.CONVERSATION_SENDING_STATE_COLUMN] = 0;
+        row[UIProvider.CONVERSATION_PRIORITY_COLUMN] = 1;
+        row[UIProvider.CONVERSATION_FLAGS_COLUMN] = 0x10;
+        row[UIProvider.CONVERSATION_PERSONAL_LEVEL_COLUMN] = 2;
+        row[UIProvider.CONVERSATION_COLOR_COLUMN] = -16777216;
+        row[UIProvider.CONVERSATION_ORDER_KEY_COLUMN] = (1L << 40) - id;
+        for (int i = 0; i < BOOLEAN_COLUMNS.length; i++) {
+            row[BOOLEAN_COLUMNS[i]] = (booleans >>> i) & 1;
+        }
+        return row;
+    }
+
+    private static ConversationColumnSnapshot snapshot(MatrixCursor cursor) {
+        final ConversationColumnSnapshot snapshot =
+                new ConversationColumnSnapshot(cursor.getCount());
+        for (int row = 0; cursor.moveToPosition(row); row++) {
+            snapshot.copyRow(row, cursor);
+        }
+        snapshot.finish();
+        return snapshot;
+    }
+
+    public void testValuesMatchCursor() {
+        final MatrixCursor cursor = new MatrixCursor(UIProvider.CONVERSATION_PROJECTION);
+        cursor.addRow(newRow(1, "Lunch", 0));
+        cursor.addRow(newRow(2, null, 0xff));
+        cursor.addRow(newRow(3, "Re: Lunch", 0xa5));
+        final ConversationColumnSnapshot snapshot = snapshot(cursor);
+        assertEquals(3, snapshot.getCount());
+
+        final int columnCount = UIProvider.CONVERSATION_PROJECTION.length;
+        for (int row = 0; cursor.moveToPosition(row); row++) {
+            assertTrue(snapshot.isAvailable(row));
+            for (int column = 0; column < columnCount; column++) {
+                if (snapshot.hasLong(column)) {
+                    assertEquals(cursor.getLong(column), snapshot.getLong(row, column));
+                }
+                if (snapshot.hasInt(column)) {
+                    assertEquals(cursor.getInt(column), snapshot.getInt(row, column));
+                }
+                if (snapshot.hasString(column)) {
+                    assertEquals(cursor.getString(column), snapshot.getString(row, column));
+                }
+            }
+        }
+    }
+
+    public void testColumns() {
+        final ConversationColumnSnapshot snapshot = new ConversationColumnSnapshot(0);
+        assertTrue(snapshot.hasLong(UIProvider.CONVERSATION_ID_COLUMN));
+        assertTrue(snapshot.hasInt(UIProvider.CONVERSATION_NUM_MESSAGES_COLUMN));
+        assertTrue(snapshot.hasString(UIProvider.CONVERSATION_SUBJECT_COLUMN));
+        for (int column : BOOLEAN_COLUMNS) {
+            assertTrue(snapshot.hasInt(column));
+            assertFalse(snapshot.hasLong(column));
+        }
+        // Uris and blobs are left to the cursor
+        assertFalse(snapshot.hasString(UIProvider.CONVERSATION_URI_COLUMN));
+        assertFalse(snapshot.hasString(UIProvider.CONVERSATION_INFO_COLUMN));
+        assertFalse(snapshot.hasInt(-1));
+        assertFalse(snapshot.hasLong(UIProvider.CONVERSATION_PROJECTION.length));
+    }
+
+    public void testStringsAreInterned() {
+        final MatrixCursor cursor = new MatrixCursor(UIProvider.CONVERSATION_PROJECTION);
+        cursor.addRow(newRow(1, new String("Lunch"), 0));
+        cursor.addRow(newRow(2, new String("Lunch"), 0));
+        cursor.addRow(newRow(3, new String("Dinner"), 0));
+        final ConversationColumnSnapshot snapshot = snapshot(cursor);
+        final int subject = UIProvider.CONVERSATION_SUBJECT_COLUMN;
+        assertSame(snapshot.getString(0, subject), snapshot.getString(1, subject));
+        assertEquals("Dinner", snapshot.getString(2, subject));
+        final int snippet = UIProvider.CONVERSATION_SNIPPET_COLUMN;
+        assertSame(snapshot.getString(0, snippet), snapshot.getString(2, snippet));
+    }
+
+    public void testBypass() {
+        final MatrixCursor cursor = new MatrixCursor(UIProvider.CONVERSATION_PROJECTION);
+        cursor.addRow(newRow(1, "Lunch", 0));
+        final Object[] notABit = newRow(2, "Lunch", 0);
+        notABit[UIProvider.CONVERSATION_READ_COLUMN] = 2;
+        cursor.addRow(notABit);
+        cursor.addRow(newRow(3, "Lunch", 0));
+        final ConversationColumnSnapshot snapshot = snapshot(cursor);
+
+        // Values the bit set can't hold are read from the cursor
+        assertTrue(snapshot.isAvailable(0));
+        assertFalse(snapshot.isAvailable(1));
+        assertTrue(snapshot.isAvailable(2));
+
+        // As are rows with local changes
+        snapshot.bypass(2);
+        assertFalse(snapshot.isAvailable(2));
+        assertTrue(snapshot.isAvailable(0));
+
+        assertFalse(snapshot.isAvailable(-1));
+        assertFalse(snapshot.isAvailable(3));
+    }
+
+    public void testRowEquals() {
+        final MatrixCursor oldCursor = new MatrixCursor(UIProvider.CONVERSATION_PROJECTION);
+        oldCursor.addRow(newRow(1, "Lunch", 0x05));
+        oldCursor.addRow(newRow(2, "Lunch", 0));
+        final Object[] notABit = newRow(3, "Lunch", 0);
+        notABit[UIProvider.CONVERSATION_READ_COLUMN] = 2;
+        oldCursor.addRow(notABit);
+        final ConversationColumnSnapshot oldSnapshot = snapshot(oldCursor);
+
+        final MatrixCursor newCursor = new MatrixCursor(UIProvider.CONVERSATION_PROJECTION);
+        newCursor.addRow(newRow(2, new String("Lunch"), 0));
+        newCursor.addRow(newRow(1, "Lunch", 0x04));
+        final Object[] reordered = newRow(2, "Lunch", 0);
+        reordered[UIProvider.CONVERSATION_ORDER_KEY_COLUMN] = 1L << 41;
+        newCursor.addRow(reordered);
+        newCursor.addRow(newRow(1, "Re: Lunch", 0x05));
+        newCursor.addRow(notABit.clone());
+        final ConversationColumnSnapshot newSnapshot = snapshot(newCursor);
+
+        assertTrue(newSnapshot.rowEquals(0, oldSnapshot, 1));
+        assertTrue(oldSnapshot.rowEquals(1, newSnapshot, 0));
+        // A flag, the order key and a string that changed
+        assertFalse(newSnapshot.rowEquals(1, oldSnapshot, 0));
+        assertFalse(newSnapshot.rowEquals(2, oldSnapshot, 1));
+        assertFalse(newSnapshot.rowEquals(3, oldSnapshot, 0));
+        // Values the bit set can't hold never match
+        assertFalse(newSnapshot.rowEquals(4, oldSnapshot, 2));
+
+        // Local changes bypass the snapshot, but its values still compare
+        newSnapshot.bypass(0);
+        assertTrue(newSnapshot.rowEquals(0, oldSnapshot, 1));
+    }
+}
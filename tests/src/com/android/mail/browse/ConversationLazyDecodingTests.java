@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.providers.Conversation;
+import com.android.mail.providers.ConversationInfo;
+import com.android.mail.providers.Folder;
+import com.android.mail.providers.FolderList;
+import com.android.mail.providers.ParticipantInfo;
+import com.android.mail.providers.UIProvider;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * Checks that the uris and blobs {@link Conversation} keeps undecoded from a cursor row come
+ * out the same as they went in, however and whenever they are first read.
+ */
+@SmallTest
+public class ConversationLazyDecodingTests extends AndroidTestCase {
+    private static final String CONVERSATION_URI = "content://test/conversation/1";
+    private static final String MESSAGE_LIST_URI = "content://test/conversation/1/messages";
+    private static final String ACCOUNT_URI = "content://test/account/1";
+    private static final String BASE_URI = "content://test/conversation/";
+    private static final Uri FOLDER_URI = Uri.parse("content://test/folder/1");
+
+    private static ConversationInfo newInfo() {
+        final ConversationInfo info = new ConversationInfo(3, 1, "first", "unread", "last");
+        info.addParticipant(new ParticipantInfo("Alice", "alice@example.com", 0, true));
+        info.addParticipant(new ParticipantInfo("Bob", "bob@example.com", 1, false));
+        return info;
+    }
+
+    private static Conversation newConversation(String messageListUri, String accountUri,
+            byte[] conversationInfo, byte[] rawFolders) {
+        final Object[] row = new Object[UIProvider.CONVERSATION_PROJECTION.length];
+        row[UIProvider.CONVERSATION_ID_COLUMN] = 1L;
+        row[UIProvider.CONVERSATION_URI_COLUMN] = CONVERSATION_URI;
+        row[UIProvider.CONVERSATION_MESSAGE_LIST_URI_COLUMN] = messageListUri;
+        row[UIProvider.CONVERSATION_SUBJECT_COLUMN] = "Lunch";
+        row[UIProvider.CONVERSATION_INFO_COLUMN] = conversationInfo;
+        row[UIProvider.CONVERSATION_RAW_FOLDERS_COLUMN] = rawFolders;
+        row[UIProvider.CONVERSATION_ACCOUNT_URI_COLUMN] = accountUri;
+        row[UIProvider.CONVERSATION_BASE_URI_COLUMN] = BASE_URI;
+        final MatrixCursor cursor = new MatrixCursor(UIProvider.CONVERSATION_PROJECTION);
+        cursor.addRow(row);
+        cursor.moveToFirst();
+        final Conversation conversation = new Conversation(cursor);
+        cursor.close();
+        return conversation;
+    }
+
+    private static byte[] folderBlob() {
+        final Folder folder = new Folder.Builder()
+                .setUri(FOLDER_URI)
+                .setName("Inbox")
+                .build();
+        return FolderList.copyOf(ImmutableList.of(folder)).toBlob();
+    }
+
+    private static void assertInfo(ConversationInfo info) {
+        assertEquals(3, info.messageCount);
+        assertEquals(1, info.draftCount);
+        assertEquals("last", info.lastSnippet);
+        assertEquals(2, info.participantInfos.size());
+        assertEquals("Bob", info.participantInfos.get(1).name);
+    }
+
+    private static void assertFolders(List<Folder> folders) {
+        assertEquals(1, folders.size());
+        assertEquals(FOLDER_URI, folders.get(0).folderUri.fullUri);
+        assertEquals("Inbox", folders.get(0).name);
+    }
+
+    public void testDecodedOnFirstAccess() {
+        final Conversation conversation = newConversation(MESSAGE_LIST_URI, ACCOUNT_URI,
+                newInfo().toCompactBlob(), folderBlob());
+        assertEquals(Uri.parse(CONVERSATION_URI), conversation.uri);
+
+        final Uri messageListUri = conversation.getMessageListUri();
+        assertEquals(Uri.parse(MESSAGE_LIST_URI), messageListUri);
+        assertSame(messageListUri, conversation.getMessageListUri());
+        assertEquals(Uri.parse(ACCOUNT_URI), conversation.getAccountUri());
+        assertEquals(Uri.parse(BASE_URI), conversation.getConversationBaseUri());
+
+        final ConversationInfo info = conversation.getConversationInfo();
+        assertInfo(info);
+        assertSame(info, conversation.getConversationInfo());
+        assertFolders(conversation.getRawFolders());
+    }
+
+    public void testParcelBlobs() {
+        final Conversation conversation = newConversation(MESSAGE_LIST_URI, ACCOUNT_URI,
+                newInfo().toBlob(), folderBlob());
+        assertInfo(conversation.getConversationInfo());
+        assertFolders(conversation.getRawFolders());
+    }
+
+    public void testEmptyColumns() {
+        final Conversation conversation = newConversation("", null, newInfo().toCompactBlob(),
+                null);
+        assertNull(conversation.getMessageListUri());
+        assertNull(conversation.getAccountUri());
+        assertTrue(conversation.getRawFolders().isEmpty());
+    }
+
+    public void testCopiesDecodeIndependently() {
+        final Conversation original = newConversation(MESSAGE_LIST_URI, ACCOUNT_URI,
+                newInfo().toCompactBlob(), folderBlob());
+        final Conversation copy = new Conversation(original);
+        assertInfo(copy.getConversationInfo());
+        assertFolders(copy.getRawFolders());
+        assertEquals(Uri.parse(MESSAGE_LIST_URI), copy.getMessageListUri());
+
+        // Decoding the copy leaves the original to decode its own
+        assertInfo(original.getConversationInfo());
+        assertNotSame(copy.getConversationInfo(), original.getConversationInfo());
+        assertFolders(original.getRawFolders());
+        assertEquals(Uri.parse(ACCOUNT_URI), original.getAccountUri());
+
+        // and a copy of a decoded conversation shares what was decoded
+        assertSame(original.getConversationInfo(),
+                new Conversation(original).getConversationInfo());
+    }
+
+    public void testReadFromBlobs() {
+        final byte[] info = newInfo().toCompactBlob();
+        final byte[] folders = folderBlob();
+        final Conversation conversation = newConversation(MESSAGE_LIST_URI, ACCOUNT_URI, info,
+                folders);
+        assertTrue(conversation.isReadFromBlobs(info.clone(), folders.clone()));
+        // Still true once decoded, and for copies
+        assertInfo(conversation.getConversationInfo());
+        assertFolders(conversation.getRawFolders());
+        assertTrue(conversation.isReadFromBlobs(info, folders));
+        assertTrue(new Conversation(conversation).isReadFromBlobs(info, folders));
+
+        final byte[] otherInfo = info.clone();
+        otherInfo[otherInfo.length - 1]++;
+        assertFalse(conversation.isReadFromBlobs(otherInfo, folders));
+        assertFalse(conversation.isReadFromBlobs(info, null));
+
+        // Folders set some other way never match
+        conversation.setRawFolders(FolderList.copyOf(conversation.getRawFolders()));
+        assertFalse(conversation.isReadFromBlobs(info, folders));
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.browse.ConversationListDiff.Range;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.Random;
+
+@SmallTest
+public class ConversationListDiffTests extends AndroidTestCase {
+
+    private static ConversationPositionIndex index(long... ids) {
+        final ConversationPositionIndex index = new ConversationPositionIndex(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            index.put(i, ids[i], "content://mock/conversation/" + ids[i]);
+        }
+        return index;
+    }
+
+    /** Row contents equal to the ids, so rows are unchanged unless a test says otherwise */
+    private static long[] contents(long... ids) {
+        return ids.clone();
+    }
+
+    private static ConversationListDiff.RowMatcher matcher(final long[] oldContents,
+            final long[] newContents) {
+        return new ConversationListDiff.RowMatcher() {
+            @Override
+            public boolean isUnchanged(int oldPosition, int newPosition) {
+                return oldContents[oldPosition] == newContents[newPosition];
+            }
+        };
+    }
+
+    public void testNewMailAtTop() {
+        final long[] oldIds = { 5, 4, 3, 2, 1 };
+        final long[] newIds = { 6, 5, 4, 3, 2, 1 };
+        final ConversationListDiff diff = ConversationListDiff.compute(index(oldIds),
+                index(newIds), matcher(contents(oldIds), contents(newIds)));
+
+        assertEquals(ImmutableList.of(new Range(Range.INSERTED, 0, 1)), diff.getRanges());
+        assertEquals(-1, diff.getReusablePosition(0));
+        for (int i = 1; i < newIds.length; i++) {
+            assertEquals(i - 1, diff.getReusablePosition(i));
+        }
+        assertEquals(5, diff.getUnchangedCount());
+    }
+
+    public void testChangedAndMovedRows() {
+        final long[] oldIds = { 5, 4, 3, 2, 1 };
+        // 2 gets a reply and moves to the top; 4 is marked read in place; 1 is deleted
+        final long[] newIds = { 2, 5, 4, 3 };
+        final long[] newContents = { 20, 5, 40, 3 };
+        final ConversationListDiff diff = ConversationListDiff.compute(index(oldIds),
+                index(newIds), matcher(contents(oldIds), newContents));
+
+        assertEquals(ImmutableList.of(
+                new Range(Range.REMOVED, 3, 2),
+                new Range(Range.INSERTED, 0, 1),
+                new Range(Range.CHANGED, 2, 1)), diff.getRanges());
+        assertEquals(-1, diff.getReusablePosition(0));
+        assertEquals(0, diff.getReusablePosition(1));
+        assertEquals(-1, diff.getReusablePosition(2));
+        assertEquals(2, diff.getReusablePosition(3));
+    }
+
+    public void testDuplicateIdsAreNotDiffed() {
+        final long[] ids = { 1, 1 };
+        assertNull(ConversationListDiff.compute(index(ids), index(2, 1),
+                matcher(contents(ids), contents(2, 1))));
+    }
+
+    public void testTooManyRanges() {
+        final int count = ConversationListDiff.MAX_RANGES * 4;
+        final long[] oldIds = new long[count];
+        final long[] newIds = new long[count / 2];
+        for (int i = 0; i < count; i++) {
+            oldIds[i] = i;
+        }
+        for (int i = 0; i < newIds.length; i++) {
+            // Every other row is removed
+            newIds[i] = i * 2;
+        }
+        final ConversationListDiff diff = ConversationListDiff.compute(index(oldIds),
+                index(newIds), matcher(contents(oldIds), contents(newIds)));
+        assertNull(diff.getRanges());
+        assertEquals(newIds.length, diff.getUnchangedCount());
+    }
+
+    /**
+     * Applies the ranges of random diffs to the old list, and checks that the result is the new
+     * list, with every changed row either re-inserted or reported as changed.
+     */
+    public void testRangesReproduceNewList() {
+        final Random random = new Random(3);
+        for (int round = 0; round < 500; round++) {
+            final int oldCount = random.nextInt(40);
+            final List<Long> oldList = Lists.newArrayList();
+            for (long i = 0; i < oldCount; i++) {
+                oldList.add(i);
+            }
+            final List<Long> newList = Lists.newArrayList(oldList);
+            for (int edits = random.nextInt(4); edits > 0; edits--) {
+                final int position = random.nextInt(newList.size() + 1);
+                switch (random.nextInt(3)) {
+                    case 0:
+                        newList.add(position, 1000L + round * 10 + edits);
+                        break;
+                    case 1:
+                        if (position < newList.size()) {
+                            newList.remove(position);
+                        }
+                        break;
+                    default:
+                        if (position < newList.size()) {
+                            final Long moved = newList.remove(position);
+                            newList.add(random.nextInt(newList.size() + 1), moved);
+                        }
+                        break;
+                }
+            }
+
+            final long[] oldIds = toArray(oldList);
+            final long[] newIds = toArray(newList);
+            final long[] newContents = contents(newIds);
+            final boolean[] changed = new boolean[newIds.length];
+            for (int i = 0; i < newIds.length; i++) {
+                if (newIds[i] < 1000 && random.nextInt(5) == 0) {
+                    newContents[i]++;
+                    changed[i] = true;
+                }
+            }
+
+            final ConversationListDiff diff = ConversationListDiff.compute(index(oldIds),
+                    index(newIds), matcher(contents(oldIds), newContents));
+            if (diff.getRanges() == null) {
+                continue;
+            }
+            final List<Long> applied = Lists.newArrayList(oldList);
+            final boolean[] notified = new boolean[newIds.length];
+            for (Range range : diff.getRanges()) {
+                for (int i = 0; i < range.mCount; i++) {
+                    switch (range.mType) {
+                        case Range.REMOVED:
+                            applied.remove(range.mStart);
+                            break;
+                        case Range.INSERTED:
+                            applied.add(range.mStart + i, newIds[range.mStart + i]);
+                            notified[range.mStart + i] = true;
+                            break;
+                        case Range.CHANGED:
+                            notified[range.mStart + i] = true;
+                            break;
+                    }
+                }
+            }
+            assertEquals(newList, applied);
+            for (int i = 0; i < newIds.length; i++) {
+                if (changed[i]) {
+                    assertTrue(notified[i]);
+                }
+                final int reused = diff.getReusablePosition(i);
+                if (reused >= 0) {
+                    assertEquals(newIds[i], oldIds[reused]);
+                    assertFalse(changed[i]);
+                }
+            }
+        }
+    }
+
+    private static long[] toArray(List<Long> list) {
+        final long[] result = new long[list.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.utils.LogUtils;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.Set;
+
+public class ConversationPositionIndexTests extends AndroidTestCase {
+    private static final String LOG_TAG = "ConvPosIndexTests";
+
+    private static final int[] BENCHMARK_SIZES = { 1000, 10000, 50000 };
+    private static final int BENCHMARK_ROUNDS = 5;
+
+    private static String uriFor(long id) {
+        return "content://com.android.mail.mockprovider/conversation/" + id;
+    }
+
+    private static ConversationPositionIndex buildIndex(int count) {
+        final ConversationPositionIndex index = new ConversationPositionIndex(count);
+        for (int i = 0; i < count; i++) {
+            // Ids are sparse and descending, as in a date-ordered conversation list
+            final long id = (count - i) * 7L + (1L << 33);
+            index.put(i, id, uriFor(id));
+        }
+        return index;
+    }
+
+    @SmallTest
+    public void testLookups() {
+        final int count = 257;
+        final ConversationPositionIndex index = buildIndex(count);
+        assertEquals(count, index.idSize());
+        assertEquals(count, index.uriSize());
+        for (int i = 0; i < count; i++) {
+            final long id = index.getId(i);
+            assertEquals(i, index.getPosition(id));
+            assertEquals(i, index.getPosition(uriFor(id)));
+            assertEquals(uriFor(id), index.getUri(i));
+            assertTrue(index.contains(uriFor(id)));
+        }
+        assertEquals(-1, index.getPosition(12345L));
+        assertEquals(-1, index.getPosition("content://nope/1"));
+        assertFalse(index.contains(null));
+    }
+
+    @SmallTest
+    public void testEmpty() {
+        final ConversationPositionIndex index = new ConversationPositionIndex(0);
+        assertEquals(-1, index.getPosition(0L));
+        assertEquals(-1, index.getPosition(""));
+        assertTrue(index.idSet().isEmpty());
+    }
+
+    @SmallTest
+    public void testDuplicatesKeepLastPosition() {
+        final ConversationPositionIndex index = new ConversationPositionIndex(3);
+        assertEquals(0, index.put(0, 1L, "a"));
+        assertEquals(ConversationPositionIndex.DUPLICATE_ID, index.put(1, 1L, "b"));
+        assertEquals(ConversationPositionIndex.DUPLICATE_URI, index.put(2, 2L, "a"));
+        assertEquals(1, index.getPosition(1L));
+        assertEquals(2, index.getPosition("a"));
+        assertEquals(2, index.idSize());
+        assertEquals(2, index.uriSize());
+    }
+
+    @SmallTest
+    public void testUriHashCollisions() {
+        // "Aa" and "BB" share a String hash code, as do all concatenations of them
+        final String[] uris = { "AaAa", "AaBB", "BBAa", "BBBB" };
+        assertEquals(uris[0].hashCode(), uris[3].hashCode());
+        final ConversationPositionIndex index = new ConversationPositionIndex(uris.length);
+        for (int i = 0; i < uris.length; i++) {
+            index.put(i, i, uris[i]);
+        }
+        for (int i = 0; i < uris.length; i++) {
+            assertEquals(i, index.getPosition(uris[i]));
+        }
+        assertEquals(-1, index.getPosition("AaAB"));
+    }
+
+    @SmallTest
+    public void testIdSet() {
+        final int count = 100;
+        final ConversationPositionIndex index = buildIndex(count);
+        final Set<Long> ids = index.idSet();
+        assertEquals(count, ids.size());
+        int iterated = 0;
+        for (Long id : ids) {
+            assertTrue(ids.contains(id));
+            iterated++;
+        }
+        assertEquals(count, iterated);
+        assertFalse(ids.contains(-1L));
+        assertFalse(ids.contains("1"));
+    }
+
+    /**
+     * Compares build time and lookup cost against the HashMap pair that the index replaced.
+     * Results are logged rather than asserted, as they depend on the device.
+     */
+    @LargeTest
+    public void testBenchmark() {
+        for (int size : BENCHMARK_SIZES) {
+            final long[] ids = new long[size];
+            final String[] uris = new String[size];
+            for (int i = 0; i < size; i++) {
+                ids[i] = (size - i) * 7L + (1L << 33);
+                uris[i] = uriFor(ids[i]);
+            }
+
+            long indexBuild = Long.MAX_VALUE;
+            long indexLookup = Long.MAX_VALUE;
+            long mapBuild = Long.MAX_VALUE;
+            long mapLookup = Long.MAX_VALUE;
+            int sink = 0;
+            for (int round = 0; round < BENCHMARK_ROUNDS; round++) {
+                long start = System.nanoTime();
+                final ConversationPositionIndex index = new ConversationPositionIndex(size);
+                for (int i = 0; i < size; i++) {
+                    index.put(i, ids[i], uris[i]);
+                }
+                indexBuild = Math.min(indexBuild, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < size; i++) {
+                    sink += index.getPosition(ids[i]) + index.getPosition(uris[i]);
+                }
+                indexLookup = Math.min(indexLookup, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                final Map<Long, Integer> idMap = Maps.newHashMapWithExpectedSize(size);
+                final Map<String, Integer> uriMap = Maps.newHashMapWithExpectedSize(size);
+                for (int i = 0; i < size; i++) {
+                    idMap.put(ids[i], i);
+                    uriMap.put(uris[i], i);
+                }
+                mapBuild = Math.min(mapBuild, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                for (int i = 0; i < size; i++) {
+                    sink += idMap.get(ids[i]) + uriMap.get(uris[i]);
+                }
+                mapLookup = Math.min(mapLookup, System.nanoTime() - start);
+            }
+
+            LogUtils.i(LOG_TAG, "n=%d index: build %dus, lookup %dns/row; " +
+                    "HashMap: build %dus, lookup %dns/row (%d)", size,
+                    indexBuild / 1000, indexLookup / size, mapBuild / 1000, mapLookup / size,
+                    sink);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.browse.ConversationWriteQueue.Write;
+import com.android.mail.providers.UIProvider;
+import com.android.mail.providers.UIProvider.ConversationColumns;
+import com.android.mail.providers.UIProvider.ConversationOperations;
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class ConversationWriteQueueTests extends AndroidTestCase {
+    private static final Uri CONV_1 = Uri.parse("content://mock/conversation/1");
+    private static final Uri CONV_2 = Uri.parse("content://mock/conversation/2");
+
+    private static final int MAX_PENDING_UNLIMITED = Integer.MAX_VALUE;
+
+    private ConversationWriteQueue mQueue;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // Never flushes on its own during a test; the tests inspect what is pending instead
+        mQueue = new ConversationWriteQueue(null, TimeUnit.HOURS.toMillis(1),
+                MAX_PENDING_UNLIMITED);
+    }
+
+    /**
+     * Counts the operations applied to the "mock" authority.
+     */
+    private static class CountingProvider extends MockContentProvider {
+        private final CountDownLatch mApplied;
+
+        CountingProvider(int operations) {
+            mApplied = new CountDownLatch(operations);
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(
+                ArrayList<ContentProviderOperation> operations) {
+            for (int i = 0; i < operations.size(); i++) {
+                mApplied.countDown();
+            }
+            return new ContentProviderResult[operations.size()];
+        }
+
+        boolean awaitApplied() throws InterruptedException {
+            return mApplied.await(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static ConversationWriteQueue newFlushingQueue(CountingProvider provider,
+            long flushDelayMs, int maxPending) {
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider("mock", provider);
+        return new ConversationWriteQueue(resolver, flushDelayMs, maxPending);
+    }
+
+    private static void waitForFlush(ConversationWriteQueue queue) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        queue.runAfterPendingWrites(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    private static Uri withSequence(Uri uri, int sequence) {
+        return uri.buildUpon().appendQueryParameter(UIProvider.SEQUENCE_QUERY_PARAMETER,
+                Integer.toString(sequence)).build();
+    }
+
+    private static Write update(Uri uri, int sequence, String column, Object value) {
+        final ContentValues values = new ContentValues();
+        if (value instanceof Boolean) {
+            values.put(column, (Boolean) value);
+        } else {
+            values.put(column, (Integer) value);
+        }
+        return Write.update(uri, withSequence(uri, sequence), values);
+    }
+
+    /**
+     * An update without an undo bar, as marking read is
+     */
+    private static Write suppressedUpdate(Uri uri, int sequence, String column, int value) {
+        final Write write = update(uri, sequence, column, value);
+        write.getValues().put(ConversationOperations.Parameters.SUPPRESS_UNDO, true);
+        return write;
+    }
+
+    public void testColumnUpdatesMerge() {
+        mQueue.enqueue(ImmutableList.of(update(CONV_1, 1, ConversationColumns.STARRED, true),
+                update(CONV_1, 1, ConversationColumns.READ, 1),
+                update(CONV_2, 1, ConversationColumns.READ, 1),
+                update(CONV_1, 1, ConversationColumns.STARRED, false)));
+
+        final List<Write> pending = mQueue.drainPending();
+        assertEquals(2, pending.size());
+        final Write merged = pending.get(0);
+        assertEquals(withSequence(CONV_1, 1), merged.getUri());
+        assertEquals(Boolean.FALSE, merged.getValues().getAsBoolean(ConversationColumns.STARRED));
+        assertEquals(1, (int) merged.getValues().getAsInteger(ConversationColumns.READ));
+        assertEquals(withSequence(CONV_2, 1), pending.get(1).getUri());
+    }
+
+    public void testSuppressedUpdatesMergeAcrossSequences() {
+        // Two apply() calls, each with its own sequence
+        mQueue.enqueue(ImmutableList.of(
+                suppressedUpdate(CONV_1, 1, ConversationColumns.READ, 1),
+                suppressedUpdate(CONV_2, 1, ConversationColumns.READ, 1)));
+        mQueue.enqueue(ImmutableList.of(
+                suppressedUpdate(CONV_1, 2, ConversationColumns.SEEN, 1),
+                suppressedUpdate(CONV_1, 2, ConversationColumns.READ, 0)));
+
+        final List<Write> pending = mQueue.drainPending();
+        assertEquals(2, pending.size());
+        final Write merged = pending.get(0);
+        assertEquals(withSequence(CONV_1, 2), merged.getUri());
+        assertEquals(0, (int) merged.getValues().getAsInteger(ConversationColumns.READ));
+        assertEquals(1, (int) merged.getValues().getAsInteger(ConversationColumns.SEEN));
+        assertEquals(withSequence(CONV_2, 1), pending.get(1).getUri());
+
+        final ConversationWriteQueue.Stats stats = mQueue.getStats();
+        assertEquals(4, stats.enqueued);
+        assertEquals(2, stats.coalesced);
+        assertEquals(0, stats.dropped);
+    }
+
+    public void testSequencesStaySeparate() {
+        // Each sequence can be undone on its own, so no undoable write is folded into another
+        mQueue.enqueue(ImmutableList.of(update(CONV_1, 1, ConversationColumns.STARRED, true)));
+        mQueue.enqueue(ImmutableList.of(update(CONV_1, 2, ConversationColumns.READ, 1)));
+        mQueue.enqueue(ImmutableList.of(Write.delete(CONV_1, withSequence(CONV_1, 3))));
+        mQueue.enqueue(ImmutableList.of(update(CONV_1, 4, ConversationColumns.READ, 0)));
+
+        final List<Write> pending = mQueue.drainPending();
+        assertEquals(4, pending.size());
+        for (int i = 0; i < pending.size(); i++) {
+            assertEquals(withSequence(CONV_1, i + 1), pending.get(i).getUri());
+        }
+        assertEquals(1, pending.get(0).getValues().size());
+        assertEquals(1, pending.get(1).getValues().size());
+        assertEquals(Write.DELETE, pending.get(2).mType);
+    }
+
+    public void testDeleteDominatesUpdates() {
+        mQueue.enqueue(ImmutableList.of(update(CONV_1, 1, ConversationColumns.STARRED, true),
+                update(CONV_2, 1, ConversationColumns.STARRED, true),
+                Write.delete(CONV_1, withSequence(CONV_1, 1)),
+                update(CONV_1, 1, ConversationColumns.READ, 1)));
+
+        final List<Write> pending = mQueue.drainPending();
+        assertEquals(2, pending.size());
+        assertEquals(withSequence(CONV_2, 1), pending.get(0).getUri());
+        assertEquals(Write.DELETE, pending.get(1).mType);
+        assertEquals(withSequence(CONV_1, 1), pending.get(1).getUri());
+    }
+
+    public void testOperationsAreBarriers() {
+        mQueue.enqueue(ImmutableList.of(update(CONV_1, 1, ConversationColumns.READ, 1),
+                Write.operation(CONV_1, withSequence(CONV_1, 1), ConversationOperations.ARCHIVE),
+                update(CONV_1, 1, ConversationColumns.STARRED, true),
+                update(CONV_1, 1, ConversationColumns.READ, 0)));
+
+        final List<Write> pending = mQueue.drainPending();
+        assertEquals(3, pending.size());
+        assertEquals(1, (int) pending.get(0).getValues().getAsInteger(ConversationColumns.READ));
+        assertEquals(ConversationOperations.ARCHIVE,
+                pending.get(1).getValues().getAsString(ConversationOperations.OPERATION_KEY));
+        assertEquals(0, (int) pending.get(2).getValues().getAsInteger(ConversationColumns.READ));
+        assertEquals(Boolean.TRUE,
+                pending.get(2).getValues().getAsBoolean(ConversationColumns.STARRED));
+    }
+
+    public void testUndoableUpdatesStaySeparate() {
+        final Write suppressed = update(CONV_1, 1, ConversationColumns.READ, 1);
+        suppressed.getValues().put(ConversationOperations.Parameters.SUPPRESS_UNDO, true);
+        mQueue.enqueue(ImmutableList.of(suppressed,
+                update(CONV_1, 1, ConversationColumns.STARRED, true)));
+
+        assertEquals(2, mQueue.drainPending().size());
+    }
+
+    public void testFlushesAfterDelay() throws InterruptedException {
+        final CountingProvider provider = new CountingProvider(2);
+        final ConversationWriteQueue queue = newFlushingQueue(provider, 10, MAX_PENDING_UNLIMITED);
+        queue.enqueue(ImmutableList.of(update(CONV_1, 1, ConversationColumns.READ, 1),
+                update(CONV_2, 1, ConversationColumns.READ, 1)));
+        assertTrue(provider.awaitApplied());
+        waitForFlush(queue);
+
+        final ConversationWriteQueue.Stats stats = queue.getStats();
+        assertEquals(2, stats.applied);
+        assertEquals(1, stats.flushes);
+    }
+
+    public void testFlushesWhenFull() throws InterruptedException {
+        final CountingProvider provider = new CountingProvider(2);
+        // Would not flush for an hour, unless full
+        final ConversationWriteQueue queue = newFlushingQueue(provider,
+                TimeUnit.HOURS.toMillis(1), 2);
+        queue.enqueue(ImmutableList.of(update(CONV_1, 1, ConversationColumns.READ, 1)));
+        queue.enqueue(ImmutableList.of(update(CONV_2, 1, ConversationColumns.READ, 1)));
+        assertTrue(provider.awaitApplied());
+        assertEquals(2, queue.getStats().enqueued);
+    }
+}
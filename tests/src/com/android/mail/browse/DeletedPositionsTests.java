@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.browse;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.utils.LogUtils;
+
+import java.util.Random;
+
+public class DeletedPositionsTests extends AndroidTestCase {
+    private static final String LOG_TAG = "DeletedPositionsTests";
+
+    @SmallTest
+    public void testNoDeletions() {
+        final DeletedPositions positions = new DeletedPositions(10);
+        assertEquals(10, positions.getVisibleCount());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, positions.toUnderlyingPosition(i));
+            assertEquals(i, positions.toVisiblePosition(i));
+        }
+        assertEquals(-1, positions.toUnderlyingPosition(10));
+        assertEquals(-1, positions.toUnderlyingPosition(-1));
+    }
+
+    @SmallTest
+    public void testEmpty() {
+        final DeletedPositions positions = new DeletedPositions(0);
+        assertEquals(0, positions.getVisibleCount());
+        assertEquals(-1, positions.toUnderlyingPosition(0));
+        assertEquals(-1, positions.toVisiblePosition(0));
+    }
+
+    @SmallTest
+    public void testDeleteAndUndelete() {
+        final DeletedPositions positions = new DeletedPositions(6);
+        assertTrue(positions.setDeleted(0, true));
+        assertTrue(positions.setDeleted(3, true));
+        assertFalse(positions.setDeleted(3, true));
+        assertEquals(2, positions.getDeletedCount());
+        assertEquals(4, positions.getVisibleCount());
+
+        // Visible rows are underlying 1, 2, 4, 5
+        assertEquals(1, positions.toUnderlyingPosition(0));
+        assertEquals(2, positions.toUnderlyingPosition(1));
+        assertEquals(4, positions.toUnderlyingPosition(2));
+        assertEquals(5, positions.toUnderlyingPosition(3));
+        assertEquals(-1, positions.toUnderlyingPosition(4));
+        assertEquals(-1, positions.toVisiblePosition(0));
+        assertEquals(-1, positions.toVisiblePosition(3));
+        assertEquals(2, positions.toVisiblePosition(4));
+
+        assertTrue(positions.setDeleted(0, false));
+        assertEquals(0, positions.toUnderlyingPosition(0));
+        assertEquals(3, positions.toVisiblePosition(4));
+
+        positions.reset();
+        assertEquals(0, positions.getDeletedCount());
+        assertFalse(positions.isDeleted(3));
+    }
+
+    @SmallTest
+    public void testMatchesLinearScan() {
+        final Random random = new Random(42);
+        for (int size : new int[] { 1, 2, 7, 64, 100, 1023 }) {
+            final DeletedPositions positions = new DeletedPositions(size);
+            final boolean[] deleted = new boolean[size];
+            for (int round = 0; round < size * 2; round++) {
+                final int pos = random.nextInt(size);
+                deleted[pos] = random.nextBoolean();
+                positions.setDeleted(pos, deleted[pos]);
+
+                int visible = 0;
+                for (int i = 0; i < size; i++) {
+                    if (deleted[i]) {
+                        assertEquals(-1, positions.toVisiblePosition(i));
+                    } else {
+                        assertEquals(visible, positions.toVisiblePosition(i));
+                        assertEquals(i, positions.toUnderlyingPosition(visible));
+                        visible++;
+                    }
+                }
+                assertEquals(visible, positions.getVisibleCount());
+            }
+        }
+    }
+
+    /**
+     * Measures the cost of binding random visible positions, as a fling through the list does,
+     * with 0, 100 and 5,000 pending local deletions. The row-by-row walk that
+     * ConversationCursor used to do is timed alongside for comparison.
+     */
+    @LargeTest
+    public void testBindBenchmark() {
+        final int size = 20000;
+        final int binds = 2000;
+        final Random random = new Random(7);
+        final int[] targets = new int[binds];
+        for (int deletions : new int[] { 0, 100, 5000 }) {
+            final DeletedPositions positions = new DeletedPositions(size);
+            final boolean[] deleted = new boolean[size];
+            while (positions.getDeletedCount() < deletions) {
+                final int pos = random.nextInt(size);
+                deleted[pos] = true;
+                positions.setDeleted(pos, true);
+            }
+            for (int i = 0; i < binds; i++) {
+                targets[i] = random.nextInt(positions.getVisibleCount());
+            }
+
+            int sink = 0;
+            long start = System.nanoTime();
+            for (int target : targets) {
+                sink += positions.toUnderlyingPosition(target);
+            }
+            final long indexed = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int visible = -1;
+            int underlying = -1;
+            for (int target : targets) {
+                // Walk from the current position, as moveToNext()/moveToPrevious() did
+                while (visible < target) {
+                    do {
+                        underlying++;
+                    } while (deleted[underlying]);
+                    visible++;
+                }
+                while (visible > target) {
+                    do {
+                        underlying--;
+                    } while (deleted[underlying]);
+                    visible--;
+                }
+                sink += underlying;
+            }
+            final long walked = System.nanoTime() - start;
+
+            LogUtils.i(LOG_TAG, "deletions=%d: indexed %d binds/ms, walk %d binds/ms (%d)",
+                    deletions, binds * 1000000L / Math.max(1, indexed),
+                    binds * 1000000L / Math.max(1, walked), sink);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.providers;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.utils.LogUtils;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+@SmallTest
+public class CompactBlobCodecTests extends AndroidTestCase {
+    private static final String LOG_TAG = "CompactBlobCodecTests";
+
+    private static ConversationInfo createInfo(int participants) {
+        final ConversationInfo info = new ConversationInfo(participants, 2, "first été",
+                null, "last 📧");
+        for (int i = 0; i < participants; i++) {
+            // Alternate between two senders, as a back-and-forth thread does
+            info.addParticipant(new ParticipantInfo(i % 2 == 0 ? "Alice" : "Bob",
+                    i % 2 == 0 ? "alice@example.com" : null, i - 1, i % 3 == 0));
+        }
+        return info;
+    }
+
+    private static void assertInfoEquals(ConversationInfo expected, ConversationInfo actual) {
+        assertEquals(expected.messageCount, actual.messageCount);
+        assertEquals(expected.draftCount, actual.draftCount);
+        assertEquals(expected.firstSnippet, actual.firstSnippet);
+        assertEquals(expected.firstUnreadSnippet, actual.firstUnreadSnippet);
+        assertEquals(expected.lastSnippet, actual.lastSnippet);
+        assertEquals(expected.participantInfos.size(), actual.participantInfos.size());
+        for (int i = 0; i < expected.participantInfos.size(); i++) {
+            assertParticipantEquals(expected.participantInfos.get(i),
+                    actual.participantInfos.get(i));
+        }
+    }
+
+    private static void assertParticipantEquals(ParticipantInfo expected, ParticipantInfo actual) {
+        assertEquals(expected.name, actual.name);
+        assertEquals(expected.email, actual.email);
+        assertEquals(expected.priority, actual.priority);
+        assertEquals(expected.readConversation, actual.readConversation);
+    }
+
+    public void testConversationInfoRoundTrip() {
+        final ConversationInfo info = createInfo(7);
+        final byte[] compact = info.toCompactBlob();
+        assertTrue(CompactBlobCodec.isCompact(compact));
+        assertInfoEquals(info, ConversationInfo.fromBlob(compact));
+
+        final ConversationInfo empty = new ConversationInfo();
+        assertInfoEquals(empty, ConversationInfo.fromBlob(empty.toCompactBlob()));
+    }
+
+    public void testParcelBlobsStillDecode() {
+        final ConversationInfo info = createInfo(3);
+        final byte[] parcel = info.toBlob();
+        assertFalse(CompactBlobCodec.isCompact(parcel));
+        assertInfoEquals(info, ConversationInfo.fromBlob(parcel));
+        assertEquals(3, CompactBlobCodec.readMessageCount(parcel));
+        assertEquals(2, CompactBlobCodec.readParticipants(parcel, 2).size());
+
+        assertFalse(CompactBlobCodec.isCompact(FolderList.listToBlob(ImmutableList.<Folder>of())));
+        assertFalse(CompactBlobCodec.isCompact(null));
+    }
+
+    public void testReaders() {
+        final ConversationInfo info = createInfo(10);
+        final byte[] compact = info.toCompactBlob();
+        assertEquals(10, CompactBlobCodec.readMessageCount(compact));
+        assertEquals(2, CompactBlobCodec.readDraftCount(compact));
+
+        final List<ParticipantInfo> firstThree = CompactBlobCodec.readParticipants(compact, 3);
+        assertEquals(3, firstThree.size());
+        for (int i = 0; i < 3; i++) {
+            assertParticipantEquals(info.participantInfos.get(i), firstThree.get(i));
+        }
+        assertEquals(10, CompactBlobCodec.readParticipants(compact, 100).size());
+    }
+
+    public void testTruncatedBlobFails() {
+        final byte[] compact = createInfo(4).toCompactBlob();
+        final byte[] truncated = new byte[compact.length - 3];
+        System.arraycopy(compact, 0, truncated, 0, truncated.length);
+        try {
+            ConversationInfo.fromBlob(truncated);
+            fail("Decoded a truncated blob");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testFolderListRoundTrip() {
+        final Uri parent = Uri.parse("content://mock/folder/parent");
+        final Folder labelled = new Folder.Builder()
+                .setId(-3)
+                .setPersistentId("^i")
+                .setUri(Uri.parse("content://mock/folder/1"))
+                .setName("Inbox")
+                .setCapabilities(0x8000 | 0x10)
+                .setHasChildren(true)
+                .setConversationListUri(Uri.parse("content://mock/folder/1/conversations"))
+                .setUnreadCount(12)
+                .setType(UIProvider.FolderType.INBOX)
+                .setBgColor("-16777216")
+                .setFgColor("-1")
+                .setParent(parent)
+                .setLastMessageTimestamp(1400000000000L)
+                .build();
+        final Folder bare = new Folder.Builder()
+                .setUri(Uri.parse("content://mock/folder/2"))
+                .setParent(parent)
+                .build();
+        final FolderList list = FolderList.copyOf(ImmutableList.of(labelled, bare));
+
+        final byte[] compact = list.toCompactBlob();
+        final byte[] parcel = list.toBlob();
+        LogUtils.i(LOG_TAG, "FolderList blob: compact %d bytes, parcel %d bytes",
+                compact.length, parcel.length);
+
+        final List<Folder> decoded = FolderList.fromBlob(compact).folders;
+        assertEquals(2, decoded.size());
+        final Folder first = decoded.get(0);
+        assertEquals(labelled.id, first.id);
+        assertEquals(labelled.persistentId, first.persistentId);
+        assertEquals(labelled.folderUri, first.folderUri);
+        assertEquals(labelled.name, first.name);
+        assertEquals(labelled.capabilities, first.capabilities);
+        assertEquals(labelled.hasChildren, first.hasChildren);
+        assertEquals(labelled.conversationListUri, first.conversationListUri);
+        assertEquals(labelled.unreadCount, first.unreadCount);
+        assertEquals(labelled.type, first.type);
+        assertEquals(labelled.bgColor, first.bgColor);
+        assertEquals(labelled.getBackgroundColor(0), first.getBackgroundColor(0));
+        assertEquals(labelled.parent, first.parent);
+        assertEquals(labelled.lastMessageTimestamp, first.lastMessageTimestamp);
+        assertNull(first.refreshUri);
+
+        final Folder second = decoded.get(1);
+        assertEquals(bare.folderUri, second.folderUri);
+        assertNull(second.name);
+        assertNull(second.bgColor);
+        assertEquals(parent, second.parent);
+    }
+}
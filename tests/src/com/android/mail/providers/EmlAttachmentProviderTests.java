@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.providers;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class EmlAttachmentProviderTests extends AndroidTestCase {
+    private static final String LIST_URI = "content://test/attachments/eml/";
+
+    private static EmlAttachmentProvider.UnsavedBodyTask newTask(String partId, boolean inline) {
+        return new EmlAttachmentProvider.UnsavedBodyTask(null,
+                Uri.parse("content://test/attachment/eml/1/" + partId), inline, false);
+    }
+
+    public void testInlineBodiesAreSizedFirst() {
+        final PriorityBlockingQueue<EmlAttachmentProvider.UnsavedBodyTask> queue =
+                new PriorityBlockingQueue<EmlAttachmentProvider.UnsavedBodyTask>();
+        queue.add(newTask("a", false));
+        queue.add(newTask("b", true));
+        queue.add(newTask("c", false));
+        queue.add(newTask("d", true));
+        queue.add(newTask("e", false));
+
+        // Inline parts, which the conversation view shows right away, then in insertion order
+        for (String partId : new String[] { "b", "d", "a", "c", "e" }) {
+            assertEquals(partId, queue.poll().getUri().getLastPathSegment());
+        }
+        assertNull(queue.poll());
+    }
+
+    public void testWaitForPendingSaves() throws InterruptedException {
+        final Uri listUri = Uri.parse(LIST_URI + "1");
+        final Uri otherListUri = Uri.parse(LIST_URI + "2");
+        // Nothing pending, so this returns right away
+        EmlAttachmentProvider.waitForPendingSaves(listUri);
+
+        EmlAttachmentProvider.changePendingSaves(listUri, 2);
+        final CountDownLatch saved = new CountDownLatch(1);
+        final Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    EmlAttachmentProvider.waitForPendingSaves(listUri);
+                    saved.countDown();
+                } catch (InterruptedException e) {
+                    // the test fails on the latch
+                }
+            }
+        };
+        waiter.start();
+        try {
+            // Saves for other lists do not count
+            EmlAttachmentProvider.waitForPendingSaves(otherListUri);
+            assertFalse(saved.await(100, TimeUnit.MILLISECONDS));
+
+            EmlAttachmentProvider.changePendingSaves(listUri, -1);
+            assertFalse(saved.await(100, TimeUnit.MILLISECONDS));
+
+            EmlAttachmentProvider.changePendingSaves(listUri, -1);
+            assertTrue(saved.await(5, TimeUnit.SECONDS));
+        } finally {
+            waiter.interrupt();
+            waiter.join();
+        }
+        EmlAttachmentProvider.waitForPendingSaves(listUri);
+    }
+}
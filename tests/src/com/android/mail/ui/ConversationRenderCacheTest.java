@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.ui;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+@SmallTest
+public class ConversationRenderCacheTest extends AndroidTestCase {
+    private static final Uri CONVERSATION_1 = Uri.parse("content://test/conversation/1");
+    private static final Uri CONVERSATION_2 = Uri.parse("content://test/conversation/2");
+
+    private static ConversationRenderCache.Entry newEntry(Uri uri, int stateHashCode,
+            int documentLength) {
+        final ConversationRenderCache.Entry entry = new ConversationRenderCache.Entry(
+                new ConversationRenderCache.Key(uri, stateHashCode, 360, false));
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < documentLength; i++) {
+            sb.append('x');
+        }
+        entry.setDocument(sb.toString());
+        return entry;
+    }
+
+    public void testKey() {
+        final ConversationRenderCache.Key key =
+                new ConversationRenderCache.Key(CONVERSATION_1, 7, 360, false);
+        assertEquals(key, new ConversationRenderCache.Key(CONVERSATION_1, 7, 360, false));
+        assertEquals(key.hashCode(),
+                new ConversationRenderCache.Key(CONVERSATION_1, 7, 360, false).hashCode());
+        assertFalse(key.equals(new ConversationRenderCache.Key(CONVERSATION_2, 7, 360, false)));
+        assertFalse(key.equals(new ConversationRenderCache.Key(CONVERSATION_1, 8, 360, false)));
+        assertFalse(key.equals(new ConversationRenderCache.Key(CONVERSATION_1, 7, 320, false)));
+        assertFalse(key.equals(new ConversationRenderCache.Key(CONVERSATION_1, 7, 360, true)));
+    }
+
+    public void testBodies() {
+        final ConversationRenderCache.Entry entry = newEntry(CONVERSATION_1, 1, 0);
+        entry.putBody(5, "body", null, false, false, "<p>body</p>");
+        assertEquals("<p>body</p>",
+                entry.getBody(5, new String("body"), null, false, false));
+        // Changed message, or prepared for other images
+        assertNull(entry.getBody(5, "new body", null, false, false));
+        assertNull(entry.getBody(5, "body", "body", false, false));
+        assertNull(entry.getBody(5, "body", null, true, false));
+        assertNull(entry.getBody(5, "body", null, false, true));
+        assertNull(entry.getBody(6, "body", null, false, false));
+
+        entry.putBody(5, "new body", null, false, false, "<p>new body</p>");
+        assertEquals("<p>new body</p>", entry.getBody(5, "new body", null, false, false));
+        assertEquals(2 * ("<p>new body</p>".length() + "new body".length()),
+                entry.getSizeInBytes());
+    }
+
+    public void testCollidingSourcesAreNotReused() {
+        // Same String.hashCode(), different text
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        final ConversationRenderCache.Entry entry = newEntry(CONVERSATION_1, 1, 0);
+        entry.putBody(5, "Aa", null, false, false, "<p>Aa</p>");
+        assertNull(entry.getBody(5, "BB", null, false, false));
+    }
+
+    public void testOneEntryPerConversation() {
+        final ConversationRenderCache cache = new ConversationRenderCache(1000);
+        final ConversationRenderCache.Entry first = newEntry(CONVERSATION_1, 1, 10);
+        final ConversationRenderCache.Entry second = newEntry(CONVERSATION_1, 2, 10);
+        cache.put(first);
+        assertSame(first, cache.get(CONVERSATION_1));
+        cache.put(second);
+        assertSame(second, cache.get(CONVERSATION_1));
+        assertNull(cache.get(CONVERSATION_2));
+    }
+
+    public void testSizeIsBounded() {
+        final ConversationRenderCache cache = new ConversationRenderCache(1000);
+        cache.put(newEntry(CONVERSATION_1, 1, 300));
+        cache.put(newEntry(CONVERSATION_2, 1, 300));
+        // Least recently used first
+        assertNull(cache.get(CONVERSATION_1));
+        assertNotNull(cache.get(CONVERSATION_2));
+
+        // Too big to keep at all
+        cache.put(newEntry(CONVERSATION_1, 1, 600));
+        assertNull(cache.get(CONVERSATION_1));
+    }
+}
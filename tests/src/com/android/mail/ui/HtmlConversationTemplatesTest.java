@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.ui;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.R;
+import com.android.mail.utils.LogUtils;
+
+import java.io.StringWriter;
+import java.util.Formatter;
+
+public class HtmlConversationTemplatesTest extends AndroidTestCase {
+    private static final String LOG_TAG = "HtmlConversationTemplatesTest";
+
+    private static final int[] TEMPLATES = {
+        R.raw.template_super_collapsed,
+        R.raw.template_message,
+        R.raw.template_conversation_upper,
+        R.raw.template_conversation_lower,
+        R.raw.template_print_conversation_upper,
+        R.raw.template_print_message,
+        R.raw.template_print_conversation_lower,
+        R.raw.template_print_conversation_lower_no_js,
+    };
+
+    private static class TestTemplates extends AbstractHtmlTemplates {
+        TestTemplates(Context context) {
+            super(context);
+        }
+    }
+
+    private static class TestMessage implements HtmlMessage {
+        private final long mId;
+        private final String mBody;
+
+        TestMessage(long id, String body) {
+            mId = id;
+            mBody = body;
+        }
+
+        @Override
+        public String getBodyAsHtml() {
+            return mBody;
+        }
+
+        @Override
+        public boolean embedsExternalResources() {
+            return false;
+        }
+
+        @Override
+        public long getId() {
+            return mId;
+        }
+    }
+
+    private static String format(String template, Object... args) {
+        return new Formatter(new StringBuilder(), null).format(template, args).toString();
+    }
+
+    @SmallTest
+    public void testTemplatesRenderLikeFormatter() throws Exception {
+        final Object[] args = new Object[20];
+        for (int i = 0; i < args.length; i++) {
+            switch (i % 4) {
+                case 0: args[i] = i; break;
+                case 1: args[i] = "100%s <b>" + i + "</b>"; break;
+                case 2: args[i] = (i % 8) == 2; break;
+                default: args[i] = null; break;
+            }
+        }
+        final TestTemplates templates = new TestTemplates(getContext());
+        for (int id : TEMPLATES) {
+            final String raw = templates.readTemplate(id);
+            final AbstractHtmlTemplates.Template template =
+                    AbstractHtmlTemplates.Template.compile(raw);
+            templates.reset();
+            templates.append(template, args);
+            templates.append(template, args);
+            final String expected = format(raw, args);
+            assertEquals(expected.length() * 2, templates.getLength());
+
+            final StringWriter writer = new StringWriter();
+            templates.emit(writer);
+            assertEquals(expected + expected, writer.toString());
+        }
+    }
+
+    @SmallTest
+    @SuppressWarnings("deprecation")
+    public void testFormattedAppend() {
+        final TestTemplates templates = new TestTemplates(getContext());
+        templates.reset();
+        templates.append(AbstractHtmlTemplates.Template.compile("<p>%s</p>"), "one");
+        templates.append("<div style=\"width: %dpx\">%s%%</div>", 360, "two");
+        // Subclasses that still write to the builder keep their place in the document
+        templates.mBuilder.append("<br>");
+        templates.append(AbstractHtmlTemplates.Template.compile("<p>%s</p>"), "three");
+        templates.mFormatter.format("<hr>");
+        assertEquals(66, templates.getLength());
+        assertEquals("<p>one</p><div style=\"width: 360px\">two%</div><br><p>three</p><hr>",
+                templates.emit());
+    }
+
+    @SmallTest
+    public void testUnsupportedConversion() {
+        try {
+            AbstractHtmlTemplates.Template.compile("<div style=\"width: %d\">");
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        assertEquals(2, AbstractHtmlTemplates.Template.compile("%s 100%% %s").getSlotCount());
+    }
+
+    @SmallTest
+    public void testPreviousDocumentIsReused() {
+        final TestTemplates templates = new TestTemplates(getContext());
+        final AbstractHtmlTemplates.Template template =
+                AbstractHtmlTemplates.Template.compile("<p>%s</p><p>%s</p>");
+        templates.reset();
+        templates.append(template, "one", 2);
+        final String first = templates.emit();
+
+        templates.setPreviousDocument(first);
+        templates.reset();
+        templates.append(template, new StringBuilder("one"), "2");
+        assertSame(first, templates.emit());
+
+        // Only once, and only for the same document
+        templates.reset();
+        templates.append(template, "one", 2);
+        assertNotSame(first, templates.emit());
+        templates.setPreviousDocument(first);
+        templates.reset();
+        templates.append(template, "one", 3);
+        assertEquals("<p>one</p><p>3</p>", templates.emit());
+
+        // Not for a document that differs but hashes the same
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        templates.reset();
+        templates.append(template, "Aa", 2);
+        final String colliding = templates.emit();
+        templates.setPreviousDocument(colliding);
+        templates.reset();
+        templates.append(template, "BB", 2);
+        assertEquals("<p>BB</p><p>2</p>", templates.emit());
+
+        // Nor for the start of it
+        templates.setPreviousDocument(first);
+        templates.reset();
+        templates.append(template, "one", 2);
+        templates.append(template, "three", 4);
+        assertEquals(first + "<p>three</p><p>4</p>", templates.emit());
+        templates.setPreviousDocument(first);
+        templates.reset();
+        templates.append(AbstractHtmlTemplates.Template.compile("<p>%s"), "one");
+        assertEquals("<p>one", templates.emit());
+    }
+
+    private static String buildBody(int i) {
+        final StringBuilder sb = new StringBuilder();
+        for (int p = 0; p < 20 + (i * 7) % 60; p++) {
+            sb.append("<p>Message ").append(i).append(", paragraph ").append(p)
+                    .append(" with <a href=\"http://example.com/\">a link</a></p>");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Times rendering a conversation of 100 messages, the way
+     * {@link ConversationViewFragment#renderMessageBodies} does, with the templates and with
+     * {@link Formatter} into a 64 KB buffer, as it was done before.
+     */
+    @LargeTest
+    public void testRenderConversationBenchmark() throws Exception {
+        final HtmlMessage[] messages = new HtmlMessage[100];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = new TestMessage(i, buildBody(i));
+        }
+        final HtmlConversationTemplates templates = new HtmlConversationTemplates(getContext());
+        final TestTemplates reader = new TestTemplates(getContext());
+        final String upper = reader.readTemplate(R.raw.template_conversation_upper);
+        final String message = reader.readTemplate(R.raw.template_message);
+        final String lower = reader.readTemplate(R.raw.template_conversation_lower);
+
+        long formatter = Long.MAX_VALUE;
+        long compiled = Long.MAX_VALUE;
+        int length = 0;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            final Formatter f = new Formatter(new StringBuilder(64 * 1024), null);
+            f.format(upper, 360, "", 8, 48);
+            for (HtmlMessage msg : messages) {
+                f.format(message, "m" + msg.getId(), "expanded", 48, "", "block",
+                        msg.getBodyAsHtml(), "block", 24);
+            }
+            f.format(lower, 48, "", "Hide", "Show", "about:blank", "about:blank", 360, 360,
+                    false, false, true, true, true);
+            f.toString();
+            formatter = Math.min(formatter, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            templates.startConversation(360, 8, 48);
+            for (HtmlMessage msg : messages) {
+                templates.appendMessageHtml(msg, true, true, 48, 24);
+            }
+            length = templates.endConversation(48, "about:blank", "about:blank", 360, 360, false,
+                    false, true, true).length();
+            compiled = Math.min(compiled, System.nanoTime() - start);
+        }
+        LogUtils.i(LOG_TAG, "Rendered %d messages, %d chars: Formatter %d us, templates %d us",
+                messages.length, length, formatter / 1000, compiled / 1000);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.mail.Address;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+@SmallTest
+public class AddressCacheTest extends AndroidTestCase {
+
+    public void testGet() {
+        final AddressCache cache = new AddressCache(4, 8);
+        final Address address = cache.get("John Doe <john@example.com>");
+        assertEquals("John Doe", address.getPersonal());
+        assertEquals("john@example.com", address.getAddress());
+        assertSame(address, cache.get("John Doe <john@example.com>"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        assertNull(cache.get(null));
+        assertNull(cache.get(""));
+    }
+
+    public void testSizeIsBounded() {
+        final AddressCache cache = new AddressCache(1, 8);
+        final Address first = cache.get("a0@example.com");
+        for (int i = 1; i < 8; i++) {
+            cache.get("a" + i + "@example.com");
+        }
+        assertSame(first, cache.get("a0@example.com"));
+        // a1 is now the least recently used
+        cache.get("a8@example.com");
+        final int misses = cache.getMissCount();
+        cache.get("a0@example.com");
+        assertEquals(misses, cache.getMissCount());
+        cache.get("a1@example.com");
+        assertEquals(misses + 1, cache.getMissCount());
+    }
+
+    public void testConcurrentLookups() throws InterruptedException {
+        final AddressCache cache = new AddressCache(4, 256);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            final String raw = "Name " + (i % 100) + " <n" + (i % 100)
+                                    + "@example.com>";
+                            final Address address = cache.get(raw);
+                            assertEquals("n" + (i % 100) + "@example.com", address.getAddress());
+                            assertSame(address, cache.get(raw));
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        assertEquals(threads.length * 4000, cache.getHitCount() + cache.getMissCount());
+    }
+}
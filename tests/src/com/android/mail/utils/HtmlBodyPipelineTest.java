@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.utility.TextUtilities;
+import com.android.mail.utils.NotificationUtils.MailMessagePlainTextConverter;
+import com.google.android.mail.common.html.parser.HtmlTree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class HtmlBodyPipelineTest extends AndroidTestCase {
+    private static final String LOG_TAG = "HtmlBodyPipelineTest";
+
+    private static final String MESSAGE = "<html><head><title>Title</title>"
+            + "<style>p { color: red; }</style></head><body>"
+            + "<p>Hello&nbsp;&amp;   welcome</p>"
+            + "<script>alert('hi')</script>"
+            + "<table><tr><td>one</td><td>two</td></tr></table>"
+            + "========<br>"
+            + "<blockquote>quoted<br>twice</blockquote>"
+            + "<div class=\"gmail_quote\">On Monday, someone wrote:<div>older</div>"
+            + "<blockquote>the original</blockquote></div>"
+            + "<p>after the quote</p></body></html>";
+
+    private static String getElidedTextFromTree(String html) {
+        final HtmlTree htmlTree = Utils.getHtmlTree(html);
+        htmlTree.setConverterFactory(new HtmlTree.ConverterFactory() {
+            @Override
+            public HtmlTree.Converter<String> createInstance() {
+                return new MailMessagePlainTextConverter();
+            }
+        });
+        return htmlTree.getPlainText();
+    }
+
+    @SmallTest
+    public void testSinksMatchSeparatePasses() {
+        final String sanitized = HtmlSanitizer.sanitizeHtml(MESSAGE);
+
+        final HtmlBodyPipeline.SanitizedHtmlSink htmlSink =
+                new HtmlBodyPipeline.SanitizedHtmlSink(MESSAGE.length());
+        final HtmlBodyPipeline.SnippetSink snippetSink = new HtmlBodyPipeline.SnippetSink();
+        final HtmlBodyPipeline.PlainTextSink plainTextSink = new HtmlBodyPipeline.PlainTextSink();
+        final HtmlBodyPipeline.ElidedTextSink elidedTextSink =
+                new HtmlBodyPipeline.ElidedTextSink();
+        HtmlBodyPipeline.sanitize(MESSAGE, htmlSink, snippetSink, plainTextSink, elidedTextSink);
+
+        assertEquals(sanitized, htmlSink.getHtml());
+        assertEquals(TextUtilities.makeSnippetFromHtmlText(MESSAGE), snippetSink.getSnippet());
+        assertEquals(Utils.convertHtmlToPlainText(sanitized), plainTextSink.getPlainText());
+        assertEquals(getElidedTextFromTree(sanitized), elidedTextSink.getPlainText());
+        assertFalse(elidedTextSink.getPlainText().contains("original"));
+        assertTrue(elidedTextSink.getPlainText().contains("after the quote"));
+    }
+
+    @SmallTest
+    public void testNotificationText() {
+        final String html = "<div>Reply</div><div class=\"elided-text\">quoted<div>nested</div>"
+                + "still quoted</div><div>Signature</div>";
+        assertEquals(getElidedTextFromTree(html),
+                NotificationUtils.getMessageBodyWithoutElidedText(html));
+        assertEquals("", NotificationUtils.getMessageBodyWithoutElidedText(""));
+    }
+
+    @SmallTest
+    public void testUnbalancedElidedText() {
+        // Never closed, so the quoted text runs to the end
+        String html = "<div>Reply</div><div class=\"elided-text\">quoted<div>nested";
+        String text = NotificationUtils.getMessageBodyWithoutElidedText(html);
+        assertEquals(getElidedTextFromTree(html), text);
+        assertTrue(text.contains("Reply"));
+        assertFalse(text.contains("quoted"));
+        assertFalse(text.contains("nested"));
+
+        // Closed along with the element around it
+        html = "<blockquote><div class=\"elided-text\">quoted<div>nested</blockquote>"
+                + "<div>Signature</div>";
+        text = NotificationUtils.getMessageBodyWithoutElidedText(html);
+        assertEquals(getElidedTextFromTree(html), text);
+        assertFalse(text.contains("quoted"));
+        assertTrue(text.contains("Signature"));
+
+        // End tags for elements that are not open close nothing
+        html = "<div class=\"elided-text\">quoted</span></p></td>still quoted</div>after";
+        text = NotificationUtils.getMessageBodyWithoutElidedText(html);
+        assertEquals(getElidedTextFromTree(html), text);
+        assertFalse(text.contains("still quoted"));
+        assertTrue(text.contains("after"));
+    }
+
+    @SmallTest
+    public void testStopsWhenSinksAreDone() {
+        final StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            html.append("<p>paragraph ").append(i).append("</p>");
+        }
+        final List<String> texts = new ArrayList<String>();
+        final HtmlBodyPipeline.SnippetSink snippetSink = new HtmlBodyPipeline.SnippetSink() {
+            @Override
+            public void text(String text) {
+                texts.add(text);
+                super.text(text);
+            }
+        };
+        HtmlBodyPipeline.process(html.toString(), snippetSink);
+        assertEquals(TextUtilities.makeSnippetFromHtmlText(html), snippetSink.getSnippet());
+        assertTrue(texts.size() < 100);
+    }
+
+    private static String buildMessage(Random random) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<html><head><style>td { padding: 2px; }</style></head><body>");
+        final int paragraphs = 20 + random.nextInt(200);
+        for (int i = 0; i < paragraphs; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    sb.append("<p style=\"margin:0\">Paragraph ").append(i)
+                            .append(" with <b>bold</b> &amp; <a href=\"http://example.com/")
+                            .append(i).append("\">a link</a></p>");
+                    break;
+                case 1:
+                    sb.append("<table><tr><td>").append(random.nextInt())
+                            .append("</td><td>&euro;").append(i).append("</td></tr></table>");
+                    break;
+                case 2:
+                    sb.append("line ").append(i).append("<br>\n");
+                    break;
+                default:
+                    sb.append("<div><img src=\"cid:image").append(i).append("\">")
+                            .append("<span onclick=\"x()\">caption</span></div>");
+                    break;
+            }
+        }
+        sb.append("<div class=\"gmail_quote\">On Monday, someone wrote:<blockquote>");
+        for (int i = 0; i < paragraphs; i++) {
+            sb.append("<p>quoted paragraph ").append(i).append("</p>");
+        }
+        sb.append("</blockquote></div></body></html>");
+        return sb.toString();
+    }
+
+    /**
+     * Times sanitizing, making a snippet, converting to plain text and eliding the quoted text of
+     * a corpus of messages, first one pass each and then all in one pass.
+     */
+    @LargeTest
+    public void testBenchmark() {
+        final Random random = new Random(14);
+        final String[] corpus = new String[200];
+        int corpusLength = 0;
+        for (int i = 0; i < corpus.length; i++) {
+            corpus[i] = buildMessage(random);
+            corpusLength += corpus[i].length();
+        }
+
+        long separate = Long.MAX_VALUE;
+        long combined = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (String html : corpus) {
+                final String sanitized = HtmlSanitizer.sanitizeHtml(html);
+                TextUtilities.makeSnippetFromHtmlText(html);
+                Utils.convertHtmlToPlainText(sanitized);
+                getElidedTextFromTree(sanitized);
+            }
+            separate = Math.min(separate, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (String html : corpus) {
+                final HtmlBodyPipeline.SanitizedHtmlSink htmlSink =
+                        new HtmlBodyPipeline.SanitizedHtmlSink(html.length());
+                HtmlBodyPipeline.sanitize(html, htmlSink, new HtmlBodyPipeline.SnippetSink(),
+                        new HtmlBodyPipeline.PlainTextSink(),
+                        new HtmlBodyPipeline.ElidedTextSink());
+                htmlSink.getHtml();
+            }
+            combined = Math.min(combined, System.nanoTime() - start);
+        }
+        LogUtils.i(LOG_TAG, "Processed %d messages, %d chars: separate passes %d ms,"
+                + " one pass %d ms", corpus.length, corpusLength, separate / 1000000,
+                combined / 1000000);
+    }
+}
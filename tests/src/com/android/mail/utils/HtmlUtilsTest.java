@@ -17,9 +17,92 @@
 package com.android.mail.utils;
 
 import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.SmallTest;
+import android.text.Spanned;
+
+import com.google.android.mail.common.html.parser.HtmlTree;
 
-@SmallTest
 public class HtmlUtilsTest extends AndroidTestCase {
-    // TODO (jin) IMPLEMENT ME
+    private static final String LOG_TAG = "HtmlUtilsTest";
+
+    private static final HtmlTree.ConverterFactory SPANNED_CONVERTER_FACTORY =
+            new HtmlTree.ConverterFactory() {
+                @Override
+                public HtmlTree.Converter<Spanned> createInstance() {
+                    return new HtmlUtils.SpannedConverter();
+                }
+            };
+
+    /** How deep quotes nest, so that the quote marks don't make the text grow quadratically */
+    private static final int MAX_QUOTE_DEPTH = 8;
+
+    /**
+     * Builds a reply that quotes threads of about <code>length</code> characters in all.
+     */
+    private static String buildQuotedThread(int length) {
+        final StringBuilder sb = new StringBuilder("<div>Sounds good.</div><br>");
+        int message = 0;
+        int depth = 0;
+        while (sb.length() < length) {
+            sb.append("<div class=\"gmail_quote\">On Monday, sender ").append(message)
+                    .append(" wrote:<blockquote><p><b>Line</b> one of message ").append(message)
+                    .append("</p><p><i>Line</i> two, <a href=\"http://example.com/")
+                    .append(message).append("\">a link</a>,<br>and &amp; a third</p>");
+            message++;
+            if (++depth == MAX_QUOTE_DEPTH) {
+                closeQuotes(sb, depth);
+                depth = 0;
+            }
+        }
+        closeQuotes(sb, depth);
+        return sb.toString();
+    }
+
+    private static void closeQuotes(StringBuilder sb, int depth) {
+        for (int i = 0; i < depth; i++) {
+            sb.append("</blockquote></div>");
+        }
+    }
+
+    @SmallTest
+    public void testSpannedTextMatchesPlainText() {
+        final String html = buildQuotedThread(2000);
+        final HtmlTree htmlTree = Utils.getHtmlTree(html);
+        assertEquals(htmlTree.getPlainText(),
+                HtmlUtils.htmlToSpan(html, SPANNED_CONVERTER_FACTORY).toString());
+    }
+
+    /**
+     * @return the fastest of a few conversions of the HTML, in nanoseconds
+     */
+    private static long timeHtmlToSpan(String html) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            final long start = System.nanoTime();
+            HtmlUtils.htmlToSpan(html, SPANNED_CONVERTER_FACTORY);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /**
+     * Converting ten times the HTML should take about ten times as long, not a hundred. The
+     * bound leaves room for noise and allocation; quadratic copying blows well past it.
+     */
+    @LargeTest
+    public void testHtmlToSpanIsLinear() {
+        // Big enough that neither fits in the processor caches, which would skew the ratio
+        final String small = buildQuotedThread(256 * 1024);
+        final String large = buildQuotedThread(2560 * 1024);
+        // Warm up, so that the first timing doesn't include class loading and compilation
+        timeHtmlToSpan(small);
+
+        final long smallTime = timeHtmlToSpan(small);
+        final long largeTime = timeHtmlToSpan(large);
+        LogUtils.i(LOG_TAG, "htmlToSpan: %d chars in %d ms, %d chars in %d ms", small.length(),
+                smallTime / 1000000, large.length(), largeTime / 1000000);
+        assertTrue("htmlToSpan took " + largeTime + "ns for 10x the " + smallTime + "ns input",
+                largeTime < 30 * smallTime);
+    }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mail.utils;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+@SmallTest
+public class SanitizedHtmlCacheTest extends AndroidTestCase {
+    private static final String HTML = "<html><head><script>alert(1)</script></head>"
+            + "<body><p onclick=\"alert(2)\">Hello</p></body></html>";
+
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDirectory = new File(getContext().getCacheDir(), "SanitizedHtmlCacheTest");
+        deleteDirectory();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectory();
+        super.tearDown();
+    }
+
+    private void deleteDirectory() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    private long directorySize() {
+        long size = 0;
+        for (File file : mDirectory.listFiles()) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    public void testTiers() {
+        final String expected = HtmlSanitizer.sanitizeHtml(HTML);
+        final SanitizedHtmlCache cache =
+                new SanitizedHtmlCache(mDirectory, 1024 * 1024, 1024 * 1024);
+        assertNull(cache.sanitizeHtml(null));
+
+        assertEquals(expected, cache.sanitizeHtml(HTML));
+        assertEquals(1, cache.getMissCount());
+
+        assertEquals(expected, cache.sanitizeHtml(HTML));
+        assertEquals(1, cache.getMemoryHitCount());
+
+        cache.clearMemory();
+        assertEquals(expected, cache.sanitizeHtml(HTML));
+        assertEquals(1, cache.getDiskHitCount());
+
+        // The files outlive the process
+        final SanitizedHtmlCache other = new SanitizedHtmlCache(mDirectory, 1024 * 1024, 1024);
+        assertEquals(expected, other.sanitizeHtml(HTML));
+        assertEquals(1, other.getDiskHitCount());
+        assertEquals(0, other.getMissCount());
+
+        // Different HTML is a different entry
+        assertEquals(HtmlSanitizer.sanitizeHtml(HTML + " "), other.sanitizeHtml(HTML + " "));
+        assertEquals(1, other.getMissCount());
+    }
+
+    public void testDiskCacheIsBounded() {
+        final int maxDiskBytes = 2000;
+        final SanitizedHtmlCache cache = new SanitizedHtmlCache(mDirectory, 1024, maxDiskBytes);
+        for (int i = 0; i < 100; i++) {
+            cache.sanitizeHtml("<p>message " + i + "</p>");
+            assertTrue(directorySize() <= maxDiskBytes);
+        }
+        // The most recent entry is still there
+        cache.clearMemory();
+        cache.sanitizeHtml("<p>message 99</p>");
+        assertEquals(1, cache.getDiskHitCount());
+    }
+
+    public void testFilesFromOtherPoliciesAreDeleted() throws Exception {
+        mDirectory.mkdirs();
+        final File stale = new File(mDirectory, "v" + (HtmlSanitizer.POLICY_VERSION - 1) + "-00");
+        final FileOutputStream out = new FileOutputStream(stale);
+        out.write("<p>stale</p>".getBytes("UTF-8"));
+        out.close();
+
+        new SanitizedHtmlCache(mDirectory, 1024, 1024).sanitizeHtml(HTML);
+        assertFalse(stale.exists());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mail.common.html.parser;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.utils.LogUtils;
+
+import java.util.List;
+import java.util.Random;
+
+public class HtmlParserTest extends AndroidTestCase {
+    private static final String LOG_TAG = "HtmlParserTest";
+
+    private static final String[] DOCUMENTS = {
+        "<HTML><Body BGCOLOR=white onload='x()'><P CLASS=\"a\">Hello &amp; <b>bye</b></p>",
+        "<table><tr><td>one<td>two</table>outside<br/><img src=cid:1 alt=\"a<b\">",
+        "<script type=text/javascript>if (a < b) {}</SCRIPT><style>p {}</style>text",
+        "<!-- comment --><foo bar=1>unknown</foo><div><span/>a < b </ div>",
+        "<p title='x' title=y checked>dup</p></p></ >< >text<",
+        "<\u212Abd>kelvin</kbd><DIV \u212Aey=1>non-ascii names</div>",
+        "plain text only",
+        "<a href=\"http://example.com/?a=1&amp;b=2\" TARGET=_blank>link</A><p",
+    };
+
+    private static final HtmlParser.ParseStyle[] STYLES = HtmlParser.ParseStyle.values();
+
+    private static String describe(HtmlDocument doc) {
+        return doc.toHTML() + "\n" + doc.toXHTML() + "\n" + doc.toOriginalHTML() + "\n"
+                + doc.toString();
+    }
+
+    @SmallTest
+    public void testReusedParserMatchesNewParser() {
+        for (HtmlParser.ParseStyle style : STYLES) {
+            final HtmlParser reused = new HtmlParser(style);
+            final HtmlTreeBuilder builder = new HtmlTreeBuilder();
+            // Twice over, so that every document follows a different one
+            for (int round = 0; round < 2; round++) {
+                for (String html : DOCUMENTS) {
+                    final HtmlDocument expected = new HtmlParser(style).parse(html);
+                    final HtmlDocument actual = reused.parse(html);
+                    assertEquals(style + ": " + html, describe(expected), describe(actual));
+
+                    final HtmlTreeBuilder newBuilder = new HtmlTreeBuilder();
+                    expected.accept(newBuilder);
+                    actual.accept(builder);
+                    assertEquals(newBuilder.getTree().getHtml(), builder.getTree().getHtml());
+                    assertEquals(newBuilder.getTree().getPlainText(),
+                            builder.getTree().getPlainText());
+                }
+            }
+        }
+    }
+
+    @SmallTest
+    public void testNamesAreInterned() {
+        final List<HtmlDocument.Node> nodes =
+                new HtmlParser().parse("<DiV sTyle=\"\">x</dIV>").getNodes();
+        final HtmlDocument.Tag tag = (HtmlDocument.Tag) nodes.get(0);
+        assertSame(HTML4.DIV_ELEMENT, tag.getElement());
+        assertSame(HTML4.STYLE_ATTRIBUTE, tag.getAttributes().get(0).getAttribute());
+        assertSame(HTML4.DIV_ELEMENT, ((HtmlDocument.EndTag) nodes.get(2)).getElement());
+    }
+
+    @SmallTest
+    public void testAdjacentTextIsCoalesced() {
+        final List<HtmlDocument.Node> nodes =
+                new HtmlParser().parse("a<foo>b<bar>c<b>d</b>e< f").getNodes();
+        assertEquals(5, nodes.size());
+        assertEquals("abc", ((HtmlDocument.Text) nodes.get(0)).getText());
+        assertEquals("e< f", ((HtmlDocument.Text) nodes.get(4)).getText());
+    }
+
+    private static String buildMessage(Random random) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<html><head><style>td { padding: 2px; }</style></head><body>");
+        final int paragraphs = 20 + random.nextInt(200);
+        for (int i = 0; i < paragraphs; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    sb.append("<P STYLE=\"margin:0\">Paragraph ").append(i)
+                            .append(" with <b>bold</b> &amp; <a href=\"http://example.com/")
+                            .append(i).append("\" target=_blank>a link</a></P>");
+                    break;
+                case 1:
+                    sb.append("<table border=0><tr><td class=c>").append(random.nextInt())
+                            .append("</td><td>&euro;").append(i).append("</td></tr></table>");
+                    break;
+                case 2:
+                    sb.append("line ").append(i).append("<br>\n");
+                    break;
+                default:
+                    sb.append("<div><img src=\"cid:image").append(i).append("\" width=10>")
+                            .append("<o:p onclick=\"x()\">caption</o:p></div>");
+                    break;
+            }
+        }
+        sb.append("</body></html>");
+        return sb.toString();
+    }
+
+    /**
+     * Measures how fast a corpus of messages is parsed and built into trees, and how many objects
+     * that allocates per KB of HTML, with a new parser and builder for every message and with one
+     * of each for all of them.
+     */
+    @LargeTest
+    @SuppressWarnings("deprecation")
+    public void testParseThroughput() {
+        final Random random = new Random(17);
+        final String[] corpus = new String[200];
+        long corpusLength = 0;
+        for (int i = 0; i < corpus.length; i++) {
+            corpus[i] = buildMessage(random);
+            corpusLength += corpus[i].length();
+        }
+
+        final HtmlParser parser = new HtmlParser();
+        final HtmlTreeBuilder builder = new HtmlTreeBuilder();
+        for (int reuse = 0; reuse < 2; reuse++) {
+            long best = Long.MAX_VALUE;
+            int allocations = 0;
+            for (int round = 0; round < 3; round++) {
+                Debug.startAllocCounting();
+                Debug.resetThreadAllocCount();
+                final long start = System.nanoTime();
+                for (String html : corpus) {
+                    final HtmlParser p = reuse == 1 ? parser : new HtmlParser();
+                    final HtmlTreeBuilder b = reuse == 1 ? builder : new HtmlTreeBuilder();
+                    p.parse(html).accept(b);
+                    b.getTree();
+                }
+                best = Math.min(best, System.nanoTime() - start);
+                allocations = Debug.getThreadAllocCount();
+                Debug.stopAllocCounting();
+            }
+            LogUtils.i(LOG_TAG, "%s: %d messages, %d chars in %d ms, %.1f MB/s,"
+                    + " %d allocations per KB", reuse == 1 ? "reused" : "new per message",
+                    corpus.length, corpusLength, best / 1000000,
+                    corpusLength * 1000.0 / best, allocations * 1024L / corpusLength);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mail.common.html.parser;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+@SmallTest
+public class HtmlTreeTest extends AndroidTestCase {
+    private static final String HTML = "<div>first line of text</div><p>a paragraph\nwith a"
+            + " newline</p><b>bold</b><br>short<table><tr><td>cell</td></tr></table>"
+            + "<pre>pre\nformatted</pre><p>last</p>";
+
+    private static HtmlTree buildTree(String html) {
+        final HtmlTreeBuilder builder = new HtmlTreeBuilder();
+        new HtmlParser().parse(html).accept(builder);
+        return builder.getTree();
+    }
+
+    public void testAppendHtml() throws IOException {
+        final HtmlTree tree = buildTree(HTML);
+        final int numNodes = tree.getNumNodes();
+        for (int wrapSize = -1; wrapSize < 40; wrapSize++) {
+            for (int from = 0; from < numNodes; from += 3) {
+                final String expected = tree.getHtml(from, numNodes, wrapSize);
+
+                final StringWriter writer = new StringWriter();
+                tree.appendHtml(from, numNodes, wrapSize, writer);
+                assertEquals(expected, writer.toString());
+
+                // Appending to a StringBuilder that already has something in it
+                final StringBuilder sb = new StringBuilder("<html>");
+                tree.appendHtml(from, numNodes, wrapSize, sb);
+                assertEquals("<html>" + expected, sb.toString());
+            }
+        }
+        // Wrapping only happens after elements that break the flow
+        assertEquals("<div>first line of text</div>\n<p>",
+                tree.getHtml(0, 4, 10));
+    }
+
+    public void testAppendPlainText() throws IOException {
+        final HtmlTree tree = buildTree(HTML);
+        final int numNodes = tree.getNumNodes();
+        for (int from = 0; from < numNodes; from++) {
+            final StringBuilder sb = new StringBuilder();
+            tree.appendPlainText(from, numNodes, sb);
+            assertEquals(tree.getPlainText(from, numNodes), sb.toString());
+        }
+    }
+
+    public void testGetTextSince() {
+        final HtmlTree tree = buildTree(HTML);
+        final HtmlTree.DefaultPlainTextConverter converter =
+                new HtmlTree.DefaultPlainTextConverter();
+        final StringBuilder pieces = new StringBuilder();
+        for (int i = 0, n = tree.getNumNodes(); i < n; i++) {
+            final String before = converter.getObject();
+            converter.addNode(tree.getNodesList().get(i), i, tree.findEndTag(i));
+            final String since = converter.getTextSince(before.length());
+            // Only the text the node added, which may be empty
+            assertEquals(converter.getObject().substring(before.length()), since);
+            assertEquals(converter.getPlainTextLength(), before.length() + since.length());
+            pieces.append(since);
+        }
+        assertEquals(tree.getPlainText(), converter.getObject());
+        assertEquals(converter.getObject(), pieces.toString());
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.utils.LogUtils;
+import com.google.common.collect.Lists;
+
+import org.apache.james.mime4j.util.CharsetUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class EOLConvertingInputStreamTests extends AndroidTestCase {
+    private static final String LOG_TAG = "EOLConvertingTests";
+
+    /**
+     * The previous, byte-at-a-time implementation of EOLConvertingInputStream.
+     */
+    private static class LegacyEOLConvertingInputStream extends InputStream {
+        private PushbackInputStream in = null;
+        private int previous = 0;
+        private int size = 0;
+        private int pos = 0;
+        private int nextTenPctPos;
+        private int tenPctSize;
+        private EOLConvertingInputStream.Callback callback;
+
+        LegacyEOLConvertingInputStream(InputStream _in) {
+            in = new PushbackInputStream(_in, 2);
+        }
+
+        LegacyEOLConvertingInputStream(InputStream _in, int _size,
+                EOLConvertingInputStream.Callback _callback) {
+            this(_in);
+            size = _size;
+            tenPctSize = size / 10;
+            nextTenPctPos = tenPctSize;
+            callback = _callback;
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                if (callback != null && pos++ == nextTenPctPos) {
+                    nextTenPctPos += tenPctSize;
+                    callback.report(pos);
+                }
+            }
+            return b;
+        }
+
+        private void unreadByte(int c) throws IOException {
+            in.unread(c);
+            pos--;
+        }
+
+        public int read() throws IOException {
+            int b = readByte();
+            if (b == -1) {
+                pos = size;
+                return -1;
+            }
+            if (b == '\r') {
+                int c = readByte();
+                if (c != -1) {
+                    unreadByte(c);
+                }
+                if (c != '\n') {
+                    unreadByte('\n');
+                }
+            } else if (b == '\n' && previous != '\r') {
+                b = '\r';
+                unreadByte('\n');
+            }
+            previous = b;
+            return b;
+        }
+    }
+
+    /**
+     * Hands out a random number of bytes per read, like a network stream.
+     */
+    private static class TricklingInputStream extends ByteArrayInputStream {
+        private final Random mRandom;
+
+        TricklingInputStream(byte[] buf, Random random) {
+            super(buf);
+            mRandom = random;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1 + mRandom.nextInt(10000)));
+        }
+    }
+
+    private static class CountingCallback implements EOLConvertingInputStream.Callback {
+        final List<Integer> mReports = Lists.newArrayList();
+
+        @Override
+        public void report(int bytesRead) {
+            mReports.add(bytesRead);
+        }
+    }
+
+    private static byte[] readAll(InputStream in, Random random) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[20000];
+        while (true) {
+            final int mode = random.nextInt(3);
+            if (mode == 0) {
+                final int b = in.read();
+                if (b < 0) {
+                    break;
+                }
+                out.write(b);
+            } else {
+                // Small reads, and reads big enough to go straight into the buffer
+                final int count = in.read(buffer, 0,
+                        mode == 1 ? 1 + random.nextInt(100) : 8192 + random.nextInt(10000));
+                if (count < 0) {
+                    break;
+                }
+                out.write(buffer, 0, count);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(CharsetUtil.ISO_8859_1);
+    }
+
+    @SmallTest
+    public void testConversion() throws IOException {
+        final String[][] cases = {
+            { "a\r\nb\r\n", "a\r\nb\r\n" },
+            { "a\nb\n", "a\r\nb\r\n" },
+            { "a\rb\r", "a\r\nb\r\n" },
+            { "\r\r\n\n\n\r", "\r\n\r\n\r\n\r\n\r\n" },
+            { "", "" },
+        };
+        for (String[] c : cases) {
+            final byte[] converted = readAll(new EOLConvertingInputStream(
+                    new ByteArrayInputStream(bytes(c[0]))), new Random(0));
+            assertEquals(c[1], new String(converted, CharsetUtil.ISO_8859_1));
+        }
+    }
+
+    /**
+     * Checks the output and the progress reports against the old implementation on random
+     * input with every kind of line ending, read in random ways.
+     */
+    @SmallTest
+    public void testMatchesLegacy() throws IOException {
+        final Random random = new Random(3);
+        final String alphabet = "\r\n\rab\n";
+        for (int round = 0; round < 300; round++) {
+            final byte[] data = new byte[random.nextInt(round < 200 ? 50 : 40000)];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = random.nextInt(4) == 0 ? (byte) random.nextInt(256)
+                        : (byte) alphabet.charAt(random.nextInt(alphabet.length()));
+            }
+            final CountingCallback legacyCallback = new CountingCallback();
+            final byte[] expected = readAll(new LegacyEOLConvertingInputStream(
+                    new ByteArrayInputStream(data), data.length, legacyCallback), random);
+            final CountingCallback callback = new CountingCallback();
+            final byte[] actual = readAll(new EOLConvertingInputStream(
+                    new TricklingInputStream(data, random), data.length, callback), random);
+
+            assertTrue(Arrays.equals(expected, actual));
+            if (data.length >= 10) {
+                assertEquals(legacyCallback.mReports.size(), callback.mReports.size());
+            }
+        }
+    }
+
+    /**
+     * Reads every body of a message, as a consumer of the parser would.
+     */
+    private static class DrainingHandler extends AbstractContentHandler {
+        private final byte[] mBuffer = new byte[4096];
+        long mBodyBytes;
+
+        @Override
+        public void body(BodyDescriptor bd, InputStream is) throws IOException {
+            int count;
+            while ((count = is.read(mBuffer)) >= 0) {
+                mBodyBytes += count;
+            }
+        }
+    }
+
+    private static long parse(InputStream in, DrainingHandler handler) throws IOException {
+        final long start = System.nanoTime();
+        final MimeStreamParser parser = new MimeStreamParser();
+        parser.setContentHandler(handler);
+        parser.parse(in);
+        return System.nanoTime() - start;
+    }
+
+    @LargeTest
+    public void testBenchmark() throws IOException {
+        final String boundary = "=_Part_0_12345.67890";
+        final StringBuilder message = new StringBuilder();
+        message.append("From: sender@example.com\r\nTo: recipient@example.com\r\n")
+                .append("Subject: benchmark\r\nMIME-Version: 1.0\r\n")
+                .append("Content-Type: multipart/mixed; boundary=\"").append(boundary)
+                .append("\"\r\n\r\n");
+        final String line = "QUJDREVGR0hJSktMTU5PUFFSU1RVVldYWVphYmNkZWZnaGlqa2xtbm9wcXJzdHV2d3h5"
+                + "emFi\r\n";
+        for (int part = 0; part < 25; part++) {
+            message.append("--").append(boundary).append("\r\n")
+                    .append("Content-Type: application/octet-stream\r\n")
+                    .append("Content-Transfer-Encoding: base64\r\n\r\n");
+            for (int i = 0; i < 1024 * 1024 / line.length(); i++) {
+                message.append(line);
+            }
+        }
+        message.append("--").append(boundary).append("--\r\n");
+        final byte[] data = bytes(message.toString());
+
+        long legacy = Long.MAX_VALUE;
+        long current = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            final DrainingHandler legacyHandler = new DrainingHandler();
+            legacy = Math.min(legacy, parse(new LegacyEOLConvertingInputStream(
+                    new ByteArrayInputStream(data)), legacyHandler));
+            final DrainingHandler handler = new DrainingHandler();
+            current = Math.min(current, parse(new EOLConvertingInputStream(
+                    new ByteArrayInputStream(data)), handler));
+            assertEquals(legacyHandler.mBodyBytes, handler.mBodyBytes);
+        }
+        LogUtils.i(LOG_TAG, "Parsed a %d byte message: legacy EOL conversion %.1f MB/s,"
+                + " current %.1f MB/s", data.length, data.length * 1000.0 / legacy,
+                data.length * 1000.0 / current);
+    }
+}
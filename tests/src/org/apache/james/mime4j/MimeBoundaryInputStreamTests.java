@@ -0,0 +1,418 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.utils.LogUtils;
+
+import org.apache.james.mime4j.util.CharsetUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Random;
+
+/**
+ * Checks that {@link MimeBoundaryInputStream} splits streams into exactly the same parts as
+ * the byte-at-a-time implementation it replaced, which is kept below for comparison.
+ */
+public class MimeBoundaryInputStreamTests extends AndroidTestCase {
+    private static final String LOG_TAG = "MimeBoundaryTests";
+
+    /**
+     * The previous implementation of MimeBoundaryInputStream, unchanged.
+     */
+    private static class LegacyMimeBoundaryInputStream extends InputStream {
+        private PushbackInputStream s = null;
+        private byte[] boundary = null;
+        private boolean first = true;
+        private boolean eof = false;
+        private boolean parenteof = false;
+        private boolean moreParts = true;
+
+        public LegacyMimeBoundaryInputStream(InputStream s, String boundary)
+                throws IOException {
+            this.s = new PushbackInputStream(s, boundary.length() + 4);
+            boundary = "--" + boundary;
+            this.boundary = new byte[boundary.length()];
+            for (int i = 0; i < this.boundary.length; i++) {
+                this.boundary[i] = (byte) boundary.charAt(i);
+            }
+            int b = read();
+            if (b != -1) {
+                this.s.unread(b);
+            }
+        }
+
+        public boolean hasMoreParts() {
+            return moreParts;
+        }
+
+        public boolean parentEOF() {
+            return parenteof;
+        }
+
+        public void consume() throws IOException {
+            while (read() != -1) {
+            }
+        }
+
+        public int read() throws IOException {
+            if (eof) {
+                return -1;
+            }
+            if (first) {
+                first = false;
+                if (matchBoundary()) {
+                    return -1;
+                }
+            }
+            int b1 = s.read();
+            int b2 = s.read();
+            if (b1 == '\r' && b2 == '\n') {
+                if (matchBoundary()) {
+                    return -1;
+                }
+            }
+            if (b2 != -1) {
+                s.unread(b2);
+            }
+            parenteof = b1 == -1;
+            eof = parenteof;
+            return b1;
+        }
+
+        private boolean matchBoundary() throws IOException {
+            for (int i = 0; i < boundary.length; i++) {
+                int b = s.read();
+                if (b != boundary[i]) {
+                    if (b != -1) {
+                        s.unread(b);
+                    }
+                    for (int j = i - 1; j >= 0; j--) {
+                        s.unread(boundary[j]);
+                    }
+                    return false;
+                }
+            }
+            int prev = s.read();
+            int curr = s.read();
+            moreParts = !(prev == '-' && curr == '-');
+            do {
+                if (curr == '\n' && prev == '\r') {
+                    break;
+                }
+                prev = curr;
+            } while ((curr = s.read()) != -1);
+            if (curr == -1) {
+                moreParts = false;
+                parenteof = true;
+            }
+            eof = true;
+            return true;
+        }
+    }
+
+    /**
+     * Splits a multipart the way {@link MimeStreamParser#parseEntity} does, with one of the
+     * two implementations.
+     */
+    private static abstract class Splitter {
+        abstract InputStream prepare(InputStream multipart);
+        abstract InputStream open(InputStream parent, String boundary) throws IOException;
+        abstract boolean hasMoreParts(InputStream part);
+        abstract boolean parentEOF(InputStream part);
+        abstract void consume(InputStream part) throws IOException;
+    }
+
+    private static final Splitter LEGACY = new Splitter() {
+        @Override
+        InputStream prepare(InputStream multipart) {
+            return multipart;
+        }
+
+        @Override
+        InputStream open(InputStream parent, String boundary) throws IOException {
+            return new LegacyMimeBoundaryInputStream(parent, boundary);
+        }
+
+        @Override
+        boolean hasMoreParts(InputStream part) {
+            return ((LegacyMimeBoundaryInputStream) part).hasMoreParts();
+        }
+
+        @Override
+        boolean parentEOF(InputStream part) {
+            return ((LegacyMimeBoundaryInputStream) part).parentEOF();
+        }
+
+        @Override
+        void consume(InputStream part) throws IOException {
+            ((LegacyMimeBoundaryInputStream) part).consume();
+        }
+    };
+
+    private static final Splitter CURRENT = new Splitter() {
+        @Override
+        InputStream prepare(InputStream multipart) {
+            return LookaheadInputStream.wrap(multipart);
+        }
+
+        @Override
+        InputStream open(InputStream parent, String boundary) throws IOException {
+            return new MimeBoundaryInputStream(parent, boundary);
+        }
+
+        @Override
+        boolean hasMoreParts(InputStream part) {
+            return ((MimeBoundaryInputStream) part).hasMoreParts();
+        }
+
+        @Override
+        boolean parentEOF(InputStream part) {
+            return ((MimeBoundaryInputStream) part).parentEOF();
+        }
+
+        @Override
+        void consume(InputStream part) throws IOException {
+            ((MimeBoundaryInputStream) part).consume();
+        }
+    };
+
+    /**
+     * Hands out at most a few bytes per read, like a slow network stream.
+     */
+    private static class TricklingInputStream extends ByteArrayInputStream {
+        private final Random mRandom;
+
+        TricklingInputStream(byte[] buf, Random random) {
+            super(buf);
+            mRandom = random;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1 + mRandom.nextInt(40)));
+        }
+    }
+
+    /**
+     * Reads part of the stream, or all of it if <code>limit</code> is negative, mixing
+     * single-byte and bulk reads at random.
+     */
+    private static String read(InputStream in, Random random, int limit) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[100];
+        while (limit < 0 || out.size() < limit) {
+            if (random.nextBoolean()) {
+                final int b = in.read();
+                if (b < 0) {
+                    break;
+                }
+                out.write(b);
+            } else {
+                int length = 1 + random.nextInt(buffer.length);
+                if (limit >= 0) {
+                    length = Math.min(length, limit - out.size());
+                }
+                final int count = in.read(buffer, 0, length);
+                if (count < 0) {
+                    break;
+                }
+                out.write(buffer, 0, count);
+            }
+        }
+        return new String(out.toByteArray(), CharsetUtil.ISO_8859_1);
+    }
+
+    /**
+     * Walks a multipart, treating every part as a nested multipart while there are nested
+     * boundaries, and describes what every stream returned. <code>limits</code> decides how
+     * much of each part to read before consuming the rest, and <code>reads</code> how to read
+     * it; only the second depends on how many bytes each read returns.
+     */
+    private static void split(Splitter splitter, InputStream is, String[] boundaries, int depth,
+            Random limits, Random reads, StringBuilder out) throws IOException {
+        is = splitter.prepare(is);
+        InputStream part = splitter.open(is, boundaries[depth]);
+        out.append("[preamble ").append(read(part, reads, limits.nextInt(50))).append(']');
+        splitter.consume(part);
+        out.append(splitter.hasMoreParts(part)).append(splitter.parentEOF(part));
+        while (splitter.hasMoreParts(part)) {
+            part = splitter.open(is, boundaries[depth]);
+            out.append(splitter.hasMoreParts(part)).append(splitter.parentEOF(part));
+            if (depth + 1 < boundaries.length) {
+                out.append('{');
+                split(splitter, part, boundaries, depth + 1, limits, reads, out);
+                out.append('}');
+            } else {
+                // Leave the rest of some parts to consume()
+                out.append("[part ").append(read(part, reads,
+                        limits.nextBoolean() ? -1 : limits.nextInt(20))).append(']');
+            }
+            splitter.consume(part);
+            out.append(splitter.hasMoreParts(part)).append(splitter.parentEOF(part));
+            if (splitter.parentEOF(part)) {
+                break;
+            }
+        }
+        out.append("[epilogue ").append(read(is, reads, -1)).append(']');
+    }
+
+    private static String split(Splitter splitter, InputStream is, String... boundaries)
+            throws IOException {
+        final StringBuilder out = new StringBuilder();
+        split(splitter, is, boundaries, 0, new Random(0), new Random(1), out);
+        return out.toString();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(CharsetUtil.ISO_8859_1);
+    }
+
+    @SmallTest
+    public void testSimpleMultipart() throws IOException {
+        final String message = "preamble\r\n--b\r\nfirst\r\n--b \r\nsecond\r\n\r\n--b--\r\n"
+                + "epilogue";
+        final Random random = new Random(0);
+        final InputStream is = LookaheadInputStream.wrap(
+                new ByteArrayInputStream(bytes(message)));
+
+        MimeBoundaryInputStream part = new MimeBoundaryInputStream(is, "b");
+        assertEquals("preamble", read(part, random, -1));
+        assertTrue(part.hasMoreParts());
+        assertFalse(part.parentEOF());
+
+        part = new MimeBoundaryInputStream(is, "b");
+        assertEquals("first", read(part, random, -1));
+        assertTrue(part.hasMoreParts());
+
+        part = new MimeBoundaryInputStream(is, "b");
+        assertEquals("second\r\n", read(part, random, -1));
+        assertFalse(part.hasMoreParts());
+        assertFalse(part.parentEOF());
+
+        assertEquals("epilogue", read(is, random, -1));
+    }
+
+    @SmallTest
+    public void testBoundaryTruncatedByEof() throws IOException {
+        final String[] messages = {
+            "",
+            "--b",
+            "--b--",
+            "\r\n--b\r\npart\r\n--b",
+            "--b\r\npart\r\n--",
+            "--b\r\npart",
+        };
+        for (String message : messages) {
+            assertEquals(message, split(LEGACY, new ByteArrayInputStream(bytes(message)), "b"),
+                    split(CURRENT, new ByteArrayInputStream(bytes(message)), "b"));
+        }
+    }
+
+    /**
+     * Builds random streams out of pieces of boundary lines, and checks that both
+     * implementations find the same parts in them, with the parent stream handing out random
+     * amounts of bytes per read.
+     */
+    @SmallTest
+    public void testFuzzEquivalence() throws IOException {
+        final String[][] boundarySets = {
+            { "b", "c" },
+            { "=_Part_1", "=_Part_1_inner" },
+            { "simple boundary" },
+        };
+        final String[] noise = { "\r\n", "\r", "\n", "-", "--", "x", " ", "\u00e9", "=_Part_" };
+        final Random random = new Random(42);
+        for (int round = 0; round < 2000; round++) {
+            final String[] boundaries = boundarySets[round % boundarySets.length];
+            final StringBuilder message = new StringBuilder();
+            final int pieces = random.nextInt(60);
+            for (int i = 0; i < pieces; i++) {
+                switch (random.nextInt(4)) {
+                    case 0:
+                        final String boundary = boundaries[random.nextInt(boundaries.length)];
+                        message.append("\r\n--").append(boundary)
+                                .append(random.nextInt(4) == 0 ? "--" : "")
+                                .append(random.nextInt(4) == 0 ? " " : "")
+                                .append(random.nextInt(5) == 0 ? "" : "\r\n");
+                        break;
+                    case 1:
+                        final String partial = "\r\n--" + boundaries[0];
+                        message.append(partial, 0, random.nextInt(partial.length()));
+                        break;
+                    default:
+                        message.append(noise[random.nextInt(noise.length)]);
+                        break;
+                }
+            }
+            final byte[] data = bytes(message.toString());
+            assertEquals(message.toString(),
+                    split(LEGACY, new ByteArrayInputStream(data), boundaries),
+                    split(CURRENT, new TricklingInputStream(data, random), boundaries));
+        }
+    }
+
+    private static long time(Splitter splitter, byte[] data) throws IOException {
+        final long start = System.nanoTime();
+        final byte[] buffer = new byte[4096];
+        final InputStream is = splitter.prepare(new ByteArrayInputStream(data));
+        InputStream part = splitter.open(is, "=_Part_0_12345.67890");
+        splitter.consume(part);
+        while (splitter.hasMoreParts(part) && !splitter.parentEOF(part)) {
+            part = splitter.open(is, "=_Part_0_12345.67890");
+            while (part.read(buffer, 0, buffer.length) >= 0) {
+            }
+            splitter.consume(part);
+        }
+        return System.nanoTime() - start;
+    }
+
+    @LargeTest
+    public void testBenchmark() throws IOException {
+        final StringBuilder line = new StringBuilder();
+        while (line.length() < 74) {
+            line.append("QUJDREVGR0hJSktMTU5PUFFSU1RVVldYWVo");
+        }
+        line.setLength(76);
+        line.append("\r\n");
+        final StringBuilder message = new StringBuilder();
+        for (int part = 0; part < 200; part++) {
+            message.append("--=_Part_0_12345.67890\r\nContent-Type: image/png\r\n\r\n");
+            for (int i = 0; i < 1700; i++) {
+                message.append(line);
+            }
+        }
+        message.append("--=_Part_0_12345.67890--\r\n");
+        final byte[] data = bytes(message.toString());
+
+        long legacy = Long.MAX_VALUE;
+        long current = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            legacy = Math.min(legacy, time(LEGACY, data));
+            current = Math.min(current, time(CURRENT, data));
+        }
+        LogUtils.i(LOG_TAG, "Split %d bytes into 200 parts: legacy %.1f MB/s, current %.1f MB/s",
+                data.length, data.length * 1000.0 / legacy, data.length * 1000.0 / current);
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j.decoder;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Base64;
+
+import com.android.mail.utils.LogUtils;
+
+import org.apache.james.mime4j.util.CharsetUtil;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that single-byte and bulk reads of {@link Base64InputStream} and
+ * {@link QuotedPrintableInputStream} decode the same bytes, and benchmarks both.
+ */
+public class DecoderInputStreamTests extends AndroidTestCase {
+    private static final String LOG_TAG = "DecoderStreamTests";
+
+    private static final int[] BENCHMARK_MEGABYTES = { 1, 10, 50 };
+
+    /**
+     * Hands out at most a few bytes per read, like a slow network stream.
+     */
+    private static class TricklingInputStream extends ByteArrayInputStream {
+        private final Random mRandom;
+
+        TricklingInputStream(byte[] buf, Random random) {
+            super(buf);
+            mRandom = random;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1 + mRandom.nextInt(17)));
+        }
+    }
+
+    /**
+     * Repeats the given encoded chunk until {@code length} bytes have been read.
+     */
+    private static class RepeatingInputStream extends InputStream {
+        private final byte[] mChunk;
+        private long mRemaining;
+        private int mPos;
+
+        RepeatingInputStream(byte[] chunk, long length) {
+            mChunk = chunk;
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() {
+            final byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (mRemaining == 0) {
+                return -1;
+            }
+            final int count = (int) Math.min(Math.min(len, mChunk.length - mPos), mRemaining);
+            System.arraycopy(mChunk, mPos, b, off, count);
+            mPos = (mPos + count) % mChunk.length;
+            mRemaining -= count;
+            return count;
+        }
+    }
+
+    /**
+     * Reads the stream to the end, mixing single-byte and bulk reads of random lengths.
+     */
+    private static byte[] readMixed(InputStream in, Random random) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[64];
+        while (true) {
+            if (random.nextInt(3) == 0) {
+                final int b = in.read();
+                if (b < 0) {
+                    break;
+                }
+                out.write(b);
+            } else {
+                final int count = in.read(buffer, 0, 1 + random.nextInt(buffer.length));
+                if (count < 0) {
+                    break;
+                }
+                out.write(buffer, 0, count);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readSingle(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) >= 0) {
+            out.write(b);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(CharsetUtil.US_ASCII);
+    }
+
+    @SmallTest
+    public void testBase64MatchesEncoder() throws IOException {
+        final Random random = new Random(11);
+        for (int round = 0; round < 300; round++) {
+            final byte[] data = new byte[random.nextInt(2000)];
+            random.nextBytes(data);
+            final byte[] encoded = Base64.encode(data, Base64.CRLF);
+            assertTrue(Arrays.equals(data, readMixed(new Base64InputStream(
+                    new TricklingInputStream(encoded, random)), random)));
+        }
+    }
+
+    @SmallTest
+    public void testBase64Padding() throws IOException {
+        assertEquals("a", new String(readSingle(new Base64InputStream(
+                new ByteArrayInputStream(ascii("YQ=="))))));
+        assertEquals("ab", new String(readSingle(new Base64InputStream(
+                new ByteArrayInputStream(ascii("YW\r\nI="))))));
+        // Invalid characters are skipped, and a quantum cut short by EOF is dropped
+        assertEquals("abc", new String(readSingle(new Base64InputStream(
+                new ByteArrayInputStream(ascii("Y*W J\tj\r\nZA"))))));
+        // A lone sextet before the padding doesn't make a byte
+        assertEquals("abc", new String(readSingle(new Base64InputStream(
+                new ByteArrayInputStream(ascii("YWJjZ="))))));
+    }
+
+    @SmallTest
+    public void testQuotedPrintable() throws IOException {
+        final String[][] cases = {
+            { "caf=C3=A9", "caf\u00c3\u00a9" },
+            // Soft line break
+            { "long =\r\nline", "long line" },
+            // Transport padding before a line break or the end is dropped
+            { "padded  \t\r\nline \t", "padded\r\nline" },
+            // Whitespace inside a line is kept
+            { "a \t b", "a \t b" },
+            // Malformed escapes come through as they were
+            { "a=\r b", "a=\r b" },
+            { "a=G1", "a=G1" },
+            { "a=4x", "a=4x" },
+            { "a==41", "a=A" },
+        };
+        for (String[] c : cases) {
+            final byte[] expected = c[1].getBytes(CharsetUtil.ISO_8859_1);
+            assertTrue(c[0], Arrays.equals(expected, readSingle(new QuotedPrintableInputStream(
+                    new ByteArrayInputStream(ascii(c[0]))))));
+            assertTrue(c[0], Arrays.equals(expected, readMixed(new QuotedPrintableInputStream(
+                    new TricklingInputStream(ascii(c[0]), new Random(1))), new Random(2))));
+        }
+    }
+
+    @SmallTest
+    public void testQuotedPrintableSingleAndBulkReadsAgree() throws IOException {
+        final Random random = new Random(5);
+        final String alphabet = "= \t\r\nAf9z";
+        for (int round = 0; round < 500; round++) {
+            final byte[] encoded = new byte[random.nextInt(500)];
+            for (int i = 0; i < encoded.length; i++) {
+                encoded[i] = (byte) alphabet.charAt(random.nextInt(alphabet.length()));
+            }
+            final byte[] single = readSingle(new QuotedPrintableInputStream(
+                    new ByteArrayInputStream(encoded)));
+            final byte[] mixed = readMixed(new QuotedPrintableInputStream(
+                    new TricklingInputStream(encoded, random)), random);
+            assertTrue(Arrays.equals(single, mixed));
+        }
+    }
+
+    private interface DecoderFactory {
+        InputStream create(InputStream in);
+    }
+
+    private static void benchmark(String name, byte[] chunk, DecoderFactory factory)
+            throws IOException {
+        final byte[] buffer = new byte[8192];
+        for (int megabytes : BENCHMARK_MEGABYTES) {
+            final long length = megabytes * 1024L * 1024L;
+
+            long start = System.nanoTime();
+            InputStream in = factory.create(new RepeatingInputStream(chunk, length));
+            long single = 0;
+            while (in.read() >= 0) {
+                single++;
+            }
+            final long singleNs = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            in = factory.create(new RepeatingInputStream(chunk, length));
+            long bulk = 0;
+            int count;
+            while ((count = in.read(buffer, 0, buffer.length)) >= 0) {
+                bulk += count;
+            }
+            final long bulkNs = System.nanoTime() - start;
+
+            assertEquals(single, bulk);
+            LogUtils.i(LOG_TAG, "%s %dMB encoded: read() %.1f MB/s, read(byte[]) %.1f MB/s",
+                    name, megabytes, single * 1000.0 / singleNs, bulk * 1000.0 / bulkNs);
+        }
+    }
+
+    @LargeTest
+    public void testBenchmark() throws IOException {
+        final byte[] data = new byte[57 * 1024];
+        new Random(1).nextBytes(data);
+        benchmark("base64", Base64.encode(data, Base64.CRLF), new DecoderFactory() {
+            @Override
+            public InputStream create(InputStream in) {
+                return new Base64InputStream(in);
+            }
+        });
+
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1024; i++) {
+            text.append("Quoted-printable text with an occasional =C3=A9scape and a soft =\r\n")
+                    .append("line break, and some trailing transport padding   \r\n");
+        }
+        benchmark("quoted-printable", ascii(text.toString()), new DecoderFactory() {
+            @Override
+            public InputStream create(InputStream in) {
+                return new QuotedPrintableInputStream(in);
+            }
+        });
+    }
+}
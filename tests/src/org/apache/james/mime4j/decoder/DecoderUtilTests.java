@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j.decoder;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Base64;
+
+import com.android.mail.utils.LogUtils;
+
+import org.apache.james.mime4j.util.CharsetUtil;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Checks that {@link DecoderUtil#decodeEncodedWords} decodes headers as it did when it went
+ * through the decoder streams and <code>new String()</code>, which is kept below, and
+ * benchmarks both on Japanese and Chinese newsletter headers.
+ */
+public class DecoderUtilTests extends AndroidTestCase {
+    private static final String LOG_TAG = "DecoderUtilTests";
+
+    private static final String[] JAPANESE = {
+        "\u3010\u9031\u520a\u30cb\u30e5\u30fc\u30b9\u30ec\u30bf\u30fc\u3011\u4eca\u9031\u306e"
+                + "\u304a\u3059\u3059\u3081\u5546\u54c1\u306e\u3054\u6848\u5185",
+        "\u3054\u6ce8\u6587\u3042\u308a\u304c\u3068\u3046\u3054\u3056\u3044\u307e\u3059\uff1a"
+                + "\u914d\u9001\u72b6\u6cc1\u306e\u304a\u77e5\u3089\u305b",
+        "\u30bb\u30fc\u30eb\u958b\u50ac\u4e2d\uff01\u6700\u5927\uff15\uff10\uff05\u30aa\u30d5",
+        "\u672c\u65e5\u306e\u6771\u4eac\u306e\u5929\u6c17\u306f\u6674\u308c\u3001\u6700\u9ad8"
+                + "\u6c17\u6e29\u306f\u4e8c\u5341\u4e94\u5ea6",
+        "\u3010\u91cd\u8981\u3011\u30d1\u30b9\u30ef\u30fc\u30c9\u5909\u66f4\u306e\u304a\u9858"
+                + "\u3044",
+    };
+    private static final String[] SIMPLIFIED_CHINESE = {
+        "\u6bcf\u5468\u65b0\u95fb\u7b80\u62a5\uff1a\u672c\u5468\u70ed\u95e8\u6587\u7ae0\u63a8"
+                + "\u8350",
+        "\u60a8\u7684\u8ba2\u5355\u5df2\u53d1\u8d27\uff0c\u8bf7\u6ce8\u610f\u67e5\u6536",
+        "\u9650\u65f6\u4f18\u60e0\uff1a\u5168\u573a\u5546\u54c1\u516b\u6298",
+        "\u4f1a\u5458\u4e13\u4eab\u6d3b\u52a8\u901a\u77e5",
+    };
+    private static final String[] TRADITIONAL_CHINESE = {
+        "\u6bcf\u9031\u96fb\u5b50\u5831\uff1a\u672c\u9031\u7cbe\u9078\u6587\u7ae0",
+        "\u60a8\u7684\u8a02\u55ae\u5df2\u51fa\u8ca8",
+    };
+
+    private static final String[] JAPANESE_CHARSETS = { "ISO-2022-JP", "Shift_JIS", "EUC-JP",
+            "UTF-8" };
+    private static final String[] SIMPLIFIED_CHINESE_CHARSETS = { "GB2312", "GBK", "gb18030",
+            "utf-8" };
+    private static final String[] TRADITIONAL_CHINESE_CHARSETS = { "Big5", "UTF-8" };
+
+    // The decoding before it worked in place
+
+    private static String decodeWordOld(String body, int begin, int end) {
+        int qm1 = body.indexOf('?', begin + 2);
+        if (qm1 == -1 || qm1 == end - 2)
+            return null;
+        int qm2 = body.indexOf('?', qm1 + 1);
+        if (qm2 == -1 || qm2 == end - 2)
+            return null;
+        String mimeCharset = body.substring(begin + 2, qm1);
+        String encoding = body.substring(qm1 + 1, qm2);
+        String encodedText = body.substring(qm2 + 1, end - 2);
+        String charset = CharsetUtil.toJavaCharset(mimeCharset);
+        if (charset == null || !CharsetUtil.isDecodingSupported(charset)
+                || encodedText.length() == 0) {
+            return null;
+        }
+        try {
+            if (encoding.equalsIgnoreCase("Q")) {
+                StringBuffer sb = new StringBuffer();
+                for (int i = 0; i < encodedText.length(); i++) {
+                    char c = encodedText.charAt(i);
+                    if (c == '_') {
+                        sb.append("=20");
+                    } else {
+                        sb.append(c);
+                    }
+                }
+                return new String(DecoderUtil.decodeBaseQuotedPrintable(sb.toString()), charset);
+            } else if (encoding.equalsIgnoreCase("B")) {
+                return new String(DecoderUtil.decodeBase64(encodedText), charset);
+            }
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static String decodeEncodedWordsOld(String body) {
+        if (body.indexOf("=?") == -1) {
+            return body;
+        }
+        int previousEnd = 0;
+        boolean previousWasEncoded = false;
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int begin = body.indexOf("=?", previousEnd);
+            if (begin == -1) {
+                break;
+            }
+            int qm1 = body.indexOf('?', begin + 2);
+            if (qm1 == -1) {
+                break;
+            }
+            int qm2 = body.indexOf('?', qm1 + 1);
+            if (qm2 == -1) {
+                break;
+            }
+            int end = body.indexOf("?=", qm2 + 1);
+            if (end == -1) {
+                break;
+            }
+            end += 2;
+            String sep = body.substring(previousEnd, begin);
+            String decoded = decodeWordOld(body, begin, end);
+            if (decoded == null) {
+                sb.append(sep);
+                sb.append(body.substring(begin, end));
+            } else {
+                if (!previousWasEncoded || !CharsetUtil.isWhitespace(sep)) {
+                    sb.append(sep);
+                }
+                sb.append(decoded);
+            }
+            previousEnd = end;
+            previousWasEncoded = decoded != null;
+        }
+        if (previousEnd == 0)
+            return body;
+        sb.append(body.substring(previousEnd));
+        return sb.toString();
+    }
+
+    private static String encodeB(String text, String charset) throws Exception {
+        return "=?" + charset + "?B?" + Base64.encodeToString(text.getBytes(charset),
+                Base64.NO_WRAP) + "?=";
+    }
+
+    private static String encodeQ(String text, String charset) throws Exception {
+        final StringBuilder sb = new StringBuilder("=?").append(charset).append("?Q?");
+        for (byte b : text.getBytes(charset)) {
+            if (b == ' ') {
+                sb.append('_');
+            } else if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+                    || (b >= '0' && b <= '9')) {
+                sb.append((char) b);
+            } else {
+                sb.append('=').append(String.format("%02X", b & 0xFF));
+            }
+        }
+        return sb.append("?=").toString();
+    }
+
+    @SmallTest
+    public void testNoEncodedWords() {
+        final String subject = "Weekly newsletter: =? is not an encoded word";
+        assertSame(subject, DecoderUtil.decodeEncodedWords(subject));
+        final String unknown = "=?x-unknown?B?SGVsbG8=?= world";
+        assertEquals(unknown, DecoderUtil.decodeEncodedWords(unknown));
+    }
+
+    @SmallTest
+    public void testJapaneseAndChineseWords() throws Exception {
+        for (String charset : JAPANESE_CHARSETS) {
+            final String subject = encodeB(JAPANESE[0], charset) + "\r\n "
+                    + encodeQ(JAPANESE[2], charset) + " (" + charset + ")";
+            assertEquals(JAPANESE[0] + JAPANESE[2] + " (" + charset + ")",
+                    DecoderUtil.decodeEncodedWords(subject));
+        }
+        for (String charset : SIMPLIFIED_CHINESE_CHARSETS) {
+            assertEquals("Re: " + SIMPLIFIED_CHINESE[0], DecoderUtil.decodeEncodedWords(
+                    "Re: " + encodeB(SIMPLIFIED_CHINESE[0], charset)));
+        }
+        assertEquals(TRADITIONAL_CHINESE[1], DecoderUtil.decodeEncodedWords(
+                encodeQ(TRADITIONAL_CHINESE[1], "big5")));
+        assertEquals("caf\u00e9 =?", DecoderUtil.decodeEncodedWords("=?ISO-8859-1?Q?caf=E9?= =?"));
+    }
+
+    @SmallTest
+    public void testDecodingCharsetsAreCached() {
+        assertSame(CharsetUtil.UTF_8, CharsetUtil.getDecodingCharset("utf-8"));
+        assertSame(CharsetUtil.getDecodingCharset("UTF8"), CharsetUtil.getDecodingCharset("UTF8"));
+        assertNull(CharsetUtil.getDecodingCharset("x-unknown"));
+        assertNull(CharsetUtil.getDecodingCharset("x-unknown"));
+        assertEquals("\u00e9t\u00e9", CharsetUtil.decode(CharsetUtil.ISO_8859_1,
+                new byte[] { 'x', (byte) 0xe9, 't', (byte) 0xe9 }, 1, 3));
+    }
+
+    private static final String[] CHARSETS = { "UTF-8", "utf-8", "ISO-2022-JP", "Shift_JIS",
+            "EUC-JP", "GB2312", "GBK", "Big5", "ISO-8859-1", "us-ascii", "x-unknown", "",
+            "utf-8*en" };
+    private static final String[] ENCODINGS = { "B", "b", "Q", "q", "X", "", "BQ" };
+    private static final String TEXT =
+            "=_?\r\n\t  ABCabc012345+/9fF=\u00e9\u4eca\ud83d\ude00\ud83d";
+
+    private static boolean isEncodingSupported(String charset) {
+        try {
+            return Charset.isSupported(charset);
+        } catch (IllegalArgumentException e) {
+            // Empty and illegal names
+            return false;
+        }
+    }
+
+    private static String generateHeader(Random random) throws Exception {
+        final StringBuilder sb = new StringBuilder();
+        final int words = 1 + random.nextInt(4);
+        for (int w = 0; w < words; w++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    sb.append(random.nextBoolean() ? " " : "\r\n\t");
+                    break;
+                case 1:
+                    sb.append(" and ");
+                    break;
+                default:
+                    break;
+            }
+            final String charset = CHARSETS[random.nextInt(CHARSETS.length)];
+            if (random.nextInt(3) == 0) {
+                // A real word
+                final String text = random.nextBoolean()
+                        ? JAPANESE[random.nextInt(JAPANESE.length)]
+                        : SIMPLIFIED_CHINESE[random.nextInt(SIMPLIFIED_CHINESE.length)];
+                if (isEncodingSupported(charset)) {
+                    sb.append(random.nextBoolean() ? encodeB(text, charset)
+                            : encodeQ(text, charset));
+                    continue;
+                }
+            }
+            // Or any text at all
+            sb.append("=?").append(charset).append('?')
+                    .append(ENCODINGS[random.nextInt(ENCODINGS.length)]).append('?');
+            final int length = random.nextInt(24);
+            for (int i = 0; i < length; i++) {
+                sb.append(TEXT.charAt(random.nextInt(TEXT.length())));
+            }
+            if (random.nextInt(10) != 0) {
+                sb.append("?=");
+            }
+        }
+        return sb.toString();
+    }
+
+    @LargeTest
+    public void testMatchesOldDecoding() throws Exception {
+        final Random random = new Random(2047);
+        for (int i = 0; i < 100000; i++) {
+            final String header = generateHeader(random);
+            assertEquals(header, decodeEncodedWordsOld(header),
+                    DecoderUtil.decodeEncodedWords(header));
+        }
+    }
+
+    private static String[] buildNewsletterHeaders(Random random) throws Exception {
+        final ArrayList<String> headers = new ArrayList<String>();
+        for (int i = 0; i < 2000; i++) {
+            final String[] texts;
+            final String[] charsets;
+            switch (i % 3) {
+                case 0:
+                    texts = JAPANESE;
+                    charsets = JAPANESE_CHARSETS;
+                    break;
+                case 1:
+                    texts = SIMPLIFIED_CHINESE;
+                    charsets = SIMPLIFIED_CHINESE_CHARSETS;
+                    break;
+                default:
+                    texts = TRADITIONAL_CHINESE;
+                    charsets = TRADITIONAL_CHINESE_CHARSETS;
+                    break;
+            }
+            // Newsletters keep to one charset for all the headers of a message
+            final String charset = charsets[(i / 3) % charsets.length];
+            final String text = texts[random.nextInt(texts.length)];
+            final int split = text.length() / 2;
+            headers.add(encodeB(text.substring(0, split), charset) + "\r\n "
+                    + encodeB(text.substring(split), charset));
+            headers.add("\"" + encodeQ(texts[0].substring(0, 6), charset)
+                    + "\" <news@example.com>");
+            headers.add("news-" + i + "@example.com");
+        }
+        return headers.toArray(new String[headers.size()]);
+    }
+
+    @LargeTest
+    public void testNewsletterBenchmark() throws Exception {
+        final String[] headers = buildNewsletterHeaders(new Random(2022));
+        for (String header : headers) {
+            assertEquals(decodeEncodedWordsOld(header), DecoderUtil.decodeEncodedWords(header));
+        }
+
+        long current = Long.MAX_VALUE;
+        long old = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (String header : headers) {
+                DecoderUtil.decodeEncodedWords(header);
+            }
+            current = Math.min(current, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (String header : headers) {
+                decodeEncodedWordsOld(header);
+            }
+            old = Math.min(old, System.nanoTime() - start);
+        }
+        LogUtils.i(LOG_TAG, "Decoded %d newsletter headers: in place %d us, streams %d us",
+                headers.length, current / 1000, old / 1000);
+    }
+}
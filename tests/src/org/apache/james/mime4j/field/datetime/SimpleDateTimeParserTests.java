@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j.field.datetime;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.mail.utils.LogUtils;
+
+import java.util.Random;
+
+/**
+ * Checks that {@link SimpleDateTimeParser} gives the same times as {@link DateTime#parse} for
+ * every date it parses itself.
+ */
+public class SimpleDateTimeParserTests extends AndroidTestCase {
+    private static final String LOG_TAG = "SimpleDateTimeParserTests";
+
+    private static final String[] DAYS_OF_WEEK = {
+        "Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun", "mon", "Monday", "Xyz"
+    };
+    private static final String[] MONTHS = {
+        "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec",
+        "jan", "Sept", "J"
+    };
+    private static final String[] ZONE_NAMES = {
+        "UT", "GMT", "EST", "EDT", "CST", "CDT", "MST", "MDT", "PST", "PDT", "UTC", "gmt", "Z",
+        "z", "A", "J", "j", "CET", "GM", "GMT+0100", "GMT-0800"
+    };
+    private static final String[] COMMENTS = {
+        "(PDT)", "()", "(GMT+01:00)", "(CET (Europe))", "(a \\) b)", "(Mitteleurop\u00e4ische)",
+        "(\u0100)", "(\u0180)", "(PDT", "(\t)"
+    };
+    private static final String NOISE = " \t()\\:,+-0123456789AJZaz\u00e4\u0100";
+
+    private static Long parseWithDateTime(String s) {
+        try {
+            return DateTime.parse(s).getDate().getTime();
+        } catch (Exception e) {
+            // ParseException, or NumberFormatException for long numbers
+            return null;
+        }
+    }
+
+    private static void checkSame(String s) {
+        final long time = SimpleDateTimeParser.parse(s);
+        if (time != SimpleDateTimeParser.UNPARSED) {
+            final Long expected = parseWithDateTime(s);
+            assertNotNull(s, expected);
+            assertEquals(s, expected.longValue(), time);
+            // Or DateTimeField and MimeMessage would parse different strings
+            assertEquals(s, s, LogUtils.cleanUpMimeDate(s));
+        }
+    }
+
+    private static void checkParsed(String s) {
+        final long time = SimpleDateTimeParser.parse(s);
+        assertTrue(s, time != SimpleDateTimeParser.UNPARSED);
+        assertEquals(s, parseWithDateTime(s).longValue(), time);
+    }
+
+    @SmallTest
+    public void testCommonForms() {
+        checkParsed("Tue, 1 Jul 2014 10:00:00 -0700");
+        checkParsed("Tue, 01 Jul 2014 10:00:00 -0700 (PDT)");
+        checkParsed("1 Jul 2014 10:00 +0000");
+        checkParsed("Wed,  2 Jul 14 23:59:59 GMT");
+        checkParsed("Thu, 3 Jul 2014 08:15:02 +0530");
+        checkParsed("Thu, 3 Jul 2014 08:15:02 -0130");
+        checkParsed("Fri, 4 Jul 99 12:00:00 EST");
+        checkParsed("Sat, 29 Feb 2020 00:00:00 Z");
+        checkParsed(" Sun, 31 Dec 1899 24:60:60 +0000 ");
+        checkParsed("Mon,1 Jan 2001 1:2:3 UT (comment)");
+        assertEquals(0, SimpleDateTimeParser.parse("Thu, 1 Jan 1970 00:00:00 +0000"));
+    }
+
+    @SmallTest
+    public void testObsoleteFormsAreLeftToDateTime() {
+        final String[] dates = {
+            null,
+            "",
+            "Tue, 1 Jul 2014 10:00:00 GMT+0100",
+            "Tue, 1 Jul 2014 10:00:00 -0700 (PDT (Pacific))",
+            "Tue, 1 Jul 2014 10:00:00 - 0700",
+            "Tue, 1 Jul 1492 10:00:00 -0700",
+            "Tue, 1 Jul 2014 10:00:00 -07000",
+            "Tue, 1 Jul 2014 10:00:00 UTC",
+        };
+        for (String date : dates) {
+            assertEquals(date, SimpleDateTimeParser.UNPARSED, SimpleDateTimeParser.parse(date));
+        }
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private static void appendNumber(Random random, StringBuilder sb, int maxDigits) {
+        final int digits = 1 + random.nextInt(maxDigits);
+        for (int i = 0; i < digits; i++) {
+            sb.append((char) ('0' + random.nextInt(10)));
+        }
+    }
+
+    private static void appendSpace(Random random, StringBuilder sb) {
+        switch (random.nextInt(8)) {
+            case 0:
+                break;
+            case 1:
+                sb.append("  ");
+                break;
+            case 2:
+                sb.append('\t');
+                break;
+            case 3:
+                sb.append(' ').append(pick(random, COMMENTS)).append(' ');
+                break;
+            default:
+                sb.append(' ');
+                break;
+        }
+    }
+
+    private static String generateDate(Random random) {
+        final StringBuilder sb = new StringBuilder();
+        if (random.nextInt(3) != 0) {
+            sb.append(pick(random, DAYS_OF_WEEK));
+            if (random.nextInt(10) != 0) {
+                sb.append(',');
+            }
+            appendSpace(random, sb);
+        }
+        appendNumber(random, sb, random.nextInt(10) == 0 ? 3 : 2);
+        appendSpace(random, sb);
+        sb.append(pick(random, MONTHS));
+        appendSpace(random, sb);
+        appendNumber(random, sb, random.nextInt(10) == 0 ? 5 : 4);
+        appendSpace(random, sb);
+        appendNumber(random, sb, 2);
+        sb.append(':');
+        appendNumber(random, sb, 2);
+        if (random.nextInt(4) != 0) {
+            sb.append(':');
+            appendNumber(random, sb, random.nextInt(20) == 0 ? 3 : 2);
+        }
+        appendSpace(random, sb);
+        if (random.nextBoolean()) {
+            sb.append(random.nextBoolean() ? '+' : '-');
+            if (random.nextInt(20) == 0) {
+                sb.append(' ');
+            }
+            appendNumber(random, sb, random.nextInt(10) == 0 ? 6 : 4);
+        } else {
+            sb.append(pick(random, ZONE_NAMES));
+        }
+        if (random.nextInt(3) == 0) {
+            appendSpace(random, sb);
+        }
+
+        // Break a few of them
+        if (random.nextInt(4) == 0) {
+            final int pos = random.nextInt(sb.length());
+            switch (random.nextInt(3)) {
+                case 0:
+                    sb.deleteCharAt(pos);
+                    break;
+                case 1:
+                    sb.insert(pos, NOISE.charAt(random.nextInt(NOISE.length())));
+                    break;
+                default:
+                    sb.setCharAt(pos, NOISE.charAt(random.nextInt(NOISE.length())));
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Compares the two parsers over a generated corpus of common, obsolete and broken dates, and
+     * times them on the dates the simple parser handles.
+     */
+    @LargeTest
+    public void testMatchesDateTime() {
+        final Random random = new Random(20140701);
+        final String[] dates = new String[200000];
+        int valid = 0;
+        int parsed = 0;
+        for (int i = 0; i < dates.length; i++) {
+            dates[i] = generateDate(random);
+            checkSame(dates[i]);
+            if (parseWithDateTime(dates[i]) != null) {
+                valid++;
+            }
+            if (SimpleDateTimeParser.parse(dates[i]) != SimpleDateTimeParser.UNPARSED) {
+                dates[parsed++] = dates[i];
+            }
+        }
+        // The rest have nested or escaped comments, early years and other obsolete syntax
+        assertTrue(parsed > valid / 2);
+
+        long simple = Long.MAX_VALUE;
+        long dateTime = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < parsed; i++) {
+                SimpleDateTimeParser.parse(dates[i]);
+            }
+            simple = Math.min(simple, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < parsed; i++) {
+                parseWithDateTime(dates[i]);
+            }
+            dateTime = Math.min(dateTime, System.nanoTime() - start);
+        }
+        LogUtils.i(LOG_TAG, "%d of %d dates valid, %d simple: SimpleDateTimeParser %d ms, "
+                + "DateTime %d ms", valid, dates.length, parsed, simple / 1000000,
+                dateTime / 1000000);
+    }
+}